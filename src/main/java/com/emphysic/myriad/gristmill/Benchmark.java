@@ -0,0 +1,282 @@
+/*
+ * com.emphysic.myriad.gristmill.Benchmark
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Address;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Props;
+import akka.pattern.Patterns;
+import akka.util.Timeout;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import lombok.extern.slf4j.Slf4j;
+import scala.concurrent.Await;
+import scala.concurrent.Future;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark - measures GristMill's end-to-end capacity on synthetic data.  Starts a GristMill from its usual
+ * configuration, waits for it to warm up, then drives a BenchmarkDriver against it either in the same Actor system
+ * (local mode) or from a separate client Actor system over remoting on the loopback interface (loopback mode), so
+ * that serialization and transport are included in the measurement as they are for Thresher.  The scans are synthetic
+ * unless a manifest of labelled reference scans is configured (see ReferenceScan).
+ *
+ * If benchmark.engines lists more than one engine (e.g. ["actors", "forkjoin"], see engine.type), each is benchmarked
+ * in turn in a freshly started GristMill with the same scans, and their throughput, latency and results are compared
+ * side by side; the report then holds one benchmark report per engine.
+ *
+ * Usage: Benchmark gristmill.conf [benchmark.conf]; the benchmark block is read from the second file if given, or
+ * from the GristMill configuration.  The report is logged and written as JSON to the configured path.
+ */
+@Slf4j
+public class Benchmark {
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            log.error("Usage: Benchmark gristmill.conf [benchmark.conf]");
+            System.exit(0);
+        }
+        File configFile = new File(args[0]);
+        if (!configFile.canRead()) {
+            log.error("Unable to read configuration file " + configFile + ", exiting.");
+            System.exit(1);
+        }
+        Config config = ConfigFactory.parseFile(configFile);
+        BenchmarkSettings settings = BenchmarkSettings.fromConfig(
+                args.length > 1 ? ConfigFactory.parseFile(new File(args[1])) : config);
+        if (settings.getMode() == BenchmarkSettings.MODE.LOOPBACK) {
+            config = ConfigFactory.parseString("akka.remote.netty.tcp.hostname = \"127.0.0.1\"").withFallback(config);
+        }
+        if (settings.getEngines().size() > 1) {
+            System.exit(compare(config, settings));
+        }
+        GristMill mill = new GristMill(config);
+        if (!mill.startup()) {
+            log.error("Unable to construct grist mill, please check logs for details.");
+            mill.shutdown(1);
+        }
+        if (!mill.awaitReady(WarmupSettings.fromConfig(config).getBudget() + 5000)) {
+            log.warn("Grist mill has not finished warming up, results may be pessimistic.");
+        }
+        int status = 0;
+        try {
+            log.info("Benchmark settings: " + settings.toJson());
+            BenchmarkReport report = run(mill, settings, references(settings));
+            log.info(summary(report));
+            String json = report.toJson();
+            log.info(json);
+            if (settings.getReport() != null && !settings.getReport().isEmpty()) {
+                try (PrintWriter out = new PrintWriter(new FileWriter(settings.getReport()))) {
+                    out.println(json);
+                }
+                log.info("Wrote benchmark report to " + settings.getReport());
+            }
+        } catch (IOException e) {
+            log.error("Unable to read reference scans or write benchmark report: " + e);
+            status = 1;
+        } catch (Exception e) {
+            log.error("Benchmark failed: ", e);
+            status = 1;
+        }
+        mill.shutdown(status);
+    }
+
+    /**
+     * Benchmarks each of the configured engines in a freshly started GristMill and compares them with the first.
+     * @param config GristMill configuration
+     * @param settings benchmark settings
+     * @return exit status
+     */
+    private static int compare(Config config, BenchmarkSettings settings) {
+        List<ReferenceScan> references;
+        try {
+            references = references(settings);
+        } catch (IOException e) {
+            log.error("Unable to read reference scans: " + e);
+            return 1;
+        }
+        log.info("Benchmark settings: " + settings.toJson());
+        // Each engine gets a new Actor system, let the OS pick its port so they don't collide
+        config = ConfigFactory.parseString("akka.remote.netty.tcp.port = 0").withFallback(config);
+        Map<String, BenchmarkReport> reports = new LinkedHashMap<>();
+        for (String engine : settings.getEngines()) {
+            log.info("Benchmarking the " + engine + " engine");
+            BenchmarkReport report = measure(
+                    ConfigFactory.parseString("engine.type = \"" + engine + "\"").withFallback(config),
+                    settings, references);
+            if (report == null) {
+                log.error("Unable to benchmark the " + engine + " engine");
+                return 1;
+            }
+            log.info(engine + ": " + summary(report));
+            reports.put(engine, report);
+        }
+        String baseline = settings.getEngines().get(0);
+        BenchmarkReport base = reports.get(baseline);
+        for (Map.Entry<String, BenchmarkReport> entry : reports.entrySet()) {
+            BenchmarkReport report = entry.getValue();
+            if (entry.getKey().equals(baseline)) {
+                continue;
+            }
+            log.info(String.format(Locale.ROOT, "%s vs %s: %.2fx windows/s, %.2fx files/s, p99 %d ms vs %d ms",
+                    entry.getKey(), baseline,
+                    base.getWindowsPerSecond() > 0 ? report.getWindowsPerSecond() / base.getWindowsPerSecond() : 0,
+                    base.getFilesPerSecond() > 0 ? report.getFilesPerSecond() / base.getFilesPerSecond() : 0,
+                    report.getLatency(0.99), base.getLatency(0.99)));
+            if (report.getWindowsPerFile() != base.getWindowsPerFile()
+                    || Double.compare(report.getRecall(), base.getRecall()) != 0) {
+                log.warn(String.format(Locale.ROOT, "%s results differ from %s: %d vs %d windows per scan, "
+                                + "recall %.3f vs %.3f", entry.getKey(), baseline, report.getWindowsPerFile(),
+                        base.getWindowsPerFile(), report.getRecall(), base.getRecall()));
+            }
+        }
+        if (settings.getReport() != null && !settings.getReport().isEmpty()) {
+            try (PrintWriter out = new PrintWriter(new FileWriter(settings.getReport()))) {
+                StringBuilder json = new StringBuilder("{\"engines\":{");
+                String separator = "";
+                for (Map.Entry<String, BenchmarkReport> entry : reports.entrySet()) {
+                    json.append(separator).append('"').append(entry.getKey()).append("\":")
+                            .append(entry.getValue().toJson());
+                    separator = ",";
+                }
+                out.println(json.append("}}"));
+            } catch (IOException e) {
+                log.error("Unable to write benchmark report: " + e);
+                return 1;
+            }
+            log.info("Wrote benchmark report to " + settings.getReport());
+        }
+        return 0;
+    }
+
+    /**
+     * Summarises a benchmark report in one line.
+     * @param report benchmark report
+     * @return summary
+     */
+    static String summary(BenchmarkReport report) {
+        return String.format("%d files completed (%d incomplete) in %d ms: %.2f files/s, %.1f windows/s, "
+                        + "p50 %d ms, p99 %d ms, p99.9 %d ms, recall %.3f",
+                report.getCompleted(), report.getIncomplete(), report.getDuration(),
+                report.getFilesPerSecond(), report.getWindowsPerSecond(), report.getLatency(0.5),
+                report.getLatency(0.99), report.getLatency(0.999), report.getRecall());
+    }
+
+    /**
+     * Starts a GristMill with one configuration, benchmarks it and shuts it down.
+     * @param config GristMill configuration
+     * @param settings benchmark settings
+     * @param references reference scans, or null for synthetic scans
+     * @return benchmark report, or null if the configuration couldn't be benchmarked
+     */
+    static BenchmarkReport measure(Config config, BenchmarkSettings settings, List<ReferenceScan> references) {
+        GristMill mill = new GristMill(config);
+        try {
+            if (!mill.startup()) {
+                log.error("Unable to construct grist mill with this configuration, skipping it.");
+                return null;
+            }
+            if (!mill.awaitReady(WarmupSettings.fromConfig(config).getBudget() + 5000)) {
+                log.warn("Grist mill has not finished warming up, results may be pessimistic.");
+            }
+            return run(mill, settings, references);
+        } catch (Exception e) {
+            log.error("Benchmark failed: ", e);
+            return null;
+        } finally {
+            mill.shutdown();
+            if (mill.getSystem() != null) {
+                mill.getSystem().awaitTermination();
+            }
+        }
+    }
+
+
+    /**
+     * Reads the reference scans named in the benchmark settings.
+     * @param settings benchmark settings
+     * @return reference scans, or null if the benchmark uses synthetic scans
+     * @throws IOException if the reference scans couldn't be read
+     */
+    static List<ReferenceScan> references(BenchmarkSettings settings) throws IOException {
+        if (settings.getReference().isEmpty()) {
+            return null;
+        }
+        List<ReferenceScan> references = ReferenceScan.load(new File(settings.getReference()));
+        log.info("Read " + references.size() + " reference scans from " + settings.getReference());
+        return references;
+    }
+
+    /**
+     * Runs a benchmark against a GristMill that has been started and warmed up.
+     * @param mill GristMill to measure
+     * @param settings benchmark settings
+     * @param references reference scans to send, or null to send synthetic scans
+     * @return benchmark report
+     * @throws Exception if the run didn't complete
+     */
+    static BenchmarkReport run(GristMill mill, BenchmarkSettings settings, List<ReferenceScan> references)
+            throws Exception {
+        ActorSystem client = null;
+        try {
+            ActorSystem driverSystem = mill.getSystem();
+            ActorRef pipeline = mill.getPyramidActorPool();
+            ActorRef finder = mill.getFinderPool();
+            if (settings.getMode() == BenchmarkSettings.MODE.LOOPBACK) {
+                client = ActorSystem.create("MyriadBenchmark",
+                        ConfigFactory.parseString("akka.remote.netty.tcp.port = 0").withFallback(mill.getConfig()));
+                Address address = ((ExtendedActorSystem) mill.getSystem()).provider().getDefaultAddress();
+                pipeline = resolve(client, address + "/user/" + GristMill.PYRAMID_POOL);
+                finder = resolve(client, address + "/user/" + GristMill.FINDER_POOL);
+                driverSystem = client;
+            }
+            ActorRef driver = driverSystem.actorOf(
+                    Props.create(BenchmarkDriver.class, pipeline, finder, settings, references), "BenchmarkDriver");
+            Timeout t = new Timeout(settings.getBudget() + 10000, TimeUnit.MILLISECONDS);
+            Future<Object> reply = Patterns.ask(driver, BenchmarkDriver.RUN, t);
+            return (BenchmarkReport) Await.result(reply, t.duration());
+        } finally {
+            if (client != null) {
+                client.shutdown();
+                client.awaitTermination();
+            }
+        }
+    }
+
+    /**
+     * Looks up a remote Actor.
+     * @param system Actor system to look it up from
+     * @param path full path of the remote Actor
+     * @return reference to the Actor
+     * @throws Exception if the Actor couldn't be found
+     */
+    private static ActorRef resolve(ActorSystem system, String path) throws Exception {
+        Timeout timeout = new Timeout(10, TimeUnit.SECONDS);
+        return Await.result(system.actorSelection(path).resolveOne(timeout), timeout.duration());
+    }
+}
@@ -0,0 +1,410 @@
+/*
+ * com.emphysic.myriad.gristmill.BenchmarkDriver
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill;
+
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.UntypedActor;
+import com.emphysic.myriad.core.data.io.Dataset;
+import com.emphysic.myriad.core.data.roi.ROI;
+import com.emphysic.myriad.gristmill.demo.ROIResultGenerator;
+import com.emphysic.myriad.network.messages.DatasetMessage;
+import com.emphysic.myriad.network.messages.ImmutableMessage;
+import com.emphysic.myriad.network.messages.ROIMessage;
+import lombok.extern.slf4j.Slf4j;
+import scala.concurrent.duration.Duration;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BenchmarkDriver - client side of a throughput benchmark.  Sends synthetic scans with seeded indications through
+ * GristMill and receives the results directly from the ROI finder stage, timing each scan from submission to its
+ * last window and checking which of its indications were found.  Labelled reference scans (see ReferenceScan) can
+ * be sent in turn instead of synthetic scans.
+ *
+ * GristMill doesn't signal when a scan is finished, so the driver first calibrates: it sends one scan of each size
+ * (every synthetic scan has the same size, reference scans are calibrated individually) and counts the results until
+ * they stop arriving.  A scan is complete once as many results as its calibration scan produced have arrived for it.
+ *
+ * Send RUN to start; the sender receives a BenchmarkReport when the run ends.
+ */
+@Slf4j
+public class BenchmarkDriver extends UntypedActor {
+    /**
+     * Message that starts the run
+     */
+    public static final String RUN = "run";
+    /**
+     * Message sent to self to pace the load and check for timeouts
+     */
+    private static final String TICK = "tick";
+    /**
+     * Prefix of the sources of the calibration scans
+     */
+    private static final String CALIBRATION = "bench-calibration-";
+    /**
+     * Prefix of the sources of the benchmark scans
+     */
+    private static final String SOURCE = "bench-";
+
+    /**
+     * Entry point of the pipeline
+     */
+    private final ActorRef pipeline;
+    /**
+     * ROI finder stage, told to send its results here
+     */
+    private final ActorRef finder;
+    private final BenchmarkSettings settings;
+    /**
+     * Reference scans sent in turn, or null to send synthetic scans
+     */
+    private final List<ReferenceScan> references;
+    private final ROIResultGenerator generator = new ROIResultGenerator();
+
+    private ActorRef requester;
+    private Cancellable ticker;
+    private long runStart;
+
+    private boolean calibrating;
+    /**
+     * Number of windows of each calibration scan, i.e. of each reference scan or of every synthetic scan
+     */
+    private long[] windowsPerFile;
+    private long lastResult;
+
+    /**
+     * Scans sent and not yet complete, keyed by source
+     */
+    private final Map<String, Scan> inFlight = new HashMap<>();
+    private final List<Long> latencies = new ArrayList<>();
+    private int nextFile;
+    private long loadStart;
+    private long loadEnd;
+    private double nextSend;
+    private long windows;
+    private int incomplete;
+    private int seeded;
+    private int detected;
+
+    /**
+     * Creates the driver.
+     * @param pipeline entry point of the pipeline (the scale space stage)
+     * @param finder ROI finder stage
+     * @param settings benchmark settings
+     */
+    public BenchmarkDriver(ActorRef pipeline, ActorRef finder, BenchmarkSettings settings) {
+        this(pipeline, finder, settings, null);
+    }
+
+    /**
+     * Creates a driver that sends labelled reference scans instead of synthetic scans.
+     * @param pipeline entry point of the pipeline (the scale space stage)
+     * @param finder ROI finder stage
+     * @param settings benchmark settings; the synthetic scan settings are ignored
+     * @param references reference scans, sent in turn, or null to send synthetic scans
+     */
+    public BenchmarkDriver(ActorRef pipeline, ActorRef finder, BenchmarkSettings settings,
+                           List<ReferenceScan> references) {
+        this.pipeline = pipeline;
+        this.finder = finder;
+        this.settings = settings;
+        this.references = references == null || references.isEmpty() ? null : new ArrayList<>(references);
+    }
+
+    @Override
+    public void preStart() {
+        finder.tell(getSelf(), getSelf());
+    }
+
+    @Override
+    public void postStop() {
+        if (ticker != null) {
+            ticker.cancel();
+        }
+    }
+
+    @Override
+    public void onReceive(Object message) throws Throwable {
+        if (message instanceof ROIMessage) {
+            received((ROIMessage) message);
+        } else if (TICK.equals(message)) {
+            tick();
+        } else if (RUN.equals(message)) {
+            requester = getSender();
+            runStart = System.currentTimeMillis();
+            calibrating = true;
+            windowsPerFile = new long[references == null ? 1 : references.size()];
+            if (references == null) {
+                log.info("Calibrating with one " + settings.getWidth() + "x" + settings.getHeight() + " scan");
+                pipeline.tell(new DatasetMessage(
+                        SyntheticData.scan(settings.getWidth(), settings.getHeight(), 0, settings.getSeed()),
+                        ImmutableMessage.genMetadata(null, "source", CALIBRATION + 0)), getSelf());
+            } else {
+                log.info("Calibrating with " + references.size() + " reference scans");
+                for (int i = 0; i < references.size(); i++) {
+                    pipeline.tell(new DatasetMessage(copy(references.get(i).getData()),
+                            ImmutableMessage.genMetadata(null, "source", CALIBRATION + i)), getSelf());
+                }
+            }
+            ticker = getContext().system().scheduler().schedule(
+                    Duration.create(50, TimeUnit.MILLISECONDS),
+                    Duration.create(50, TimeUnit.MILLISECONDS),
+                    getSelf(),
+                    TICK,
+                    getContext().dispatcher(),
+                    getSelf());
+        } else {
+            unhandled(message);
+        }
+    }
+
+    /**
+     * Counts a window's result against its scan, completing the scan if it was the last.
+     * @param message ROI result
+     */
+    private void received(ROIMessage message) {
+        String source = ImmutableMessage.getMetadata(message.getMetadata()).get("source");
+        long now = System.currentTimeMillis();
+        if (source != null && source.startsWith(CALIBRATION)) {
+            if (calibrating) {
+                windowsPerFile[Integer.parseInt(source.substring(CALIBRATION.length()))]++;
+                lastResult = now;
+            }
+            return;
+        }
+        Scan scan = source == null ? null : inFlight.get(source);
+        if (scan == null) {
+            // Late result for a scan that has already timed out
+            return;
+        }
+        windows++;
+        scan.windows++;
+        ROI roi = message.getROI();
+        if (roi != null) {
+            roi.setMetadata(message.getMetadata());
+            scan.match(generator.new Coords(roi, scan.width, scan.height));
+        }
+        if (scan.windows >= scan.expected) {
+            inFlight.remove(source);
+            latencies.add(now - scan.sent);
+            detected += scan.detected();
+            loadEnd = now;
+            if (settings.getLoad() == BenchmarkSettings.LOAD.CLOSED && nextFile < settings.getFiles()) {
+                send();
+            }
+            if (nextFile >= settings.getFiles() && inFlight.isEmpty()) {
+                finish();
+            }
+        }
+    }
+
+    /**
+     * Ends calibration once results stop arriving, sends scans due under a fixed-rate load and times out stalled
+     * scans.
+     */
+    private void tick() {
+        long now = System.currentTimeMillis();
+        if (now - runStart >= settings.getBudget()) {
+            log.warn("Benchmark budget of " + settings.getBudget() + " ms exhausted");
+            finish();
+            return;
+        }
+        if (calibrating) {
+            if (calibrated() && now - lastResult >= settings.getQuiet()) {
+                calibrating = false;
+                if (references == null) {
+                    log.info("Each scan produces " + windowsPerFile[0] + " windows, starting " + settings.getLoad()
+                            + " load");
+                } else {
+                    for (int i = 0; i < references.size(); i++) {
+                        log.info(references.get(i).getName() + " produces " + windowsPerFile[i] + " windows");
+                    }
+                    log.info("Starting " + settings.getLoad() + " load");
+                }
+                loadStart = now;
+                nextSend = now;
+                if (settings.getLoad() == BenchmarkSettings.LOAD.CLOSED) {
+                    while (nextFile < Math.min(settings.getConcurrency(), settings.getFiles())) {
+                        send();
+                    }
+                }
+            } else {
+                return;
+            }
+        }
+        if (settings.getLoad() == BenchmarkSettings.LOAD.FIXED) {
+            while (nextFile < settings.getFiles() && now >= nextSend) {
+                send();
+                nextSend += 1000.0 / settings.getRate();
+            }
+        }
+        Iterator<Map.Entry<String, Scan>> it = inFlight.entrySet().iterator();
+        boolean timedOut = false;
+        while (it.hasNext()) {
+            Map.Entry<String, Scan> entry = it.next();
+            if (now - entry.getValue().sent >= settings.getFileTimeout()) {
+                log.warn(entry.getKey() + " incomplete after " + settings.getFileTimeout() + " ms ("
+                        + entry.getValue().windows + " of " + entry.getValue().expected + " windows)");
+                detected += entry.getValue().detected();
+                incomplete++;
+                it.remove();
+                timedOut = true;
+            }
+        }
+        if (timedOut && settings.getLoad() == BenchmarkSettings.LOAD.CLOSED) {
+            while (nextFile < settings.getFiles() && inFlight.size() < settings.getConcurrency()) {
+                send();
+            }
+        }
+        if (nextFile >= settings.getFiles() && inFlight.isEmpty()) {
+            finish();
+        }
+    }
+
+    /**
+     * Determines whether every calibration scan has produced results.
+     * @return true if calibration can end once results stop arriving
+     */
+    private boolean calibrated() {
+        for (long w : windowsPerFile) {
+            if (w == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Generates the next scan, or takes the next reference scan, and sends it through the pipeline.
+     */
+    private void send() {
+        int i = nextFile++;
+        List<SyntheticData.Indication> truth;
+        Dataset data;
+        long expected;
+        if (references == null) {
+            long seed = settings.getSeed() + 2L * i;
+            truth = SyntheticData.indications(settings.getWidth(), settings.getHeight(), settings.getIndications(),
+                    seed);
+            data = SyntheticData.scan(settings.getWidth(), settings.getHeight(), truth, seed + 1);
+            expected = windowsPerFile[0];
+        } else {
+            ReferenceScan reference = references.get(i % references.size());
+            truth = reference.getLabels();
+            data = copy(reference.getData());
+            expected = windowsPerFile[i % references.size()];
+        }
+        DatasetMessage message = new DatasetMessage(data, ImmutableMessage.genMetadata(null, "source", SOURCE + i));
+        inFlight.put(SOURCE + i, new Scan(truth, data.getWidth(), data.getHeight(), expected,
+                System.currentTimeMillis()));
+        seeded += truth.size();
+        pipeline.tell(message, getSelf());
+    }
+
+    /**
+     * Copies a reference scan, so that every submission gets its own data as a file read from disk would.
+     * @param data scan
+     * @return copy of the scan
+     */
+    private static Dataset copy(Dataset data) {
+        return new Dataset(data.getData().clone(), data.getWidth(), data.getHeight());
+    }
+
+    /**
+     * Reports the results of the run to the requester and stops.
+     */
+    private void finish() {
+        if (ticker != null) {
+            ticker.cancel();
+            ticker = null;
+        }
+        for (Scan scan : inFlight.values()) {
+            detected += scan.detected();
+        }
+        incomplete += inFlight.size();
+        inFlight.clear();
+        long end = loadEnd > 0 ? loadEnd : System.currentTimeMillis();
+        long meanWindows = 0;
+        for (long w : windowsPerFile) {
+            meanWindows += w;
+        }
+        meanWindows /= Math.max(1, windowsPerFile.length);
+        BenchmarkReport report = new BenchmarkReport(settings, meanWindows, latencies.size(), incomplete,
+                settings.getFiles() - nextFile, windows, loadStart > 0 ? end - loadStart : 0, latencies,
+                seeded, detected);
+        if (requester != null) {
+            requester.tell(report, getSelf());
+        }
+        getContext().stop(getSelf());
+    }
+
+    /**
+     * Scan - a benchmark scan in flight and its seeded indications.
+     */
+    private static class Scan {
+        private final List<SyntheticData.Indication> truth;
+        private final boolean[] found;
+        private final int width;
+        private final int height;
+        /**
+         * Number of windows the scan produces
+         */
+        private final long expected;
+        private final long sent;
+        private long windows;
+
+        Scan(List<SyntheticData.Indication> truth, int width, int height, long expected, long sent) {
+            this.truth = truth;
+            this.found = new boolean[truth.size()];
+            this.width = width;
+            this.height = height;
+            this.expected = expected;
+            this.sent = sent;
+        }
+
+        /**
+         * Marks the indications whose centres lie within an ROI as found.
+         * @param box ROI's bounding box in the scan's coordinates
+         */
+        void match(ROIResultGenerator.Coords box) {
+            for (int i = 0; i < found.length; i++) {
+                SyntheticData.Indication indication = truth.get(i);
+                if (!found[i] && indication.getX() >= box.lowX && indication.getX() <= box.highX
+                        && indication.getY() >= box.lowY && indication.getY() <= box.highY) {
+                    found[i] = true;
+                }
+            }
+        }
+
+        int detected() {
+            int n = 0;
+            for (boolean f : found) {
+                if (f) {
+                    n++;
+                }
+            }
+            return n;
+        }
+    }
+}
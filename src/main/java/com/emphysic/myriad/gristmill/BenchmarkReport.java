@@ -0,0 +1,147 @@
+/*
+ * com.emphysic.myriad.gristmill.BenchmarkReport
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * BenchmarkReport - results of a throughput benchmark run, written as a single JSON object so that runs against
+ * different versions or configurations can be compared mechanically.
+ */
+public class BenchmarkReport implements Serializable {
+    private final BenchmarkSettings settings;
+    /**
+     * Number of windows each scan produces (the mean over the reference scans, if any), as measured during calibration
+     */
+    private final long windowsPerFile;
+    /**
+     * Number of scans whose every window was evaluated
+     */
+    private final int completed;
+    /**
+     * Number of scans sent that timed out or were still in flight when the run ended
+     */
+    private final int incomplete;
+    /**
+     * Number of scans never sent because the run's budget ran out
+     */
+    private final int unsent;
+    /**
+     * Number of windows evaluated
+     */
+    private final long windows;
+    /**
+     * Time from the first scan being sent to the last result (ms)
+     */
+    private final long duration;
+    /**
+     * Per-scan latencies (ms) in ascending order
+     */
+    private final List<Long> latencies;
+    /**
+     * Number of indications seeded in the scans that were sent
+     */
+    private final int seeded;
+    /**
+     * Number of seeded indications covered by at least one ROI
+     */
+    private final int detected;
+
+    public BenchmarkReport(BenchmarkSettings settings, long windowsPerFile, int completed, int incomplete, int unsent,
+                           long windows, long duration, List<Long> latencies, int seeded, int detected) {
+        this.settings = settings;
+        this.windowsPerFile = windowsPerFile;
+        this.completed = completed;
+        this.incomplete = incomplete;
+        this.unsent = unsent;
+        this.windows = windows;
+        this.duration = duration;
+        this.latencies = new ArrayList<>(latencies);
+        Collections.sort(this.latencies);
+        this.seeded = seeded;
+        this.detected = detected;
+    }
+
+    public double getFilesPerSecond() {
+        return duration > 0 ? completed * 1000.0 / duration : 0;
+    }
+
+    public double getWindowsPerSecond() {
+        return duration > 0 ? windows * 1000.0 / duration : 0;
+    }
+
+    /**
+     * Returns a percentile of the per-scan latency.
+     * @param p percentile between 0 and 1, e.g. 0.99
+     * @return latency (ms) or -1 if no scan completed
+     */
+    public long getLatency(double p) {
+        if (latencies.isEmpty()) {
+            return -1;
+        }
+        int rank = (int) Math.ceil(p * latencies.size());
+        return latencies.get(Math.min(latencies.size(), Math.max(1, rank)) - 1);
+    }
+
+    /**
+     * Returns the fraction of seeded indications that were detected.
+     * @return recall between 0 and 1, or NaN if nothing was seeded
+     */
+    public double getRecall() {
+        return seeded > 0 ? (double) detected / seeded : Double.NaN;
+    }
+
+    public long getWindowsPerFile() { return windowsPerFile; }
+
+    public int getCompleted() { return completed; }
+
+    public int getIncomplete() { return incomplete; }
+
+    public int getUnsent() { return unsent; }
+
+    public long getWindows() { return windows; }
+
+    public long getDuration() { return duration; }
+
+    /**
+     * Returns the report as a JSON object.
+     * @return JSON object
+     */
+    public String toJson() {
+        double recall = getRecall();
+        return "{\"settings\":" + settings.toJson()
+                + ",\"windowsPerFile\":" + windowsPerFile
+                + ",\"completed\":" + completed
+                + ",\"incomplete\":" + incomplete
+                + ",\"unsent\":" + unsent
+                + ",\"windows\":" + windows
+                + ",\"durationMs\":" + duration
+                + ",\"filesPerSecond\":" + String.format(Locale.ROOT, "%.3f", getFilesPerSecond())
+                + ",\"windowsPerSecond\":" + String.format(Locale.ROOT, "%.1f", getWindowsPerSecond())
+                + ",\"latencyMs\":{\"p50\":" + getLatency(0.5) + ",\"p99\":" + getLatency(0.99)
+                + ",\"p999\":" + getLatency(0.999) + "}"
+                + ",\"seeded\":" + seeded
+                + ",\"detected\":" + detected
+                + ",\"recall\":" + (Double.isNaN(recall) ? "null" : String.format(Locale.ROOT, "%.4f", recall))
+                + "}";
+    }
+}
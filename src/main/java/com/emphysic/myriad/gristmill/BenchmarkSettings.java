@@ -0,0 +1,204 @@
+/*
+ * com.emphysic.myriad.gristmill.BenchmarkSettings
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill;
+
+import com.typesafe.config.Config;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BenchmarkSettings - configuration of a throughput benchmark run, read from the benchmark block of its configuration.
+ */
+public class BenchmarkSettings implements Serializable {
+    /**
+     * How the benchmark client reaches GristMill
+     */
+    public enum MODE {
+        /**
+         * Client and GristMill share an Actor system, i.e. no remoting
+         */
+        LOCAL,
+        /**
+         * Client runs in its own Actor system and talks to GristMill over remoting on the loopback interface
+         */
+        LOOPBACK
+    }
+
+    /**
+     * How scans are offered to GristMill
+     */
+    public enum LOAD {
+        /**
+         * A fixed number of scans in flight, the next is sent as soon as one completes
+         */
+        CLOSED,
+        /**
+         * Scans are sent at a fixed rate regardless of how quickly they complete
+         */
+        FIXED
+    }
+
+    /**
+     * Width of each synthetic scan
+     */
+    private final int width;
+    /**
+     * Height of each synthetic scan
+     */
+    private final int height;
+    /**
+     * Number of scans to process
+     */
+    private final int files;
+    /**
+     * Number of indications seeded in each scan
+     */
+    private final int indications;
+    /**
+     * Random seed, the same seed always produces the same scans
+     */
+    private final long seed;
+    private final MODE mode;
+    private final LOAD load;
+    /**
+     * Number of scans in flight for closed-loop load
+     */
+    private final int concurrency;
+    /**
+     * Scans per second for fixed-rate load
+     */
+    private final double rate;
+    /**
+     * A scan that hasn't completed this long (ms) after it was sent is counted as incomplete
+     */
+    private final long fileTimeout;
+    /**
+     * Calibration ends once no results have arrived for this long (ms)
+     */
+    private final long quiet;
+    /**
+     * Maximum time (ms) to spend on the whole run
+     */
+    private final long budget;
+    /**
+     * Path of the report, empty to only log it
+     */
+    private final String report;
+    /**
+     * Manifest of labelled reference scans (see ReferenceScan) to send instead of synthetic scans, empty for
+     * synthetic scans
+     */
+    private final String reference;
+    /**
+     * Engines to benchmark side by side (values of engine.type), empty to benchmark the configured engine
+     */
+    private final List<String> engines;
+
+    public BenchmarkSettings(int width, int height, int files, int indications, long seed, MODE mode, LOAD load,
+                             int concurrency, double rate, long fileTimeout, long quiet, long budget, String report,
+                             String reference, List<String> engines) {
+        this.width = width;
+        this.height = height;
+        this.files = files;
+        this.indications = indications;
+        this.seed = seed;
+        this.mode = mode;
+        this.load = load;
+        this.concurrency = concurrency;
+        this.rate = rate;
+        this.fileTimeout = fileTimeout;
+        this.quiet = quiet;
+        this.budget = budget;
+        this.report = report;
+        this.reference = reference;
+        this.engines = Collections.unmodifiableList(new ArrayList<>(engines));
+    }
+
+    /**
+     * Reads the benchmark settings from the benchmark block of a configuration, using defaults for anything missing.
+     * @param config configuration
+     * @return benchmark settings
+     */
+    public static BenchmarkSettings fromConfig(Config config) {
+        Config bench = config.hasPath("benchmark") ? config.getConfig("benchmark") : config.root().toConfig();
+        return new BenchmarkSettings(
+                bench.hasPath("width") ? bench.getInt("width") : 512,
+                bench.hasPath("height") ? bench.getInt("height") : 512,
+                bench.hasPath("files") ? bench.getInt("files") : 50,
+                bench.hasPath("indications") ? bench.getInt("indications") : 8,
+                bench.hasPath("seed") ? bench.getLong("seed") : 1L,
+                bench.hasPath("mode") ? MODE.valueOf(bench.getString("mode").toUpperCase()) : MODE.LOCAL,
+                bench.hasPath("load") ? LOAD.valueOf(bench.getString("load").toUpperCase()) : LOAD.CLOSED,
+                bench.hasPath("concurrency") ? bench.getInt("concurrency") : 4,
+                bench.hasPath("rate") ? bench.getDouble("rate") : 2.0,
+                bench.hasPath("file-timeout") ? bench.getDuration("file-timeout", TimeUnit.MILLISECONDS) : 60000,
+                bench.hasPath("quiet") ? bench.getDuration("quiet", TimeUnit.MILLISECONDS) : 1000,
+                bench.hasPath("budget") ? bench.getDuration("budget", TimeUnit.MILLISECONDS) : 600000,
+                bench.hasPath("report") ? bench.getString("report") : "benchmark.json",
+                bench.hasPath("reference") ? bench.getString("reference") : "",
+                bench.hasPath("engines") ? bench.getStringList("engines") : Collections.emptyList()
+        );
+    }
+
+    public int getWidth() { return width; }
+
+    public int getHeight() { return height; }
+
+    public int getFiles() { return files; }
+
+    public int getIndications() { return indications; }
+
+    public long getSeed() { return seed; }
+
+    public MODE getMode() { return mode; }
+
+    public LOAD getLoad() { return load; }
+
+    public int getConcurrency() { return concurrency; }
+
+    public double getRate() { return rate; }
+
+    public long getFileTimeout() { return fileTimeout; }
+
+    public long getQuiet() { return quiet; }
+
+    public long getBudget() { return budget; }
+
+    public String getReport() { return report; }
+
+    public String getReference() { return reference; }
+
+    public List<String> getEngines() { return engines; }
+
+    /**
+     * Returns the settings as a JSON object, for the benchmark report.
+     * @return JSON object
+     */
+    public String toJson() {
+        return "{\"width\":" + width + ",\"height\":" + height + ",\"files\":" + files
+                + ",\"indications\":" + indications + ",\"seed\":" + seed
+                + ",\"mode\":\"" + mode.name().toLowerCase() + "\",\"load\":\"" + load.name().toLowerCase() + "\""
+                + ",\"concurrency\":" + concurrency + ",\"rate\":" + rate
+                + ",\"fileTimeoutMs\":" + fileTimeout + ",\"quietMs\":" + quiet + ",\"budgetMs\":" + budget
+                + ",\"reference\":\"" + reference.replace("\\", "\\\\").replace("\"", "\\\"") + "\"}";
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * com.emphysic.myriad.gristmill.Fanout
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill;
+
+import akka.actor.ActorRef;
+import akka.actor.UntypedActor;
+import com.emphysic.myriad.network.messages.DatasetMessage;
+import com.emphysic.myriad.network.messages.ShutdownMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fanout - passes each DatasetMessage on to several Actors, e.g. every level of the scale space to the sliding window
+ * stage of each model, so that the work upstream of the fan-out is done once however many models consume it.  The
+ * message itself is shared rather than copied.
+ */
+public class Fanout extends UntypedActor {
+    private final List<ActorRef> targets;
+
+    public Fanout(List<ActorRef> targets) {
+        this.targets = new ArrayList<>(targets);
+    }
+
+    @Override
+    public void onReceive(Object message) throws Throwable {
+        if (message instanceof DatasetMessage || message instanceof ShutdownMessage) {
+            for (ActorRef target : targets) {
+                target.tell(message, getSender());
+            }
+        } else {
+            unhandled(message);
+        }
+    }
+}
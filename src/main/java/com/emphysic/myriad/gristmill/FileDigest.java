@@ -0,0 +1,82 @@
+/*
+ * com.emphysic.myriad.gristmill.FileDigest
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * FileDigest - SHA-256 digests of file contents and strings, used to identify data and ROIBundles by content rather
+ * than by name.
+ */
+public final class FileDigest {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private FileDigest() {
+    }
+
+    /**
+     * Computes the digest of a file's contents.
+     * @param f file
+     * @return hex-encoded SHA-256 of the file
+     * @throws IOException if the file couldn't be read
+     */
+    public static String of(File f) throws IOException {
+        MessageDigest md = sha256();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = new FileInputStream(f)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                md.update(buffer, 0, read);
+            }
+        }
+        return hex(md.digest());
+    }
+
+    /**
+     * Computes the digest of a string.
+     * @param s string
+     * @return hex-encoded SHA-256 of the string's UTF-8 encoding
+     */
+    public static String of(String s) {
+        return hex(sha256().digest(s.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
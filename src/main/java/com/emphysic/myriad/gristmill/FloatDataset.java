@@ -0,0 +1,121 @@
+/*
+ * com.emphysic.myriad.gristmill.FloatDataset
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill;
+
+import com.emphysic.myriad.core.data.io.Dataset;
+import com.typesafe.config.Config;
+
+import java.io.Serializable;
+
+/**
+ * FloatDataset - a dataset held in single precision, half the size of a Dataset.  Used where GristMill and its
+ * clients keep or move data of their own (bulk uploads, the window cache, rendered results) when dataset.precision is
+ * "single"; anything handed to Myriad (pyramid operations, ROIBundles, writers) is widened back to a Dataset first,
+ * so scanning itself is always done in double precision.
+ *
+ * C-scan amplitudes of up to 24 bits, e.g. 16-bit instrument data, are exact in single precision; other values are
+ * rounded to the nearest float.
+ */
+public class FloatDataset implements Serializable {
+    /**
+     * Configuration path of the dataset precision, "double" (the default) or "single"
+     */
+    public static final String PRECISION = "dataset.precision";
+
+    private final float[] data;
+    private final int width;
+    private final int height;
+
+    public FloatDataset(float[] data, int width, int height) {
+        if (data.length != (long) width * height) {
+            throw new IllegalArgumentException("Expected " + width + "x" + height + " samples, got " + data.length);
+        }
+        this.data = data;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Creates a single precision copy of a dataset.
+     * @param dataset dataset
+     * @return copy rounded to single precision
+     */
+    public static FloatDataset of(Dataset dataset) {
+        return new FloatDataset(narrow(dataset.getData()), dataset.getWidth(), dataset.getHeight());
+    }
+
+    /**
+     * Creates a double precision copy of the dataset.
+     * @return copy
+     */
+    public Dataset toDataset() {
+        double[] wide = new double[data.length];
+        for (int i = 0; i < data.length; i++) {
+            wide[i] = data[i];
+        }
+        return new Dataset(wide, width, height);
+    }
+
+    /**
+     * Creates a double precision copy of the dataset for writing, each sample widened to the double with the same
+     * shortest decimal form as the float, so that written values read as they were before rounding to single
+     * precision (0.1 rather than 0.10000000149011612).  Whole numbers are widened as in toDataset.
+     * @return copy
+     */
+    public Dataset toDecimalDataset() {
+        double[] wide = new double[data.length];
+        for (int i = 0; i < data.length; i++) {
+            float sample = data[i];
+            wide[i] = sample == Math.rint(sample) || Float.isInfinite(sample) || Float.isNaN(sample)
+                    ? sample : Double.parseDouble(Float.toString(sample));
+        }
+        return new Dataset(wide, width, height);
+    }
+
+    /**
+     * Rounds samples to single precision.
+     * @param samples samples
+     * @return rounded copy
+     */
+    public static float[] narrow(double[] samples) {
+        float[] narrow = new float[samples.length];
+        for (int i = 0; i < samples.length; i++) {
+            narrow[i] = (float) samples[i];
+        }
+        return narrow;
+    }
+
+    /**
+     * Determines whether a configuration asks for data to be held in single precision.
+     * @param config GristMill or client configuration
+     * @return true if dataset.precision is "single"
+     */
+    public static boolean isSinglePrecision(Config config) {
+        return config.hasPath(PRECISION) && "single".equalsIgnoreCase(config.getString(PRECISION));
+    }
+
+    public double get(int x, int y) { return data[y * width + x]; }
+
+    public void set(int x, int y, double value) { data[y * width + x] = (float) value; }
+
+    public float[] getData() { return data; }
+
+    public int getWidth() { return width; }
+
+    public int getHeight() { return height; }
+}
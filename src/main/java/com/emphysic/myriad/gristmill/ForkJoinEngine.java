@@ -0,0 +1,778 @@
+/*
+ * com.emphysic.myriad.gristmill.ForkJoinEngine
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSelection;
+import akka.actor.Status;
+import akka.actor.UntypedActor;
+import akka.dispatch.Envelope;
+import akka.dispatch.Futures;
+import akka.pattern.Patterns;
+import com.emphysic.myriad.core.data.io.Dataset;
+import com.emphysic.myriad.core.data.ops.GaussianPyramidOperation;
+import com.emphysic.myriad.core.data.roi.ROI;
+import com.emphysic.myriad.core.data.roi.ROIBundle;
+import com.emphysic.myriad.gristmill.demo.Tile;
+import com.emphysic.myriad.gristmill.messages.BundleSwappedMessage;
+import com.emphysic.myriad.gristmill.messages.PipelineSignature;
+import com.emphysic.myriad.gristmill.messages.SignatureQuery;
+import com.emphysic.myriad.gristmill.messages.SwapBundleMessage;
+import com.emphysic.myriad.gristmill.metrics.MeteredMailbox;
+import com.emphysic.myriad.gristmill.metrics.StageMetrics;
+import com.emphysic.myriad.gristmill.scheduling.Cancellations;
+import com.emphysic.myriad.gristmill.scheduling.QueuedMessage;
+import com.emphysic.myriad.gristmill.scheduling.Scheduling;
+import com.emphysic.myriad.network.messages.DatasetMessage;
+import com.emphysic.myriad.network.messages.ImmutableMessage;
+import com.emphysic.myriad.network.messages.ROIMessage;
+import com.emphysic.myriad.network.messages.ShutdownMessage;
+import lombok.extern.slf4j.Slf4j;
+import scala.concurrent.ExecutionContext;
+import scala.concurrent.Future;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * ForkJoinEngine - runs the whole pipeline (scale space, sliding window and ROI finder) for a single host on a
+ * fork/join pool instead of the three Actor pools, so that a window costs an array copy and a call to the ROIBundle
+ * rather than a message, a mailbox and a dispatch at every stage.  Selected with engine.type = "forkjoin".
+ *
+ * Each file is a task: its pyramid levels are computed one after another, and each level's windows are scanned in
+ * parallel (split into bands of window rows) while the next level is being computed.  Windows are copied straight out
+ * of the level's array and evaluated by the same ROIBundle the Actor pipeline would use; they carry the same
+ * "pyramid" and "window" metadata and every verdict, flaw or not, is sent on as an ROIMessage tagged with the bundle
+ * version, so clients can't tell the engines apart.  A few files are processed at once (engine.files-in-flight);
+ * files waiting for their turn are taken in the order the GristMill mailbox would deliver them (priority, deadline,
+ * arrival).
+ *
+ * The engine stands in for the ROI finder stage at /user/ROIFinderPool and takes the same control messages: the
+ * Actor to send results to, SignatureQuery (answered with the same signature as the Actor pipeline, so cached results
+ * carry over between engines) and SwapBundleMessage.  Cancelled sources and windows outside their source's scan mask
+ * are skipped as in ROIFinderStage.  Only a single model (roi.bundle) is supported.
+ *
+ * The slices of a volume (see Volumes) are streamed through a single job rather than processed as files.  The job
+ * waits for its turn once, when its first slice arrives; its slices are then scanned one after another, in order of
+ * depth, as they arrive, all with the bundle that was current when the job started.  The job keeps the verdicts of
+ * each pyramid level's windows across slices, so an ROI found in the same window of consecutive slices is reported
+ * once, from its shallowest slice, with the number of slices it spans (Volumes.DEPTHKEY); the window's results in the
+ * deeper slices are reported without an ROI, so that a client still receives one result per window of each slice.
+ * ROI are reported when their run of slices ends, i.e. at the first slice without an ROI in the window or at the end
+ * of the volume.
+ *
+ * Levels are scanned in double precision whatever dataset.precision says: the file's own data arrive as a Dataset and
+ * each reduced level is produced as one by the pyramid operation, so a single precision copy of a level would only add
+ * to the memory it takes.
+ */
+@Slf4j
+public class ForkJoinEngine extends UntypedActor {
+    /**
+     * Counter of windows evaluated by the engine
+     */
+    public static final String WINDOWS = "windows";
+    /**
+     * Minimum number of windows handed to a single task
+     */
+    private static final int GRAIN = 64;
+
+    private final StageMetrics metrics;
+    private final GaussianPyramidOperation gpo;
+    private final int scaleFactor;
+    private final int windowSize;
+    private final int step;
+    private final int windowWidth;
+    private final int windowHeight;
+    private final int parallelism;
+    /**
+     * Maximum number of files processed at once
+     */
+    private final int filesInFlight;
+    private final boolean prioritize;
+    /**
+     * Number of synthetic windows used to warm up a new bundle
+     */
+    private final int warmupWindows;
+    /**
+     * Scale space and sliding window parameters, or null if unknown
+     */
+    private final ScanGeometry geometry;
+
+    private ForkJoinPool pool;
+    /**
+     * Bundle new files are evaluated with; files in progress keep the bundle they started with
+     */
+    private Bundle current;
+    private int generation;
+    /**
+     * Where ROI results are sent
+     */
+    private volatile ActorRef next;
+    private ActorSelection controller;
+    /**
+     * Sender of the swap request being processed
+     */
+    private ActorRef swapRequester;
+
+    /**
+     * Files waiting for their turn
+     */
+    private final PriorityQueue<QueuedMessage> waiting = new PriorityQueue<>();
+    /**
+     * Volumes waiting for their turn or in progress, keyed by Volumes.keyOf
+     */
+    private final Map<String, VolumeJob> volumes = new HashMap<>();
+    private long sequence;
+    /**
+     * Number of files and slices being scanned
+     */
+    private int running;
+
+    /**
+     * Creates the engine.
+     * @param bundle initial ROIBundle
+     * @param label description of the initial bundle e.g. its filename, or null
+     * @param digest digest of the initial bundle's file, or null if unknown
+     * @param geometry scale space and sliding window parameters, or null if unknown
+     * @param gpo scale space operation
+     * @param scaleFactor scale factor of the scale space operation
+     * @param windowSize cutoff size of the scale space operation
+     * @param step points to skip when moving the window
+     * @param windowWidth width of the windows
+     * @param windowHeight height of the windows
+     * @param parallelism number of threads, 0 for one per core
+     * @param filesInFlight maximum number of files processed at once
+     * @param prioritize if true waiting files are taken by priority and deadline rather than in arrival order
+     * @param warmupWindows number of synthetic windows used to warm up a new bundle
+     */
+    public ForkJoinEngine(ROIBundle bundle, String label, String digest, ScanGeometry geometry,
+                          GaussianPyramidOperation gpo, int scaleFactor, int windowSize, int step, int windowWidth,
+                          int windowHeight, int parallelism, int filesInFlight, boolean prioritize,
+                          int warmupWindows) {
+        this.metrics = StageMetrics.forStage(getSelf().path().name());
+        this.gpo = gpo;
+        this.scaleFactor = scaleFactor;
+        this.windowSize = windowSize;
+        this.step = step;
+        this.windowWidth = windowWidth;
+        this.windowHeight = windowHeight;
+        this.parallelism = parallelism;
+        this.filesInFlight = Math.max(1, filesInFlight);
+        this.prioritize = prioritize;
+        this.warmupWindows = warmupWindows;
+        this.geometry = geometry;
+        this.current = newBundle(bundle, label, digest);
+    }
+
+    @Override
+    public void preStart() {
+        pool = parallelism > 0 ? new ForkJoinPool(parallelism) : new ForkJoinPool();
+        controller = getContext().actorSelection("/user/" + GristMill.CONTROLLER);
+        log.info("Fork/join engine using bundle " + current.version + " on " + pool.getParallelism() + " threads");
+    }
+
+    @Override
+    public void postStop() {
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+
+    @Override
+    public void onReceive(Object message) throws Throwable {
+        if (message instanceof DatasetMessage) {
+            if (Cancellations.isCancelledMetadata(((DatasetMessage) message).getMetadata())) {
+                metrics.increment(MeteredMailbox.CANCELLED);
+            } else if (!addSlice((DatasetMessage) message)) {
+                waiting.add(new QueuedMessage(Envelope.apply(message, getSender(), getContext().system()),
+                        sequence++, prioritize));
+            }
+            startWaiting();
+        } else if (message instanceof FileDone) {
+            running--;
+            VolumeJob volume = ((FileDone) message).volume;
+            if (volume != null) {
+                volume.scanning = false;
+                volume.next++;
+                advance(volume);
+            }
+            startWaiting();
+        } else if (message instanceof ActorRef) {
+            next = (ActorRef) message;
+        } else if (message instanceof SignatureQuery) {
+            getSender().tell(signature(), getSelf());
+        } else if (message instanceof SwapBundleMessage) {
+            swap((SwapBundleMessage) message);
+        } else if (message instanceof Bundle) {
+            Bundle previous = current;
+            current = (Bundle) message;
+            log.info("Switched from bundle " + previous.version + " to " + current.version);
+            swapFinished(true, null);
+        } else if (message instanceof Status.Failure) {
+            Throwable cause = ((Status.Failure) message).cause();
+            log.error("Unable to load new ROIBundle: ", cause);
+            swapFinished(false, String.valueOf(cause));
+        } else if (message instanceof ShutdownMessage) {
+            getContext().stop(getSelf());
+        } else {
+            unhandled(message);
+        }
+    }
+
+    /**
+     * Starts waiting files and volumes while fewer than the maximum are in progress.
+     */
+    private void startWaiting() {
+        if (Cancellations.anyCancelled()) {
+            // Volumes waiting for a slice that will never arrive
+            for (Iterator<VolumeJob> it = volumes.values().iterator(); it.hasNext(); ) {
+                VolumeJob volume = it.next();
+                if (!volume.scanning && volume.cancelled()) {
+                    metrics.increment(MeteredMailbox.CANCELLED);
+                    it.remove();
+                }
+            }
+        }
+        while (running < filesInFlight && !waiting.isEmpty()) {
+            DatasetMessage file = (DatasetMessage) waiting.poll().envelope.message();
+            VolumeJob volume = volumeOf(file);
+            if (volume != null) {
+                volume.start(current);
+                advance(volume);
+            } else if (Cancellations.isCancelledMetadata(file.getMetadata())) {
+                metrics.increment(MeteredMailbox.CANCELLED);
+            } else {
+                running++;
+                pool.execute(new FileTask(file, current, getSelf(), null, 0));
+            }
+        }
+    }
+
+    /**
+     * Adds a slice of a volume to the volume's job.  The first slice to arrive creates the job, which waits for its
+     * turn like a file; later slices join it.
+     * @param slice dataset message
+     * @return true if the slice joined a job that was already waiting or in progress, false if the message should wait
+     * for its turn
+     */
+    private boolean addSlice(DatasetMessage slice) {
+        if (slice.getMetadata() == null) {
+            return false;
+        }
+        Map<String, String> md = ImmutableMessage.getMetadata(slice.getMetadata());
+        String key = Volumes.keyOf(md);
+        if (key == null) {
+            return false;
+        }
+        VolumeJob volume = volumes.get(key);
+        boolean joined = volume != null;
+        if (!joined) {
+            volume = new VolumeJob(key, Volumes.countOf(md), slice.getMetadata());
+            volumes.put(key, volume);
+        }
+        int position = Volumes.sliceOf(md);
+        if (position >= volume.slices.length || position < volume.next || volume.slices[position] != null) {
+            log.warn("Dropping unexpected slice " + position + " of volume " + key);
+        } else {
+            volume.slices[position] = slice;
+        }
+        if (joined && volume.bundle != null) {
+            advance(volume);
+        }
+        return joined;
+    }
+
+    /**
+     * Returns the job of the volume a message belongs to.
+     * @param message dataset message
+     * @return job, or null if the message isn't a slice of a volume
+     */
+    private VolumeJob volumeOf(DatasetMessage message) {
+        if (volumes.isEmpty() || message.getMetadata() == null) {
+            return null;
+        }
+        String key = Volumes.keyOf(ImmutableMessage.getMetadata(message.getMetadata()));
+        return key == null ? null : volumes.get(key);
+    }
+
+    /**
+     * Starts scanning a volume's next slice if it has arrived and none of the volume's slices is being scanned.  A
+     * volume whose slices have all been scanned, or that has been cancelled, is finished.
+     * @param volume started volume
+     */
+    private void advance(VolumeJob volume) {
+        if (volume.scanning) {
+            return;
+        }
+        if (volume.next == volume.slices.length || volume.cancelled()) {
+            if (volume.next < volume.slices.length) {
+                metrics.increment(MeteredMailbox.CANCELLED);
+            }
+            volumes.remove(volume.key);
+            return;
+        }
+        DatasetMessage slice = volume.slices[volume.next];
+        if (slice != null) {
+            volume.slices[volume.next] = null;
+            volume.scanning = true;
+            running++;
+            pool.execute(new FileTask(slice, volume.bundle, getSelf(), volume, volume.next));
+        }
+    }
+
+    /**
+     * Starts loading and warming up a new bundle in the background; the engine switches to it when it's ready.
+     * @param request swap request
+     */
+    private void swap(SwapBundleMessage request) {
+        if (swapRequester != null) {
+            getSender().tell(new BundleSwappedMessage(current.version, false, "A swap is already in progress"),
+                    getSelf());
+            return;
+        }
+        File bundleFile = new File(request.getPath());
+        if (!bundleFile.canRead()) {
+            getSender().tell(new BundleSwappedMessage(current.version, false,
+                    "Unable to read ROIBundle file " + bundleFile), getSelf());
+            return;
+        }
+        log.info("Loading ROIBundle " + bundleFile + " in the background");
+        swapRequester = getSender();
+        Bundle loading = newBundle(new ROIBundle(), bundleFile.getName(), null);
+        ExecutionContext ec = getContext().system().dispatcher();
+        Future<Bundle> loaded = Futures.future(() -> {
+            loading.bundle.load(bundleFile);
+            for (int i = 0; i < warmupWindows; i++) {
+                loading.bundle.isROI(SyntheticData.scan(windowWidth, windowHeight, i % 2,
+                        (long) loading.generation * warmupWindows + i).getData());
+            }
+            return new Bundle(loading.bundle, loading.version, FileDigest.of(bundleFile), loading.generation);
+        }, ec);
+        Patterns.pipe(loaded, ec).to(getSelf());
+    }
+
+    /**
+     * Replies to the sender of the swap request, if any.
+     * @param swapped true if the swap succeeded
+     * @param reason reason for failure
+     */
+    private void swapFinished(boolean swapped, String reason) {
+        if (swapRequester != null) {
+            swapRequester.tell(new BundleSwappedMessage(current.version, swapped, reason), getSelf());
+            swapRequester = null;
+        }
+    }
+
+    /**
+     * Returns the signature of the current configuration, the same as the Actor pipeline's.
+     * @return signature, unknown if the current bundle's digest or the scan parameters are unknown
+     */
+    private PipelineSignature signature() {
+        if (geometry == null) {
+            return new PipelineSignature(null);
+        }
+        return new PipelineSignature(current.digest == null ? null : FileDigest.of(current.digest + "|" + geometry),
+                Collections.singletonList(geometry));
+    }
+
+    private Bundle newBundle(ROIBundle bundle, String label, String digest) {
+        generation++;
+        String name = "v" + generation;
+        return new Bundle(bundle, (label == null || label.isEmpty()) ? name : name + ":" + label, digest, generation);
+    }
+
+    /**
+     * Sends the verdict on a window to the Actor receiving results, or to the controller for warm-up scans.
+     * @param file file or slice the window belongs to
+     * @param roi ROI found in the window, or null if none was found
+     * @param metadata window metadata
+     */
+    private void report(FileTask file, ROI roi, String metadata) {
+        if (file.warmup) {
+            controller.tell(new ROIMessage(roi, metadata), file.engine);
+            return;
+        }
+        ActorRef destination = next;
+        if (destination == null) {
+            log.warn("No destination configured for ROI results, dropping");
+            return;
+        }
+        if (file.deadline != Scheduling.NO_DEADLINE && file.deadline < System.currentTimeMillis()) {
+            metrics.increment(ROIFinderStage.LATE_RESULTS);
+        }
+        destination.tell(new ROIMessage(roi, ImmutableMessage.genMetadata(metadata, ROIFinderStage.BUNDLEKEY,
+                file.bundle.version)), file.engine);
+    }
+
+    /**
+     * FileTask - scans every level of the scale space of a file, or of a slice of a volume.
+     */
+    private final class FileTask extends RecursiveAction {
+        private final DatasetMessage file;
+        private final Bundle bundle;
+        private final ActorRef engine;
+        /**
+         * Volume the slice belongs to, or null for a file
+         */
+        private final VolumeJob volume;
+        /**
+         * Position of the slice in its volume
+         */
+        private final int slice;
+        private final boolean warmup;
+        private final long deadline;
+        private final ScanMask mask;
+        private final Tile tile;
+
+        FileTask(DatasetMessage file, Bundle bundle, ActorRef engine, VolumeJob volume, int slice) {
+            this.file = file;
+            this.bundle = bundle;
+            this.engine = engine;
+            this.volume = volume;
+            this.slice = slice;
+            this.warmup = MillController.isWarmup(file.getMetadata());
+            this.deadline = Scheduling.deadlineOf(file.getMetadata());
+            this.mask = ScanMasks.of(file.getMetadata());
+            this.tile = mask == null ? null : Tile.parse(ImmutableMessage.getMetadata(file.getMetadata())
+                    .get(Tile.TILEKEY));
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                List<LevelTask> levels = new ArrayList<>();
+                Dataset level = file.getDataset();
+                if (volume != null && level != null) {
+                    volume.begin(this, level.getWidth(), level.getHeight());
+                }
+                int pstep = 0;
+                while (level != null && !cancelled()) {
+                    String metadata = ImmutableMessage.genMetadata(file.getMetadata(), "pyramid",
+                            "pscale" + scaleFactor + "pwsize" + windowSize + "pstep" + pstep);
+                    int rows = level.getHeight() < windowHeight ? 0 : (level.getHeight() - windowHeight) / step + 1;
+                    int columns = level.getWidth() < windowWidth ? 0 : (level.getWidth() - windowWidth) / step + 1;
+                    int scaler = Math.max(1, scaleFactor * pstep);
+                    Runs runs = volume == null ? null : volume.level(pstep, columns, rows);
+                    LevelTask scan = new LevelTask(this, level, metadata, scaler, runs, 0, rows);
+                    scan.fork();
+                    levels.add(scan);
+                    Dataset reduced = gpo.run(level);
+                    if (reduced == null || reduced.getWidth() < windowSize || reduced.getHeight() < windowSize
+                            || (reduced.getWidth() >= level.getWidth() && reduced.getHeight() >= level.getHeight())) {
+                        break;
+                    }
+                    level = reduced;
+                    pstep++;
+                }
+                for (LevelTask scan : levels) {
+                    scan.join();
+                }
+                if (volume != null && slice == volume.slices.length - 1 && !cancelled()) {
+                    volume.end(this, volume.slices.length);
+                }
+            } catch (Exception e) {
+                log.error("Unable to process " + file.getMetadata() + ": ", e);
+            } finally {
+                engine.tell(new FileDone(volume), ActorRef.noSender());
+            }
+        }
+
+        boolean cancelled() {
+            return !warmup && Cancellations.isCancelledMetadata(file.getMetadata());
+        }
+    }
+
+    /**
+     * LevelTask - scans a band of window rows of one pyramid level, splitting it while it is large.
+     */
+    private final class LevelTask extends RecursiveAction {
+        private final FileTask file;
+        private final Dataset level;
+        private final String metadata;
+        /**
+         * Points of the original data per point of this level
+         */
+        private final int scaler;
+        /**
+         * The level's ROI in earlier slices of the volume, or null for a file
+         */
+        private final Runs runs;
+        private final int firstRow;
+        private final int lastRow;
+
+        LevelTask(FileTask file, Dataset level, String metadata, int scaler, Runs runs, int firstRow, int lastRow) {
+            this.file = file;
+            this.level = level;
+            this.metadata = metadata;
+            this.scaler = scaler;
+            this.runs = runs;
+            this.firstRow = firstRow;
+            this.lastRow = lastRow;
+        }
+
+        @Override
+        protected void compute() {
+            int columns = level.getWidth() < windowWidth ? 0 : (level.getWidth() - windowWidth) / step + 1;
+            if (lastRow - firstRow > 1 && (long) (lastRow - firstRow) * columns > GRAIN) {
+                int middle = (firstRow + lastRow) >>> 1;
+                invokeAll(new LevelTask(file, level, metadata, scaler, runs, firstRow, middle),
+                        new LevelTask(file, level, metadata, scaler, runs, middle, lastRow));
+                return;
+            }
+            double[] data = level.getData();
+            int width = level.getWidth();
+            long evaluated = 0;
+            long skipped = 0;
+            for (int row = firstRow; row < lastRow && !file.cancelled(); row++) {
+                int y = row * step;
+                for (int column = 0; column < columns; column++) {
+                    int x = column * step;
+                    if (file.mask != null && !file.mask.covers(scaler, file.tile, x, y, windowWidth, windowHeight)) {
+                        skipped++;
+                        continue;
+                    }
+                    double[] window = new double[windowWidth * windowHeight];
+                    for (int j = 0; j < windowHeight; j++) {
+                        System.arraycopy(data, (y + j) * width + x, window, j * windowWidth, windowWidth);
+                    }
+                    String md = ImmutableMessage.genMetadata(metadata, "window",
+                            "xoff" + x + "yoff" + y + "w" + windowWidth + "h" + windowHeight);
+                    ROI roi = file.bundle.bundle.isROI(window)
+                            ? new ROI(new Dataset(window, windowWidth, windowHeight), md) : null;
+                    if (runs != null) {
+                        runs.verdict(file, row * columns + column, roi, md);
+                    } else {
+                        report(file, roi, md);
+                    }
+                    evaluated++;
+                }
+            }
+            metrics.add(WINDOWS, evaluated);
+            if (file.mask != null) {
+                metrics.add(ROIFinderStage.MASK_SKIPPED, skipped);
+                metrics.add(ROIFinderStage.MASK_SCANNED, evaluated);
+            }
+        }
+    }
+
+    /**
+     * A bundle and its version
+     */
+    private static final class Bundle {
+        final ROIBundle bundle;
+        final String version;
+        final String digest;
+        final int generation;
+
+        Bundle(ROIBundle bundle, String version, String digest, int generation) {
+            this.bundle = bundle;
+            this.version = version;
+            this.digest = digest;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * VolumeJob - the slices of a volume received so far and the verdicts carried across them.  Its fields are only
+     * used by the engine, apart from those of its levels, which are used by the task of the slice being scanned.
+     */
+    private final class VolumeJob {
+        final String key;
+        /**
+         * Metadata of the first slice received, which identifies the volume's submission
+         */
+        final String metadata;
+        /**
+         * Slices received and not yet scanned, by position in the volume
+         */
+        final DatasetMessage[] slices;
+        /**
+         * Runs of each pyramid level
+         */
+        final List<Runs> levels = new ArrayList<>();
+        /**
+         * Bundle the volume is evaluated with, null until the volume's turn comes
+         */
+        Bundle bundle;
+        /**
+         * Position of the next slice to scan
+         */
+        int next;
+        /**
+         * True while a slice is being scanned
+         */
+        boolean scanning;
+        /**
+         * Size of the volume's slices, taken from its first slice
+         */
+        private int width = -1;
+        private int height = -1;
+
+        VolumeJob(String key, int count, String metadata) {
+            this.key = key;
+            this.metadata = metadata;
+            this.slices = new DatasetMessage[count];
+        }
+
+        void start(Bundle bundle) {
+            this.bundle = bundle;
+        }
+
+        boolean cancelled() {
+            return Cancellations.isCancelledMetadata(metadata);
+        }
+
+        /**
+         * Prepares to scan a slice.  A slice of a different size than the previous ones has a different scale space,
+         * so the runs of earlier slices end.
+         * @param slice task of the slice
+         * @param width width of the slice
+         * @param height height of the slice
+         */
+        void begin(FileTask slice, int width, int height) {
+            if (width != this.width || height != this.height) {
+                if (this.width >= 0) {
+                    log.warn("Slice " + slice.slice + " of volume " + key + " is " + width + "x" + height
+                            + " rather than " + this.width + "x" + this.height);
+                }
+                end(slice, slice.slice);
+                levels.clear();
+                this.width = width;
+                this.height = height;
+            }
+        }
+
+        /**
+         * Returns the runs of a pyramid level.
+         * @param pstep pyramid level
+         * @param columns windows per row of the level
+         * @param rows rows of windows of the level
+         * @return runs
+         */
+        Runs level(int pstep, int columns, int rows) {
+            while (levels.size() <= pstep) {
+                levels.add(null);
+            }
+            Runs runs = levels.get(pstep);
+            if (runs == null) {
+                runs = new Runs(columns * rows);
+                levels.set(pstep, runs);
+            }
+            return runs;
+        }
+
+        /**
+         * Reports every ROI whose run of slices is still open.
+         * @param slice task of the slice being scanned
+         * @param end position of the first slice after the runs
+         */
+        void end(FileTask slice, int end) {
+            for (Runs runs : levels) {
+                if (runs != null) {
+                    for (int window = 0; window < runs.start.length; window++) {
+                        runs.close(slice, window, end);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs - for each window of a pyramid level, the ROI found in it in the most recent consecutive slices of a
+     * volume.  Each window is only used by the task scanning it.
+     */
+    private final class Runs {
+        /**
+         * Position of the slice each window's run starts at
+         */
+        final int[] start;
+        /**
+         * ROI found in each window in its run's first slice, null if the window has no run
+         */
+        final ROI[] roi;
+        /**
+         * Metadata of each window in its run's first slice
+         */
+        final String[] metadata;
+
+        Runs(int windows) {
+            this.start = new int[windows];
+            this.roi = new ROI[windows];
+            this.metadata = new String[windows];
+        }
+
+        /**
+         * Adds the verdict on a window of a slice.  An ROI starts a run, or continues the window's run in which case
+         * the window's result is reported without it; the end of a run reports the ROI that started it.
+         * @param slice task of the slice
+         * @param window window, numbered by row
+         * @param found ROI found in the window, or null if none was found
+         * @param md window metadata
+         */
+        void verdict(FileTask slice, int window, ROI found, String md) {
+            if (found == null) {
+                close(slice, window, slice.slice);
+                report(slice, null, md);
+            } else if (roi[window] == null) {
+                start[window] = slice.slice;
+                roi[window] = found;
+                metadata[window] = md;
+            } else {
+                report(slice, null, md);
+            }
+        }
+
+        /**
+         * Ends a window's run, if it has one, reporting the ROI that started it with the number of slices it spans.
+         * @param slice task of the slice being scanned
+         * @param window window, numbered by row
+         * @param end position of the first slice after the run
+         */
+        void close(FileTask slice, int window, int end) {
+            ROI found = roi[window];
+            if (found != null) {
+                report(slice, found, ImmutableMessage.genMetadata(metadata[window], Volumes.DEPTHKEY,
+                        String.valueOf(end - start[window])));
+                roi[window] = null;
+                metadata[window] = null;
+            }
+        }
+    }
+
+    /**
+     * Sent to the engine when the task of a file or slice has finished
+     */
+    private static final class FileDone {
+        /**
+         * Volume of the slice, or null for a file
+         */
+        final VolumeJob volume;
+
+        FileDone(VolumeJob volume) {
+            this.volume = volume;
+        }
+    }
+}
@@ -21,15 +21,38 @@ package com.emphysic.myriad.gristmill;
 import akka.actor.ActorRef;
 import akka.actor.ActorSystem;
 import akka.actor.Props;
+import akka.pattern.Patterns;
+import akka.util.Timeout;
 import com.emphysic.myriad.core.data.ops.GaussianPyramidOperation;
 import com.emphysic.myriad.core.data.roi.ROIBundle;
+import com.emphysic.myriad.gristmill.bulk.BulkIngest;
+import com.emphysic.myriad.gristmill.bulk.BulkServer;
+import com.emphysic.myriad.gristmill.messages.ReadinessMessage;
+import com.emphysic.myriad.gristmill.messages.ReadinessQuery;
+import com.emphysic.myriad.gristmill.messages.SwapBundleMessage;
+import com.emphysic.myriad.gristmill.metrics.StageMetrics;
+import com.emphysic.myriad.gristmill.scaling.Autoscaler;
+import com.emphysic.myriad.gristmill.scaling.ScalingPolicy;
+import com.emphysic.myriad.gristmill.scheduling.Cancellations;
 import com.emphysic.myriad.network.PyramidActorPool;
-import com.emphysic.myriad.network.ROIFinderPool;
 import com.emphysic.myriad.network.SlidingWindowPool;
 import com.typesafe.config.Config;
 import lombok.extern.slf4j.Slf4j;
+import scala.concurrent.Await;
+import scala.concurrent.Future;
 
 import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 /**
  * GristMill - grinds DatasetMessages into ROI, i.e. runs a scale-invariant scan of raw data looking for Regions Of
@@ -38,6 +61,44 @@ import java.io.File;
  */
 @Slf4j
 public class GristMill {
+    /**
+     * Name of the scale space stage
+     */
+    public static final String PYRAMID_POOL = "PyramidPool";
+    /**
+     * Name of the sliding window stage
+     */
+    public static final String SLIDER_POOL = "SlidingWindowPool";
+    /**
+     * Name of the ROI finder stage
+     */
+    public static final String FINDER_POOL = "ROIFinderPool";
+    /**
+     * Name of the control endpoint
+     */
+    public static final String CONTROLLER = "Controller";
+    /**
+     * Name of the endpoint for data uploaded over the bulk transfer channel
+     */
+    public static final String BULK = "Bulk";
+    /**
+     * Stages of the pipeline.  The ROI finder stage runs its workers in versioned Myriad pools beneath it, i.e.
+     * /user/ROIFinderPool/(version)/(router)/(worker), and resizes the current pool itself.
+     */
+    static final PipelineStage[] STAGES = {
+            PipelineStage.pool(PYRAMID_POOL, "pyramid"),
+            PipelineStage.pool(SLIDER_POOL, "slider"),
+            new PipelineStage(FINDER_POOL, "roi", "/" + FINDER_POOL + "/*/*/*", "/user/" + FINDER_POOL)
+    };
+
+    /**
+     * Stages of the pipeline when it runs on the fork/join engine, which stands in for the ROI finder stage and has
+     * no workers of its own; its mailbox holds the files waiting to be processed.
+     */
+    static final PipelineStage[] ENGINE_STAGES = {
+            new PipelineStage(FINDER_POOL, "engine", "/" + FINDER_POOL, "/user/" + FINDER_POOL)
+    };
+
     /**
      * Scale space Actor pool
      */
@@ -47,9 +108,17 @@ public class GristMill {
      */
     private ActorRef slidingWindowPool;
     /**
-     * Region Of Interest (ROI) finder pool
+     * Region Of Interest (ROI) finder stage
      */
     private ActorRef finderPool;
+    /**
+     * Control endpoint, handles warm-up and readiness
+     */
+    private ActorRef controller;
+    /**
+     * Worker pool autoscaler, if enabled
+     */
+    private ActorRef autoscaler;
     /**
      * The ROI finder and its preprocessing operation(s)
      */
@@ -59,6 +128,19 @@ public class GristMill {
      */
     private GaussianPyramidOperation gpo;
 
+    /**
+     * Models evaluated over the same scale space (roi.models), empty if GristMill runs the single model roi.bundle
+     */
+    private final List<ModelSettings> models;
+    /**
+     * True if the pipeline runs on the fork/join engine (engine.type = "forkjoin") rather than the Actor pools
+     */
+    private final boolean forkJoin;
+    /**
+     * Stages of this pipeline
+     */
+    private final PipelineStage[] stages;
+
     /**
      * Main Akka system
      */
@@ -69,8 +151,15 @@ public class GristMill {
     private final Config config;
 
     public GristMill(Config config) {
-        this.config = config;
-        system = ActorSystem.create("MyriadGristMill", config);
+        this.models = ModelSettings.fromConfig(config);
+        String engine = config.hasPath("engine.type") ? config.getString("engine.type") : "actors";
+        this.forkJoin = "forkjoin".equalsIgnoreCase(engine);
+        if (!forkJoin && !"actors".equalsIgnoreCase(engine)) {
+            log.warn("Unknown engine.type \"" + engine + "\", using the Actor pools");
+        }
+        this.stages = forkJoin ? ENGINE_STAGES : stagesOf(models);
+        this.config = StageDeployment.configure(config, stages);
+        system = ActorSystem.create("MyriadGristMill", this.config);
     }
 
     /**
@@ -80,44 +169,41 @@ public class GristMill {
     boolean startup() {
         try {
             log.info("Creating processing pipeline");
+            if (FloatDataset.isSinglePrecision(config)) {
+                log.info("Holding data in single precision");
+            }
+            boolean defaultPyramid = false;
             if (gpo == null) {
                 log.info("No pyramid operation specfied, using defaults");
                 configurePyramid();
+                defaultPyramid = true;
             }
-            pyramidActorPool = system.actorOf(Props.create(
-                    PyramidActorPool.class,
-                    config.getInt("pyramid.number"),
-                    gpo),
-                    "PyramidPool");
-            slidingWindowPool = system.actorOf(Props.create(
-                    SlidingWindowPool.class,
-                    config.getInt("slider.number"),
-                    config.getInt("slider.step"),
-                    config.getInt("slider.window.width"),
-                    config.getInt("slider.window.height")),
-                    "SlidingWindowPool");
-            if (roiBundle == null) {
-                log.info("No ROIBundle specified, attempting to read from config");
-                String bundlePath = config.getString("roi.bundle");
-                if (bundlePath == null || bundlePath.isEmpty()) {
-                    log.error("No ROIBundle path specified!");
-                    throw new IllegalArgumentException("No ROIBundle path specified");
-                }
-                File bundleFile = new File(bundlePath);
-                if (!bundleFile.canRead()) {
-                    log.error("Unable to read ROIBundle file ", bundleFile, "");
-                    throw new IllegalArgumentException("Unable to read ROIBundle file");
+            if (forkJoin) {
+                startEngine(defaultPyramid);
+            } else {
+                startPools(defaultPyramid);
+            }
+            if (config.hasPath("cancel.retention")) {
+                Cancellations.setRetention(config.getDuration("cancel.retention", TimeUnit.MILLISECONDS));
+            }
+            if (config.hasPath("mask.retention")) {
+                ScanMasks.setRetention(config.getDuration("mask.retention", TimeUnit.MILLISECONDS));
+            }
+            if (config.hasPath("autoscale.enabled") && config.getBoolean("autoscale.enabled")) {
+                if (forkJoin) {
+                    log.warn("Autoscaling doesn't apply to the fork/join engine, ignoring autoscale settings");
+                } else {
+                    configureAutoscaler();
                 }
-                roiBundle = new ROIBundle();
-                roiBundle.load(bundleFile);
             }
-            finderPool = system.actorOf(Props.create(
-                    ROIFinderPool.class,
-                    config.getInt("roi.number"),
-                    roiBundle),
-                    "ROIFinderPool");
-            pyramidActorPool.tell(slidingWindowPool, system.guardian());
-            slidingWindowPool.tell(finderPool, pyramidActorPool);
+            controller = system.actorOf(Props.create(
+                    MillController.class,
+                    pyramidActorPool,
+                    WarmupSettings.fromConfig(config)),
+                    CONTROLLER);
+            if (config.hasPath("bulk.enabled") && config.getBoolean("bulk.enabled")) {
+                configureBulk();
+            }
             return true;
         } catch (Exception e) {
             log.error("An error occurred constructing the pipeline: ", e);
@@ -125,6 +211,280 @@ public class GristMill {
         return false;
     }
 
+    /**
+     * Starts the Actor pools: the scale space stage, then a sliding window and an ROI finder stage for the single
+     * model roi.bundle or for each of the models in roi.models.
+     * @param defaultPyramid true if the scale space is configured by the pyramid block, false if its parameters are
+     *                       unknown
+     * @throws IOException if an ROIBundle couldn't be read
+     */
+    private void startPools(boolean defaultPyramid) throws IOException {
+        pyramidActorPool = system.actorOf(Props.create(
+                PyramidActorPool.class,
+                config.getInt("pyramid.number"),
+                gpo),
+                PYRAMID_POOL);
+        if (!models.isEmpty()) {
+            startModels(defaultPyramid);
+            return;
+        }
+        slidingWindowPool = startSlider(SLIDER_POOL, config.getInt("slider.step"),
+                config.getInt("slider.window.width"), config.getInt("slider.window.height"));
+        ScanGeometry geometry = scanGeometry(defaultPyramid, config.getInt("slider.step"),
+                config.getInt("slider.window.width"), config.getInt("slider.window.height"));
+        if (roiBundle == null) {
+            log.info("No ROIBundle specified, attempting to read from config");
+            finderPool = startFinder(FINDER_POOL, config.getString("roi.bundle"), null, geometry,
+                    config.getInt("slider.window.width"), config.getInt("slider.window.height"));
+        } else {
+            finderPool = system.actorOf(finderProps(roiBundle, null, null, geometry,
+                    config.getInt("slider.window.width"), config.getInt("slider.window.height"), null),
+                    FINDER_POOL);
+        }
+        pyramidActorPool.tell(slidingWindowPool, system.guardian());
+        slidingWindowPool.tell(windowsOf(finderPool), pyramidActorPool);
+    }
+
+    /**
+     * Starts the fork/join engine in place of the Actor pools.  The engine takes the ROI finder stage's place at
+     * /user/ROIFinderPool and /user/PyramidPool passes data on to it, so clients needn't know which engine runs.
+     * @param defaultPyramid true if the scale space is configured by the pyramid block, false if its parameters are
+     *                       unknown
+     * @throws IOException if the ROIBundle couldn't be read
+     */
+    private void startEngine(boolean defaultPyramid) throws IOException {
+        if (!models.isEmpty()) {
+            throw new IllegalArgumentException("The fork/join engine runs a single model, roi.models isn't supported");
+        }
+        int step = config.getInt("slider.step");
+        int width = config.getInt("slider.window.width");
+        int height = config.getInt("slider.window.height");
+        ROIBundle bundle = roiBundle;
+        String label = null;
+        String digest = null;
+        if (bundle == null) {
+            log.info("No ROIBundle specified, attempting to read from config");
+            File bundleFile = bundleFile(config.getString("roi.bundle"));
+            bundle = new ROIBundle();
+            bundle.load(bundleFile);
+            roiBundle = bundle;
+            label = bundleFile.getName();
+            digest = FileDigest.of(bundleFile);
+        }
+        finderPool = system.actorOf(Props.create(
+                ForkJoinEngine.class,
+                bundle,
+                label,
+                digest,
+                scanGeometry(defaultPyramid, step, width, height),
+                gpo,
+                config.getInt("pyramid.scalefactor"),
+                config.getInt("pyramid.windowsize"),
+                step,
+                width,
+                height,
+                config.hasPath("engine.parallelism") ? config.getInt("engine.parallelism") : 0,
+                config.hasPath("engine.files-in-flight") ? config.getInt("engine.files-in-flight") : 2,
+                !config.hasPath(StageDeployment.MAILBOX + ".prioritize")
+                        || config.getBoolean(StageDeployment.MAILBOX + ".prioritize"),
+                config.hasPath("roi.swap.warmup-windows") ? config.getInt("roi.swap.warmup-windows") : 500),
+                FINDER_POOL);
+        pyramidActorPool = system.actorOf(Props.create(Fanout.class, Collections.singletonList(finderPool)),
+                PYRAMID_POOL);
+        log.info("Running the pipeline on the fork/join engine");
+    }
+
+    /**
+     * Builds one branch of the pipeline per model: every level of the scale space is fanned out to one sliding window
+     * stage per window geometry, whose windows are fanned out to the ROI finder stage of each model with that
+     * geometry.  A ModelHub at /user/ROIFinderPool is the clients' single endpoint for results.
+     * @param defaultPyramid true if the scale space is configured by the pyramid block, false if its parameters are
+     *                       unknown
+     * @throws IOException if a model's ROIBundle couldn't be read
+     */
+    private void startModels(boolean defaultPyramid) throws IOException {
+        Map<String, List<ModelSettings>> byGeometry = new LinkedHashMap<>();
+        for (ModelSettings model : models) {
+            byGeometry.computeIfAbsent(model.getGeometry(), (g) -> new ArrayList<>()).add(model);
+        }
+        List<ActorRef> sliders = new ArrayList<>();
+        Map<String, ActorRef> finders = new LinkedHashMap<>();
+        for (Map.Entry<String, List<ModelSettings>> geometry : byGeometry.entrySet()) {
+            ModelSettings first = geometry.getValue().get(0);
+            ActorRef slider = startSlider(SLIDER_POOL + "-" + geometry.getKey(), first.getStep(),
+                    first.getWindowWidth(), first.getWindowHeight());
+            List<ActorRef> targets = new ArrayList<>();
+            for (ModelSettings model : geometry.getValue()) {
+                ActorRef finder = startFinder(FINDER_POOL + "-" + model.getId(), model.getBundle(), model.getId(),
+                        scanGeometry(defaultPyramid, model.getStep(), model.getWindowWidth(),
+                                model.getWindowHeight()),
+                        model.getWindowWidth(), model.getWindowHeight());
+                finders.put(model.getId(), finder);
+                targets.add(windowsOf(finder));
+            }
+            slider.tell(targets.size() == 1 ? targets.get(0)
+                    : system.actorOf(Props.create(Fanout.class, targets), "Fanout-" + geometry.getKey()),
+                    pyramidActorPool);
+            sliders.add(slider);
+            log.info("Models " + geometry.getValue().stream().map(ModelSettings::getId).collect(Collectors.toList())
+                    + " share " + geometry.getKey() + " windows");
+        }
+        slidingWindowPool = sliders.get(0);
+        pyramidActorPool.tell(sliders.size() == 1 ? slidingWindowPool
+                : system.actorOf(Props.create(Fanout.class, sliders), "Fanout"), system.guardian());
+        finderPool = system.actorOf(Props.create(ModelHub.class, finders), FINDER_POOL);
+    }
+
+    /**
+     * Starts a sliding window stage.
+     * @param name name of the stage's Actor
+     * @param step points to skip when moving the window
+     * @param width window width
+     * @param height window height
+     * @return the stage
+     */
+    private ActorRef startSlider(String name, int step, int width, int height) {
+        return system.actorOf(Props.create(
+                SlidingWindowPool.class,
+                config.getInt("slider.number"),
+                step,
+                width,
+                height),
+                name);
+    }
+
+    /**
+     * Loads an ROIBundle and starts an ROI finder stage running it.
+     * @param name name of the stage's Actor
+     * @param bundlePath path to the ROIBundle
+     * @param model id of the model, or null if GristMill runs a single model
+     * @param geometry scale space and sliding window parameters, or null if unknown
+     * @param windowWidth width of the windows the stage will receive
+     * @param windowHeight height of the windows the stage will receive
+     * @return the stage
+     * @throws IOException if the bundle's digest couldn't be computed
+     */
+    private ActorRef startFinder(String name, String bundlePath, String model, ScanGeometry geometry,
+                                 int windowWidth, int windowHeight) throws IOException {
+        File bundleFile = bundleFile(bundlePath);
+        ROIBundle bundle = new ROIBundle();
+        bundle.load(bundleFile);
+        if (roiBundle == null) {
+            roiBundle = bundle;
+        }
+        return system.actorOf(finderProps(bundle, bundleFile.getName(), FileDigest.of(bundleFile), geometry,
+                windowWidth, windowHeight, model), name);
+    }
+
+    /**
+     * Checks that an ROIBundle file can be read.
+     * @param bundlePath path to the ROIBundle
+     * @return the bundle's file
+     */
+    private static File bundleFile(String bundlePath) {
+        if (bundlePath == null || bundlePath.isEmpty()) {
+            log.error("No ROIBundle path specified!");
+            throw new IllegalArgumentException("No ROIBundle path specified");
+        }
+        File bundleFile = new File(bundlePath);
+        if (!bundleFile.canRead()) {
+            log.error("Unable to read ROIBundle file ", bundleFile, "");
+            throw new IllegalArgumentException("Unable to read ROIBundle file");
+        }
+        return bundleFile;
+    }
+
+    private Props finderProps(ROIBundle bundle, String label, String digest, ScanGeometry geometry,
+                              int windowWidth, int windowHeight, String model) {
+        return Props.create(
+                ROIFinderStage.class,
+                config.getInt("roi.number"),
+                bundle,
+                label,
+                digest,
+                geometry,
+                windowWidth,
+                windowHeight,
+                config.hasPath("roi.swap.warmup-windows") ? config.getInt("roi.swap.warmup-windows") : 500,
+                config.hasPath("roi.swap.warmup-timeout")
+                        ? config.getDuration("roi.swap.warmup-timeout", TimeUnit.MILLISECONDS) : 30000L,
+                config.hasPath("roi.window-cache.size") ? config.getInt("roi.window-cache.size") : 0,
+                FloatDataset.isSinglePrecision(config),
+                config.hasPath("roi.stripes") ? config.getInt("roi.stripes")
+                        : Runtime.getRuntime().availableProcessors(),
+                model);
+    }
+
+    /**
+     * Returns where an ROI finder stage receives its windows, so that they needn't pass through the stage itself.
+     * @param stage ROI finder stage
+     * @return router of the stage's WindowGates
+     * @throws IOException if the stage didn't answer
+     */
+    private static ActorRef windowsOf(ActorRef stage) throws IOException {
+        Timeout t = new Timeout(10, TimeUnit.SECONDS);
+        try {
+            return (ActorRef) Await.result(Patterns.ask(stage, ROIFinderStage.WINDOWS, t), t.duration());
+        } catch (Exception e) {
+            throw new IOException("ROI finder stage " + stage.path().name() + " didn't report its window gates", e);
+        }
+    }
+
+    /**
+     * Returns the scale space and sliding window parameters of a scan, for the pipeline signature.
+     * @param defaultPyramid true if the scale space is configured by the pyramid block, false if its parameters are
+     *                       unknown
+     * @param step sliding window step
+     * @param width window width
+     * @param height window height
+     * @return geometry, or null if the scale space parameters are unknown
+     */
+    private ScanGeometry scanGeometry(boolean defaultPyramid, int step, int width, int height) {
+        return defaultPyramid ? new ScanGeometry(config.getInt("pyramid.scalefactor"),
+                config.getInt("pyramid.windowsize"), step, width, height) : null;
+    }
+
+    /**
+     * Describes the stages of the pipeline: the default stages for a single model, or a sliding window stage per
+     * window geometry and an ROI finder stage per model.
+     * @param models models from roi.models, empty for a single model
+     * @return stages
+     */
+    static PipelineStage[] stagesOf(List<ModelSettings> models) {
+        if (models.isEmpty()) {
+            return STAGES;
+        }
+        List<PipelineStage> stages = new ArrayList<>();
+        stages.add(STAGES[0]);
+        Set<String> geometries = new LinkedHashSet<>();
+        models.forEach((model) -> geometries.add(model.getGeometry()));
+        geometries.forEach((geometry) -> stages.add(PipelineStage.pool(SLIDER_POOL + "-" + geometry, "slider")));
+        for (ModelSettings model : models) {
+            String name = FINDER_POOL + "-" + model.getId();
+            stages.add(new PipelineStage(name, "roi", "/" + name + "/*/*/*", "/user/" + name));
+        }
+        return stages.toArray(new PipelineStage[0]);
+    }
+
+    /**
+     * Waits for the pipeline to finish warming up.
+     * @param timeout maximum time to wait (ms)
+     * @return true if the pipeline is ready, false if it isn't ready or the wait timed out
+     */
+    public boolean awaitReady(long timeout) {
+        if (controller == null) {
+            return false;
+        }
+        try {
+            Timeout t = new Timeout(timeout, TimeUnit.MILLISECONDS);
+            Future<Object> reply = Patterns.ask(controller, new ReadinessQuery(true), t);
+            return ((ReadinessMessage) Await.result(reply, t.duration())).isReady();
+        } catch (Exception e) {
+            log.warn("Pipeline not ready after " + timeout + " ms");
+        }
+        return false;
+    }
+
     /**
      * Shuts the Akka system down.
      */
@@ -153,6 +513,88 @@ public class GristMill {
         );
     }
 
+    /**
+     * Starts the autoscaler, which resizes the worker pools according to their load.
+     */
+    private void configureAutoscaler() {
+        List<ScalingPolicy> policies = new ArrayList<>();
+        for (PipelineStage stage : stages) {
+            policies.add(ScalingPolicy.fromConfig(config, stage));
+        }
+        int budget = config.hasPath("autoscale.max-workers")
+                ? config.getInt("autoscale.max-workers")
+                : policies.stream().mapToInt(ScalingPolicy::getMax).sum();
+        long interval = config.hasPath("autoscale.interval")
+                ? config.getDuration("autoscale.interval", TimeUnit.MILLISECONDS)
+                : 1000;
+        log.info("Autoscaling enabled: " + policies);
+        autoscaler = system.actorOf(Props.create(Autoscaler.class, policies, budget, interval), "Autoscaler");
+    }
+
+    /**
+     * Opens the bulk transfer channel, over which clients upload datasets too large to send through remoting.
+     * @throws IOException if the channel's port couldn't be opened
+     */
+    private void configureBulk() throws IOException {
+        StageMetrics metrics = StageMetrics.forStage(PYRAMID_POOL);
+        String hostname = bulkHostname();
+        String token = config.hasPath("bulk.token") ? config.getString("bulk.token") : "";
+        BulkServer server = new BulkServer(
+                hostname,
+                config.hasPath("bulk.port") ? config.getInt("bulk.port") : 9998,
+                config.hasPath("bulk.retention") ? config.getDuration("bulk.retention", TimeUnit.MILLISECONDS) : 600000,
+                config.hasPath("bulk.max-size") ? config.getBytes("bulk.max-size") : 1024L * 1024 * 1024,
+                token,
+                FloatDataset.isSinglePrecision(config),
+                metrics);
+        if (token.isEmpty()) {
+            log.warn("Bulk transfer channel on " + hostname + " accepts uploads without a token (bulk.token)");
+        }
+        system.actorOf(Props.create(BulkIngest.class, server, pyramidActorPool, metrics), BULK);
+    }
+
+    /**
+     * Returns the address the bulk transfer channel listens on: bulk.hostname if set, otherwise the address remoting
+     * listens on, so that the channel is no more exposed than remoting.
+     * @return address to listen on
+     * @throws IOException if the local host's address couldn't be found
+     */
+    private String bulkHostname() throws IOException {
+        if (config.hasPath("bulk.hostname") && !config.getString("bulk.hostname").isEmpty()) {
+            return config.getString("bulk.hostname");
+        }
+        if (config.hasPath("akka.remote.netty.tcp.hostname")
+                && !config.getString("akka.remote.netty.tcp.hostname").isEmpty()) {
+            return config.getString("akka.remote.netty.tcp.hostname");
+        }
+        // As Akka does for an empty remoting hostname
+        return InetAddress.getLocalHost().getHostAddress();
+    }
+
+    /**
+     * Replaces the ROIBundle of a running pipeline without interrupting it.  The new bundle is loaded and warmed up
+     * in the background; windows already being evaluated finish with the current bundle.
+     * @param bundleFile path to the new ROIBundle
+     * @param replyTo Actor to notify with a BundleSwappedMessage when the swap completes, or null
+     */
+    public void swapBundle(File bundleFile, ActorRef replyTo) {
+        swapBundle(null, bundleFile, replyTo);
+    }
+
+    /**
+     * Replaces the ROIBundle of one of the models (roi.models) of a running pipeline without interrupting it.
+     * @param model id of the model, or null if GristMill runs a single model
+     * @param bundleFile path to the new ROIBundle
+     * @param replyTo Actor to notify with a BundleSwappedMessage when the swap completes, or null
+     */
+    public void swapBundle(String model, File bundleFile, ActorRef replyTo) {
+        if (finderPool == null) {
+            throw new IllegalStateException("Pipeline has not been started");
+        }
+        finderPool.tell(new SwapBundleMessage(model, bundleFile.getAbsolutePath()),
+                replyTo == null ? ActorRef.noSender() : replyTo);
+    }
+
     /**
      * Returns the current ROIBundle - a package containing the Region Of Interest (ROI) finder, its preprocessing
      * operation(s), and associated metadata
@@ -186,6 +628,14 @@ public class GristMill {
         this.gpo = gpo;
     }
 
+    /**
+     * Returns the Akka system the pipeline runs in
+     * @return Akka system
+     */
+    public ActorSystem getSystem() {
+        return system;
+    }
+
     /**
      * Returns the current system configuration
      * @return current configuration
@@ -226,6 +676,14 @@ public class GristMill {
         this.slidingWindowPool = slidingWindowPool;
     }
 
+    /**
+     * Returns the control endpoint
+     * @return reference to the controller
+     */
+    public ActorRef getController() {
+        return controller;
+    }
+
     /**
      * Returns the current ROIFinder pool
      * @return reference to current ROIFinder pool
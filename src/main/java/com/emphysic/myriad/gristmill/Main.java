@@ -45,9 +45,23 @@ public class Main {
         boolean ready = mill.startup();
         if (ready) {
             log.info("Successfully initiated grist mill.");
+            if (mill.awaitReady(readyTimeout(config))) {
+                log.info("Grist mill is warmed up and ready for data.");
+            } else {
+                log.warn("Grist mill is accepting data but has not finished warming up.");
+            }
         } else {
             log.error("Unable to construct grist mill, please check logs for details.");
             mill.shutdown(1);
         }
     }
+
+    /**
+     * Returns how long to wait for the grist mill to warm up: the warm-up budget plus some headroom.
+     * @param config GristMill configuration
+     * @return time to wait (ms)
+     */
+    private static long readyTimeout(Config config) {
+        return WarmupSettings.fromConfig(config).getBudget() + 5000;
+    }
 }
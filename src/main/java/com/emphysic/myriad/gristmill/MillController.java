@@ -0,0 +1,224 @@
+/*
+ * com.emphysic.myriad.gristmill.MillController
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill;
+
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.UntypedActor;
+import com.emphysic.myriad.gristmill.messages.CancelMessage;
+import com.emphysic.myriad.gristmill.messages.CancelledMessage;
+import com.emphysic.myriad.gristmill.messages.MaskMessage;
+import com.emphysic.myriad.gristmill.messages.MaskedMessage;
+import com.emphysic.myriad.gristmill.messages.ReadinessMessage;
+import com.emphysic.myriad.gristmill.messages.ReadinessQuery;
+import com.emphysic.myriad.gristmill.scheduling.Cancellations;
+import com.emphysic.myriad.network.messages.DatasetMessage;
+import com.emphysic.myriad.network.messages.ImmutableMessage;
+import com.emphysic.myriad.network.messages.ROIMessage;
+import lombok.extern.slf4j.Slf4j;
+import scala.concurrent.duration.Duration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MillController - control endpoint of a running GristMill, reachable by clients at /user/Controller.
+ *
+ * On startup the controller warms the pipeline up by running rounds of synthetic scans through every stage until
+ * the measured throughput stabilises (or the warm-up budget runs out), then reports the pipeline as ready.  Clients
+ * such as Thresher can query readiness or wait for it with a ReadinessQuery.
+ *
+ * A CancelMessage stops work on a submission of a file: every stage's workers drop the submission's queued and
+ * newly-arriving data, and no further results are sent for it.  The sender receives a CancelledMessage once the
+ * cancellation is in effect.
+ *
+ * A MaskMessage restricts scanning of a submission to a ScanMask; the ROI finder stage skips the submission's windows
+ * that lie outside it.  The sender receives a MaskedMessage once the mask is in effect.
+ */
+@Slf4j
+public class MillController extends UntypedActor {
+    /**
+     * Metadata key that marks synthetic warm-up data; the value identifies the warm-up round
+     */
+    public static final String WARMUPKEY = "warmup";
+    /**
+     * Message sent to self to check on the current warm-up round
+     */
+    private static final String TICK = "tick";
+
+    /**
+     * Entry point of the pipeline
+     */
+    private final ActorRef pipeline;
+    private final WarmupSettings settings;
+
+    private ReadinessMessage.STATE state = ReadinessMessage.STATE.WARMING_UP;
+    /**
+     * Clients waiting for the pipeline to become ready
+     */
+    private final List<ActorRef> waiting = new ArrayList<>();
+    private Cancellable ticker;
+
+    private long warmupStart;
+    private int round;
+    private long roundStart;
+    private long lastResult;
+    private long roundResults;
+    private double rate;
+    private double previousRate;
+
+    /**
+     * Creates the controller.
+     * @param pipeline entry point of the pipeline (the scale space stage)
+     * @param settings warm-up settings
+     */
+    public MillController(ActorRef pipeline, WarmupSettings settings) {
+        this.pipeline = pipeline;
+        this.settings = settings;
+    }
+
+    /**
+     * Determines whether a message's metadata marks it as synthetic warm-up data.
+     * @param metadata message metadata
+     * @return true if the message belongs to a warm-up
+     */
+    public static boolean isWarmup(String metadata) {
+        return metadata != null && metadata.contains(WARMUPKEY)
+                && ImmutableMessage.getMetadata(metadata).containsKey(WARMUPKEY);
+    }
+
+    @Override
+    public void preStart() {
+        if (!settings.isEnabled()) {
+            ready("warm-up disabled");
+            return;
+        }
+        warmupStart = System.currentTimeMillis();
+        ticker = getContext().system().scheduler().schedule(
+                Duration.create(50, TimeUnit.MILLISECONDS),
+                Duration.create(50, TimeUnit.MILLISECONDS),
+                getSelf(),
+                TICK,
+                getContext().dispatcher(),
+                getSelf());
+        startRound();
+    }
+
+    @Override
+    public void postStop() {
+        if (ticker != null) {
+            ticker.cancel();
+        }
+    }
+
+    @Override
+    public void onReceive(Object message) throws Throwable {
+        if (message instanceof ROIMessage) {
+            Map<String, String> md = ImmutableMessage.getMetadata(((ROIMessage) message).getMetadata());
+            if (state == ReadinessMessage.STATE.WARMING_UP && String.valueOf(round).equals(md.get(WARMUPKEY))) {
+                roundResults++;
+                lastResult = System.currentTimeMillis();
+            }
+        } else if (TICK.equals(message)) {
+            checkRound();
+        } else if (message instanceof ReadinessQuery) {
+            if (state == ReadinessMessage.STATE.READY || !((ReadinessQuery) message).isWait()) {
+                getSender().tell(new ReadinessMessage(state, rate), getSelf());
+            } else {
+                waiting.add(getSender());
+            }
+        } else if (message instanceof CancelMessage) {
+            String source = ((CancelMessage) message).getSource();
+            Cancellations.cancel(source);
+            log.info("Cancelled " + source);
+            getSender().tell(new CancelledMessage(source), getSelf());
+        } else if (message instanceof MaskMessage) {
+            MaskMessage mask = (MaskMessage) message;
+            ScanMasks.register(mask.getSource(), mask.getMask());
+            log.info(mask.getMask() == null ? "Unmasked " + mask.getSource()
+                    : mask.getSource() + " masked by " + mask.getMask());
+            getSender().tell(new MaskedMessage(mask.getSource()), getSelf());
+        } else {
+            unhandled(message);
+        }
+    }
+
+    /**
+     * Sends a round of synthetic scans through the pipeline.
+     */
+    private void startRound() {
+        round++;
+        roundStart = System.currentTimeMillis();
+        lastResult = 0;
+        roundResults = 0;
+        String metadata = ImmutableMessage.genMetadata(
+                ImmutableMessage.genMetadata(null, "source", WARMUPKEY), WARMUPKEY, String.valueOf(round));
+        for (int i = 0; i < settings.getScans(); i++) {
+            pipeline.tell(new DatasetMessage(
+                    SyntheticData.scan(settings.getWidth(), settings.getHeight(), 4, round * settings.getScans() + i),
+                    metadata), getSelf());
+        }
+    }
+
+    /**
+     * Ends the current round once results have stopped arriving, and decides whether warm-up is complete.
+     */
+    private void checkRound() {
+        if (state == ReadinessMessage.STATE.READY) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        boolean outOfTime = now - warmupStart >= settings.getBudget();
+        boolean quiet = roundResults > 0 && now - lastResult >= settings.getQuiet();
+        if (!quiet && !outOfTime) {
+            return;
+        }
+        long elapsed = Math.max(1, (lastResult > 0 ? lastResult : now) - roundStart);
+        previousRate = rate;
+        rate = roundResults * 1000.0 / elapsed;
+        log.info(String.format("Warm-up round %d: %d windows in %d ms (%.1f windows/s)",
+                round, roundResults, elapsed, rate));
+        if (previousRate > 0 && Math.abs(rate - previousRate) / previousRate <= settings.getTolerance()) {
+            ready("throughput stable after " + round + " rounds");
+        } else if (outOfTime) {
+            ready("warm-up budget of " + settings.getBudget() + " ms exhausted");
+        } else {
+            startRound();
+        }
+    }
+
+    /**
+     * Marks the pipeline ready and notifies any waiting clients.
+     * @param reason reason warm-up ended, for logging
+     */
+    private void ready(String reason) {
+        state = ReadinessMessage.STATE.READY;
+        if (ticker != null) {
+            ticker.cancel();
+            ticker = null;
+        }
+        log.info("GristMill ready (" + reason + ")");
+        ReadinessMessage reply = new ReadinessMessage(state, rate);
+        for (ActorRef client : waiting) {
+            client.tell(reply, getSelf());
+        }
+        waiting.clear();
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * com.emphysic.myriad.gristmill.ModelHub
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill;
+
+import akka.actor.ActorRef;
+import akka.actor.UntypedActor;
+import com.emphysic.myriad.gristmill.messages.BundleSwappedMessage;
+import com.emphysic.myriad.gristmill.messages.PipelineSignature;
+import com.emphysic.myriad.gristmill.messages.SignatureQuery;
+import com.emphysic.myriad.gristmill.messages.SwapBundleMessage;
+import com.emphysic.myriad.network.messages.ShutdownMessage;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ModelHub - stands in for the ROI finder stage at /user/ROIFinderPool when GristMill runs several models, so that
+ * clients talk to one endpoint however many models there are.
+ *
+ * The Actor clients register to receive ROI is passed to every model's stage.  A SignatureQuery is answered with a
+ * signature combining every model's signature, and a SwapBundleMessage is passed to the stage of the model it names.
+ */
+@Slf4j
+public class ModelHub extends UntypedActor {
+    /**
+     * ROI finder stage of each model, keyed by model id
+     */
+    private final Map<String, ActorRef> models;
+    /**
+     * Clients waiting for the combined signature
+     */
+    private final List<ActorRef> signatureRequesters = new ArrayList<>();
+    /**
+     * Signatures received so far for the current query, keyed by model id
+     */
+    private final Map<String, PipelineSignature> signatures = new HashMap<>();
+
+    public ModelHub(Map<String, ActorRef> models) {
+        this.models = new LinkedHashMap<>(models);
+    }
+
+    @Override
+    public void onReceive(Object message) throws Throwable {
+        if (message instanceof ActorRef || message instanceof ShutdownMessage) {
+            for (ActorRef stage : models.values()) {
+                stage.tell(message, getSelf());
+            }
+        } else if (message instanceof SignatureQuery) {
+            signatureRequesters.add(getSender());
+            if (signatureRequesters.size() == 1) {
+                signatures.clear();
+                for (ActorRef stage : models.values()) {
+                    stage.tell(message, getSelf());
+                }
+            }
+        } else if (message instanceof PipelineSignature) {
+            String model = modelOf(getSender());
+            if (model != null) {
+                signatures.put(model, (PipelineSignature) message);
+                if (signatures.size() == models.size()) {
+                    replySignature();
+                }
+            }
+        } else if (message instanceof SwapBundleMessage) {
+            SwapBundleMessage swap = (SwapBundleMessage) message;
+            ActorRef stage = swap.getModel() == null ? null : models.get(swap.getModel());
+            if (stage == null) {
+                getSender().tell(new BundleSwappedMessage(null, false,
+                        "Unknown model " + swap.getModel() + ", expected one of " + models.keySet()), getSelf());
+            } else {
+                stage.forward(message, getContext());
+            }
+        } else {
+            unhandled(message);
+        }
+    }
+
+    /**
+     * Combines the models' signatures and replies to the waiting clients.  The combination is unknown if any model's
+     * signature is unknown, and a file goes through the scans of every model.
+     */
+    private void replySignature() {
+        StringBuilder combined = new StringBuilder();
+        boolean known = true;
+        boolean scanned = true;
+        List<ScanGeometry> scans = new ArrayList<>();
+        for (String model : models.keySet()) {
+            PipelineSignature signature = signatures.get(model);
+            known &= signature.isKnown();
+            combined.append(model).append('=').append(signature.getSignature()).append('|');
+            scanned &= !signature.getScans().isEmpty();
+            scans.addAll(signature.getScans());
+        }
+        PipelineSignature reply = new PipelineSignature(known ? FileDigest.of(combined.toString()) : null,
+                scanned ? scans : Collections.emptyList());
+        for (ActorRef requester : signatureRequesters) {
+            requester.tell(reply, getSelf());
+        }
+        signatureRequesters.clear();
+    }
+
+    private String modelOf(ActorRef stage) {
+        for (Map.Entry<String, ActorRef> entry : models.entrySet()) {
+            if (entry.getValue().equals(stage)) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * com.emphysic.myriad.gristmill.ModelSettings
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill;
+
+import com.typesafe.config.Config;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * ModelSettings - one of several ROI models evaluated over the same scale space, read from the roi.models list of
+ * the GristMill configuration.  Each model has its own ROIBundle and sliding window geometry; settings a model
+ * doesn't give are taken from the slider block.
+ */
+public class ModelSettings implements Serializable {
+    /**
+     * Id of the model, used in stage names and in the "model" metadata key of its ROI
+     */
+    private final String id;
+    /**
+     * Path to the model's ROIBundle
+     */
+    private final String bundle;
+    private final int windowWidth;
+    private final int windowHeight;
+    /**
+     * Points to skip when moving the window
+     */
+    private final int step;
+
+    public ModelSettings(String id, String bundle, int windowWidth, int windowHeight, int step) {
+        this.id = id;
+        this.bundle = bundle;
+        this.windowWidth = windowWidth;
+        this.windowHeight = windowHeight;
+        this.step = step;
+    }
+
+    /**
+     * Reads the models from the GristMill configuration.
+     * @param config GristMill configuration
+     * @return models, empty if roi.models is absent i.e. GristMill runs the single model roi.bundle
+     * @throws IllegalArgumentException if a model has no bundle or its id is missing, repeated or unusable as an
+     * Actor name
+     */
+    public static List<ModelSettings> fromConfig(Config config) {
+        List<ModelSettings> models = new ArrayList<>();
+        if (!config.hasPath("roi.models")) {
+            return models;
+        }
+        Set<String> ids = new HashSet<>();
+        for (Config model : config.getConfigList("roi.models")) {
+            String id = model.hasPath("id") ? model.getString("id") : "";
+            if (!id.matches("[A-Za-z0-9_-]+") || !ids.add(id)) {
+                throw new IllegalArgumentException("Model id '" + id + "' is missing, repeated or not of the form "
+                        + "[A-Za-z0-9_-]+");
+            }
+            if (!model.hasPath("bundle") || model.getString("bundle").isEmpty()) {
+                throw new IllegalArgumentException("No ROIBundle path specified for model " + id);
+            }
+            models.add(new ModelSettings(id, model.getString("bundle"),
+                    model.hasPath("window.width") ? model.getInt("window.width") : config.getInt("slider.window.width"),
+                    model.hasPath("window.height")
+                            ? model.getInt("window.height") : config.getInt("slider.window.height"),
+                    model.hasPath("step") ? model.getInt("step") : config.getInt("slider.step")));
+        }
+        return models;
+    }
+
+    public String getId() { return id; }
+
+    public String getBundle() { return bundle; }
+
+    public int getWindowWidth() { return windowWidth; }
+
+    public int getWindowHeight() { return windowHeight; }
+
+    public int getStep() { return step; }
+
+    /**
+     * Returns the model's sliding window geometry; models with the same geometry share a sliding window stage.
+     * @return geometry e.g. 15x15s15
+     */
+    public String getGeometry() {
+        return windowWidth + "x" + windowHeight + "s" + step;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * com.emphysic.myriad.gristmill.PipelineStage
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill;
+
+import java.io.Serializable;
+
+/**
+ * PipelineStage - describes where a stage of the GristMill pipeline lives in the Actor hierarchy.
+ */
+public class PipelineStage implements Serializable {
+    /**
+     * Name of the stage's top-level Actor e.g. PyramidPool
+     */
+    private final String name;
+    /**
+     * Configuration key of the stage e.g. pyramid
+     */
+    private final String key;
+    /**
+     * Deployment path (relative to /user) that matches the stage's workers
+     */
+    private final String workerPath;
+    /**
+     * Path of the Actor(s) that accept router management messages such as AdjustPoolSize
+     */
+    private final String scalingPath;
+
+    public PipelineStage(String name, String key, String workerPath, String scalingPath) {
+        this.name = name;
+        this.key = key;
+        this.workerPath = workerPath;
+        this.scalingPath = scalingPath;
+    }
+
+    /**
+     * Describes a stage that is a single Myriad worker pool, i.e. /user/(name)/(router)/(worker).
+     * @param name name of the stage's Actor
+     * @param key configuration key of the stage
+     * @return stage
+     */
+    public static PipelineStage pool(String name, String key) {
+        return new PipelineStage(name, key, "/" + name + "/*/*", "/user/" + name + "/*");
+    }
+
+    public String getName() { return name; }
+
+    public String getKey() { return key; }
+
+    public String getWorkerPath() { return workerPath; }
+
+    public String getScalingPath() { return scalingPath; }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,512 @@
+/*
+ * com.emphysic.myriad.gristmill.ROIFinderStage
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill;
+
+import akka.actor.ActorIdentity;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.Identify;
+import akka.actor.PoisonPill;
+import akka.actor.Props;
+import akka.actor.Status;
+import akka.actor.Terminated;
+import akka.actor.UntypedActor;
+import akka.dispatch.Futures;
+import akka.pattern.Patterns;
+import akka.routing.AdjustPoolSize;
+import akka.routing.Broadcast;
+import akka.routing.RoundRobinPool;
+import com.emphysic.myriad.core.data.io.Dataset;
+import com.emphysic.myriad.core.data.roi.ROIBundle;
+import com.emphysic.myriad.gristmill.messages.BundleSwappedMessage;
+import com.emphysic.myriad.gristmill.messages.PipelineSignature;
+import com.emphysic.myriad.gristmill.messages.SignatureQuery;
+import com.emphysic.myriad.gristmill.messages.SwapBundleMessage;
+import com.emphysic.myriad.gristmill.metrics.StageMetrics;
+import com.emphysic.myriad.network.ROIFinderPool;
+import com.emphysic.myriad.network.messages.DatasetMessage;
+import com.emphysic.myriad.network.messages.ImmutableMessage;
+import com.emphysic.myriad.network.messages.ROIMessage;
+import com.emphysic.myriad.network.messages.ShutdownMessage;
+import lombok.extern.slf4j.Slf4j;
+import scala.concurrent.ExecutionContext;
+import scala.concurrent.Future;
+import scala.concurrent.duration.Duration;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ROIFinderStage - manages the Region Of Interest (ROI) finder stage.  Windows are handed to a Myriad ROIFinderPool
+ * running the current ROIBundle, and each ROI it finds is tagged with the version of the bundle that produced it
+ * (metadata key "bundle") before being passed on.  When GristMill runs several models each model has its own stage,
+ * and its ROI are also tagged with the model's id (metadata key "model").
+ *
+ * Neither windows nor results pass through the stage itself: windows are received by a router of WindowGates (the
+ * stage's "windows" child, returned to a WINDOWS query), which send them straight to the current pool, and each
+ * pool's results go to a router of ResultTaggers of its own.  The stage only starts, switches and retires pools.
+ * Windows sent to the stage are passed on to its gates.
+ *
+ * The bundle can be replaced at runtime with a SwapBundleMessage: the new bundle is loaded in the background and
+ * warmed up on a new pool with synthetic windows, then new windows are switched to it.  Windows already handed to
+ * the old pool finish on the old bundle, after which the old pool is stopped.
+ *
+ * Windows and results from a cancelled source are dropped, as are windows lying outside their source's scan mask
+ * (see ScanMasks); the masked sources' windows are counted as "mask.skipped" and "mask.scanned".
+ *
+ * A SignatureQuery is answered with a PipelineSignature combining the digest of the current bundle's file with the
+ * scale space and sliding window parameters, which clients use to reuse results for identical data.  The signature
+ * carries the parameters too (see ScanGeometry), so that clients know how many window results a file produces.
+ *
+ * Optionally the stage remembers the verdict of the current bundle on recent windows (see StripedWindowCache): a
+ * window identical to one already evaluated is answered from the cache without being sent to the pool.  Hits and
+ * misses are counted as "window-cache.hits" and "window-cache.misses".
+ */
+@Slf4j
+public class ROIFinderStage extends UntypedActor {
+    /**
+     * Metadata key for the bundle version that produced an ROI
+     */
+    public static final String BUNDLEKEY = "bundle";
+    /**
+     * Metadata key for the id of the model that produced an ROI, when GristMill runs several models
+     */
+    public static final String MODELKEY = "model";
+    /**
+     * Query answered with the router of the stage's WindowGates, where windows should be sent
+     */
+    public static final String WINDOWS = "windows";
+    /**
+     * Message sent to self when a warm-up has run out of time
+     */
+    private static final String WARMUP_TIMEOUT = "warmup-timeout";
+    /**
+     * Counter of results delivered after their file's deadline
+     */
+    public static final String LATE_RESULTS = "late-results";
+    /**
+     * Counter of windows answered from the window cache
+     */
+    public static final String WINDOW_CACHE_HITS = "window-cache.hits";
+    /**
+     * Counter of windows of masked sources skipped because they lie outside the mask
+     */
+    public static final String MASK_SKIPPED = "mask.skipped";
+    /**
+     * Counter of windows of masked sources evaluated because they lie in the mask; with mask.skipped it gives the
+     * mask coverage
+     */
+    public static final String MASK_SCANNED = "mask.scanned";
+    /**
+     * Counter of windows sent to the pool because they weren't in the window cache
+     */
+    public static final String WINDOW_CACHE_MISSES = "window-cache.misses";
+    /**
+     * Counter of windows forgotten by the window cache to stay within its capacity
+     */
+    public static final String WINDOW_CACHE_EVICTIONS = "window-cache.evictions";
+
+    /**
+     * Where ROI results are sent
+     */
+    private ActorRef next;
+    private final StageMetrics metrics;
+    /**
+     * Id of the model this stage runs, or null if GristMill runs a single model
+     */
+    private final String model;
+    /**
+     * Pool running the current bundle
+     */
+    private ActorRef current;
+    /**
+     * Bundle version for each of our pools, keyed by the pool's name
+     */
+    private final Map<String, String> versions = new HashMap<>();
+    /**
+     * Digest of the bundle file each of our pools is running, keyed by the pool's name
+     */
+    private final Map<String, String> digests = new HashMap<>();
+    /**
+     * Router of the ResultTaggers receiving each of our pools' results, keyed by the pool's name
+     */
+    private final Map<String, ActorRef> taggers = new HashMap<>();
+    /**
+     * Retiring pools, keyed by their router
+     */
+    private final Map<ActorRef, ActorRef> retiring = new HashMap<>();
+    /**
+     * Router of the WindowGates receiving the stage's windows
+     */
+    private ActorRef gates;
+    /**
+     * Number of WindowGates, and of ResultTaggers per pool
+     */
+    private final int stripes;
+    /**
+     * Number of pools created so far
+     */
+    private int generation;
+    /**
+     * Number of workers in the current pool
+     */
+    private int workers;
+    private final int windowWidth;
+    private final int windowHeight;
+    /**
+     * Number of synthetic windows used to warm up a new bundle
+     */
+    private final int warmupWindows;
+    /**
+     * Maximum time (ms) to spend warming up a new bundle
+     */
+    private final long warmupTimeout;
+
+    /**
+     * Pool being warmed up, if any
+     */
+    private ActorRef warming;
+    /**
+     * Warm-up windows still outstanding
+     */
+    private int warmupRemaining;
+    /**
+     * Sender of the swap request being processed
+     */
+    private ActorRef swapRequester;
+    private Cancellable warmupTimer;
+
+    private final ROIBundle initialBundle;
+    private final String initialLabel;
+    private final String initialDigest;
+    /**
+     * Scale space and sliding window parameters, or null if unknown
+     */
+    private final ScanGeometry geometry;
+
+    /**
+     * Number of windows to remember the verdicts of, 0 to disable window caching
+     */
+    private final int windowCacheSize;
+    /**
+     * True to keep the cached windows in single precision
+     */
+    private final boolean singlePrecision;
+    /**
+     * Verdicts of the current bundle on recent windows, null if window caching is disabled
+     */
+    private StripedWindowCache windowCache;
+
+    /**
+     * Creates the stage.
+     * @param workers number of ROI finder workers
+     * @param bundle initial ROIBundle
+     * @param label description of the initial bundle e.g. its filename, or null
+     * @param digest digest of the initial bundle's file, or null if unknown
+     * @param geometry scale space and sliding window parameters, or null if unknown
+     * @param windowWidth width of the windows the stage will receive
+     * @param windowHeight height of the windows the stage will receive
+     * @param warmupWindows number of synthetic windows used to warm up a new bundle
+     * @param warmupTimeout maximum time (ms) to spend warming up a new bundle
+     * @param windowCacheSize number of windows to remember the verdicts of, 0 to disable window caching
+     * @param singlePrecision true to keep the cached windows in single precision
+     * @param stripes number of WindowGates, of ResultTaggers per pool and of window cache stripes
+     * @param model id of the model the stage runs, added to each ROI's metadata, or null if GristMill runs a single
+     *              model
+     */
+    public ROIFinderStage(int workers, ROIBundle bundle, String label, String digest, ScanGeometry geometry,
+                          int windowWidth, int windowHeight, int warmupWindows, long warmupTimeout,
+                          int windowCacheSize, boolean singlePrecision, int stripes, String model) {
+        this.metrics = StageMetrics.forStage(getSelf().path().name());
+        this.model = model;
+        this.workers = workers;
+        this.initialBundle = bundle;
+        this.initialLabel = label;
+        this.initialDigest = digest;
+        this.geometry = geometry;
+        this.windowWidth = windowWidth;
+        this.windowHeight = windowHeight;
+        this.warmupWindows = warmupWindows;
+        this.warmupTimeout = warmupTimeout;
+        this.windowCacheSize = windowCacheSize;
+        this.singlePrecision = singlePrecision;
+        this.stripes = Math.max(1, stripes);
+    }
+
+    @Override
+    public void preStart() {
+        if (windowCacheSize > 0) {
+            // Created before the first pool, whose taggers share it, and given its version once it has one
+            windowCache = new StripedWindowCache(windowCacheSize, stripes, singlePrecision, null);
+        }
+        current = startPool(initialBundle, initialLabel, initialDigest);
+        if (windowCache != null) {
+            windowCache.reset(versionOf(current));
+        }
+        gates = getContext().actorOf(new RoundRobinPool(stripes).props(Props.create(WindowGate.class,
+                new WindowGate.Route(current, versionOf(current)), model, windowCache, metrics, next)), WINDOWS);
+        log.info("ROI finder stage using bundle " + versionOf(current));
+    }
+
+    @Override
+    public void postStop() {
+        if (warmupTimer != null) {
+            warmupTimer.cancel();
+        }
+    }
+
+    @Override
+    public void onReceive(Object message) throws Throwable {
+        if (message instanceof ROIMessage) {
+            // Results of our own warm-ups, passed on by the warming pool's taggers
+            String version = ImmutableMessage.getMetadata(((ROIMessage) message).getMetadata())
+                    .get(MillController.WARMUPKEY);
+            if (warming != null && versionOf(warming).equals(version)) {
+                warmedUp();
+            }
+        } else if (message instanceof DatasetMessage) {
+            gates.forward(message, getContext());
+        } else if (WINDOWS.equals(message)) {
+            getSender().tell(gates, getSelf());
+        } else if (message instanceof ActorRef) {
+            next = (ActorRef) message;
+            gates.tell(new Broadcast(next), getSelf());
+            for (ActorRef tagger : taggers.values()) {
+                tagger.tell(new Broadcast(next), getSelf());
+            }
+        } else if (message instanceof SignatureQuery) {
+            getSender().tell(signature(), getSelf());
+        } else if (message instanceof SwapBundleMessage) {
+            swap((SwapBundleMessage) message);
+        } else if (message instanceof LoadedBundle) {
+            warmUp((LoadedBundle) message);
+        } else if (message instanceof Status.Failure) {
+            Throwable cause = ((Status.Failure) message).cause();
+            log.error("Unable to load new ROIBundle: ", cause);
+            swapFinished(false, String.valueOf(cause));
+        } else if (WARMUP_TIMEOUT.equals(message)) {
+            if (warming != null) {
+                log.warn("Warm-up of bundle " + versionOf(warming) + " timed out with " + warmupRemaining
+                        + " windows outstanding, switching anyway");
+                switchTo(warming);
+            }
+        } else if (message instanceof AdjustPoolSize) {
+            workers = Math.max(1, workers + ((AdjustPoolSize) message).change());
+            getContext().actorSelection(current.path().toStringWithoutAddress() + "/*").tell(message, getSelf());
+        } else if (message instanceof ActorIdentity) {
+            ActorIdentity identity = (ActorIdentity) message;
+            ActorRef router = identity.getRef();
+            ActorRef pool = getContext().getChild(String.valueOf(identity.correlationId()));
+            if (router != null && pool != null) {
+                retiring.put(router, pool);
+                getContext().watch(router);
+            } else if (pool != null) {
+                getContext().stop(pool);
+                taggers.remove(pool.path().name()).tell(new Broadcast(PoisonPill.getInstance()), getSelf());
+            }
+        } else if (message instanceof Terminated) {
+            ActorRef pool = retiring.remove(((Terminated) message).getActor());
+            if (pool != null) {
+                log.info("Bundle " + versionOf(pool) + " drained, stopping its pool");
+                versions.remove(pool.path().name());
+                digests.remove(pool.path().name());
+                getContext().stop(pool);
+                // Queued behind the pool's last results
+                taggers.remove(pool.path().name()).tell(new Broadcast(PoisonPill.getInstance()), getSelf());
+            }
+        } else if (message instanceof ShutdownMessage) {
+            for (ActorRef child : getContext().getChildren()) {
+                child.tell(message, getSelf());
+            }
+            getContext().stop(getSelf());
+        } else {
+            unhandled(message);
+        }
+    }
+
+    /**
+     * Starts loading a new bundle in the background.
+     * @param request swap request
+     */
+    private void swap(SwapBundleMessage request) {
+        if (swapRequester != null || warming != null) {
+            getSender().tell(new BundleSwappedMessage(versionOf(current), false, "A swap is already in progress"),
+                    getSelf());
+            return;
+        }
+        File bundleFile = new File(request.getPath());
+        if (!bundleFile.canRead()) {
+            getSender().tell(new BundleSwappedMessage(versionOf(current), false,
+                    "Unable to read ROIBundle file " + bundleFile), getSelf());
+            return;
+        }
+        log.info("Loading ROIBundle " + bundleFile + " in the background");
+        swapRequester = getSender();
+        ExecutionContext ec = getContext().system().dispatcher();
+        Future<LoadedBundle> loaded = Futures.future(() -> {
+            ROIBundle bundle = new ROIBundle();
+            bundle.load(bundleFile);
+            return new LoadedBundle(bundle, bundleFile.getName(), FileDigest.of(bundleFile));
+        }, ec);
+        Patterns.pipe(loaded, ec).to(getSelf());
+    }
+
+    /**
+     * Starts a pool for a newly-loaded bundle and sends it synthetic windows.
+     * @param loaded new bundle
+     */
+    private void warmUp(LoadedBundle loaded) {
+        warming = startPool(loaded.bundle, loaded.label, loaded.digest);
+        warmupRemaining = warmupWindows;
+        log.info("Warming up bundle " + versionOf(warming) + " with " + warmupWindows + " windows");
+        if (warmupRemaining <= 0) {
+            switchTo(warming);
+            return;
+        }
+        String metadata = ImmutableMessage.genMetadata(null, MillController.WARMUPKEY, versionOf(warming));
+        for (int i = 0; i < warmupWindows; i++) {
+            Dataset window = SyntheticData.scan(windowWidth, windowHeight, i % 2, generation * warmupWindows + i);
+            warming.tell(new DatasetMessage(window, metadata), getSelf());
+        }
+        warmupTimer = getContext().system().scheduler().scheduleOnce(
+                Duration.create(warmupTimeout, TimeUnit.MILLISECONDS),
+                getSelf(),
+                WARMUP_TIMEOUT,
+                getContext().dispatcher(),
+                getSelf());
+    }
+
+    /**
+     * Records a completed warm-up window, switching to the new pool once they've all completed.
+     */
+    private void warmedUp() {
+        warmupRemaining--;
+        if (warmupRemaining <= 0) {
+            switchTo(warming);
+        }
+    }
+
+    /**
+     * Sends all new windows to a pool and retires the previous pool.
+     * @param pool new pool
+     */
+    private void switchTo(ActorRef pool) {
+        ActorRef previous = current;
+        current = pool;
+        warming = null;
+        if (windowCache != null) {
+            // Verdicts of the old bundle no longer apply
+            windowCache.reset(versionOf(current));
+        }
+        gates.tell(new Broadcast(new WindowGate.Route(current, versionOf(current))), getSelf());
+        if (warmupTimer != null) {
+            warmupTimer.cancel();
+            warmupTimer = null;
+        }
+        log.info("Switched from bundle " + versionOf(previous) + " to " + versionOf(current));
+        retire(previous);
+        swapFinished(true, null);
+    }
+
+    /**
+     * Stops a pool once it has finished the windows it has already been given.
+     * @param pool pool to retire
+     */
+    private void retire(ActorRef pool) {
+        String routers = pool.path().toStringWithoutAddress() + "/*";
+        // The PoisonPill queues behind windows already in each worker's mailbox
+        getContext().actorSelection(routers).tell(new Broadcast(PoisonPill.getInstance()), getSelf());
+        getContext().actorSelection(routers).tell(new Identify(pool.path().name()), getSelf());
+    }
+
+    /**
+     * Replies to the sender of the swap request, if any.
+     * @param swapped true if the swap succeeded
+     * @param reason reason for failure
+     */
+    private void swapFinished(boolean swapped, String reason) {
+        if (swapRequester != null) {
+            swapRequester.tell(new BundleSwappedMessage(versionOf(current), swapped, reason), getSelf());
+            swapRequester = null;
+        }
+    }
+
+    /**
+     * Returns the signature of the current configuration.
+     * @return signature, unknown if the current bundle's digest or the scan parameters are unknown
+     */
+    private PipelineSignature signature() {
+        if (geometry == null) {
+            return new PipelineSignature(null);
+        }
+        String digest = digests.get(current.path().name());
+        String parameters = model == null ? geometry.toString() : geometry + "|" + model;
+        return new PipelineSignature(digest == null ? null : FileDigest.of(digest + "|" + parameters),
+                Collections.singletonList(geometry));
+    }
+
+    /**
+     * Starts a new Myriad ROIFinderPool as a child of this stage, with ResultTaggers to receive its results.
+     * @param bundle bundle the pool should run
+     * @param label description of the bundle e.g. its filename, or null
+     * @param digest digest of the bundle's file, or null
+     * @return new pool
+     */
+    private ActorRef startPool(ROIBundle bundle, String label, String digest) {
+        generation++;
+        String name = "v" + generation;
+        String version = (label == null || label.isEmpty()) ? name : name + ":" + label;
+        ActorRef pool = getContext().actorOf(Props.create(ROIFinderPool.class, workers, bundle), name);
+        versions.put(name, version);
+        if (digest != null) {
+            digests.put(name, digest);
+        }
+        ActorRef tagger = getContext().actorOf(new RoundRobinPool(stripes).props(Props.create(ResultTagger.class,
+                version, model, windowCache, metrics, getSelf(), next)), name + "-results");
+        taggers.put(name, tagger);
+        pool.tell(tagger, getSelf());
+        return pool;
+    }
+
+    /**
+     * Returns the bundle version a pool is running.
+     * @param pool one of our pools
+     * @return bundle version
+     */
+    private String versionOf(ActorRef pool) {
+        return versions.get(pool.path().name());
+    }
+
+    /**
+     * Result of loading a bundle in the background
+     */
+    private static final class LoadedBundle {
+        final ROIBundle bundle;
+        final String label;
+        final String digest;
+
+        LoadedBundle(ROIBundle bundle, String label, String digest) {
+            this.bundle = bundle;
+            this.label = label;
+            this.digest = digest;
+        }
+    }
+}
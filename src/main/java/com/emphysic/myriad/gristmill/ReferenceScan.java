@@ -0,0 +1,109 @@
+/*
+ * com.emphysic.myriad.gristmill.ReferenceScan
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill;
+
+import com.emphysic.myriad.core.data.io.Dataset;
+import com.emphysic.myriad.core.data.util.FileSniffer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ReferenceScan - a real scan with labelled indications, used in place of synthetic data to benchmark and tune
+ * GristMill against the kind of data it will actually see.  Only the centre of each indication is labelled; an
+ * indication counts as detected if it lies within an ROI, as for synthetic scans.
+ *
+ * Reference scans are listed in a manifest, one label per line: "path,x,y" with the indication's centre in the
+ * scan's coordinates, or just "path" for a scan without indications.  Lines for the same path add to its labels,
+ * relative paths are resolved against the manifest's folder and lines starting with # are ignored.
+ */
+public class ReferenceScan {
+    private final String name;
+    private final Dataset data;
+    private final List<SyntheticData.Indication> labels;
+
+    public ReferenceScan(String name, Dataset data, List<SyntheticData.Indication> labels) {
+        this.name = name;
+        this.data = data;
+        this.labels = Collections.unmodifiableList(new ArrayList<>(labels));
+    }
+
+    /**
+     * Reads the reference scans listed in a manifest.
+     * @param manifest manifest file
+     * @return reference scans in the order they are first listed
+     * @throws IOException if the manifest or one of its scans couldn't be read
+     */
+    public static List<ReferenceScan> load(File manifest) throws IOException {
+        Map<String, List<SyntheticData.Indication>> labels = new LinkedHashMap<>();
+        try (BufferedReader in = new BufferedReader(new FileReader(manifest))) {
+            String line;
+            int number = 0;
+            while ((line = in.readLine()) != null) {
+                number++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\\s*,\\s*");
+                if (fields.length != 1 && fields.length != 3) {
+                    throw new IOException(manifest + ":" + number + ": expected path or path,x,y");
+                }
+                List<SyntheticData.Indication> scanLabels = labels.computeIfAbsent(fields[0], k -> new ArrayList<>());
+                if (fields.length == 3) {
+                    try {
+                        scanLabels.add(new SyntheticData.Indication(
+                                Integer.parseInt(fields[1]), Integer.parseInt(fields[2]), 0, Double.NaN));
+                    } catch (NumberFormatException e) {
+                        throw new IOException(manifest + ":" + number + ": invalid coordinates", e);
+                    }
+                }
+            }
+        }
+        List<ReferenceScan> scans = new ArrayList<>(labels.size());
+        for (Map.Entry<String, List<SyntheticData.Indication>> entry : labels.entrySet()) {
+            File f = new File(entry.getKey());
+            if (!f.isAbsolute()) {
+                f = new File(manifest.getAbsoluteFile().getParentFile(), entry.getKey());
+            }
+            Dataset data = FileSniffer.read(f, true);
+            if (data == null) {
+                throw new IOException("Unable to read reference scan " + f);
+            }
+            scans.add(new ReferenceScan(entry.getKey(), data, entry.getValue()));
+        }
+        return scans;
+    }
+
+    public String getName() { return name; }
+
+    public Dataset getData() { return data; }
+
+    /**
+     * Returns the labelled indications; only their centres are known.
+     * @return indications
+     */
+    public List<SyntheticData.Indication> getLabels() { return labels; }
+}
@@ -0,0 +1,137 @@
+/*
+ * com.emphysic.myriad.gristmill.ResultTagger
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill;
+
+import akka.actor.ActorRef;
+import akka.actor.UntypedActor;
+import com.emphysic.myriad.gristmill.metrics.MeteredMailbox;
+import com.emphysic.myriad.gristmill.metrics.StageMetrics;
+import com.emphysic.myriad.gristmill.scheduling.Cancellations;
+import com.emphysic.myriad.gristmill.scheduling.Scheduling;
+import com.emphysic.myriad.network.messages.ImmutableMessage;
+import com.emphysic.myriad.network.messages.ROIMessage;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * ResultTagger - receives the ROI results of one of an ROI finder stage's pools.  Each result is tagged with the
+ * version of the pool's bundle (and the stage's model, if any) and passed on, and the pool's verdict on the window is
+ * added to the stage's window cache.  A stage runs several taggers behind a router for each pool, so results don't
+ * queue behind each other in a single Actor.
+ *
+ * Warm-up results are sent to the controller, or to the stage for the warm-up of the pool's own bundle.
+ */
+@Slf4j
+public class ResultTagger extends UntypedActor {
+    /**
+     * Bundle version of the pool whose results we receive
+     */
+    private final String version;
+    /**
+     * Id of the stage's model, or null if GristMill runs a single model
+     */
+    private final String model;
+    /**
+     * The stage's window cache, or null if window caching is disabled
+     */
+    private final StripedWindowCache windowCache;
+    private final StageMetrics metrics;
+    /**
+     * The stage, which counts its warm-up results
+     */
+    private final ActorRef stage;
+    /**
+     * Where ROI results are sent
+     */
+    private ActorRef next;
+
+    /**
+     * Creates a tagger.
+     * @param version bundle version of the pool whose results it receives
+     * @param model id of the stage's model, or null if GristMill runs a single model
+     * @param windowCache the stage's window cache, or null if window caching is disabled
+     * @param metrics the stage's metrics
+     * @param stage the stage
+     * @param next where ROI results are sent, or null until it is known
+     */
+    public ResultTagger(String version, String model, StripedWindowCache windowCache, StageMetrics metrics,
+                        ActorRef stage, ActorRef next) {
+        this.version = version;
+        this.model = model;
+        this.windowCache = windowCache;
+        this.metrics = metrics;
+        this.stage = stage;
+        this.next = next;
+    }
+
+    @Override
+    public void onReceive(Object message) throws Throwable {
+        if (message instanceof ROIMessage) {
+            ROIMessage result = (ROIMessage) message;
+            String metadata = result.getMetadata();
+            if (MillController.isWarmup(metadata)) {
+                if (version.equals(ImmutableMessage.getMetadata(metadata).get(MillController.WARMUPKEY))) {
+                    stage.tell(message, getSelf());
+                } else {
+                    getContext().actorSelection("/user/" + GristMill.CONTROLLER).tell(message, getSelf());
+                }
+                return;
+            }
+            if (windowCache != null && metadata != null) {
+                long evicted = windowCache.remember(metadata, result.getROI() != null, version);
+                if (evicted > 0) {
+                    metrics.add(ROIFinderStage.WINDOW_CACHE_EVICTIONS, evicted);
+                }
+            }
+            report(result, version, model, next, metrics, getSelf());
+        } else if (message instanceof ActorRef) {
+            next = (ActorRef) message;
+        } else {
+            unhandled(message);
+        }
+    }
+
+    /**
+     * Tags an ROI result with the bundle version that produced it and passes it on.
+     * @param message ROI result
+     * @param version bundle version
+     * @param model id of the stage's model, or null if GristMill runs a single model
+     * @param next where ROI results are sent, or null if not yet known
+     * @param metrics the stage's metrics
+     * @param sender sender of the tagged result
+     */
+    static void report(ROIMessage message, String version, String model, ActorRef next, StageMetrics metrics,
+                       ActorRef sender) {
+        if (next == null) {
+            log.warn("No destination configured for ROI results, dropping");
+            return;
+        }
+        if (Cancellations.isCancelledMetadata(message.getMetadata())) {
+            metrics.increment(MeteredMailbox.CANCELLED);
+            return;
+        }
+        String metadata = ImmutableMessage.genMetadata(message.getMetadata(), ROIFinderStage.BUNDLEKEY, version);
+        if (model != null) {
+            metadata = ImmutableMessage.genMetadata(metadata, ROIFinderStage.MODELKEY, model);
+        }
+        long deadline = Scheduling.deadlineOf(metadata);
+        if (deadline != Scheduling.NO_DEADLINE && deadline < System.currentTimeMillis()) {
+            metrics.increment(ROIFinderStage.LATE_RESULTS);
+        }
+        next.tell(new ROIMessage(message.getROI(), metadata), sender);
+    }
+}
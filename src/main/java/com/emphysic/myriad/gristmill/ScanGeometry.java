@@ -0,0 +1,165 @@
+/*
+ * com.emphysic.myriad.gristmill.ScanGeometry
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill;
+
+import com.emphysic.myriad.gristmill.demo.Tile;
+
+import java.io.Serializable;
+
+/**
+ * ScanGeometry - the scale space and sliding window parameters a dataset is scanned with.  Given the size of a dataset
+ * the geometry determines every window GristMill evaluates: each pyramid level is the previous one reduced by the
+ * scale factor (integer division, as Myriad's PyramidOperation) until it would fall below the cutoff size, and each
+ * level is scanned by windows placed every step points that lie wholly inside it.  Clients use it to know how many
+ * window results a file will produce, and how much neighbouring data a tile needs (see Tile).
+ */
+public class ScanGeometry implements Serializable {
+    private final int scaleFactor;
+    /**
+     * Pyramid cutoff size: levels smaller than this aren't produced
+     */
+    private final int windowSize;
+    private final int step;
+    private final int windowWidth;
+    private final int windowHeight;
+
+    /**
+     * Creates a geometry.
+     * @param scaleFactor pyramid scaling factor between levels (pyramid.scalefactor)
+     * @param windowSize pyramid cutoff size (pyramid.windowsize)
+     * @param step points between windows (slider.step)
+     * @param windowWidth width of each window
+     * @param windowHeight height of each window
+     */
+    public ScanGeometry(int scaleFactor, int windowSize, int step, int windowWidth, int windowHeight) {
+        this.scaleFactor = scaleFactor;
+        this.windowSize = windowSize;
+        this.step = step;
+        this.windowWidth = windowWidth;
+        this.windowHeight = windowHeight;
+    }
+
+    /**
+     * Counts the windows evaluated for a dataset.
+     * @param width width of the dataset as sent
+     * @param height height of the dataset as sent
+     * @param tile tile the dataset was cut from, or null
+     * @param mask scan mask of the dataset's submission, or null if it's scanned in full
+     * @return number of window results the dataset produces
+     */
+    public long windows(int width, int height, Tile tile, ScanMask mask) {
+        long windows = 0;
+        for (int pstep = 0; width > 0 && height > 0; pstep++) {
+            int columns = columns(width);
+            int rows = rows(height);
+            if (mask == null) {
+                windows += (long) columns * rows;
+            } else {
+                for (int row = 0; row < rows; row++) {
+                    for (int column = 0; column < columns; column++) {
+                        if (mask.covers(scaler(pstep), tile, column * step, row * step, windowWidth, windowHeight)) {
+                            windows++;
+                        }
+                    }
+                }
+            }
+            if (isLastLevel(width, height)) {
+                break;
+            }
+            width /= scaleFactor;
+            height /= scaleFactor;
+        }
+        return windows;
+    }
+
+    /**
+     * Returns the extent in the original data of a window of the coarsest pyramid level holding a window, for a
+     * dataset of the given size: the window size scaled as ROI coordinates are (see scaler).
+     * @param width width of the dataset
+     * @param height height of the dataset
+     * @return larger of the window's width and height in points of the original data
+     */
+    public int footprint(int width, int height) {
+        int coarsest = 0;
+        for (int pstep = 0; columns(width) > 0 && rows(height) > 0; pstep++) {
+            coarsest = pstep;
+            if (isLastLevel(width, height)) {
+                break;
+            }
+            width /= scaleFactor;
+            height /= scaleFactor;
+        }
+        return scaler(coarsest) * Math.max(windowWidth, windowHeight);
+    }
+
+    /**
+     * Returns the spacing, in points of the original data, of the window grid of the coarsest pyramid level whose
+     * spacing doesn't exceed a distance.  A level's windows start every step points of the level, i.e. every step x
+     * scale factor ^ level points of the original data, so the spacing is a multiple of every finer level's.
+     * @param distance largest spacing wanted
+     * @return spacing, at least the step
+     */
+    public int alignment(int distance) {
+        long spacing = step;
+        while (scaleFactor > 1 && spacing * scaleFactor <= distance) {
+            spacing *= scaleFactor;
+        }
+        return (int) spacing;
+    }
+
+    /**
+     * Returns the points of the original data per point of a pyramid level, as ROI coordinates are scaled (see
+     * ROIResultGenerator.Coords).
+     * @param pstep pyramid level, 0 for the original data
+     * @return scaler
+     */
+    public int scaler(int pstep) {
+        return Math.max(1, scaleFactor * pstep);
+    }
+
+    /**
+     * Determines whether a pyramid level is the last, i.e. reducing it would fall below the cutoff size.
+     * @param width width of the level
+     * @param height height of the level
+     * @return true if no further levels are produced
+     */
+    private boolean isLastLevel(int width, int height) {
+        int reducedWidth = width / scaleFactor;
+        int reducedHeight = height / scaleFactor;
+        return reducedWidth < windowSize || reducedHeight < windowSize
+                || (reducedWidth >= width && reducedHeight >= height);
+    }
+
+    private int columns(int width) {
+        return width < windowWidth ? 0 : (width - windowWidth) / step + 1;
+    }
+
+    private int rows(int height) {
+        return height < windowHeight ? 0 : (height - windowHeight) / step + 1;
+    }
+
+    /**
+     * Describes the geometry, e.g. as part of a pipeline signature.
+     * @return description
+     */
+    @Override
+    public String toString() {
+        return String.format("pyramid[scalefactor=%d,windowsize=%d] slider[step=%d,window=%dx%d]",
+                scaleFactor, windowSize, step, windowWidth, windowHeight);
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * com.emphysic.myriad.gristmill.ScanMask
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill;
+
+import com.emphysic.myriad.core.data.io.Dataset;
+import com.emphysic.myriad.gristmill.demo.Tile;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * ScanMask - the parts of a dataset worth scanning, e.g. everything but fixtures, edges and holes, or only the
+ * neighbourhood of an earlier finding.  A mask is either a list of rectangles or a bitmap, both in the original data's
+ * coordinates.  Bitmaps are reduced to a grid of cells, a cell being scanned if any of its points is; the grid's
+ * summed-area table answers whether a rectangle of any size touches a scanned cell in constant time, which is how the
+ * mask is projected onto the windows of every pyramid level.
+ *
+ * A window is scanned if its footprint in the original data (see ROIResultGenerator.Coords) touches the mask, so
+ * windows straddling the mask's edge are still evaluated whole.
+ */
+public class ScanMask implements Serializable {
+    private static final Pattern PYRAMID = Pattern.compile("pscale([0-9]+)pwsize([0-9]+)pstep([0-9]+)");
+    private static final Pattern WINDOW = Pattern.compile("xoff([0-9]+)yoff([0-9]+)w([0-9]+)h([0-9]+)");
+
+    /**
+     * Rectangles to scan, or null for a bitmap mask
+     */
+    private final List<Region> regions;
+    /**
+     * Size of a bitmap cell in points
+     */
+    private final int cellSize;
+    private final int columns;
+    private final int rows;
+    /**
+     * Scanned cells of a bitmap mask, row-major
+     */
+    private final long[] cells;
+    /**
+     * Summed-area table of the scanned cells, built on first use
+     */
+    private transient int[] table;
+
+    private ScanMask(List<Region> regions, int cellSize, int columns, int rows, long[] cells) {
+        this.regions = regions;
+        this.cellSize = cellSize;
+        this.columns = columns;
+        this.rows = rows;
+        this.cells = cells;
+    }
+
+    /**
+     * Creates a mask that scans only the given rectangles.
+     * @param regions rectangles in the original data's coordinates
+     * @return mask
+     */
+    public static ScanMask of(List<Region> regions) {
+        return new ScanMask(Collections.unmodifiableList(new ArrayList<>(regions)), 0, 0, 0, null);
+    }
+
+    /**
+     * Creates a mask from a bitmap the size of the original data: non-zero points are scanned.
+     * @param bitmap mask bitmap
+     * @param cellSize size of a cell of the reduced grid in points; larger cells make the mask smaller to send but
+     *                 coarser
+     * @return mask
+     */
+    public static ScanMask of(Dataset bitmap, int cellSize) {
+        if (cellSize < 1) {
+            throw new IllegalArgumentException("Cell size must be at least 1, got " + cellSize);
+        }
+        int columns = (bitmap.getWidth() + cellSize - 1) / cellSize;
+        int rows = (bitmap.getHeight() + cellSize - 1) / cellSize;
+        long[] cells = new long[(columns * rows + 63) / 64];
+        double[] data = bitmap.getData();
+        for (int y = 0; y < bitmap.getHeight(); y++) {
+            int row = (y / cellSize) * columns;
+            for (int x = 0; x < bitmap.getWidth(); x++) {
+                if (data[y * bitmap.getWidth() + x] != 0) {
+                    int cell = row + x / cellSize;
+                    cells[cell >> 6] |= 1L << cell;
+                }
+            }
+        }
+        return new ScanMask(null, cellSize, columns, rows, cells);
+    }
+
+    /**
+     * Determines whether a rectangle of the original data touches the mask.
+     * @param x x-coordinate of the rectangle's upper left corner
+     * @param y y-coordinate of the rectangle's upper left corner
+     * @param width width of the rectangle
+     * @param height height of the rectangle
+     * @return true if any of the rectangle should be scanned
+     */
+    public boolean intersects(int x, int y, int width, int height) {
+        if (width <= 0 || height <= 0) {
+            return false;
+        }
+        if (regions != null) {
+            for (Region region : regions) {
+                if (region.intersects(x, y, width, height)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        int c0 = Math.max(0, Math.floorDiv(x, cellSize));
+        int r0 = Math.max(0, Math.floorDiv(y, cellSize));
+        int c1 = (int) Math.min(columns, Math.floorDiv((long) x + width - 1, cellSize) + 1);
+        int r1 = (int) Math.min(rows, Math.floorDiv((long) y + height - 1, cellSize) + 1);
+        if (c0 >= c1 || r0 >= r1) {
+            return false;
+        }
+        int[] sat = table();
+        int stride = columns + 1;
+        return sat[r1 * stride + c1] - sat[r0 * stride + c1] - sat[r1 * stride + c0] + sat[r0 * stride + c0] > 0;
+    }
+
+    /**
+     * Determines whether a window should be scanned, from the pyramid level, window position and tile in its
+     * metadata.
+     * @param md window metadata
+     * @return true if the window touches the mask, or its position isn't known
+     */
+    public boolean covers(Map<String, String> md) {
+        Matcher window = md.get("window") == null ? null : WINDOW.matcher(md.get("window"));
+        if (window == null || !window.matches()) {
+            return true;
+        }
+        int scaler = 1;
+        Matcher pyramid = md.get("pyramid") == null ? null : PYRAMID.matcher(md.get("pyramid"));
+        if (pyramid != null && pyramid.matches()) {
+            scaler = Math.max(1, Integer.parseInt(pyramid.group(1)) * Integer.parseInt(pyramid.group(3)));
+        }
+        return covers(scaler, Tile.parse(md.get(Tile.TILEKEY)),
+                Integer.parseInt(window.group(1)), Integer.parseInt(window.group(2)),
+                Integer.parseInt(window.group(3)), Integer.parseInt(window.group(4)));
+    }
+
+    /**
+     * Determines whether a window should be scanned, from its position in its pyramid level.
+     * @param scaler points of the original data per point of the window's pyramid level
+     * @param tile tile the window was cut from, or null
+     * @param x x offset of the window in its level
+     * @param y y offset of the window in its level
+     * @param width width of the window
+     * @param height height of the window
+     * @return true if the window touches the mask
+     */
+    public boolean covers(int scaler, Tile tile, int x, int y, int width, int height) {
+        // Windows of a tile are relative to the tile's origin
+        return intersects((tile == null ? 0 : tile.getOriginX()) + scaler * x,
+                (tile == null ? 0 : tile.getOriginY()) + scaler * y, scaler * width, scaler * height);
+    }
+
+    /**
+     * Returns a digest of the mask, e.g. to tell cached results of masked and unmasked scans apart.
+     * @return digest
+     */
+    public String getDigest() {
+        StringBuilder sb = new StringBuilder();
+        if (regions != null) {
+            regions.forEach((region) -> sb.append(region).append(';'));
+        } else {
+            sb.append(cellSize).append(':').append(columns).append('x').append(rows).append(':');
+            for (long bits : cells) {
+                sb.append(Long.toHexString(bits)).append(',');
+            }
+        }
+        return FileDigest.of(sb.toString());
+    }
+
+    private synchronized int[] table() {
+        if (table == null) {
+            int stride = columns + 1;
+            int[] sat = new int[stride * (rows + 1)];
+            for (int r = 0; r < rows; r++) {
+                int rowSum = 0;
+                for (int c = 0; c < columns; c++) {
+                    int cell = r * columns + c;
+                    rowSum += (int) ((cells[cell >> 6] >>> cell) & 1L);
+                    sat[(r + 1) * stride + c + 1] = sat[r * stride + c + 1] + rowSum;
+                }
+            }
+            table = sat;
+        }
+        return table;
+    }
+
+    @Override
+    public String toString() {
+        return regions != null ? "ScanMask[" + regions.size() + " regions]"
+                : "ScanMask[" + columns + "x" + rows + " cells of " + cellSize + "]";
+    }
+
+    /**
+     * Region - a rectangle of the original data.
+     */
+    public static class Region implements Serializable {
+        private final int x;
+        private final int y;
+        private final int width;
+        private final int height;
+
+        public Region(int x, int y, int width, int height) {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+        }
+
+        boolean intersects(int ox, int oy, int owidth, int oheight) {
+            return ox < x + width && x < ox + owidth && oy < y + height && y < oy + oheight;
+        }
+
+        public int getX() { return x; }
+
+        public int getY() { return y; }
+
+        public int getWidth() { return width; }
+
+        public int getHeight() { return height; }
+
+        @Override
+        public String toString() {
+            return "(" + x + "," + y + " " + width + "x" + height + ")";
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * com.emphysic.myriad.gristmill.ScanMasks
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill;
+
+import com.emphysic.myriad.gristmill.scheduling.Scheduling;
+import com.emphysic.myriad.network.messages.ImmutableMessage;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ScanMasks - the scan masks of submissions of files submitted with one.  The ROI finder stage consults the registry
+ * and skips windows that lie outside their submission's mask.  Masks are keyed by submission id
+ * (Scheduling.SUBMISSIONKEY), so submitting the same file again without a mask scans it in full; messages submitted
+ * without one are matched by their source.  Masks are forgotten when unregistered or after a retention period.
+ */
+public final class ScanMasks {
+    /**
+     * Masks keyed by submission id or source
+     */
+    private static final Map<String, Entry> masks = new ConcurrentHashMap<>();
+    /**
+     * Time (ms) a mask is remembered
+     */
+    private static volatile long retention = 3600000;
+
+    private ScanMasks() {
+    }
+
+    /**
+     * Registers the mask of a submission, replacing any earlier mask.
+     * @param source submission id, or the source key of files submitted without one
+     * @param mask scan mask, or null to forget the submission's mask
+     */
+    public static void register(String source, ScanMask mask) {
+        long now = System.currentTimeMillis();
+        masks.values().removeIf((entry) -> now - entry.registered > retention);
+        if (mask == null) {
+            masks.remove(source);
+        } else {
+            masks.put(source, new Entry(mask, now));
+        }
+    }
+
+    /**
+     * Returns the mask of a message's submission.  Metadata is only parsed if a mask is registered.
+     * @param metadata message metadata, may be null
+     * @return mask or null if the submission is scanned in full
+     */
+    public static ScanMask of(String metadata) {
+        if (metadata == null || masks.isEmpty()) {
+            return null;
+        }
+        String source = Scheduling.submissionKeyOf(ImmutableMessage.getMetadata(metadata));
+        Entry entry = source == null ? null : masks.get(source);
+        return entry == null ? null : entry.mask;
+    }
+
+    /**
+     * Sets how long masks are remembered.
+     * @param millis retention in milliseconds
+     */
+    public static void setRetention(long millis) {
+        retention = millis;
+    }
+
+    private static class Entry {
+        final ScanMask mask;
+        final long registered;
+
+        Entry(ScanMask mask, long registered) {
+            this.mask = mask;
+            this.registered = registered;
+        }
+    }
+}
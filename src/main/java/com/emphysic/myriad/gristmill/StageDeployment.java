@@ -0,0 +1,96 @@
+/*
+ * com.emphysic.myriad.gristmill.StageDeployment
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigUtil;
+import com.typesafe.config.ConfigValueFactory;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * StageDeployment - derives the Akka deployment of the GristMill worker pools from the GristMill configuration, i.e.
+ * which mailbox and dispatcher the workers of each stage run on, and applies the configured run mode.
+ */
+@Slf4j
+public final class StageDeployment {
+    /**
+     * Configuration path of the mailbox used by every stage's workers
+     */
+    public static final String MAILBOX = "gristmill-mailbox";
+    /**
+     * Configuration path under which each stage's dispatcher is defined
+     */
+    public static final String DISPATCHERS = "gristmill-dispatchers";
+
+    private StageDeployment() {
+    }
+
+    /**
+     * Applies the run mode and the per-stage mailbox and dispatcher settings to a configuration.
+     * @param config original configuration
+     * @param stages stages of the pipeline
+     * @return configuration to start the Akka system with
+     */
+    public static Config configure(Config config, PipelineStage... stages) {
+        Config result = applyMode(config);
+        if (!result.hasPath(MAILBOX)) {
+            result = result.withFallback(ConfigFactory.parseString(
+                    MAILBOX + ".mailbox-type = \"com.emphysic.myriad.gristmill.metrics.MeteredMailbox\"\n"
+                            + MAILBOX + ".prioritize = on"));
+        }
+        for (PipelineStage stage : stages) {
+            String name = stage.getName();
+            String key = stage.getKey();
+            String deployment = ConfigUtil.joinPath("akka", "actor", "deployment", stage.getWorkerPath());
+            if (!result.hasPath(ConfigUtil.joinPath("akka", "actor", "deployment", stage.getWorkerPath(), "mailbox"))) {
+                result = result.withValue(deployment + ".mailbox", ConfigValueFactory.fromAnyRef(MAILBOX));
+            }
+            if (result.hasPath(key + ".dispatcher")) {
+                // Stages sharing a configuration key (e.g. the finder stages of several models) share a dispatcher
+                String dispatcherId = ConfigUtil.joinPath(DISPATCHERS, key);
+                if (!result.hasPath(dispatcherId)) {
+                    Config dispatcher = result.getConfig(key + ".dispatcher")
+                            .withFallback(ConfigFactory.parseString("type = Dispatcher"));
+                    result = result.withValue(dispatcherId, dispatcher.root());
+                }
+                result = result.withValue(deployment + ".dispatcher", ConfigValueFactory.fromAnyRef(dispatcherId));
+                log.info(name + " workers will run on dispatcher " + dispatcherId);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Applies the run mode to a configuration.  In production mode Akka's per-message remote logging is disabled
+     * regardless of the akka.remote settings.
+     * @param config original configuration
+     * @return configuration with the run mode applied
+     */
+    public static Config applyMode(Config config) {
+        if (config.hasPath("mode") && "production".equalsIgnoreCase(config.getString("mode"))) {
+            log.info("Running in production mode, disabling per-message remote logging");
+            return ConfigFactory.parseString(
+                    "akka.remote.log-received-messages = off\n"
+                            + "akka.remote.log-sent-messages = off\n"
+                            + "akka.actor.debug.receive = off")
+                    .withFallback(config);
+        }
+        return config;
+    }
+}
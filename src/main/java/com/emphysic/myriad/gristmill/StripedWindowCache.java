@@ -0,0 +1,153 @@
+/*
+ * com.emphysic.myriad.gristmill.StripedWindowCache
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill;
+
+import com.emphysic.myriad.core.data.io.Dataset;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * StripedWindowCache - WindowCache shared by the Actors of an ROI finder stage.  Windows are spread over several
+ * independently locked WindowCaches by their hash, so the stage's WindowGates and ResultTaggers rarely wait on each
+ * other.  Windows sent to the pool are remembered until their verdict arrives, in stripes of their own keyed by the
+ * windows' metadata (which is all a result carries).
+ *
+ * Verdicts belong to a bundle version: windows are looked up and verdicts recorded for a version, and only those of
+ * the current version (see reset) are kept, so results of a retiring pool never reach the cache of its successor.
+ */
+public class StripedWindowCache {
+    private final WindowCache[] stripes;
+    /**
+     * Windows sent to the pool awaiting their verdicts, keyed by metadata
+     */
+    private final Map<String, PendingWindow>[] pending;
+    /**
+     * Bundle version whose verdicts are kept
+     */
+    private volatile String version;
+
+    /**
+     * Creates a cache.
+     * @param capacity maximum number of windows to remember, shared evenly between the stripes
+     * @param stripes number of stripes
+     * @param singlePrecision true to keep windows in single precision (see FloatDataset)
+     * @param version bundle version whose verdicts are kept, or null to keep none until reset
+     */
+    @SuppressWarnings("unchecked")
+    public StripedWindowCache(int capacity, int stripes, boolean singlePrecision, String version) {
+        int count = Math.max(1, Math.min(stripes, capacity));
+        int share = Math.max(1, capacity / count);
+        this.stripes = new WindowCache[count];
+        this.pending = new Map[count];
+        for (int i = 0; i < count; i++) {
+            this.stripes[i] = new WindowCache(share, singlePrecision);
+            this.pending[i] = new LinkedHashMap<String, PendingWindow>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PendingWindow> eldest) {
+                    // Results that never arrive (e.g. cancelled windows) mustn't accumulate
+                    return size() > share;
+                }
+            };
+        }
+        this.version = version;
+    }
+
+    /**
+     * Looks up the verdict for a window, remembering the window until its verdict arrives if it hasn't been seen.
+     * @param window window
+     * @param metadata the window's metadata
+     * @param version bundle version the window is evaluated by
+     * @return cached entry or null if the window should be sent to the pool
+     */
+    public WindowCache.Entry lookup(Dataset window, String metadata, String version) {
+        long hash = WindowCache.hash(window);
+        WindowCache stripe = stripes[index(Long.hashCode(hash))];
+        WindowCache.Entry entry;
+        synchronized (stripe) {
+            entry = stripe.get(hash, window);
+        }
+        if (entry == null) {
+            Map<String, PendingWindow> waiting = pending[index(metadata.hashCode())];
+            synchronized (waiting) {
+                waiting.put(metadata, new PendingWindow(hash, window, version));
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Records the verdict on a window sent to the pool.  Verdicts of windows the cache wasn't asked about, or of
+     * another bundle version than the current one, are ignored.
+     * @param metadata the window's metadata
+     * @param roi true if the window contained an ROI
+     * @param version bundle version that evaluated the window
+     * @return number of windows forgotten to make room
+     */
+    public long remember(String metadata, boolean roi, String version) {
+        PendingWindow window;
+        Map<String, PendingWindow> waiting = pending[index(metadata.hashCode())];
+        synchronized (waiting) {
+            window = waiting.remove(metadata);
+        }
+        if (window == null || !window.version.equals(version) || !version.equals(this.version)) {
+            return 0;
+        }
+        WindowCache stripe = stripes[index(Long.hashCode(window.hash))];
+        synchronized (stripe) {
+            long evictions = stripe.getEvictions();
+            stripe.put(window.hash, window.window, roi);
+            return stripe.getEvictions() - evictions;
+        }
+    }
+
+    /**
+     * Forgets every window, e.g. when the model changes.
+     * @param version bundle version whose verdicts are kept from now on
+     */
+    public void reset(String version) {
+        this.version = version;
+        for (int i = 0; i < stripes.length; i++) {
+            synchronized (stripes[i]) {
+                stripes[i].clear();
+            }
+            synchronized (pending[i]) {
+                pending[i].clear();
+            }
+        }
+    }
+
+    private int index(int hash) {
+        return Math.floorMod(hash, stripes.length);
+    }
+
+    /**
+     * A window sent to the pool, awaiting its verdict
+     */
+    private static final class PendingWindow {
+        final long hash;
+        final Dataset window;
+        final String version;
+
+        PendingWindow(long hash, Dataset window, String version) {
+            this.hash = hash;
+            this.window = window;
+            this.version = version;
+        }
+    }
+}
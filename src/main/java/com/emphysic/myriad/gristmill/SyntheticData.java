@@ -0,0 +1,144 @@
+/*
+ * com.emphysic.myriad.gristmill.SyntheticData
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill;
+
+import com.emphysic.myriad.core.data.io.Dataset;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * SyntheticData - generates C-scan-like data for warming up and exercising the pipeline: a noisy background with
+ * a number of bright, roughly circular indications.
+ */
+public final class SyntheticData {
+
+    private SyntheticData() {
+    }
+
+    /**
+     * Generates a synthetic scan.
+     * @param width width of the scan in points
+     * @param height height of the scan in points
+     * @param indications number of indications to add
+     * @param seed random seed, the same seed always produces the same scan
+     * @return synthetic scan
+     */
+    public static Dataset scan(int width, int height, int indications, long seed) {
+        Random random = new Random(seed);
+        double[] data = new double[width * height];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = 2.0 + 0.25 * random.nextGaussian();
+        }
+        for (int n = 0; n < indications; n++) {
+            int radius = 2 + random.nextInt(Math.max(1, Math.min(width, height) / 16));
+            int cx = random.nextInt(width);
+            int cy = random.nextInt(height);
+            addIndication(data, width, height, cx, cy, radius, 4.0 + 2.0 * random.nextDouble());
+        }
+        return new Dataset(data, width, height);
+    }
+
+    /**
+     * Places indications at random in a scan.
+     * @param width width of the scan in points
+     * @param height height of the scan in points
+     * @param indications number of indications
+     * @param seed random seed, the same seed always produces the same indications
+     * @return indications
+     */
+    public static List<Indication> indications(int width, int height, int indications, long seed) {
+        Random random = new Random(seed);
+        List<Indication> result = new ArrayList<>(indications);
+        for (int n = 0; n < indications; n++) {
+            int radius = 2 + random.nextInt(Math.max(1, Math.min(width, height) / 16));
+            result.add(new Indication(random.nextInt(width), random.nextInt(height), radius,
+                    4.0 + 2.0 * random.nextDouble()));
+        }
+        return result;
+    }
+
+    /**
+     * Generates a synthetic scan with known indications, e.g. to measure detection against a ground truth.
+     * @param width width of the scan in points
+     * @param height height of the scan in points
+     * @param indications indications to add
+     * @param seed random seed for the background noise
+     * @return synthetic scan
+     */
+    public static Dataset scan(int width, int height, List<Indication> indications, long seed) {
+        Random random = new Random(seed);
+        double[] data = new double[width * height];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = 2.0 + 0.25 * random.nextGaussian();
+        }
+        for (Indication indication : indications) {
+            addIndication(data, width, height, indication.getX(), indication.getY(), indication.getRadius(),
+                    indication.getAmplitude());
+        }
+        return new Dataset(data, width, height);
+    }
+
+    /**
+     * Adds a Gaussian-profile indication to a scan.
+     * @param data scan data, row-major
+     * @param width width of the scan
+     * @param height height of the scan
+     * @param cx x coordinate of the indication's center
+     * @param cy y coordinate of the indication's center
+     * @param radius approximate radius of the indication
+     * @param amplitude peak amplitude added at the center
+     */
+    public static void addIndication(double[] data, int width, int height, int cx, int cy, int radius,
+                                     double amplitude) {
+        double sigma2 = 2.0 * (radius / 2.0) * (radius / 2.0);
+        for (int y = Math.max(0, cy - radius); y <= Math.min(height - 1, cy + radius); y++) {
+            for (int x = Math.max(0, cx - radius); x <= Math.min(width - 1, cx + radius); x++) {
+                int dx = x - cx;
+                int dy = y - cy;
+                data[y * width + x] += amplitude * Math.exp(-(dx * dx + dy * dy) / sigma2);
+            }
+        }
+    }
+
+    /**
+     * Indication - a synthetic defect: a Gaussian bump centered at (x, y).
+     */
+    public static final class Indication {
+        private final int x;
+        private final int y;
+        private final int radius;
+        private final double amplitude;
+
+        public Indication(int x, int y, int radius, double amplitude) {
+            this.x = x;
+            this.y = y;
+            this.radius = radius;
+            this.amplitude = amplitude;
+        }
+
+        public int getX() { return x; }
+
+        public int getY() { return y; }
+
+        public int getRadius() { return radius; }
+
+        public double getAmplitude() { return amplitude; }
+    }
+}
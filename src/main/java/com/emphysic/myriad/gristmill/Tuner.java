@@ -0,0 +1,293 @@
+/*
+ * com.emphysic.myriad.gristmill.Tuner
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Tuner - sweeps the pipeline settings that matter most for capacity (slider.step, pyramid.scalefactor and the number
+ * of workers of each stage) and runs the benchmark against each configuration, preferably with labelled reference
+ * scans (benchmark.reference) so that recall is measured on real data.  Each configuration gets a fresh GristMill,
+ * warmed up as usual, so the sweep takes roughly (warm-up + benchmark) times the number of configurations.
+ *
+ * Configurations are compared on throughput, latency (at the configured percentile) and recall; those that no other
+ * configuration beats on all three are Pareto-optimal.  The Pareto set is logged, every configuration is written to
+ * the JSON report, and the Pareto set is written as a gristmill.conf fragment: the configuration with the best recall
+ * (then throughput, then latency) is active and the others are commented out, so the fragment can be included at
+ * the end of gristmill.conf as it is.
+ *
+ * Usage: Tuner gristmill.conf [benchmark.conf]; the benchmark and tuning blocks are read from the second file if
+ * given, or from the GristMill configuration.  With roi.models, the slider settings apply only to models that don't
+ * set their own window geometry.
+ */
+@Slf4j
+public class Tuner {
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            log.error("Usage: Tuner gristmill.conf [benchmark.conf]");
+            System.exit(0);
+        }
+        File configFile = new File(args[0]);
+        if (!configFile.canRead()) {
+            log.error("Unable to read configuration file " + configFile + ", exiting.");
+            System.exit(1);
+        }
+        Config config = ConfigFactory.parseFile(configFile);
+        Config benchConfig = args.length > 1 ? ConfigFactory.parseFile(new File(args[1])) : config;
+        BenchmarkSettings settings = BenchmarkSettings.fromConfig(benchConfig);
+        TuningSettings tuning = TuningSettings.fromConfig(benchConfig, config);
+        // Each configuration gets a new Actor system, let the OS pick its port so they don't collide
+        config = ConfigFactory.parseString("akka.remote.netty.tcp.port = 0").withFallback(config);
+        if (settings.getMode() == BenchmarkSettings.MODE.LOOPBACK) {
+            config = ConfigFactory.parseString("akka.remote.netty.tcp.hostname = \"127.0.0.1\"").withFallback(config);
+        }
+        List<ReferenceScan> references;
+        try {
+            references = Benchmark.references(settings);
+        } catch (IOException e) {
+            log.error("Unable to read reference scans: " + e);
+            System.exit(1);
+            return;
+        }
+        if (references == null) {
+            log.warn("No reference scans configured (benchmark.reference), tuning against synthetic scans.");
+        }
+        log.info("Benchmark settings: " + settings.toJson());
+        log.info("Sweeping " + tuning.getConfigurations() + " configurations");
+        List<Trial> trials = new ArrayList<>();
+        for (int step : tuning.getSteps()) {
+            for (int scaleFactor : tuning.getScaleFactors()) {
+                for (int pyramidWorkers : tuning.getPyramidWorkers()) {
+                    for (int sliderWorkers : tuning.getSliderWorkers()) {
+                        for (int roiWorkers : tuning.getRoiWorkers()) {
+                            Trial trial = new Trial(step, scaleFactor, pyramidWorkers, sliderWorkers, roiWorkers);
+                            log.info("Configuration " + (trials.size() + 1) + " of " + tuning.getConfigurations()
+                                    + ": " + trial);
+                            trial.report = Benchmark.measure(trial.apply(config), settings, references);
+                            if (trial.report != null) {
+                                log.info(trial + ": " + trial.summary(tuning.getPercentile()));
+                            }
+                            trials.add(trial);
+                        }
+                    }
+                }
+            }
+        }
+        List<Trial> pareto = pareto(trials, tuning.getPercentile());
+        if (pareto.isEmpty()) {
+            log.error("No configuration completed any scans, nothing to recommend.");
+            System.exit(1);
+        }
+        pareto.sort((a, b) -> {
+            int c = Double.compare(recall(b.report), recall(a.report));
+            if (c == 0) {
+                c = Double.compare(b.report.getFilesPerSecond(), a.report.getFilesPerSecond());
+            }
+            return c != 0 ? c : Long.compare(a.report.getLatency(tuning.getPercentile()),
+                    b.report.getLatency(tuning.getPercentile()));
+        });
+        log.info(pareto.size() + " of " + trials.size() + " configurations are Pareto-optimal:");
+        for (Trial trial : pareto) {
+            log.info("  " + trial + ": " + trial.summary(tuning.getPercentile()));
+        }
+        int status = 0;
+        try {
+            writeFragment(tuning, pareto, trials.size());
+            log.info("Wrote recommended settings to " + tuning.getFragment());
+            if (!tuning.getReport().isEmpty()) {
+                writeReport(tuning, settings, trials, pareto);
+                log.info("Wrote tuning report to " + tuning.getReport());
+            }
+        } catch (IOException e) {
+            log.error("Unable to write tuning results: " + e);
+            status = 1;
+        }
+        System.exit(status);
+    }
+
+    /**
+     * Finds the configurations that no other configuration beats on throughput, latency and recall at once.
+     * @param trials benchmarked configurations
+     * @param percentile latency percentile to compare
+     * @return Pareto-optimal configurations, excluding any that completed no scans
+     */
+    static List<Trial> pareto(List<Trial> trials, double percentile) {
+        List<Trial> candidates = new ArrayList<>();
+        for (Trial trial : trials) {
+            if (trial.report != null && trial.report.getCompleted() > 0) {
+                candidates.add(trial);
+            }
+        }
+        List<Trial> front = new ArrayList<>();
+        for (Trial trial : candidates) {
+            boolean dominated = false;
+            for (Trial other : candidates) {
+                if (other != trial && dominates(other.report, trial.report, percentile)) {
+                    dominated = true;
+                    break;
+                }
+            }
+            if (!dominated) {
+                front.add(trial);
+            }
+        }
+        return front;
+    }
+
+    /**
+     * Determines whether one run is at least as good as another on every objective and better on at least one.
+     * @param a first run
+     * @param b second run
+     * @param percentile latency percentile to compare
+     * @return true if a dominates b
+     */
+    private static boolean dominates(BenchmarkReport a, BenchmarkReport b, double percentile) {
+        double throughputA = a.getFilesPerSecond();
+        double throughputB = b.getFilesPerSecond();
+        long latencyA = a.getLatency(percentile);
+        long latencyB = b.getLatency(percentile);
+        double recallA = recall(a);
+        double recallB = recall(b);
+        return throughputA >= throughputB && latencyA <= latencyB && recallA >= recallB
+                && (throughputA > throughputB || latencyA < latencyB || recallA > recallB);
+    }
+
+    /**
+     * Returns a run's recall, or 0 if nothing was labelled so that recall doesn't decide between runs.
+     * @param report benchmark report
+     * @return recall
+     */
+    private static double recall(BenchmarkReport report) {
+        return Double.isNaN(report.getRecall()) ? 0 : report.getRecall();
+    }
+
+    /**
+     * Writes the Pareto-optimal settings as a gristmill.conf fragment, the first active and the rest commented out.
+     * @param tuning tuning settings
+     * @param pareto Pareto-optimal configurations, best first
+     * @param swept number of configurations swept
+     * @throws IOException if the fragment couldn't be written
+     */
+    private static void writeFragment(TuningSettings tuning, List<Trial> pareto, int swept) throws IOException {
+        try (PrintWriter out = new PrintWriter(new FileWriter(tuning.getFragment()))) {
+            out.println("# Pipeline settings chosen by Tuner on " + new Date() + " from " + swept + " configurations.");
+            out.println("# Include at the end of gristmill.conf, e.g. include \"" + tuning.getFragment() + "\"");
+            out.println("# The other Pareto-optimal configurations follow, commented out.");
+            for (int i = 0; i < pareto.size(); i++) {
+                Trial trial = pareto.get(i);
+                String prefix = i == 0 ? "" : "# ";
+                out.println();
+                out.println("# " + trial.summary(tuning.getPercentile()));
+                out.println(prefix + "pyramid.scalefactor = " + trial.scaleFactor);
+                out.println(prefix + "pyramid.number = " + trial.pyramidWorkers);
+                out.println(prefix + "slider.step = " + trial.step);
+                out.println(prefix + "slider.number = " + trial.sliderWorkers);
+                out.println(prefix + "roi.number = " + trial.roiWorkers);
+            }
+        }
+    }
+
+    /**
+     * Writes every configuration and its benchmark report as a JSON array.
+     * @param tuning tuning settings
+     * @param settings benchmark settings
+     * @param trials benchmarked configurations
+     * @param pareto Pareto-optimal configurations
+     * @throws IOException if the report couldn't be written
+     */
+    private static void writeReport(TuningSettings tuning, BenchmarkSettings settings, List<Trial> trials,
+                                    List<Trial> pareto) throws IOException {
+        try (PrintWriter out = new PrintWriter(new FileWriter(tuning.getReport()))) {
+            out.println("{\"settings\":" + settings.toJson() + ",\"configurations\":[");
+            for (int i = 0; i < trials.size(); i++) {
+                Trial trial = trials.get(i);
+                out.println("{\"step\":" + trial.step + ",\"scalefactor\":" + trial.scaleFactor
+                        + ",\"pyramidWorkers\":" + trial.pyramidWorkers + ",\"sliderWorkers\":" + trial.sliderWorkers
+                        + ",\"roiWorkers\":" + trial.roiWorkers + ",\"pareto\":" + pareto.contains(trial)
+                        + ",\"report\":" + (trial.report == null ? "null" : trial.report.toJson()) + "}"
+                        + (i < trials.size() - 1 ? "," : ""));
+            }
+            out.println("]}");
+        }
+    }
+
+    /**
+     * Trial - one configuration of the sweep and its benchmark report.
+     */
+    static class Trial {
+        private final int step;
+        private final int scaleFactor;
+        private final int pyramidWorkers;
+        private final int sliderWorkers;
+        private final int roiWorkers;
+        /**
+         * Benchmark report, null if the configuration couldn't be benchmarked
+         */
+        private BenchmarkReport report;
+
+        Trial(int step, int scaleFactor, int pyramidWorkers, int sliderWorkers, int roiWorkers) {
+            this.step = step;
+            this.scaleFactor = scaleFactor;
+            this.pyramidWorkers = pyramidWorkers;
+            this.sliderWorkers = sliderWorkers;
+            this.roiWorkers = roiWorkers;
+        }
+
+        /**
+         * Applies the configuration's settings to a GristMill configuration.
+         * @param config GristMill configuration
+         * @return configuration with this trial's settings
+         */
+        Config apply(Config config) {
+            return ConfigFactory.parseString("pyramid.scalefactor = " + scaleFactor + "\npyramid.number = "
+                    + pyramidWorkers + "\nslider.step = " + step + "\nslider.number = " + sliderWorkers
+                    + "\nroi.number = " + roiWorkers).withFallback(config);
+        }
+
+        /**
+         * Summarises the configuration's benchmark results.
+         * @param percentile latency percentile to report
+         * @return summary
+         */
+        String summary(double percentile) {
+            return String.format(Locale.ROOT, "%.2f files/s, %.1f windows/s, p%s %d ms, recall %s (%d incomplete)",
+                    report.getFilesPerSecond(), report.getWindowsPerSecond(),
+                    String.format(Locale.ROOT, "%.4g", percentile * 100).replaceAll("\\.?0+$", ""),
+                    report.getLatency(percentile),
+                    Double.isNaN(report.getRecall()) ? "n/a" : String.format(Locale.ROOT, "%.3f", report.getRecall()),
+                    report.getIncomplete());
+        }
+
+        @Override
+        public String toString() {
+            return "step " + step + ", scalefactor " + scaleFactor + ", workers " + pyramidWorkers + "/"
+                    + sliderWorkers + "/" + roiWorkers;
+        }
+    }
+}
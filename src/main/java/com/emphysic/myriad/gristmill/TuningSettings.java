@@ -0,0 +1,131 @@
+/*
+ * com.emphysic.myriad.gristmill.TuningSettings
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill;
+
+import com.typesafe.config.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * TuningSettings - the values of each pipeline setting a tuning sweep tries, read from the tuning block of its
+ * configuration.  A setting missing from the block keeps its value from the GristMill configuration.
+ */
+public class TuningSettings {
+    /**
+     * Values of slider.step
+     */
+    private final List<Integer> steps;
+    /**
+     * Values of pyramid.scalefactor
+     */
+    private final List<Integer> scaleFactors;
+    /**
+     * Values of pyramid.number
+     */
+    private final List<Integer> pyramidWorkers;
+    /**
+     * Values of slider.number
+     */
+    private final List<Integer> sliderWorkers;
+    /**
+     * Values of roi.number
+     */
+    private final List<Integer> roiWorkers;
+    /**
+     * Latency percentile the configurations are compared on, e.g. 0.99
+     */
+    private final double percentile;
+    /**
+     * Path of the gristmill.conf fragment with the chosen settings
+     */
+    private final String fragment;
+    /**
+     * Path of the report of every configuration, empty to only log it
+     */
+    private final String report;
+
+    public TuningSettings(List<Integer> steps, List<Integer> scaleFactors, List<Integer> pyramidWorkers,
+                          List<Integer> sliderWorkers, List<Integer> roiWorkers, double percentile, String fragment,
+                          String report) {
+        this.steps = Collections.unmodifiableList(new ArrayList<>(steps));
+        this.scaleFactors = Collections.unmodifiableList(new ArrayList<>(scaleFactors));
+        this.pyramidWorkers = Collections.unmodifiableList(new ArrayList<>(pyramidWorkers));
+        this.sliderWorkers = Collections.unmodifiableList(new ArrayList<>(sliderWorkers));
+        this.roiWorkers = Collections.unmodifiableList(new ArrayList<>(roiWorkers));
+        this.percentile = percentile;
+        this.fragment = fragment;
+        this.report = report;
+    }
+
+    /**
+     * Reads the tuning settings from the tuning block of a configuration.
+     * @param config configuration containing the tuning block
+     * @param mill GristMill configuration, supplies the value of any setting that isn't swept
+     * @return tuning settings
+     */
+    public static TuningSettings fromConfig(Config config, Config mill) {
+        Config tuning = config.hasPath("tuning") ? config.getConfig("tuning") : config.root().toConfig();
+        return new TuningSettings(
+                values(tuning, "step", mill, "slider.step"),
+                values(tuning, "scalefactor", mill, "pyramid.scalefactor"),
+                values(tuning, "pyramid-workers", mill, "pyramid.number"),
+                values(tuning, "slider-workers", mill, "slider.number"),
+                values(tuning, "roi-workers", mill, "roi.number"),
+                tuning.hasPath("latency-percentile") ? tuning.getDouble("latency-percentile") : 0.99,
+                tuning.hasPath("fragment") ? tuning.getString("fragment") : "tuned.conf",
+                tuning.hasPath("report") ? tuning.getString("report") : "tuning.json"
+        );
+    }
+
+    private static List<Integer> values(Config tuning, String key, Config mill, String millKey) {
+        if (tuning.hasPath(key)) {
+            List<Integer> values = tuning.getIntList(key);
+            if (values.isEmpty()) {
+                throw new IllegalArgumentException("tuning." + key + " must list at least one value");
+            }
+            return values;
+        }
+        return Collections.singletonList(mill.getInt(millKey));
+    }
+
+    /**
+     * Returns the number of configurations in the sweep.
+     * @return product of the number of values of each setting
+     */
+    public int getConfigurations() {
+        return steps.size() * scaleFactors.size() * pyramidWorkers.size() * sliderWorkers.size() * roiWorkers.size();
+    }
+
+    public List<Integer> getSteps() { return steps; }
+
+    public List<Integer> getScaleFactors() { return scaleFactors; }
+
+    public List<Integer> getPyramidWorkers() { return pyramidWorkers; }
+
+    public List<Integer> getSliderWorkers() { return sliderWorkers; }
+
+    public List<Integer> getRoiWorkers() { return roiWorkers; }
+
+    public double getPercentile() { return percentile; }
+
+    public String getFragment() { return fragment; }
+
+    public String getReport() { return report; }
+}
@@ -0,0 +1,91 @@
+/*
+ * com.emphysic.myriad.gristmill.Volumes
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill;
+
+import com.emphysic.myriad.gristmill.demo.Tile;
+import com.emphysic.myriad.gristmill.scheduling.Scheduling;
+
+import java.util.Map;
+
+/**
+ * Volumes - metadata of the slices of a volume, i.e. a stack of C-scans of the same part taken at different depths
+ * and submitted as a single job.  Each slice carries its position in the volume and the number of slices; the slices
+ * of a submission (and of a tile, if the slices are tiled) belong to the same volume.  The fork/join engine streams a
+ * volume's slices through one job and reports each ROI found in the same window of consecutive slices once, with the
+ * number of slices it spans (see ForkJoinEngine).
+ */
+public final class Volumes {
+    /**
+     * Metadata key for a slice's position in its volume
+     */
+    public static final String SLICEKEY = "slice";
+    /**
+     * Metadata key for the number of slices in a volume
+     */
+    public static final String SLICESKEY = "slices";
+    /**
+     * Metadata key for the number of consecutive slices, starting with the ROI's own, an ROI was found in
+     */
+    public static final String DEPTHKEY = "depth";
+
+    private Volumes() {
+    }
+
+    /**
+     * Returns the key of the volume a message belongs to.
+     * @param md message metadata
+     * @return submission (or source) and tile of the message, or null if the message isn't a slice of a volume
+     */
+    public static String keyOf(Map<String, String> md) {
+        if (countOf(md) < 1 || sliceOf(md) < 0) {
+            return null;
+        }
+        String tile = md.get(Tile.TILEKEY);
+        String submission = Scheduling.submissionKeyOf(md);
+        return tile == null ? submission : submission + "|" + tile;
+    }
+
+    /**
+     * Returns a slice's position in its volume.
+     * @param md message metadata
+     * @return position, or -1 if the message isn't a slice of a volume
+     */
+    public static int sliceOf(Map<String, String> md) {
+        return parse(md.get(SLICEKEY));
+    }
+
+    /**
+     * Returns the number of slices in a slice's volume.
+     * @param md message metadata
+     * @return number of slices, or -1 if the message isn't a slice of a volume
+     */
+    public static int countOf(Map<String, String> md) {
+        return parse(md.get(SLICESKEY));
+    }
+
+    private static int parse(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
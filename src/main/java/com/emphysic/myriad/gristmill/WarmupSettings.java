@@ -0,0 +1,104 @@
+/*
+ * com.emphysic.myriad.gristmill.WarmupSettings
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill;
+
+import com.typesafe.config.Config;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * WarmupSettings - configuration of the startup warm-up phase.
+ */
+public class WarmupSettings implements Serializable {
+    /**
+     * If false the pipeline is ready as soon as it has been constructed
+     */
+    private final boolean enabled;
+    /**
+     * Width of each synthetic scan
+     */
+    private final int width;
+    /**
+     * Height of each synthetic scan
+     */
+    private final int height;
+    /**
+     * Number of synthetic scans per round
+     */
+    private final int scans;
+    /**
+     * Throughput is considered stable once it changes by less than this fraction between rounds
+     */
+    private final double tolerance;
+    /**
+     * Maximum time (ms) to spend warming up
+     */
+    private final long budget;
+    /**
+     * A round ends once no results have arrived for this long (ms)
+     */
+    private final long quiet;
+
+    public WarmupSettings(boolean enabled, int width, int height, int scans, double tolerance, long budget,
+                          long quiet) {
+        this.enabled = enabled;
+        this.width = width;
+        this.height = height;
+        this.scans = scans;
+        this.tolerance = tolerance;
+        this.budget = budget;
+        this.quiet = quiet;
+    }
+
+    /**
+     * Reads the warm-up settings from the warmup block of the GristMill configuration.  Warm-up is disabled if the
+     * block is absent.
+     * @param config GristMill configuration
+     * @return warm-up settings
+     */
+    public static WarmupSettings fromConfig(Config config) {
+        if (!config.hasPath("warmup")) {
+            return new WarmupSettings(false, 0, 0, 0, 0, 0, 0);
+        }
+        Config warmup = config.getConfig("warmup");
+        return new WarmupSettings(
+                !warmup.hasPath("enabled") || warmup.getBoolean("enabled"),
+                warmup.hasPath("width") ? warmup.getInt("width") : 256,
+                warmup.hasPath("height") ? warmup.getInt("height") : 256,
+                warmup.hasPath("scans") ? warmup.getInt("scans") : 4,
+                warmup.hasPath("tolerance") ? warmup.getDouble("tolerance") : 0.1,
+                warmup.hasPath("budget") ? warmup.getDuration("budget", TimeUnit.MILLISECONDS) : 60000,
+                warmup.hasPath("quiet") ? warmup.getDuration("quiet", TimeUnit.MILLISECONDS) : 500
+        );
+    }
+
+    public boolean isEnabled() { return enabled; }
+
+    public int getWidth() { return width; }
+
+    public int getHeight() { return height; }
+
+    public int getScans() { return scans; }
+
+    public double getTolerance() { return tolerance; }
+
+    public long getBudget() { return budget; }
+
+    public long getQuiet() { return quiet; }
+}
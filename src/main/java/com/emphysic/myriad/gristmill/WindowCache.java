@@ -0,0 +1,197 @@
+/*
+ * com.emphysic.myriad.gristmill.WindowCache
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill;
+
+import com.emphysic.myriad.core.data.io.Dataset;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * WindowCache - bounded least recently used cache of the ROI finder's verdict on windows, keyed by the windows'
+ * contents.  Windows are identified by a 64-bit hash of their samples (in the style of xxHash64) and confirmed by
+ * comparing the samples themselves, so a hash collision can never return another window's verdict.  A cache in single
+ * precision keeps a float copy of each window instead of the window itself, halving its size; windows are then
+ * confirmed to single precision.
+ *
+ * Only the verdict is kept, not the ROI the finder returned: ROI are passed on and relabelled downstream, so each hit
+ * must be answered with an ROI of its own.
+ *
+ * Not thread-safe; each cache is owned by a single Actor.
+ */
+public class WindowCache {
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+    private final LinkedHashMap<Long, Entry> entries;
+    /**
+     * True to keep windows in single precision
+     */
+    private final boolean singlePrecision;
+    private long evictions;
+
+    /**
+     * Creates a cache.
+     * @param capacity maximum number of windows to remember
+     */
+    public WindowCache(int capacity) {
+        this(capacity, false);
+    }
+
+    /**
+     * Creates a cache.
+     * @param capacity maximum number of windows to remember
+     * @param singlePrecision true to keep windows in single precision (see FloatDataset)
+     */
+    public WindowCache(final int capacity, boolean singlePrecision) {
+        this.singlePrecision = singlePrecision;
+        entries = new LinkedHashMap<Long, Entry>(Math.min(capacity, 1 << 16), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+                if (size() > capacity) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Computes the hash of a window.
+     * @param window window
+     * @return 64-bit hash of the window's dimensions and samples
+     */
+    public static long hash(Dataset window) {
+        double[] data = window.getData();
+        long h = PRIME5 + data.length * 8L;
+        h ^= round(0, ((long) window.getWidth() << 32) | (window.getHeight() & 0xffffffffL));
+        h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+        for (double d : data) {
+            h ^= round(0, Double.doubleToRawLongBits(d));
+            h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+        }
+        h ^= h >>> 33;
+        h *= PRIME2;
+        h ^= h >>> 29;
+        h *= PRIME3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    private static long round(long acc, long input) {
+        acc += input * PRIME2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * PRIME1;
+    }
+
+    /**
+     * Looks up the verdict for a window.
+     * @param hash hash of the window
+     * @param window window
+     * @return cached entry or null if the window hasn't been seen
+     */
+    public Entry get(long hash, Dataset window) {
+        Entry entry = entries.get(hash);
+        if (entry == null || entry.width != window.getWidth() || !entry.matches(window.getData())) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Records the verdict for a window.
+     * @param hash hash of the window
+     * @param window window
+     * @param roi true if the window contained an ROI
+     */
+    public void put(long hash, Dataset window, boolean roi) {
+        entries.put(hash, singlePrecision
+                ? new Entry(window.getWidth(), null, FloatDataset.narrow(window.getData()), roi)
+                : new Entry(window.getWidth(), window.getData(), null, roi));
+    }
+
+    /**
+     * Forgets every window, e.g. when the model changes.
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the number of windows forgotten to stay within capacity.
+     * @return number of evictions
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Entry - a window and the ROI finder's verdict on it.
+     */
+    public static final class Entry {
+        private final int width;
+        /**
+         * The window's samples, or null if they are kept in single precision
+         */
+        private final double[] data;
+        private final float[] singles;
+        private final boolean roi;
+
+        Entry(int width, double[] data, float[] singles, boolean roi) {
+            this.width = width;
+            this.data = data;
+            this.singles = singles;
+            this.roi = roi;
+        }
+
+        /**
+         * Determines whether a window's samples are those of the entry, to the precision the entry was kept in.
+         */
+        boolean matches(double[] window) {
+            if (data != null) {
+                return Arrays.equals(data, window);
+            }
+            if (singles.length != window.length) {
+                return false;
+            }
+            for (int i = 0; i < window.length; i++) {
+                if (singles[i] != (float) window[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Returns the verdict on the window.
+         * @return true if the window contained an ROI
+         */
+        public boolean isROI() {
+            return roi;
+        }
+    }
+}
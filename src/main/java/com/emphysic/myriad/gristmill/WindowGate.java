@@ -0,0 +1,156 @@
+/*
+ * com.emphysic.myriad.gristmill.WindowGate
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill;
+
+import akka.actor.ActorRef;
+import akka.actor.UntypedActor;
+import com.emphysic.myriad.core.data.io.Dataset;
+import com.emphysic.myriad.core.data.roi.ROI;
+import com.emphysic.myriad.gristmill.metrics.MeteredMailbox;
+import com.emphysic.myriad.gristmill.metrics.StageMetrics;
+import com.emphysic.myriad.gristmill.scheduling.Cancellations;
+import com.emphysic.myriad.network.messages.DatasetMessage;
+import com.emphysic.myriad.network.messages.ImmutableMessage;
+import com.emphysic.myriad.network.messages.ROIMessage;
+
+import java.io.Serializable;
+
+/**
+ * WindowGate - receives the windows of an ROI finder stage and sends them straight to the pool running the current
+ * bundle.  Windows from a cancelled source and windows outside their source's scan mask are dropped, and windows
+ * identical to one already evaluated are answered from the stage's window cache.  A stage runs several gates behind
+ * a router, so these checks are spread over several Actors rather than made by the stage itself.
+ *
+ * The stage tells its gates which pool to use with a Route when it switches bundles.
+ */
+public class WindowGate extends UntypedActor {
+    /**
+     * Id of the stage's model, or null if GristMill runs a single model
+     */
+    private final String model;
+    /**
+     * The stage's window cache, or null if window caching is disabled
+     */
+    private final StripedWindowCache windowCache;
+    private final StageMetrics metrics;
+    /**
+     * Pool running the current bundle
+     */
+    private ActorRef current;
+    /**
+     * Version of the current bundle
+     */
+    private String version;
+    /**
+     * Where ROI results answered from the window cache are sent
+     */
+    private ActorRef next;
+
+    /**
+     * Creates a gate.
+     * @param route pool running the current bundle
+     * @param model id of the stage's model, or null if GristMill runs a single model
+     * @param windowCache the stage's window cache, or null if window caching is disabled
+     * @param metrics the stage's metrics
+     * @param next where ROI results are sent, or null until it is known
+     */
+    public WindowGate(Route route, String model, StripedWindowCache windowCache, StageMetrics metrics,
+                      ActorRef next) {
+        this.current = route.pool;
+        this.version = route.version;
+        this.model = model;
+        this.windowCache = windowCache;
+        this.metrics = metrics;
+        this.next = next;
+    }
+
+    @Override
+    public void onReceive(Object message) throws Throwable {
+        if (message instanceof DatasetMessage) {
+            DatasetMessage window = (DatasetMessage) message;
+            if (Cancellations.isCancelledMetadata(window.getMetadata())) {
+                metrics.increment(MeteredMailbox.CANCELLED);
+            } else if (!inMask(window)) {
+                metrics.increment(ROIFinderStage.MASK_SKIPPED);
+            } else if (windowCache == null || !fromCache(window)) {
+                current.tell(message, getSelf());
+            }
+        } else if (message instanceof Route) {
+            current = ((Route) message).pool;
+            version = ((Route) message).version;
+        } else if (message instanceof ActorRef) {
+            next = (ActorRef) message;
+        } else {
+            unhandled(message);
+        }
+    }
+
+    /**
+     * Determines whether a window lies in its source's scan mask, counting the masked sources' windows that are
+     * scanned.
+     * @param window window to evaluate
+     * @return true if the window should be evaluated
+     */
+    private boolean inMask(DatasetMessage window) {
+        ScanMask mask = ScanMasks.of(window.getMetadata());
+        if (mask == null) {
+            return true;
+        }
+        if (!mask.covers(ImmutableMessage.getMetadata(window.getMetadata()))) {
+            return false;
+        }
+        metrics.increment(ROIFinderStage.MASK_SCANNED);
+        return true;
+    }
+
+    /**
+     * Answers a window from the window cache if an identical window has already been evaluated.
+     * @param window window to evaluate
+     * @return true if the window was answered from the cache, false if it should be sent to the pool
+     */
+    private boolean fromCache(DatasetMessage window) {
+        String metadata = window.getMetadata();
+        if (metadata == null || MillController.isWarmup(metadata)) {
+            return false;
+        }
+        Dataset data = window.getDataset();
+        WindowCache.Entry entry = windowCache.lookup(data, metadata, version);
+        if (entry != null) {
+            metrics.increment(ROIFinderStage.WINDOW_CACHE_HITS);
+            // A new ROI for each hit, as downstream Actors relabel the ROI they receive
+            ROIMessage result = new ROIMessage(entry.isROI() ? new ROI(data, metadata) : null, metadata);
+            ResultTagger.report(result, version, model, next, metrics, getSelf());
+            return true;
+        }
+        metrics.increment(ROIFinderStage.WINDOW_CACHE_MISSES);
+        return false;
+    }
+
+    /**
+     * Route - the pool running the current bundle and the bundle's version.
+     */
+    public static final class Route implements Serializable {
+        private final ActorRef pool;
+        private final String version;
+
+        public Route(ActorRef pool, String version) {
+            this.pool = pool;
+            this.version = version;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * com.emphysic.myriad.gristmill.bulk.BulkClient
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill.bulk;
+
+import com.emphysic.myriad.core.data.io.Dataset;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * BulkClient - uploads datasets to a GristMill's BulkServer.  The connection is opened on first use and reused for
+ * later uploads; after a failed upload it is reopened.  Once an upload succeeds the dataset is sent on by telling
+ * GristMill's bulk ingest endpoint a BulkDatasetMessage carrying the returned handle.  In single precision samples are
+ * sent as floats, halving the transfer.
+ */
+@Slf4j
+public class BulkClient {
+    private final String hostname;
+    private final int port;
+    /**
+     * Size of each checksummed chunk (bytes)
+     */
+    private final int chunkSize;
+    /**
+     * True to send samples as floats
+     */
+    private final boolean singlePrecision;
+    /**
+     * Token sent with each upload, empty if the server doesn't require one
+     */
+    private final byte[] token;
+    private SocketChannel channel;
+    private ByteBuffer chunk;
+
+    /**
+     * Creates a client.
+     * @param hostname GristMill host
+     * @param port port of GristMill's bulk transfer channel
+     * @param chunkSize size of each checksummed chunk in bytes, rounded down to whole samples
+     */
+    public BulkClient(String hostname, int port, int chunkSize) {
+        this(hostname, port, chunkSize, false);
+    }
+
+    /**
+     * Creates a client.
+     * @param hostname GristMill host
+     * @param port port of GristMill's bulk transfer channel
+     * @param chunkSize size of each checksummed chunk in bytes, rounded down to whole samples
+     * @param singlePrecision true to send samples as floats (see FloatDataset)
+     */
+    public BulkClient(String hostname, int port, int chunkSize, boolean singlePrecision) {
+        this(hostname, port, chunkSize, singlePrecision, null);
+    }
+
+    /**
+     * Creates a client.
+     * @param hostname GristMill host
+     * @param port port of GristMill's bulk transfer channel
+     * @param chunkSize size of each checksummed chunk in bytes, rounded down to whole samples
+     * @param singlePrecision true to send samples as floats (see FloatDataset)
+     * @param token token the server requires (bulk.token), null or empty if it requires none
+     */
+    public BulkClient(String hostname, int port, int chunkSize, boolean singlePrecision, String token) {
+        this.hostname = hostname;
+        this.port = port;
+        this.chunkSize = Math.max(8, Math.min(BulkServer.MAX_CHUNK, chunkSize) / 8 * 8);
+        this.singlePrecision = singlePrecision;
+        this.token = token == null ? new byte[0] : token.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Uploads a dataset.
+     * @param dataset dataset
+     * @return handle the dataset was stored under
+     * @throws IOException if the upload failed
+     */
+    public synchronized String upload(Dataset dataset) throws IOException {
+        String handle = UUID.randomUUID().toString();
+        try {
+            if (channel == null || !channel.isOpen()) {
+                channel = SocketChannel.open(new InetSocketAddress(hostname, port));
+                channel.socket().setTcpNoDelay(true);
+            }
+            if (chunk == null) {
+                chunk = ByteBuffer.allocateDirect(chunkSize);
+            }
+            byte[] id = handle.getBytes(StandardCharsets.UTF_8);
+            int sampleSize = singlePrecision ? 4 : 8;
+            ByteBuffer header = ByteBuffer.allocate(24 + id.length + token.length);
+            header.putInt(BulkServer.MAGIC).putInt(BulkServer.VERSION).putShort((short) id.length).put(id)
+                    .putShort((short) token.length).put(token)
+                    .putInt(dataset.getWidth()).putInt(dataset.getHeight()).putInt(sampleSize).flip();
+            writeFully(header);
+            double[] data = dataset.getData();
+            CRC32 crc = new CRC32();
+            ByteBuffer framing = ByteBuffer.allocate(8);
+            for (int offset = 0; offset < data.length; ) {
+                int samples = Math.min(chunkSize / sampleSize, data.length - offset);
+                chunk.clear();
+                if (singlePrecision) {
+                    FloatBuffer floats = chunk.asFloatBuffer();
+                    for (int i = 0; i < samples; i++) {
+                        floats.put(i, (float) data[offset + i]);
+                    }
+                } else {
+                    DoubleBuffer doubles = chunk.asDoubleBuffer();
+                    doubles.put(data, offset, samples);
+                }
+                chunk.limit(samples * sampleSize);
+                crc.reset();
+                crc.update(chunk);
+                chunk.flip();
+                framing.clear();
+                framing.putInt(samples * sampleSize).flip();
+                writeFully(framing);
+                writeFully(chunk);
+                framing.clear();
+                framing.putLong(crc.getValue()).flip();
+                writeFully(framing);
+                offset += samples;
+            }
+            framing.clear();
+            framing.putInt(0).flip();
+            writeFully(framing);
+            ByteBuffer status = ByteBuffer.allocate(1);
+            BulkServer.readFully(channel, status, false);
+            String message = BulkServer.readString(channel);
+            if (status.get(0) != BulkServer.OK) {
+                throw new IOException("GristMill rejected the upload: " + message);
+            }
+            return handle;
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes the connection.
+     */
+    public synchronized void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.debug("Error closing bulk transfer connection: " + e);
+            }
+            channel = null;
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
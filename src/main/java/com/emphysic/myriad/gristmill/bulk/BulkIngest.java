@@ -0,0 +1,68 @@
+/*
+ * com.emphysic.myriad.gristmill.bulk.BulkIngest
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill.bulk;
+
+import akka.actor.ActorRef;
+import akka.actor.UntypedActor;
+import com.emphysic.myriad.core.data.io.Dataset;
+import com.emphysic.myriad.gristmill.messages.BulkDatasetMessage;
+import com.emphysic.myriad.gristmill.metrics.StageMetrics;
+import com.emphysic.myriad.network.messages.DatasetMessage;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * BulkIngest - GristMill's endpoint for data uploaded over the bulk transfer channel, reachable by clients at
+ * /user/Bulk.  Claims the upload named by each BulkDatasetMessage from the BulkServer and passes it into the pipeline
+ * as an ordinary DatasetMessage; the hop is local, so the data never passes through remoting.
+ */
+@Slf4j
+public class BulkIngest extends UntypedActor {
+    private final BulkServer server;
+    /**
+     * Entry point of the pipeline
+     */
+    private final ActorRef pipeline;
+    private final StageMetrics metrics;
+
+    public BulkIngest(BulkServer server, ActorRef pipeline, StageMetrics metrics) {
+        this.server = server;
+        this.pipeline = pipeline;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void onReceive(Object message) throws Throwable {
+        if (message instanceof BulkDatasetMessage) {
+            BulkDatasetMessage bulk = (BulkDatasetMessage) message;
+            Dataset dataset = server.take(bulk.getHandle());
+            if (dataset == null) {
+                log.warn("No upload found for " + bulk + ", it may have expired");
+                metrics.increment("bulk.missing");
+                return;
+            }
+            pipeline.tell(new DatasetMessage(dataset, bulk.getMetadata()), getSender());
+        } else {
+            unhandled(message);
+        }
+    }
+
+    @Override
+    public void postStop() {
+        server.close();
+    }
+}
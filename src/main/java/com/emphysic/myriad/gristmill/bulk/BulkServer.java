@@ -0,0 +1,375 @@
+/*
+ * com.emphysic.myriad.gristmill.bulk.BulkServer
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill.bulk;
+
+import com.emphysic.myriad.core.data.io.Dataset;
+import com.emphysic.myriad.gristmill.FloatDataset;
+import com.emphysic.myriad.gristmill.metrics.StageMetrics;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+/**
+ * BulkServer - GristMill's end of the bulk transfer channel.  Clients upload large datasets over a plain socket,
+ * separate from Akka remoting, so that payload size isn't limited by the remoting frame size and uploads don't hold
+ * up heartbeats and control messages.  Each upload is stored under its handle until a BulkDatasetMessage claims it.
+ *
+ * Protocol (big-endian): "GMBK", version, handle and token (modified UTF-8, the token empty if none), width,
+ * height, sample size (4 for floats or 8 for doubles), then chunks of samples each written as byte count, the samples
+ * and the CRC32 of those bytes, ended by a zero byte count.  The server replies with a status byte (OK or ERROR)
+ * followed by a message.  A connection may carry any number of uploads.
+ *
+ * The channel isn't encrypted.  If the server is given a token, only uploads carrying the same token are accepted.  Uploads larger than the maximum size are refused before anything is allocated for them, and the samples
+ * of an upload are stored in arrays that grow as its chunks arrive, so memory follows the data actually received.
+ * Unclaimed uploads are discarded after the retention period, checked whenever an upload is stored or claimed.
+ *
+ * Uploads sent as floats, or any upload if the server runs in single precision, are kept as FloatDatasets until
+ * claimed.
+ */
+@Slf4j
+public class BulkServer {
+    static final int MAGIC = 0x474D424B;
+    static final int VERSION = 1;
+    static final byte OK = 0;
+    static final byte ERROR = 1;
+    /**
+     * Largest chunk accepted (bytes)
+     */
+    static final int MAX_CHUNK = 64 * 1024 * 1024;
+
+    private final ServerSocketChannel server;
+    private final ExecutorService connections = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "gristmill-bulk");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Thread acceptor;
+    /**
+     * Uploads waiting to be claimed, keyed by handle
+     */
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+    /**
+     * Unclaimed uploads are discarded after this long (ms)
+     */
+    private final long retention;
+    /**
+     * Largest upload accepted (bytes of samples as sent)
+     */
+    private final long maxSize;
+    /**
+     * Token clients must send, or null to accept any upload
+     */
+    private final byte[] token;
+    /**
+     * True to keep uploads in single precision
+     */
+    private final boolean singlePrecision;
+    private final StageMetrics metrics;
+
+    /**
+     * Starts listening for uploads.
+     * @param hostname address to listen on, empty for every interface
+     * @param port port to listen on, 0 for any free port
+     * @param retention time (ms) after which unclaimed uploads are discarded
+     * @param maxSize largest upload accepted, in bytes of samples as sent
+     * @param token token clients must send, null or empty to accept any upload
+     * @param singlePrecision true to keep uploads in single precision until they are claimed
+     * @param metrics metrics to count uploads in
+     * @throws IOException if the port couldn't be opened
+     */
+    public BulkServer(String hostname, int port, long retention, long maxSize, String token, boolean singlePrecision,
+                      StageMetrics metrics) throws IOException {
+        this.retention = retention;
+        this.maxSize = maxSize;
+        this.token = token == null || token.isEmpty() ? null : token.getBytes(StandardCharsets.UTF_8);
+        this.singlePrecision = singlePrecision;
+        this.metrics = metrics;
+        server = ServerSocketChannel.open();
+        server.bind(hostname == null || hostname.isEmpty()
+                ? new InetSocketAddress(port) : new InetSocketAddress(hostname, port));
+        acceptor = new Thread(this::accept, "gristmill-bulk-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        log.info("Bulk transfer channel listening on " + server.getLocalAddress());
+    }
+
+    /**
+     * Returns the port the server is listening on.
+     * @return port
+     */
+    public int getPort() {
+        return ((InetSocketAddress) server.socket().getLocalSocketAddress()).getPort();
+    }
+
+    /**
+     * Claims an upload.
+     * @param handle handle the data were uploaded under
+     * @return the uploaded dataset, or null if there is no (unexpired) upload with the handle
+     */
+    public Dataset take(String handle) {
+        sweep(System.currentTimeMillis());
+        Upload upload = uploads.remove(handle);
+        if (upload == null) {
+            return null;
+        }
+        return upload.dataset != null ? upload.dataset : upload.singles.toDataset();
+    }
+
+    /**
+     * Stops accepting uploads and discards any that are unclaimed.
+     */
+    public void close() {
+        try {
+            server.close();
+        } catch (IOException e) {
+            log.warn("Error closing bulk transfer channel: " + e);
+        }
+        connections.shutdownNow();
+        uploads.clear();
+    }
+
+    private void accept() {
+        while (server.isOpen()) {
+            try {
+                SocketChannel channel = server.accept();
+                connections.execute(() -> serve(channel));
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                log.warn("Error accepting bulk transfer connection: " + e);
+            }
+        }
+    }
+
+    /**
+     * Receives uploads from a client until it disconnects.
+     * @param channel connection to the client
+     */
+    private void serve(SocketChannel channel) {
+        ByteBuffer header = ByteBuffer.allocate(8);
+        ByteBuffer chunk = null;
+        try (SocketChannel c = channel) {
+            while (true) {
+                header.clear();
+                if (!readFully(c, header, true)) {
+                    return;
+                }
+                String handle = null;
+                try {
+                    if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                        throw new IOException("Not a bulk transfer");
+                    }
+                    handle = readString(c);
+                    byte[] sent = readString(c).getBytes(StandardCharsets.UTF_8);
+                    if (token != null && !MessageDigest.isEqual(token, sent)) {
+                        metrics.increment("bulk.refused");
+                        throw new IOException("Missing or wrong bulk.token");
+                    }
+                    header.clear();
+                    readFully(c, header, false);
+                    int width = header.getInt(0);
+                    int height = header.getInt(4);
+                    if (width < 0 || height < 0 || (long) width * height > Integer.MAX_VALUE - 8) {
+                        throw new IOException("Invalid dimensions " + width + "x" + height);
+                    }
+                    header.clear().limit(4);
+                    readFully(c, header, false);
+                    int sampleSize = header.getInt(0);
+                    if (sampleSize != 4 && sampleSize != 8) {
+                        throw new IOException("Invalid sample size " + sampleSize);
+                    }
+                    if ((long) width * height * sampleSize > maxSize) {
+                        metrics.increment("bulk.refused");
+                        throw new IOException("Upload of " + width + "x" + height + " samples exceeds bulk.max-size of "
+                                + maxSize + " bytes");
+                    }
+                    int samples = width * height;
+                    boolean single = singlePrecision || sampleSize == 4;
+                    // Grown as chunks arrive rather than allocated from the header
+                    double[] data = single ? null : new double[0];
+                    float[] singles = single ? new float[0] : null;
+                    int filled = 0;
+                    CRC32 crc = new CRC32();
+                    while (true) {
+                        header.clear().limit(4);
+                        readFully(c, header, false);
+                        int length = header.getInt(0);
+                        if (length == 0) {
+                            break;
+                        }
+                        if (length < 0 || length > MAX_CHUNK || length % sampleSize != 0
+                                || filled + length / sampleSize > samples) {
+                            throw new IOException("Invalid chunk of " + length + " bytes");
+                        }
+                        if (chunk == null || chunk.capacity() < length) {
+                            chunk = ByteBuffer.allocateDirect(Math.max(length, 1024 * 1024));
+                        }
+                        chunk.clear().limit(length);
+                        readFully(c, chunk, false);
+                        header.clear();
+                        readFully(c, header, false);
+                        chunk.flip();
+                        crc.reset();
+                        crc.update(chunk);
+                        if (crc.getValue() != header.getLong(0)) {
+                            metrics.increment("bulk.checksum-failures");
+                            throw new IOException("Checksum mismatch in chunk at sample " + filled);
+                        }
+                        chunk.flip();
+                        int count = length / sampleSize;
+                        int capacity = single ? singles.length : data.length;
+                        if (filled + count > capacity) {
+                            capacity = (int) Math.min(samples, Math.max(filled + count, 2L * capacity));
+                            if (single) {
+                                singles = Arrays.copyOf(singles, capacity);
+                            } else {
+                                data = Arrays.copyOf(data, capacity);
+                            }
+                        }
+                        if (sampleSize == 4) {
+                            chunk.asFloatBuffer().get(singles, filled, count);
+                        } else if (single) {
+                            DoubleBuffer doubles = chunk.asDoubleBuffer();
+                            for (int i = 0; i < count; i++) {
+                                singles[filled + i] = (float) doubles.get(i);
+                            }
+                        } else {
+                            chunk.asDoubleBuffer().get(data, filled, count);
+                        }
+                        filled += count;
+                    }
+                    if (filled != samples) {
+                        throw new IOException("Received " + filled + " of " + samples + " samples");
+                    }
+                    store(handle, single ? new Upload(new FloatDataset(singles, width, height))
+                            : new Upload(new Dataset(data, width, height)));
+                    metrics.increment("bulk.uploads");
+                    metrics.add("bulk.bytes", (long) samples * sampleSize);
+                    reply(c, OK, handle);
+                } catch (IOException e) {
+                    log.warn("Bulk upload " + handle + " failed: " + e.getMessage());
+                    reply(c, ERROR, String.valueOf(e.getMessage()));
+                    // The stream is out of step after a failure
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            log.debug("Bulk transfer connection closed: " + e);
+        }
+    }
+
+    /**
+     * Stores an upload, discarding any that have gone unclaimed for too long.
+     */
+    private void store(String handle, Upload upload) {
+        sweep(upload.received);
+        uploads.put(handle, upload);
+    }
+
+    /**
+     * Discards the uploads that have gone unclaimed for longer than the retention period.
+     * @param now current time (ms)
+     */
+    private void sweep(long now) {
+        uploads.values().removeIf((upload) -> {
+            boolean expired = now - upload.received > retention;
+            if (expired) {
+                metrics.increment("bulk.expired");
+            }
+            return expired;
+        });
+    }
+
+    private static void reply(SocketChannel channel, byte status, String message) throws IOException {
+        byte[] text = message.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(text.length, 0xFFFF);
+        ByteBuffer reply = ByteBuffer.allocate(3 + length);
+        reply.put(status).putShort((short) length).put(text, 0, length).flip();
+        while (reply.hasRemaining()) {
+            channel.write(reply);
+        }
+    }
+
+    /**
+     * Reads a string written as a two byte length followed by UTF-8.
+     */
+    static String readString(SocketChannel channel) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(2);
+        readFully(channel, length, false);
+        ByteBuffer text = ByteBuffer.allocate(length.getShort(0) & 0xFFFF);
+        readFully(channel, text, false);
+        return new String(text.array(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Fills a buffer from a channel.
+     * @param channel channel
+     * @param buffer buffer, filled from its position to its limit
+     * @param eofOk true if the channel may end before anything has been read
+     * @return false if the channel ended before anything was read and eofOk is true
+     * @throws IOException if the channel ended part way through
+     */
+    static boolean readFully(SocketChannel channel, ByteBuffer buffer, boolean eofOk) throws IOException {
+        boolean empty = buffer.position() == 0;
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                if (eofOk && empty && buffer.position() == 0) {
+                    return false;
+                }
+                throw new IOException("Connection closed part way through a transfer");
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Upload - a dataset waiting to be claimed.
+     */
+    private static class Upload {
+        /**
+         * The dataset, or null if it is kept in single precision
+         */
+        private final Dataset dataset;
+        private final FloatDataset singles;
+        private final long received = System.currentTimeMillis();
+
+        Upload(Dataset dataset) {
+            this.dataset = dataset;
+            this.singles = null;
+        }
+
+        Upload(FloatDataset singles) {
+            this.dataset = null;
+            this.singles = singles;
+        }
+    }
+}
@@ -37,25 +37,41 @@ public class BaggerPool extends LinkedWorkerPool {
      * List of ROIs found for each original source
      */
     Map<String, ROIResults> rois;
+    /**
+     * Journal of received ROI, or null if not journaling
+     */
+    ResultJournal journal;
 
     public BaggerPool(int numBaggers, Map<String, ROIResults> roiMap) {
         start(numBaggers, BaggerActor.class);
         this.rois = roiMap;
     }
 
+    public BaggerPool(int numBaggers, Map<String, ROIResults> roiMap, ResultJournal journal) {
+        this(numBaggers, roiMap);
+        this.journal = journal;
+    }
+
     @Override
     public void onReceive(Object message) throws Throwable {
         if (message instanceof ROIMessage) {
             if (getSender().path().parent() == router.path()) {
+                String metadata = ((ROIMessage) message).getMetadata();
+                Map<String, String> md = ImmutableMessage.getMetadata(metadata);
+                String src = md.getOrDefault("source", "");
+                ROIResults result = (src == null || src.isEmpty()) ? null : rois.get(src);
+                if (result != null) {
+                    result.windowReceived();
+                }
                 if (((ROIMessage) message).getROI() != null) {
                     ROI roi = ((ROIMessage) message).getROI();
-                    String metadata = ((ROIMessage) message).getMetadata();
-                    Map<String, String> md = ImmutableMessage.getMetadata(metadata);
                     roi.setMetadata(metadata);
-                    String src = md.getOrDefault("source", "");
                     if (src != null && ! src.isEmpty()) {
-                        if (rois.containsKey(src)) {
-                            rois.get(src).addROI(roi);
+                        if (result != null) {
+                            int row = result.addROI(roi);
+                            if (row >= 0 && journal != null) {
+                                journal.found(src, result.getStore(), row);
+                            }
                         } else {
                             log.error("Source " + src + " not found in " + rois.keySet());
                         }
@@ -0,0 +1,329 @@
+/*
+ * com.emphysic.myriad.gristmill.demo.BatchRunner
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill.demo;
+
+import com.emphysic.myriad.gristmill.scheduling.Scheduling;
+import com.typesafe.config.Config;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * BatchRunner - runs a large batch of files through GristMill with a bounded number of files in flight, starting the
+ * next file as each one finishes, so that a backfill keeps the pipeline saturated without flooding it.
+ *
+ * GristMill doesn't signal when a file is finished, so the runner counts window results: a file read by Thresher is
+ * finished once as many window results have arrived as GristMill's scans produce for data of its size, tiling and
+ * mask (see ScanGeometry), however long the gaps between them.  Files whose window count isn't known (read by
+ * GristMill's ingestor rather than by Thresher, or GristMill's scan parameters are unknown) are finished once results
+ * have stopped arriving for them for a quiet period; their results aren't cached, as they may be incomplete.
+ *
+ * A file that hasn't finished within the file timeout is cancelled and recorded as failed.  Each finished or failed
+ * file is appended to a progress file as it completes, and a rerun of the same manifest skips the files already
+ * finished (as does a journal with journal.resume set); failed files are submitted afresh, unaffected by their
+ * earlier cancellation.
+ *
+ * The manifest is either a text file listing one path per line (blank lines and lines starting with # are ignored,
+ * relative paths are relative to the manifest) or a glob such as /data/scans/**.csv.
+ */
+@Slf4j
+public class BatchRunner {
+    private static final String DONE = "done";
+    private static final String FAILED = "failed";
+    /**
+     * Interval (ms) between checks on the files in flight
+     */
+    private static final long POLL = 200;
+
+    private final Thresher thresher;
+    /**
+     * Maximum number of files in flight
+     */
+    private final int maxInFlight;
+    /**
+     * A file whose window count isn't known is finished once no results have arrived for it for this long (ms)
+     */
+    private final long quiet;
+    /**
+     * A file that hasn't finished this long (ms) after it was sent is cancelled and recorded as failed
+     */
+    private final long fileTimeout;
+    /**
+     * Priority the files are submitted with
+     */
+    private final int priority;
+
+    public BatchRunner(Thresher thresher, int maxInFlight, long quiet, long fileTimeout, int priority) {
+        this.thresher = thresher;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.quiet = quiet;
+        this.fileTimeout = fileTimeout;
+        this.priority = priority;
+    }
+
+    /**
+     * Creates a runner from the batch block of the Thresher configuration.
+     * @param thresher initialized Thresher
+     * @param config Thresher configuration
+     * @return new runner
+     */
+    public static BatchRunner fromConfig(Thresher thresher, Config config) {
+        return new BatchRunner(thresher,
+                config.hasPath("batch.in-flight") ? config.getInt("batch.in-flight") : 4,
+                config.hasPath("batch.quiet") ? config.getDuration("batch.quiet", TimeUnit.MILLISECONDS) : 5000,
+                config.hasPath("batch.file-timeout")
+                        ? config.getDuration("batch.file-timeout", TimeUnit.MILLISECONDS) : 30 * 60 * 1000L,
+                config.hasPath("ingestor.priority") ? config.getInt("ingestor.priority") : Scheduling.DEFAULT_PRIORITY);
+    }
+
+    /**
+     * Reads a manifest.
+     * @param manifest path of a file listing the files, or a glob matching them
+     * @return files in the order listed, or in path order for a glob
+     * @throws IOException if the manifest couldn't be read
+     */
+    public static List<File> readManifest(String manifest) throws IOException {
+        File list = new File(manifest);
+        List<File> files = new ArrayList<>();
+        if (list.isFile()) {
+            File folder = list.getAbsoluteFile().getParentFile();
+            try (BufferedReader in = new BufferedReader(new FileReader(list))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#")) {
+                        continue;
+                    }
+                    File f = new File(line);
+                    files.add(f.isAbsolute() ? f : new File(folder, line));
+                }
+            }
+            return files;
+        }
+        // Walk from the deepest folder that doesn't contain a wildcard
+        String pattern = manifest.replace(File.separatorChar, '/');
+        int wildcard = pattern.length();
+        for (char c : "*?[{".toCharArray()) {
+            int i = pattern.indexOf(c);
+            if (i >= 0) {
+                wildcard = Math.min(wildcard, i);
+            }
+        }
+        int slash = pattern.lastIndexOf('/', wildcard);
+        Path base = Paths.get(slash < 0 ? "." : (slash == 0 ? "/" : pattern.substring(0, slash)));
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher(
+                "glob:" + (slash < 0 ? "./" + pattern : pattern));
+        if (!Files.isDirectory(base)) {
+            throw new IOException("Manifest " + manifest + " is neither a file nor a glob in an existing folder");
+        }
+        try (Stream<Path> paths = Files.walk(base)) {
+            return paths.filter(Files::isRegularFile)
+                    .filter(matcher::matches)
+                    .sorted()
+                    .map(Path::toFile)
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Runs the files through GristMill, writing each file's results as it finishes.
+     * @param files files to process
+     * @param progressFile file recording each finished and failed file, created if necessary
+     * @return summary of the run
+     * @throws IOException if the progress file couldn't be read or written
+     * @throws InterruptedException if interrupted while waiting for files to finish
+     */
+    public Summary run(List<File> files, File progressFile) throws IOException, InterruptedException {
+        Set<String> finished = readProgress(progressFile);
+        Summary summary = new Summary(files.size());
+        Deque<File> pending = new ArrayDeque<>();
+        for (File f : files) {
+            if (finished.contains(f.getAbsolutePath()) || thresher.isFinished(f)) {
+                summary.skipped++;
+            } else {
+                pending.add(f);
+            }
+        }
+        log.info("Batch of " + files.size() + " files: " + summary.skipped + " already finished, "
+                + pending.size() + " to process with up to " + maxInFlight + " in flight");
+        Map<String, InFlight> inFlight = new LinkedHashMap<>();
+        try (PrintWriter progress = new PrintWriter(new FileWriter(progressFile, true), true)) {
+            while (!pending.isEmpty() || !inFlight.isEmpty()) {
+                while (inFlight.size() < maxInFlight && !pending.isEmpty()) {
+                    File f = pending.poll();
+                    String key = new ROIResults(f).getName();
+                    if (!f.canRead()) {
+                        failed(summary, progress, f, "unreadable");
+                    } else if (!thresher.ingest(f, priority, Scheduling.NO_DEADLINE)) {
+                        // Results came from the cache
+                        finish(summary, progress, key, new InFlight(f, System.currentTimeMillis()));
+                    } else {
+                        inFlight.put(key, new InFlight(f, System.currentTimeMillis()));
+                    }
+                }
+                TimeUnit.MILLISECONDS.sleep(POLL);
+                long now = System.currentTimeMillis();
+                Iterator<Map.Entry<String, InFlight>> it = inFlight.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<String, InFlight> entry = it.next();
+                    InFlight file = entry.getValue();
+                    ROIResults result = thresher.getPendingResults(entry.getKey());
+                    if (result != null && (result.isComplete() || (result.getExpected() < 0
+                            && result.getReceived() > 0 && now - result.getLastReceived() >= quiet))) {
+                        it.remove();
+                        finish(summary, progress, entry.getKey(), file);
+                    } else if (result == null || now - file.started >= fileTimeout) {
+                        it.remove();
+                        thresher.cancel(entry.getKey(), 5000);
+                        failed(summary, progress, file.file, result == null ? "cancelled"
+                                : "not finished after " + fileTimeout + " ms (" + result.getReceived() + " windows)");
+                    }
+                }
+            }
+        }
+        summary.duration = System.currentTimeMillis() - summary.start;
+        return summary;
+    }
+
+    /**
+     * Writes a finished file's results and records it.
+     */
+    private void finish(Summary summary, PrintWriter progress, String key, InFlight file) {
+        ROIResults result = thresher.getPendingResults(key);
+        int found = result == null ? 0 : result.size();
+        if (!thresher.writeResults(key)) {
+            failed(summary, progress, file.file, "unable to write results");
+            return;
+        }
+        progress.println(DONE + "\t" + file.file.getAbsolutePath());
+        summary.finished++;
+        summary.bytes += file.file.length();
+        summary.roi += found;
+        log.info(String.format("[%d/%d] %s finished in %d ms, %d ROI", summary.finished + summary.failures.size()
+                + summary.skipped, summary.total, file.file, System.currentTimeMillis() - file.started, found));
+    }
+
+    /**
+     * Records a failed file.
+     */
+    private void failed(Summary summary, PrintWriter progress, File f, String reason) {
+        progress.println(FAILED + "\t" + f.getAbsolutePath() + "\t" + reason);
+        summary.failures.put(f.getAbsolutePath(), reason);
+        log.warn("[" + (summary.finished + summary.failures.size() + summary.skipped) + "/" + summary.total + "] "
+                + f + " failed: " + reason);
+    }
+
+    /**
+     * Reads the files recorded as finished by earlier runs.
+     * @param progressFile progress file
+     * @return absolute paths of the finished files
+     * @throws IOException if the progress file exists but couldn't be read
+     */
+    private static Set<String> readProgress(File progressFile) throws IOException {
+        Set<String> finished = new HashSet<>();
+        if (!progressFile.isFile()) {
+            return finished;
+        }
+        try (BufferedReader in = new BufferedReader(new FileReader(progressFile))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length >= 2 && DONE.equals(fields[0])) {
+                    finished.add(fields[1]);
+                }
+            }
+        }
+        return finished;
+    }
+
+    /**
+     * InFlight - a file sent through the pipeline and not yet finished.
+     */
+    private static class InFlight {
+        private final File file;
+        private final long started;
+
+        InFlight(File file, long started) {
+            this.file = file;
+            this.started = started;
+        }
+    }
+
+    /**
+     * Summary - outcome of a batch run.
+     */
+    public static class Summary {
+        private final int total;
+        private final long start = System.currentTimeMillis();
+        private int skipped;
+        private int finished;
+        private long bytes;
+        private long roi;
+        private long duration;
+        private final Map<String, String> failures = new LinkedHashMap<>();
+
+        Summary(int total) {
+            this.total = total;
+        }
+
+        public int getTotal() { return total; }
+
+        public int getSkipped() { return skipped; }
+
+        public int getFinished() { return finished; }
+
+        public long getDuration() { return duration; }
+
+        /**
+         * Returns the files that failed and why.
+         * @return failure reason keyed by absolute path
+         */
+        public Map<String, String> getFailures() { return failures; }
+
+        @Override
+        public String toString() {
+            double seconds = Math.max(1, duration) / 1000.0;
+            return String.format("%d files: %d finished, %d failed, %d skipped in %.1f s "
+                            + "(%.2f files/s, %.2f MB/s, %d ROI)",
+                    total, finished, failures.size(), skipped, seconds, finished / seconds,
+                    bytes / seconds / (1024 * 1024), roi);
+        }
+    }
+}
@@ -0,0 +1,367 @@
+/*
+ * com.emphysic.myriad.gristmill.demo.CScanReader
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill.demo;
+
+import com.emphysic.myriad.core.data.io.Dataset;
+import com.typesafe.config.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * CScanReader - reads large C-scan exports, i.e. text files of nothing but numbers with one row of the scan per line
+ * (e.g. "2.000000,3.000000,..."), much faster than FileSniffer.  The file is memory-mapped and split into chunks at
+ * line boundaries that are parsed in parallel on a fork/join pool, straight into the scan's preallocated array with
+ * an allocation-free decimal parser.
+ *
+ * Values may be separated by commas, semicolons, tabs or spaces; a trailing separator at the end of a line is ignored,
+ * as are blank lines.  Anything else (headers, quoted values, ragged rows) is rejected with an IOException so the
+ * caller can fall back to FileSniffer.
+ */
+public class CScanReader {
+    /**
+     * Exact powers of ten representable as doubles
+     */
+    private static final double[] POWERS = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    /**
+     * Largest mantissa that can be converted to a double exactly
+     */
+    private static final long MAX_EXACT = 1L << 53;
+    /**
+     * Smallest chunk worth handing to another thread (bytes)
+     */
+    private static final int MIN_CHUNK = 1 << 20;
+
+    private final ForkJoinPool pool;
+    /**
+     * Files at least this large (bytes) are read with this reader
+     */
+    private final long threshold;
+
+    /**
+     * Creates a reader.
+     * @param pool pool the chunks are parsed on
+     * @param threshold files at least this large (bytes) are read with this reader, smaller files with FileSniffer
+     */
+    public CScanReader(ForkJoinPool pool, long threshold) {
+        this.pool = pool;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Creates a reader from the ingestor.fast-csv block of the Thresher configuration.
+     * @param config Thresher configuration
+     * @return new reader, or null if the reader is disabled or not configured
+     */
+    public static CScanReader fromConfig(Config config) {
+        if (!config.hasPath("ingestor.fast-csv.enabled") || !config.getBoolean("ingestor.fast-csv.enabled")) {
+            return null;
+        }
+        int parallelism = config.hasPath("ingestor.fast-csv.parallelism")
+                ? config.getInt("ingestor.fast-csv.parallelism") : 0;
+        return new CScanReader(parallelism > 0 ? new ForkJoinPool(parallelism) : ForkJoinPool.commonPool(),
+                config.hasPath("ingestor.fast-csv.min-file-size")
+                        ? config.getBytes("ingestor.fast-csv.min-file-size") : 8L * 1024 * 1024);
+    }
+
+    /**
+     * Determines whether a file should be read with this reader rather than FileSniffer.
+     * @param f data file
+     * @return true if the file is a large text export
+     */
+    public boolean accepts(File f) {
+        String name = f.getName().toLowerCase();
+        return f.length() >= threshold && f.length() < Integer.MAX_VALUE
+                && (name.endsWith(".csv") || name.endsWith(".txt"));
+    }
+
+    /**
+     * Reads a C-scan.
+     * @param f data file
+     * @return scan, one row per line of the file
+     * @throws IOException if the file couldn't be read or isn't a plain numeric export
+     */
+    public Dataset read(File f) throws IOException {
+        MappedByteBuffer buffer;
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r"); FileChannel channel = raf.getChannel()) {
+            if (channel.size() >= Integer.MAX_VALUE) {
+                throw new IOException(f + " is too large to map");
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        int length = buffer.limit();
+        // Chunk boundaries, each just after a newline
+        int chunks = Math.max(1, Math.min(pool.getParallelism() * 4, length / MIN_CHUNK));
+        int[] starts = new int[chunks + 1];
+        starts[chunks] = length;
+        for (int c = 1; c < chunks; c++) {
+            int pos = Math.max(starts[c - 1], (int) ((long) length * c / chunks));
+            while (pos < length && buffer.get(pos - 1) != '\n') {
+                pos++;
+            }
+            starts[c] = pos;
+        }
+        int width = countValues(buffer, 0, lineEnd(buffer, 0, length));
+        if (width == 0) {
+            throw new IOException(f + " has no data on its first line");
+        }
+        // Count the rows in each chunk to find where each chunk's rows start in the scan
+        List<Callable<Integer>> counts = new ArrayList<>(chunks);
+        for (int c = 0; c < chunks; c++) {
+            final int from = starts[c];
+            final int to = starts[c + 1];
+            counts.add(() -> countRows(buffer, from, to));
+        }
+        int[] firstRow = new int[chunks + 1];
+        List<Future<Integer>> rows = pool.invokeAll(counts);
+        for (int c = 0; c < chunks; c++) {
+            firstRow[c + 1] = firstRow[c] + get(rows.get(c));
+        }
+        int height = firstRow[chunks];
+        double[] data = new double[width * height];
+        List<Callable<Integer>> parsers = new ArrayList<>(chunks);
+        for (int c = 0; c < chunks; c++) {
+            final int from = starts[c];
+            final int to = starts[c + 1];
+            final int row = firstRow[c];
+            parsers.add(() -> parse(buffer, from, to, data, row, width));
+        }
+        for (Future<Integer> parsed : pool.invokeAll(parsers)) {
+            get(parsed);
+        }
+        return new Dataset(data, width, height);
+    }
+
+    private static int get(Future<Integer> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static boolean isSeparator(byte b) {
+        return b == ',' || b == ';' || b == '\t' || b == ' ' || b == '\r';
+    }
+
+    private static int lineEnd(MappedByteBuffer buffer, int from, int to) {
+        int pos = from;
+        while (pos < to && buffer.get(pos) != '\n') {
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * Counts the values on a line.
+     */
+    private static int countValues(MappedByteBuffer buffer, int from, int to) {
+        int values = 0;
+        boolean inValue = false;
+        for (int pos = from; pos < to; pos++) {
+            boolean separator = isSeparator(buffer.get(pos));
+            if (!separator && !inValue) {
+                values++;
+            }
+            inValue = !separator;
+        }
+        return values;
+    }
+
+    /**
+     * Counts the non-blank lines in a chunk.
+     */
+    private static int countRows(MappedByteBuffer buffer, int from, int to) {
+        int rows = 0;
+        boolean content = false;
+        for (int pos = from; pos < to; pos++) {
+            byte b = buffer.get(pos);
+            if (b == '\n') {
+                if (content) {
+                    rows++;
+                }
+                content = false;
+            } else if (!isSeparator(b)) {
+                content = true;
+            }
+        }
+        return content ? rows + 1 : rows;
+    }
+
+    /**
+     * Parses the rows of a chunk into the scan.
+     * @param buffer mapped file
+     * @param from start of the chunk, the start of a line
+     * @param to end of the chunk, the start of a line or the end of the file
+     * @param data scan
+     * @param row index of the chunk's first row in the scan
+     * @param width number of values per row
+     * @return number of rows parsed
+     * @throws IOException if a row isn't width numbers
+     */
+    private static int parse(MappedByteBuffer buffer, int from, int to, double[] data, int row, int width)
+            throws IOException {
+        int pos = from;
+        int rows = 0;
+        int column = 0;
+        int offset = row * width;
+        while (pos < to) {
+            byte b = buffer.get(pos);
+            if (b == '\n') {
+                if (column != 0 && column != width) {
+                    throw new IOException("Row " + (row + rows) + " has " + column + " values, expected " + width);
+                }
+                if (column != 0) {
+                    rows++;
+                    offset += width;
+                }
+                column = 0;
+                pos++;
+            } else if (isSeparator(b)) {
+                pos++;
+            } else {
+                if (column == width) {
+                    throw new IOException("Row " + (row + rows) + " has more than " + width + " values");
+                }
+                // Scan the number, then convert its digits
+                int end = pos;
+                while (end < to && !isSeparator(buffer.get(end)) && buffer.get(end) != '\n') {
+                    end++;
+                }
+                data[offset + column++] = parseDouble(buffer, pos, end);
+                pos = end;
+            }
+        }
+        if (column != 0) {
+            if (column != width) {
+                throw new IOException("Row " + (row + rows) + " has " + column + " values, expected " + width);
+            }
+            rows++;
+        }
+        return rows;
+    }
+
+    /**
+     * Parses a decimal number such as -12.5e3 without allocating.  Numbers whose digits don't fit in a double's
+     * mantissa, or whose exponent is too large to scale exactly, fall back to Double.parseDouble so the result is
+     * always correctly rounded.
+     * @param buffer mapped file
+     * @param from first character of the number
+     * @param to character after the number
+     * @return value
+     * @throws IOException if the characters aren't a number
+     */
+    static double parseDouble(MappedByteBuffer buffer, int from, int to) throws IOException {
+        int pos = from;
+        boolean negative = false;
+        byte b = buffer.get(pos);
+        if (b == '-' || b == '+') {
+            negative = b == '-';
+            pos++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean exact = true;
+        boolean point = false;
+        for (; pos < to; pos++) {
+            b = buffer.get(pos);
+            if (b >= '0' && b <= '9') {
+                if (mantissa < MAX_EXACT / 10) {
+                    mantissa = mantissa * 10 + (b - '0');
+                    if (point) {
+                        scale--;
+                    }
+                } else if (b != '0' || !point) {
+                    exact = false;
+                    if (!point) {
+                        scale++;
+                    }
+                }
+                digits++;
+            } else if (b == '.' && !point) {
+                point = true;
+            } else {
+                break;
+            }
+        }
+        if (digits == 0) {
+            return slow(buffer, from, to);
+        }
+        if (pos < to) {
+            if (buffer.get(pos) != 'e' && buffer.get(pos) != 'E') {
+                return slow(buffer, from, to);
+            }
+            pos++;
+            boolean negativeExponent = false;
+            if (pos < to && (buffer.get(pos) == '-' || buffer.get(pos) == '+')) {
+                negativeExponent = buffer.get(pos) == '-';
+                pos++;
+            }
+            int exponent = 0;
+            int start = pos;
+            for (; pos < to; pos++) {
+                b = buffer.get(pos);
+                if (b < '0' || b > '9' || exponent > 100000) {
+                    return slow(buffer, from, to);
+                }
+                exponent = exponent * 10 + (b - '0');
+            }
+            if (pos == start) {
+                return slow(buffer, from, to);
+            }
+            scale += negativeExponent ? -exponent : exponent;
+        }
+        if (!exact || scale < -22 || scale > 22) {
+            return slow(buffer, from, to);
+        }
+        double value = scale < 0 ? mantissa / POWERS[-scale] : mantissa * POWERS[scale];
+        return negative ? -value : value;
+    }
+
+    private static double slow(MappedByteBuffer buffer, int from, int to) throws IOException {
+        byte[] text = new byte[to - from];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = buffer.get(from + i);
+        }
+        try {
+            return Double.parseDouble(new String(text, StandardCharsets.US_ASCII));
+        } catch (NumberFormatException e) {
+            throw new IOException("Not a number: " + e.getMessage());
+        }
+    }
+}
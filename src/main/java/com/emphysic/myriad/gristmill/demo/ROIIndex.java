@@ -0,0 +1,339 @@
+/*
+ * com.emphysic.myriad.gristmill.demo.ROIIndex
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill.demo;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * ROIIndex - uniform grid over the ROI of an ROIStore, answering which ROI lie in a rectangle of the scan or near a
+ * point without walking the whole store.  Each ROI is listed in every grid cell its bounding box touches; only
+ * occupied cells are kept, so the grid needn't know the size of the scan and costs a few bytes per ROI.
+ *
+ * The index follows its store: ROI added to the store since the last update are indexed by the next update (or
+ * query), so it is built incrementally as results arrive.  Not thread-safe; ROIResults guards its index together
+ * with its store.
+ *
+ * Bounding boxes are half-open as in the store: an ROI covers lowX <= x < highX and lowY <= y < highY.
+ */
+public class ROIIndex {
+    /**
+     * Default size of a grid cell in points
+     */
+    public static final int DEFAULT_CELL_SIZE = 64;
+
+    private final ROIStore store;
+    private final int cellSize;
+    /**
+     * Rows listed in each occupied cell, keyed by the cell's column and row
+     */
+    private final Map<Long, Cell> cells = new HashMap<>();
+    /**
+     * Number of rows of the store indexed so far
+     */
+    private int indexed;
+    private int minColumn = Integer.MAX_VALUE;
+    private int minRow = Integer.MAX_VALUE;
+    private int maxColumn = Integer.MIN_VALUE;
+    private int maxRow = Integer.MIN_VALUE;
+    /**
+     * Query in which each row was last visited, so that rows listed in several cells are considered once
+     */
+    private int[] visited = new int[16];
+    private int query;
+
+    /**
+     * Creates an index of a store, indexing the ROI already in it.
+     * @param store store to index
+     * @param cellSize size of a grid cell in points; about the size of a typical ROI works well
+     */
+    public ROIIndex(ROIStore store, int cellSize) {
+        if (cellSize < 1) {
+            throw new IllegalArgumentException("Cell size must be at least 1, got " + cellSize);
+        }
+        this.store = store;
+        this.cellSize = cellSize;
+        update();
+    }
+
+    /**
+     * Indexes the ROI added to the store since the last update.
+     */
+    public void update() {
+        if (store.size() > visited.length) {
+            visited = Arrays.copyOf(visited, Math.max(store.size(), visited.length * 2));
+        }
+        for (; indexed < store.size(); indexed++) {
+            int c0 = Math.floorDiv(store.getLowX(indexed), cellSize);
+            int r0 = Math.floorDiv(store.getLowY(indexed), cellSize);
+            int c1 = Math.floorDiv(lastX(indexed), cellSize);
+            int r1 = Math.floorDiv(lastY(indexed), cellSize);
+            for (int r = r0; r <= r1; r++) {
+                for (int c = c0; c <= c1; c++) {
+                    cells.computeIfAbsent(key(c, r), (k) -> new Cell()).add(indexed);
+                }
+            }
+            minColumn = Math.min(minColumn, c0);
+            minRow = Math.min(minRow, r0);
+            maxColumn = Math.max(maxColumn, c1);
+            maxRow = Math.max(maxRow, r1);
+        }
+    }
+
+    /**
+     * Finds the ROI whose bounding boxes overlap a rectangle of the scan.
+     * @param x x-coordinate of the rectangle's upper left corner
+     * @param y y-coordinate of the rectangle's upper left corner
+     * @param width width of the rectangle
+     * @param height height of the rectangle
+     * @param filter ROI to consider
+     * @return rows of the matching ROI in ascending order
+     */
+    public int[] within(int x, int y, int width, int height, Filter filter) {
+        update();
+        if (width <= 0 || height <= 0 || cells.isEmpty()) {
+            return new int[0];
+        }
+        int c0 = Math.max(minColumn, Math.floorDiv(x, cellSize));
+        int r0 = Math.max(minRow, Math.floorDiv(y, cellSize));
+        int c1 = (int) Math.min(maxColumn, Math.floorDiv((long) x + width - 1, cellSize));
+        int r1 = (int) Math.min(maxRow, Math.floorDiv((long) y + height - 1, cellSize));
+        if (c0 > c1 || r0 > r1) {
+            return new int[0];
+        }
+        long x1 = (long) x + width;
+        long y1 = (long) y + height;
+        query++;
+        Cell found = new Cell();
+        if ((long) (c1 - c0 + 1) * (r1 - r0 + 1) > cells.size()) {
+            // The rectangle spans more cells than are occupied: visit the occupied cells instead
+            for (Map.Entry<Long, Cell> entry : cells.entrySet()) {
+                int c = (int) (entry.getKey() >> 32);
+                int r = (int) (long) entry.getKey();
+                if (c >= c0 && c <= c1 && r >= r0 && r <= r1) {
+                    collect(entry.getValue(), x, y, x1, y1, filter, found);
+                }
+            }
+        } else {
+            for (int r = r0; r <= r1; r++) {
+                for (int c = c0; c <= c1; c++) {
+                    Cell cell = cells.get(key(c, r));
+                    if (cell != null) {
+                        collect(cell, x, y, x1, y1, filter, found);
+                    }
+                }
+            }
+        }
+        int[] rows = Arrays.copyOf(found.rows, found.size);
+        Arrays.sort(rows);
+        return rows;
+    }
+
+    /**
+     * Finds the ROI nearest a point of the scan, by the distance from the point to their bounding boxes (0 for the
+     * ROI containing the point).  The search visits rings of cells around the point's cell, stopping once no cell
+     * further out can hold anything nearer than the ROI found so far.
+     * @param x x-coordinate of the point
+     * @param y y-coordinate of the point
+     * @param count maximum number of ROI to return
+     * @param filter ROI to consider
+     * @return rows of up to count ROI, nearest first
+     */
+    public int[] nearest(int x, int y, int count, Filter filter) {
+        update();
+        if (count <= 0 || cells.isEmpty()) {
+            return new int[0];
+        }
+        // Farthest of the nearest ROI found so far at the head
+        PriorityQueue<Candidate> best = new PriorityQueue<>(Math.min(count, 1024) + 1, (a, b) ->
+                a.distance != b.distance ? Long.compare(b.distance, a.distance) : Integer.compare(b.row, a.row));
+        int column = Math.floorDiv(x, cellSize);
+        int row = Math.floorDiv(y, cellSize);
+        query++;
+        // Rings nearer than the occupied part of the grid are empty
+        int first = Math.max(Math.max(minColumn - column, column - maxColumn), Math.max(minRow - row, row - maxRow));
+        for (int ring = Math.max(0, first); ; ring++) {
+            int c0 = Math.max(minColumn, column - ring);
+            int c1 = Math.min(maxColumn, column + ring);
+            for (int r = Math.max(minRow, row - ring); r <= Math.min(maxRow, row + ring); r++) {
+                if (r == row - ring || r == row + ring) {
+                    for (int c = c0; c <= c1; c++) {
+                        offer(cells.get(key(c, r)), x, y, count, filter, best);
+                    }
+                } else {
+                    if (column - ring >= minColumn) {
+                        offer(cells.get(key(column - ring, r)), x, y, count, filter, best);
+                    }
+                    if (ring > 0 && column + ring <= maxColumn) {
+                        offer(cells.get(key(column + ring, r)), x, y, count, filter, best);
+                    }
+                }
+            }
+            long reach = (long) ring * cellSize;
+            boolean covered = column - ring <= minColumn && column + ring >= maxColumn
+                    && row - ring <= minRow && row + ring >= maxRow;
+            if (covered || (best.size() == count && best.peek().distance <= reach * reach)) {
+                break;
+            }
+        }
+        int[] rows = new int[best.size()];
+        for (int i = rows.length - 1; i >= 0; i--) {
+            rows[i] = best.poll().row;
+        }
+        return rows;
+    }
+
+    /**
+     * Adds a cell's unvisited rows that overlap a rectangle and pass a filter to a list.
+     */
+    private void collect(Cell cell, int x0, int y0, long x1, long y1, Filter filter, Cell found) {
+        for (int i = 0; i < cell.size; i++) {
+            int row = cell.rows[i];
+            if (visited[row] != query) {
+                visited[row] = query;
+                if (store.getLowX(row) < x1 && store.getHighX(row) > x0 && store.getLowY(row) < y1
+                        && store.getHighY(row) > y0 && filter.accepts(store, row)) {
+                    found.add(row);
+                }
+            }
+        }
+    }
+
+    /**
+     * Offers a cell's unvisited rows that pass a filter to a bounded list of the nearest ROI.
+     * @param cell cell, or null for an empty cell
+     */
+    private void offer(Cell cell, int x, int y, int count, Filter filter, PriorityQueue<Candidate> best) {
+        for (int i = 0; cell != null && i < cell.size; i++) {
+            int row = cell.rows[i];
+            if (visited[row] == query) {
+                continue;
+            }
+            visited[row] = query;
+            if (!filter.accepts(store, row)) {
+                continue;
+            }
+            long dx = Math.max(0, Math.max((long) store.getLowX(row) - x, (long) x - lastX(row)));
+            long dy = Math.max(0, Math.max((long) store.getLowY(row) - y, (long) y - lastY(row)));
+            long distance = dx * dx + dy * dy;
+            if (best.size() < count || distance < best.peek().distance) {
+                best.add(new Candidate(distance, row));
+                if (best.size() > count) {
+                    best.poll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the last column an ROI covers, its low corner if its bounding box is empty.
+     */
+    private int lastX(int row) {
+        return Math.max(store.getLowX(row), store.getHighX(row) - 1);
+    }
+
+    /**
+     * Returns the last row an ROI covers, its low corner if its bounding box is empty.
+     */
+    private int lastY(int row) {
+        return Math.max(store.getLowY(row), store.getHighY(row) - 1);
+    }
+
+    private static long key(int column, int row) {
+        return ((long) column << 32) | (row & 0xffffffffL);
+    }
+
+    /**
+     * Returns the size of a grid cell.
+     * @return cell size in points
+     */
+    public int getCellSize() { return cellSize; }
+
+    /**
+     * Returns the number of occupied grid cells.
+     * @return number of cells
+     */
+    public int getCellCount() { return cells.size(); }
+
+    /**
+     * Filter - which ROI a query considers, by scale.
+     */
+    public static class Filter {
+        /**
+         * Considers every ROI
+         */
+        public static final Filter ANY = new Filter(1, Integer.MAX_VALUE);
+
+        private final int minScale;
+        private final int maxScale;
+
+        /**
+         * Creates a filter.
+         * @param minScale smallest scale considered (see ROIStore.getScale)
+         * @param maxScale largest scale considered
+         */
+        public Filter(int minScale, int maxScale) {
+            this.minScale = minScale;
+            this.maxScale = maxScale;
+        }
+
+        boolean accepts(ROIStore store, int row) {
+            int scale = store.getScale(row);
+            return scale >= minScale && scale <= maxScale;
+        }
+
+        public int getMinScale() { return minScale; }
+
+        public int getMaxScale() { return maxScale; }
+
+        @Override
+        public String toString() {
+            return "scale " + minScale + "-" + maxScale;
+        }
+    }
+
+    /**
+     * Cell - growable list of rows.
+     */
+    private static class Cell {
+        private int[] rows = new int[4];
+        private int size;
+
+        void add(int row) {
+            if (size == rows.length) {
+                rows = Arrays.copyOf(rows, size * 2);
+            }
+            rows[size++] = row;
+        }
+    }
+
+    /**
+     * Candidate - an ROI and its squared distance from the point of a nearest-neighbour query.
+     */
+    private static class Candidate {
+        private final long distance;
+        private final int row;
+
+        Candidate(long distance, int row) {
+            this.distance = distance;
+            this.row = row;
+        }
+    }
+}
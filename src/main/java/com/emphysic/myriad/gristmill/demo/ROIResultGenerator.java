@@ -21,14 +21,17 @@ import com.emphysic.myriad.core.data.io.Dataset;
 import com.emphysic.myriad.core.data.ops.math.Stats;
 import com.emphysic.myriad.core.data.roi.ROI;
 import com.emphysic.myriad.core.data.util.DatasetUtils;
+import com.emphysic.myriad.gristmill.FloatDataset;
 import com.emphysic.myriad.network.messages.ImmutableMessage;
 import lombok.extern.slf4j.Slf4j;
 
 import java.awt.*;
 import java.util.*;
 import java.util.List;
+import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 /**
  * ROIResultGenerator - combines ROI with the source data to create a visual
@@ -104,49 +107,188 @@ public class ROIResultGenerator {
      * @return a copy of the source data with its ROI added
      */
     public Dataset generate(Dataset input, List<ROI> regions, REPTYPE representationType) {
-        Dataset res;
+        List<Coords> coords = decode(regions, input.getWidth(), input.getHeight());
+        List<Coords> suppressed = null;
+        if (representationType == REPTYPE.NON_MAX_SUPPRESS || representationType == REPTYPE.NMS_ENHANCE) {
+            suppressed = select(coords, suppress(coords));
+        }
+        return render(input, representationType, coords, suppressed, Stats.max(input));
+    }
+
+    /**
+     * Generate several visual representations of ROI results at once.  The ROI geometry, the non-maximum
+     * suppression (if needed) and the data's statistics are computed once and shared, and the representations are
+     * drawn in parallel.
+     * @param input original source data
+     * @param regions list of ROI found in the data
+     * @param representationTypes types of representation to produce
+     * @return a copy of the source data with its ROI added for each requested type of representation
+     */
+    public Map<REPTYPE, Dataset> generate(Dataset input, List<ROI> regions, Set<REPTYPE> representationTypes) {
+        return renderAll(input, decode(regions, input.getWidth(), input.getHeight()), representationTypes,
+                Dataset::new, ROIResultGenerator::canvas);
+    }
+
+    /**
+     * Generate several visual representations of the ROI in a compact store at once.
+     * @param input original source data
+     * @param regions ROI found in the data
+     * @param representationTypes types of representation to produce
+     * @return a copy of the source data with its ROI added for each requested type of representation
+     */
+    public Map<REPTYPE, Dataset> generate(Dataset input, ROIStore regions, Set<REPTYPE> representationTypes) {
+        return renderAll(input, decode(regions, input.getWidth(), input.getHeight()), representationTypes,
+                Dataset::new, ROIResultGenerator::canvas);
+    }
+
+    /**
+     * Generate several visual representations of the ROI in a compact store at once, each drawn on a single precision
+     * copy of the source data so that the representations take half the memory.
+     * @param input original source data
+     * @param regions ROI found in the data
+     * @param representationTypes types of representation to produce
+     * @return a single precision copy of the source data with its ROI added for each requested type of representation
+     */
+    public Map<REPTYPE, FloatDataset> generateSingle(Dataset input, ROIStore regions,
+                                                     Set<REPTYPE> representationTypes) {
+        return renderAll(input, decode(regions, input.getWidth(), input.getHeight()), representationTypes,
+                FloatDataset::of, ROIResultGenerator::canvas);
+    }
+
+    /**
+     * Draws several representations of already-decoded ROI in parallel, each on its own copy of the source data.
+     * @param input original source data
+     * @param coords bounding boxes of the ROI
+     * @param representationTypes types of representation to produce
+     * @param copy makes a copy of the source data to draw on
+     * @param canvas draws on a copy
+     * @param <T> type of the copies
+     * @return a copy of the source data with its ROI added for each requested type of representation
+     */
+    private <T> Map<REPTYPE, T> renderAll(Dataset input, List<Coords> coords, Set<REPTYPE> representationTypes,
+                                          Function<Dataset, T> copy, Function<T, Canvas> canvas) {
+        Map<REPTYPE, T> results = new EnumMap<>(REPTYPE.class);
+        if (representationTypes.isEmpty()) {
+            return results;
+        }
+        List<Coords> suppressed = null;
+        if (representationTypes.contains(REPTYPE.NON_MAX_SUPPRESS)
+                || representationTypes.contains(REPTYPE.NMS_ENHANCE)) {
+            suppressed = select(coords, suppress(coords));
+        }
+        double max = Stats.max(input);
+        List<Coords> picked = suppressed;
+        results.putAll(representationTypes.parallelStream().collect(Collectors.toConcurrentMap(
+                (type) -> type,
+                (type) -> {
+                    T res = copy.apply(input);
+                    draw(canvas.apply(res), type, coords, picked, max);
+                    return res;
+                })));
+        return results;
+    }
+
+    /**
+     * Generate a visual representation of ROI results.  Each ROI's bounding box
+     * is drawn and the interiors are emphasized.
+     * @param input original source data
+     * @param regions list of ROI found in the data
+     * @return a copy of the source data with its ROI added
+     */
+    public Dataset generate(Dataset input, List<ROI> regions) {
+        return generate(input, regions, REPTYPE.ALL_ENHANCE);
+    }
+
+    /**
+     * Draws a single representation of already-decoded ROI.
+     * @param input original source data
+     * @param representationType type of representation to use
+     * @param coords bounding boxes of the ROI
+     * @param suppressed bounding boxes left after non-maximum suppression, required for NMS representations
+     * @param max maximum of the source data
+     * @return a copy of the source data with its ROI added
+     */
+    private Dataset render(Dataset input, REPTYPE representationType, List<Coords> coords, List<Coords> suppressed,
+                           double max) {
+        Dataset res = new Dataset(input);
+        draw(canvas(res), representationType, coords, suppressed, max);
+        return res;
+    }
+
+    /**
+     * Draws a single representation of already-decoded ROI in place.
+     * @param res data to draw on
+     * @param representationType type of representation to use
+     * @param coords bounding boxes of the ROI
+     * @param suppressed bounding boxes left after non-maximum suppression, required for NMS representations
+     * @param max maximum of the source data
+     */
+    private void draw(Canvas res, REPTYPE representationType, List<Coords> coords, List<Coords> suppressed,
+                      double max) {
         switch (representationType) {
             case ENHANCE:
-                res = enhance(input, regions);
+                enhanceBoxes(res, coords);
                 break;
             case UNION:
             case INTERSECTION:
             case OVERLAP:
-                res = merge(input, regions, representationType);
+                drawRectangles(res, mergeBoxes(coords, representationType), max);
                 break;
             case NMS_ENHANCE:
             case NON_MAX_SUPPRESS:
-                List<ROI> suppressed = nonMaxSuppression(
-                        regions,
-                        input.getWidth(),
-                        input.getHeight()
-                );
-                res = all(input, suppressed);
+                drawBoxes(res, suppressed, max);
                 if (representationType == REPTYPE.NMS_ENHANCE) {
-                    res = enhance(res, suppressed);
+                    enhanceBoxes(res, suppressed);
                 }
                 break;
             case ALL:
             case ALL_ENHANCE:
             default:
-                res = all(input, regions);
+                drawBoxes(res, coords, max);
                 if (representationType == REPTYPE.ALL_ENHANCE) {
-                    res = enhance(res, regions);
+                    enhanceBoxes(res, coords);
                 }
                 break;
         }
-        return res;
     }
 
     /**
-     * Generate a visual representation of ROI results.  Each ROI's bounding box
-     * is drawn and the interiors are emphasized.
-     * @param input original source data
-     * @param regions list of ROI found in the data
-     * @return a copy of the source data with its ROI added
+     * Calculates the bounding box of each ROI.
+     * @param regions ROI
+     * @param width width of the source data
+     * @param height height of the source data
+     * @return bounding boxes in the same order as the ROI
      */
-    public Dataset generate(Dataset input, List<ROI> regions) {
-        return generate(input, regions, REPTYPE.ALL_ENHANCE);
+    private List<Coords> decode(List<ROI> regions, int width, int height) {
+        List<Coords> coords = new ArrayList<>(regions.size());
+        for (ROI region : regions) {
+            coords.add(new Coords(region, width, height));
+        }
+        return coords;
+    }
+
+    /**
+     * Clips the bounding boxes of the ROI in a compact store to the source data.
+     * @param regions ROI
+     * @param width width of the source data
+     * @param height height of the source data
+     * @return bounding boxes in the same order as the ROI
+     */
+    private List<Coords> decode(ROIStore regions, int width, int height) {
+        List<Coords> coords = new ArrayList<>(regions.size());
+        for (int i = 0; i < regions.size(); i++) {
+            coords.add(new Coords(regions.getLowX(i), regions.getLowY(i), regions.getHighX(i), regions.getHighY(i),
+                    width, height));
+        }
+        return coords;
+    }
+
+    private static <T> List<T> select(List<T> items, List<Integer> picks) {
+        List<T> selected = new ArrayList<>(picks.size());
+        for (Integer pick : picks) {
+            selected.add(items.get(pick));
+        }
+        return selected;
     }
 
     /**
@@ -157,21 +299,28 @@ public class ROIResultGenerator {
      */
     public Dataset all(Dataset input, List<ROI> regions) {
         Dataset res = new Dataset(input);
-        Double max = Stats.max(input);
-        regions.stream().map((r) -> new Coords(r, input.getWidth(), input.getHeight())).map((roiBB) -> {
+        drawBoxes(canvas(res), decode(regions, input.getWidth(), input.getHeight()), Stats.max(input));
+        return res;
+    }
+
+    /**
+     * Draws bounding boxes in place.
+     * @param res data to draw on
+     * @param coords bounding boxes
+     * @param max value to draw with
+     */
+    private void drawBoxes(Canvas res, List<Coords> coords, double max) {
+        for (Coords roiBB : coords) {
             // Highlight the ROI region - bright border around bounding box
             for (int i=roiBB.lowX; i<=roiBB.highX; i++) {
                 res.set(i, roiBB.lowY, max);
                 res.set(i, roiBB.highY, max);
             }
-            return roiBB;
-        }).forEach((roiBB) -> {
             for (int i=roiBB.lowY; i<=roiBB.highY; i++) {
                 res.set(roiBB.lowX, i, max);
                 res.set(roiBB.highX, i, max);
             }
-        });
-        return res;
+        }
     }
 
     /**
@@ -185,15 +334,23 @@ public class ROIResultGenerator {
      */
     public Dataset enhance(Dataset input, List<ROI> regions) {
         Dataset res = new Dataset(input);
-        Double max = Stats.max(input);
-        regions.stream().map((region) -> new Coords(region, input.getWidth(), input.getHeight())).forEach((coords) -> {
-            for (int i=coords.lowX; i<coords.highX; i++) {
-                for (int j=coords.lowY; j<coords.highY; j++) {
+        enhanceBoxes(canvas(res), decode(regions, input.getWidth(), input.getHeight()));
+        return res;
+    }
+
+    /**
+     * Multiplies the interiors of bounding boxes by the enhancement factor in place.
+     * @param res data to enhance
+     * @param coords bounding boxes
+     */
+    private void enhanceBoxes(Canvas res, List<Coords> coords) {
+        for (Coords c : coords) {
+            for (int i=c.lowX; i<c.highX; i++) {
+                for (int j=c.lowY; j<c.highY; j++) {
                     res.set(i, j, res.get(i, j) * enhanceFactor);
                 }
             }
-        });
-        return res;
+        }
     }
 
     /**
@@ -259,10 +416,21 @@ public class ROIResultGenerator {
      */
     public Dataset merge(Dataset input, List<ROI> regions, REPTYPE merge) {
         Dataset res = new Dataset(input);
-        Double max = Stats.max(input);
+        drawRectangles(canvas(res), mergeBoxes(decode(regions, res.getWidth(), res.getHeight()), merge),
+                Stats.max(input));
+        return res;
+    }
+
+    /**
+     * Merges bounding boxes into fewer regions.
+     * @param coords bounding boxes
+     * @param merge the type of merge operation to perform
+     * @return merged regions
+     */
+    private List<Rectangle> mergeBoxes(List<Coords> coords, REPTYPE merge) {
         List<Rectangle> boxes = new ArrayList<>();
         // TODO: consider sorting ROI here for true non-max suppression
-        regions.stream().map((region) -> new Coords(region, res.getWidth(), res.getHeight())).map((bb) -> new Rectangle(bb.lowX,
+        coords.stream().map((bb) -> new Rectangle(bb.lowX,
                 bb.lowY,
                 bb.highX - bb.lowX,
                 bb.highY - bb.lowY)).forEach((Rectangle newBB) -> {
@@ -292,6 +460,16 @@ public class ROIResultGenerator {
                 boxes.add(newBB);
             }
         });
+        return boxes;
+    }
+
+    /**
+     * Draws rectangles in place.
+     * @param res data to draw on
+     * @param boxes rectangles
+     * @param max value to draw with
+     */
+    private void drawRectangles(Canvas res, List<Rectangle> boxes, double max) {
         boxes.stream().forEach((box) -> {
             int left = (int) box.getX();
             int top = (int) box.getY();
@@ -306,7 +484,6 @@ public class ROIResultGenerator {
                 res.set(right, y, max);
             }
         });
-        return res;
     }
 
     /**
@@ -318,14 +495,22 @@ public class ROIResultGenerator {
      * @return a new list of ROI with overlapping regions dropped
      */
     public List<ROI> nonMaxSuppression(List<ROI> regions, int width, int height) {
-        List<ROI> boxes = new ArrayList<>();
+        return select(regions, suppress(decode(regions, width, height)));
+    }
+
+    /**
+     * Non-Maximum Suppression (NMS) of bounding boxes.
+     * @param coords bounding boxes
+     * @return indices of the boxes that survive suppression
+     */
+    private List<Integer> suppress(List<Coords> coords) {
         List<Integer> bottom = new ArrayList();
         List<Double> area = new ArrayList();
-        regions.stream().map((r) -> new Coords(r, width, height)).map((coords) -> {
-            bottom.add(coords.highY);
-            return coords;
-        }).forEach((coords) -> {
-            area.add((double)(coords.highX - coords.lowX) * (double)(coords.highY - coords.lowY));
+        coords.stream().map((c) -> {
+            bottom.add(c.highY);
+            return c;
+        }).forEach((c) -> {
+            area.add((double)(c.highX - c.lowX) * (double)(c.highY - c.lowY));
         });
         ArrayIndexComparator<Integer> comparator = new ArrayIndexComparator<>(bottom);
         List<Integer> idxs = comparator.createIndexArray();
@@ -335,14 +520,12 @@ public class ROIResultGenerator {
         while (idxs.size() > 0) {
             int last = idxs.size() - 1;
             Integer i = idxs.remove(last);
-            ROI r1 = regions.get(i);
-            Coords c1 = new Coords(r1, width, height);
+            Coords c1 = coords.get(i);
             picks.add(i);
             List<Integer> suppress = new ArrayList();
             for (int pos=0; pos<last; pos++) {
                 Integer j = idxs.get(pos);
-                ROI r2 = regions.get(j);
-                Coords c2 = new Coords(r2, width, height);
+                Coords c2 = coords.get(j);
                 int xx1 = Math.max(c1.lowX, c2.lowX);
                 int yy1 = Math.max(c1.lowY, c2.lowY);
                 int xx2 = Math.min(c1.highX, c2.highX);
@@ -358,10 +541,7 @@ public class ROIResultGenerator {
                 idxs.remove(toRemove);
             });
         }
-        picks.stream().forEach((pick) -> {
-            boxes.add(regions.get(pick));
-        });
-        return boxes;
+        return picks;
     }
 
     /**
@@ -471,12 +651,61 @@ public class ROIResultGenerator {
                     h = Integer.parseInt(m.group(8));
                 }
             }
+            // ROI found in a tile are relative to the tile's origin
+            Tile tile = Tile.parse(md.get(Tile.TILEKEY));
+            int tileX = tile == null ? 0 : tile.getOriginX();
+            int tileY = tile == null ? 0 : tile.getOriginY();
             int scaler = scalingFactor * sizeFactor;
-            lowX = DatasetUtils.safeIdx(scaler * xoff, width);
-            lowY = DatasetUtils.safeIdx(scaler * yoff, height);
+            lowX = DatasetUtils.safeIdx(tileX + scaler * xoff, width);
+            lowY = DatasetUtils.safeIdx(tileY + scaler * yoff, height);
             highX = DatasetUtils.safeIdx(lowX + scaler * w, width);
             highY = DatasetUtils.safeIdx(lowY + scaler * h, height);
         }
+
+        /**
+         * Constructor
+         * @param lowX x-coordinate of upper left corner in original data, unclipped
+         * @param lowY y-coordinate of upper left corner in original data, unclipped
+         * @param highX x-coordinate of lower right corner in original data, unclipped
+         * @param highY y-coordinate of lower right corner in original data, unclipped
+         * @param width width of original data
+         * @param height height of original data
+         */
+        public Coords(int lowX, int lowY, int highX, int highY, int width, int height) {
+            this.lowX = DatasetUtils.safeIdx(lowX, width);
+            this.lowY = DatasetUtils.safeIdx(lowY, height);
+            this.highX = DatasetUtils.safeIdx(this.lowX + highX - lowX, width);
+            this.highY = DatasetUtils.safeIdx(this.lowY + highY - lowY, height);
+        }
+    }
+
+    private static Canvas canvas(Dataset data) {
+        return new Canvas() {
+            @Override
+            public double get(int x, int y) { return data.get(x, y); }
+
+            @Override
+            public void set(int x, int y, double value) { data.set(x, y, value); }
+        };
+    }
+
+    private static Canvas canvas(FloatDataset data) {
+        return new Canvas() {
+            @Override
+            public double get(int x, int y) { return data.get(x, y); }
+
+            @Override
+            public void set(int x, int y, double value) { data.set(x, y, value); }
+        };
+    }
+
+    /**
+     * Canvas - data ROI are drawn on, in double or single precision.
+     */
+    private interface Canvas {
+        double get(int x, int y);
+
+        void set(int x, int y, double value);
     }
 
     /**
@@ -18,9 +18,12 @@
 package com.emphysic.myriad.gristmill.demo;
 
 import com.emphysic.myriad.core.data.roi.ROI;
+import com.emphysic.myriad.gristmill.ScanMask;
+import com.emphysic.myriad.network.messages.ImmutableMessage;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -36,27 +39,239 @@ import java.util.List;
 public class ROIResults {
     private String name;
     private File contents;
-    private List<ROI> roi;
+    /**
+     * Geometry and tags of the ROI found in the file
+     */
+    private final ROIStore store = new ROIStore();
+    /**
+     * Complete ROI including their window data, kept on disk if requested
+     */
+    private WindowPayloads payloads;
+    /**
+     * Spatial index of the store, created by indexBy or the first query
+     */
+    private ROIIndex index;
+    /**
+     * Number of window results (with or without an ROI) received for the file
+     */
+    private volatile long received;
+    /**
+     * Time (ms since the epoch) the last window result was received
+     */
+    private volatile long lastReceived;
+    /**
+     * Number of window results expected for the file, -1 if unknown
+     */
+    private volatile long expected = -1;
 
     public ROIResults(File contents) {
+        this(contents, contents.getAbsolutePath());
+    }
+
+    /**
+     * Creates results named by the hash of an identifier.
+     * @param contents original data
+     * @param id identifier of the results e.g. the path of the original data
+     */
+    protected ROIResults(File contents, String id) {
         this.contents = contents;
         try {
-            this.name = genHash(contents.getAbsolutePath());
+            this.name = genHash(id);
         } catch (Exception e) {
             this.name = Long.toHexString(System.currentTimeMillis());
             log.warn("Unable to generate hash for specified filename using ", name);
         }
-        roi = new ArrayList<>();
     }
 
     public String getName() { return name; }
 
     public File getContents() { return contents; }
 
-    public List<ROI> getROI() { return roi; }
+    /**
+     * Returns the ROI found in the file.
+     * @return compact store of the ROI's geometry and tags
+     */
+    public ROIStore getStore() { return store; }
+
+    /**
+     * Returns the number of ROI found in the file.
+     * @return number of ROI
+     */
+    public int size() { return store.size(); }
+
+    /**
+     * Keeps the complete ROI (including their window data) received from now on in a temporary file, so that they
+     * can be fetched with getPayload.
+     * @param folder folder for the temporary file, or null for the default temporary folder
+     * @throws IOException if the file couldn't be created
+     */
+    public void keepPayloads(File folder) throws IOException {
+        if (payloads == null) {
+            payloads = new WindowPayloads(folder);
+        }
+    }
+
+    /**
+     * Fetches the complete ROI of a row of the store, e.g. to look at the data an ROI was found in.
+     * @param row row of the ROI
+     * @return ROI, or null if payloads aren't kept or weren't received for the row
+     * @throws IOException if the ROI couldn't be read
+     */
+    public ROI getPayload(int row) throws IOException {
+        return payloads == null ? null : payloads.get(row);
+    }
+
+    /**
+     * Deletes the kept payloads, if any.
+     */
+    public void discardPayloads() {
+        if (payloads != null) {
+            payloads.close();
+            payloads = null;
+        }
+    }
+
+    /**
+     * Records that a window of the file has been evaluated, whether or not it contained an ROI.
+     */
+    public void windowReceived() {
+        received++;
+        lastReceived = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the number of windows of the file evaluated so far.
+     * @return number of window results received
+     */
+    public long getReceived() { return received; }
+
+    /**
+     * Returns when the last window result for the file arrived.
+     * @return time in ms since the epoch, or 0 if none has arrived
+     */
+    public long getLastReceived() { return lastReceived; }
+
+    /**
+     * Sets the number of window results expected for the file, as determined by the geometry of GristMill's scans (see
+     * ScanGeometry) from the size of the data as sent.
+     * @param expected number of windows, or -1 if unknown
+     */
+    public void setExpected(long expected) { this.expected = expected; }
+
+    public long getExpected() { return expected; }
+
+    /**
+     * Determines whether every window of the file has been evaluated.
+     * @return true if the expected number of windows is known and as many window results have been received
+     */
+    public boolean isComplete() {
+        return expected >= 0 && received >= expected;
+    }
+
+    /**
+     * Adds an ROI unless an ROI for the same window has already been added, or it was found in the halo of a tile
+     * (the neighbouring tile reports it).  Only the ROI's geometry and tags are kept, plus the complete ROI if payloads
+     * are kept.
+     * @param newROI region of interest
+     * @return row of the ROI in the store, or -1 if it wasn't added
+     */
+    public synchronized int addROI(ROI newROI) {
+        if (inHalo(newROI)) {
+            return -1;
+        }
+        int row = store.add(newROI);
+        if (row >= 0 && index != null) {
+            index.update();
+        }
+        if (row >= 0 && payloads != null) {
+            try {
+                payloads.put(row, newROI);
+            } catch (IOException e) {
+                log.warn("Unable to keep payload of " + name + " row " + row + ": " + e);
+            }
+        }
+        return row;
+    }
+
+    /**
+     * Indexes the ROI found so far and from now on as they arrive, so that region and nearest-neighbour queries needn't
+     * walk the store.  Queries index the store on first use if this hasn't been called.
+     * @param cellSize size of a cell of the index's grid in points
+     */
+    public synchronized void indexBy(int cellSize) {
+        if (index == null) {
+            index = new ROIIndex(store, cellSize);
+        }
+    }
 
-    public void addROI(ROI newROI) {
-        roi.add(newROI);
+    /**
+     * Finds the ROI whose bounding boxes overlap a rectangle of the original data, e.g. the part of a scan on screen.
+     * @param x x-coordinate of the rectangle's upper left corner
+     * @param y y-coordinate of the rectangle's upper left corner
+     * @param width width of the rectangle
+     * @param height height of the rectangle
+     * @param filter ROI to consider
+     * @return rows of the matching ROI in ascending order
+     */
+    public synchronized int[] within(int x, int y, int width, int height, ROIIndex.Filter filter) {
+        indexBy(ROIIndex.DEFAULT_CELL_SIZE);
+        return index.within(x, y, width, height, filter);
+    }
+
+    /**
+     * Finds the ROI nearest a point of the original data.
+     * @param x x-coordinate of the point
+     * @param y y-coordinate of the point
+     * @param count maximum number of ROI to return
+     * @param filter ROI to consider
+     * @return rows of up to count ROI, nearest first
+     */
+    public synchronized int[] nearest(int x, int y, int count, ROIIndex.Filter filter) {
+        indexBy(ROIIndex.DEFAULT_CELL_SIZE);
+        return index.nearest(x, y, count, filter);
+    }
+
+    /**
+     * Copies some of the ROI found so far into a new store, e.g. the rows returned by a query.
+     * @param rows rows to copy
+     * @return new store
+     */
+    public synchronized ROIStore select(int[] rows) {
+        return store.select(rows);
+    }
+
+    /**
+     * Creates a scan mask covering the ROI found so far, e.g. to rescan only around earlier findings.
+     * @param margin points to add around each ROI
+     * @return mask, which scans nothing if no ROI were found
+     */
+    public ScanMask maskAround(int margin) {
+        List<ScanMask.Region> regions = new ArrayList<>();
+        for (int i = 0; i < store.size(); i++) {
+            regions.add(new ScanMask.Region(store.getLowX(i) - margin, store.getLowY(i) - margin,
+                    store.getHighX(i) - store.getLowX(i) + 2 * margin,
+                    store.getHighY(i) - store.getLowY(i) + 2 * margin));
+        }
+        return ScanMask.of(regions);
+    }
+
+    /**
+     * Determines whether an ROI was found in a tile's halo rather than its core, i.e. the ROI's center lies in data
+     * that belongs to a neighbouring tile.
+     * @param r region of interest
+     * @return true if the ROI should be left to the neighbouring tile
+     */
+    private static boolean inHalo(ROI r) {
+        String metadata = r.getMetadata();
+        if (metadata == null || !metadata.contains(Tile.TILEKEY)) {
+            return false;
+        }
+        Tile tile = Tile.parse(ImmutableMessage.getMetadata(metadata).get(Tile.TILEKEY));
+        if (tile == null) {
+            return false;
+        }
+        ROIResultGenerator.Coords c = new ROIResultGenerator().new Coords(r, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        return !tile.coreContains((c.lowX + c.highX) / 2, (c.lowY + c.highY) / 2);
     }
 
     /**
@@ -0,0 +1,333 @@
+/*
+ * com.emphysic.myriad.gristmill.demo.ROIStore
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill.demo;
+
+import com.emphysic.myriad.core.data.roi.ROI;
+import com.emphysic.myriad.gristmill.ROIFinderStage;
+import com.emphysic.myriad.gristmill.Volumes;
+import com.emphysic.myriad.network.messages.ImmutableMessage;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * ROIStore - compact store of the ROI found in a file.  Reporting only needs each ROI's geometry and a few tags, so
+ * rather than keeping ROI objects (each carrying its window's data and a metadata string) the store keeps one
+ * primitive column per field, grown by doubling: the bounding box in the original data's coordinates (unclipped),
+ * the scale, the scan index and slice (-1 if not part of a volume), the number of consecutive slices the ROI was found
+ * in (1 unless GristMill reported it once for several slices), the bundle and model (as codes into a small dictionary)
+ * and a 64-bit hash of the window the ROI was found in.  That is about 54 bytes per ROI.
+ *
+ * The window hash covers the pyramid level, window position, tile and model, and together with the slice identifies
+ * the window; an ROI for a window already in the store is ignored, so that a file that is resubmitted doesn't record
+ * the same ROI twice.
+ */
+public class ROIStore implements Serializable {
+    private static final Pattern PYRAMID = Pattern.compile("pscale([0-9]+)pwsize([0-9]+)pstep([0-9]+)");
+    /**
+     * Window hash of ROI whose metadata doesn't identify their window
+     */
+    private static final long NO_WINDOW = 0;
+    private static final ROIResultGenerator GENERATOR = new ROIResultGenerator();
+
+    private int size;
+    private int[] lowX = new int[16];
+    private int[] lowY = new int[16];
+    private int[] highX = new int[16];
+    private int[] highY = new int[16];
+    private int[] scale = new int[16];
+    private int[] index = new int[16];
+    private int[] slice = new int[16];
+    private int[] depth = new int[16];
+    private int[] bundle = new int[16];
+    private int[] model = new int[16];
+    private long[] window = new long[16];
+    /**
+     * Bundle and model names, referred to by their position; code -1 is none
+     */
+    private final List<String> labels = new ArrayList<>();
+    private final Map<String, Integer> codes = new HashMap<>();
+    /**
+     * Open-addressed set of the (window, slice) keys in the store, 0 marks an empty slot
+     */
+    private long[] seen = new long[32];
+    private int seenCount;
+
+    /**
+     * Adds an ROI, unless an ROI for the same window is already in the store.
+     * @param roi region of interest with its metadata
+     * @return row of the ROI, or -1 if it was a duplicate
+     */
+    public int add(ROI roi) {
+        Map<String, String> md = ImmutableMessage.getMetadata(roi.getMetadata());
+        ROIResultGenerator.Coords c = GENERATOR.new Coords(roi, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        int s = 1;
+        String pyramid = md.get("pyramid");
+        if (pyramid != null) {
+            Matcher m = PYRAMID.matcher(pyramid);
+            if (m.matches()) {
+                // As ScanMask: a point of pyramid level pstep covers pscale * pstep points of the original data
+                s = Math.max(1, Integer.parseInt(m.group(1)) * Integer.parseInt(m.group(3)));
+            }
+        }
+        String w = md.get("window");
+        long windowHash = w == null ? NO_WINDOW : hash(pyramid + "/" + w + "/" + md.get(Tile.TILEKEY) + "/"
+                + md.get(ROIFinderStage.MODELKEY));
+        return add(c.lowX, c.lowY, c.highX, c.highY, s, (int) parse(md.get(VolumeResults.INDEXKEY), -1),
+                (int) parse(md.get(Volumes.SLICEKEY), -1), Math.max(1, (int) parse(md.get(Volumes.DEPTHKEY), 1)),
+                md.get(ROIFinderStage.BUNDLEKEY), md.get(ROIFinderStage.MODELKEY), windowHash);
+    }
+
+    /**
+     * Adds every ROI of another store that isn't already in this one.
+     * @param other store
+     */
+    public void addAll(ROIStore other) {
+        for (int i = 0; i < other.size; i++) {
+            add(other.lowX[i], other.lowY[i], other.highX[i], other.highY[i], other.scale[i], other.index[i],
+                    other.slice[i], other.depth[i], other.getBundle(i), other.getModel(i), other.window[i]);
+        }
+    }
+
+    /**
+     * Copies some of the store's ROI into a new store.
+     * @param rows rows to copy
+     * @return new store
+     */
+    public ROIStore select(int[] rows) {
+        ROIStore selected = new ROIStore();
+        for (int i : rows) {
+            selected.add(lowX[i], lowY[i], highX[i], highY[i], scale[i], index[i], slice[i], depth[i], getBundle(i),
+                    getModel(i), window[i]);
+        }
+        return selected;
+    }
+
+    private int add(int x0, int y0, int x1, int y1, int s, int idx, int sl, int d, String b, String m, long w) {
+        if (w != NO_WINDOW && !markSeen(w * 0x9E3779B97F4A7C15L + sl)) {
+            return -1;
+        }
+        if (size == lowX.length) {
+            grow();
+        }
+        lowX[size] = x0;
+        lowY[size] = y0;
+        highX[size] = x1;
+        highY[size] = y1;
+        scale[size] = s;
+        index[size] = idx;
+        slice[size] = sl;
+        depth[size] = d;
+        bundle[size] = codeOf(b);
+        model[size] = codeOf(m);
+        window[size] = w;
+        return size++;
+    }
+
+    private void grow() {
+        int capacity = lowX.length * 2;
+        lowX = Arrays.copyOf(lowX, capacity);
+        lowY = Arrays.copyOf(lowY, capacity);
+        highX = Arrays.copyOf(highX, capacity);
+        highY = Arrays.copyOf(highY, capacity);
+        scale = Arrays.copyOf(scale, capacity);
+        index = Arrays.copyOf(index, capacity);
+        slice = Arrays.copyOf(slice, capacity);
+        depth = Arrays.copyOf(depth, capacity);
+        bundle = Arrays.copyOf(bundle, capacity);
+        model = Arrays.copyOf(model, capacity);
+        window = Arrays.copyOf(window, capacity);
+    }
+
+    /**
+     * Adds a key to the set of windows in the store.
+     * @param key window and slice key
+     * @return true if the key wasn't already present
+     */
+    private boolean markSeen(long key) {
+        if (key == 0) {
+            key = 1;
+        }
+        if (2 * (seenCount + 1) > seen.length) {
+            long[] old = seen;
+            seen = new long[old.length * 2];
+            seenCount = 0;
+            for (long k : old) {
+                if (k != 0) {
+                    markSeen(k);
+                }
+            }
+        }
+        int mask = seen.length - 1;
+        int slot = (int) (mix(key) & mask);
+        while (seen[slot] != 0) {
+            if (seen[slot] == key) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        seen[slot] = key;
+        seenCount++;
+        return true;
+    }
+
+    private int codeOf(String label) {
+        if (label == null) {
+            return -1;
+        }
+        Integer code = codes.get(label);
+        if (code == null) {
+            code = labels.size();
+            labels.add(label);
+            codes.put(label, code);
+        }
+        return code;
+    }
+
+    /**
+     * Writes one ROI, e.g. to a journal.
+     * @param out destination
+     * @param row row of the ROI
+     * @throws IOException if the ROI couldn't be written
+     */
+    public void writeRow(DataOutput out, int row) throws IOException {
+        out.writeInt(lowX[row]);
+        out.writeInt(lowY[row]);
+        out.writeInt(highX[row]);
+        out.writeInt(highY[row]);
+        out.writeInt(scale[row]);
+        out.writeInt(index[row]);
+        out.writeInt(slice[row]);
+        out.writeInt(depth[row]);
+        out.writeUTF(bundle[row] < 0 ? "" : labels.get(bundle[row]));
+        out.writeUTF(model[row] < 0 ? "" : labels.get(model[row]));
+        out.writeLong(window[row]);
+    }
+
+    /**
+     * Reads an ROI written by writeRow and adds it, unless an ROI for the same window is already in the store.
+     * @param in source
+     * @return row of the ROI, or -1 if it was a duplicate
+     * @throws IOException if the ROI couldn't be read
+     */
+    public int readRow(DataInput in) throws IOException {
+        int x0 = in.readInt();
+        int y0 = in.readInt();
+        int x1 = in.readInt();
+        int y1 = in.readInt();
+        int s = in.readInt();
+        int idx = in.readInt();
+        int sl = in.readInt();
+        int d = in.readInt();
+        String b = in.readUTF();
+        String m = in.readUTF();
+        return add(x0, y0, x1, y1, s, idx, sl, d, b.isEmpty() ? null : b, m.isEmpty() ? null : m, in.readLong());
+    }
+
+    /**
+     * Returns the number of ROI in the store.
+     * @return number of ROI
+     */
+    public int size() { return size; }
+
+    public int getLowX(int row) { return lowX[row]; }
+
+    public int getLowY(int row) { return lowY[row]; }
+
+    public int getHighX(int row) { return highX[row]; }
+
+    public int getHighY(int row) { return highY[row]; }
+
+    /**
+     * Returns the scale an ROI was found at, i.e. how many points of the original data a point of its pyramid level
+     * covers.
+     * @param row row of the ROI
+     * @return scale, 1 if unknown
+     */
+    public int getScale(int row) { return scale[row]; }
+
+    /**
+     * Returns the scan index of the slice an ROI was found in.
+     * @param row row of the ROI
+     * @return scan index, or -1 if the ROI isn't part of a volume
+     */
+    public int getIndex(int row) { return index[row]; }
+
+    /**
+     * Returns the position in its volume of the slice an ROI was found in.
+     * @param row row of the ROI
+     * @return slice, or -1 if the ROI isn't part of a volume
+     */
+    public int getSlice(int row) { return slice[row]; }
+
+    /**
+     * Returns the number of consecutive slices, starting with its own, an ROI was found in.
+     * @param row row of the ROI
+     * @return number of slices, 1 unless GristMill reported the ROI once for several slices
+     */
+    public int getDepth(int row) { return depth[row]; }
+
+    public String getBundle(int row) { return bundle[row] < 0 ? null : labels.get(bundle[row]); }
+
+    public String getModel(int row) { return model[row] < 0 ? null : labels.get(model[row]); }
+
+    /**
+     * Returns the hash of the window an ROI was found in, which is the same for every slice of a volume.
+     * @param row row of the ROI
+     * @return hash of the pyramid level, window position, tile and model
+     */
+    public long getWindow(int row) { return window[row]; }
+
+    private static long hash(String s) {
+        // 64-bit FNV-1a
+        long h = 0xcbf29ce484222325L;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return h == NO_WINDOW ? 1 : h;
+    }
+
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private static double parse(String value, double defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * com.emphysic.myriad.gristmill.demo.ROIWriter
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill.demo;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * ROIWriter - writes the ROI found in a file as a compact list for machine consumers, rather than rendering them
+ * into a copy of the data.  Each ROI is written with its source, its bounding box in the original data's coordinates,
+ * the scale it was found at, the bundle that found it, (for volumes) the scan index of its slice and (if GristMill
+ * runs several models) the model that found it.  Bounding boxes aren't
+ * clipped to the data, which would require reading it.
+ *
+ * Formats:
+ * CSV - a header line followed by one line per ROI
+ * JSONL - one JSON object per line
+ * BINARY - big-endian: "GMRO", version, source, count, then per ROI four int coordinates, int scale, bundle, int
+ * index (-1 if none) and model ("" if none); strings are written as modified UTF-8
+ */
+public class ROIWriter {
+    /**
+     * Output formats
+     */
+    public enum FORMAT {
+        CSV,
+        JSONL,
+        BINARY
+    }
+
+    private static final int MAGIC = 0x474D524F;
+    private static final int VERSION = 1;
+
+    private final FORMAT format;
+
+    public ROIWriter(FORMAT format) {
+        this.format = format;
+    }
+
+    /**
+     * Returns the usual file extension for the writer's format.
+     * @return extension including the leading period
+     */
+    public String getExtension() {
+        switch (format) {
+            case JSONL:
+                return ".jsonl";
+            case BINARY:
+                return ".roi";
+            case CSV:
+            default:
+                return ".csv";
+        }
+    }
+
+    /**
+     * Writes a file's ROI.
+     * @param results ROI found in the file
+     * @param outFile destination
+     * @throws IOException if the destination couldn't be written
+     */
+    public void write(ROIResults results, File outFile) throws IOException {
+        String source = results.getContents().getAbsolutePath();
+        ROIStore regions = results.getStore();
+        if (format == FORMAT.BINARY) {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outFile)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(source);
+                out.writeInt(regions.size());
+                for (int i = 0; i < regions.size(); i++) {
+                    out.writeInt(regions.getLowX(i));
+                    out.writeInt(regions.getLowY(i));
+                    out.writeInt(regions.getHighX(i));
+                    out.writeInt(regions.getHighY(i));
+                    out.writeInt(regions.getScale(i));
+                    out.writeUTF(regions.getBundle(i) == null ? "" : regions.getBundle(i));
+                    out.writeInt(regions.getIndex(i));
+                    out.writeUTF(regions.getModel(i) == null ? "" : regions.getModel(i));
+                }
+            }
+            return;
+        }
+        try (Writer out = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(outFile), StandardCharsets.UTF_8))) {
+            if (format == FORMAT.CSV) {
+                out.write("source,lowX,lowY,highX,highY,scale,bundle,index,model\n");
+            }
+            for (int i = 0; i < regions.size(); i++) {
+                int index = regions.getIndex(i);
+                if (format == FORMAT.CSV) {
+                    out.write(csv(source) + "," + regions.getLowX(i) + "," + regions.getLowY(i) + ","
+                            + regions.getHighX(i) + "," + regions.getHighY(i) + "," + regions.getScale(i) + ","
+                            + csv(regions.getBundle(i)) + "," + (index < 0 ? "" : index) + ","
+                            + csv(regions.getModel(i)) + "\n");
+                } else {
+                    out.write("{\"source\":" + json(source)
+                            + ",\"lowX\":" + regions.getLowX(i) + ",\"lowY\":" + regions.getLowY(i)
+                            + ",\"highX\":" + regions.getHighX(i) + ",\"highY\":" + regions.getHighY(i)
+                            + ",\"scale\":" + regions.getScale(i)
+                            + ",\"bundle\":" + json(regions.getBundle(i))
+                            + ",\"index\":" + (index < 0 ? "null" : index)
+                            + ",\"model\":" + json(regions.getModel(i)) + "}\n");
+                }
+            }
+        }
+    }
+
+    private static String csv(String value) {
+        if (value == null) {
+            return "";
+        }
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return value;
+        }
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+
+    private static String json(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
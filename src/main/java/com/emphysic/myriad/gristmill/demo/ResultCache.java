@@ -0,0 +1,214 @@
+/*
+ * com.emphysic.myriad.gristmill.demo.ResultCache
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill.demo;
+
+import com.emphysic.myriad.gristmill.FileDigest;
+import com.typesafe.config.Config;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * ResultCache - persistent cache of the ROI found in a file, keyed by the file's contents and the signature of the
+ * pipeline that processed it (see PipelineSignature).  Resubmitting identical data to an identically-configured
+ * GristMill returns the cached ROI without sending the data through the pipeline, whatever the file is called.
+ *
+ * Entries are stored one per file in a folder on local disk.  When the entries exceed the size cap the least recently
+ * used are evicted; the order of use survives restarts through the entries' modification times.
+ */
+@Slf4j
+public class ResultCache {
+    private static final String SUFFIX = ".roi";
+
+    private final File folder;
+    /**
+     * Maximum total size of the entries in bytes
+     */
+    private final long maxBytes;
+    /**
+     * Size of each entry in least to most recently used order
+     */
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+    private long hits;
+    private long misses;
+
+    /**
+     * Creates a cache, indexing any entries already in its folder.
+     * @param folder folder holding the entries, created if necessary
+     * @param maxBytes maximum total size of the entries in bytes
+     * @throws IOException if the folder couldn't be created
+     */
+    public ResultCache(File folder, long maxBytes) throws IOException {
+        this.folder = folder;
+        this.maxBytes = maxBytes;
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("Unable to create cache folder " + folder);
+        }
+        File[] existing = folder.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (existing != null) {
+            Arrays.sort(existing, Comparator.comparingLong(File::lastModified));
+            for (File f : existing) {
+                entries.put(keyOf(f), f.length());
+                totalBytes += f.length();
+            }
+        }
+        evict();
+        log.info("Result cache " + folder + " holds " + entries.size() + " entries (" + totalBytes + " bytes)");
+    }
+
+    /**
+     * Creates a cache from the cache block of the Thresher configuration.
+     * @param config Thresher configuration
+     * @return new cache, or null if caching is disabled, not configured or the cache folder is unusable
+     */
+    public static ResultCache fromConfig(Config config) {
+        if (!config.hasPath("cache.enabled") || !config.getBoolean("cache.enabled")) {
+            return null;
+        }
+        String path = config.hasPath("cache.folder") ? config.getString("cache.folder") : "";
+        File folder = (path == null || path.isEmpty())
+                ? new File(System.getProperty("user.dir"), "cache") : new File(path);
+        long maxBytes = config.hasPath("cache.max-size") ? config.getBytes("cache.max-size") : 1024L * 1024 * 1024;
+        try {
+            return new ResultCache(folder, maxBytes);
+        } catch (IOException e) {
+            log.error("Unable to open result cache, continuing without it: " + e);
+        }
+        return null;
+    }
+
+    /**
+     * Generates the cache key for a file processed by a particular pipeline configuration.
+     * @param f data file
+     * @param signature pipeline signature
+     * @return cache key
+     * @throws IOException if the file couldn't be read
+     */
+    public static String keyOf(File f, String signature) throws IOException {
+        return FileDigest.of(FileDigest.of(f) + "|" + signature);
+    }
+
+    /**
+     * Retrieves the ROI cached under a key.
+     * @param key cache key
+     * @return cached ROI, or null if there is no (readable) entry for the key
+     */
+    public synchronized ROIStore get(String key) {
+        if (entries.get(key) == null) {
+            misses++;
+            return null;
+        }
+        File f = fileOf(key);
+        try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            ROIStore roi = (ROIStore) in.readObject();
+            if (!f.setLastModified(System.currentTimeMillis())) {
+                log.debug("Unable to update last use of cache entry " + f);
+            }
+            hits++;
+            return roi;
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            log.warn("Discarding unreadable cache entry " + f + ": " + e);
+            remove(key);
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * Stores the ROI found for a file, evicting the least recently used entries if the cache is over its size cap.
+     * @param key cache key
+     * @param roi ROI found in the file
+     */
+    public synchronized void put(String key, ROIStore roi) {
+        File f = fileOf(key);
+        File tmp = new File(folder, key + ".tmp");
+        try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeObject(roi);
+        } catch (IOException e) {
+            log.warn("Unable to cache results under " + key + ": " + e);
+            tmp.delete();
+            return;
+        }
+        remove(key);
+        if (!tmp.renameTo(f)) {
+            log.warn("Unable to cache results under " + key);
+            tmp.delete();
+            return;
+        }
+        entries.put(key, f.length());
+        totalBytes += f.length();
+        evict();
+    }
+
+    /**
+     * Returns the number of lookups that found an entry.
+     * @return number of hits
+     */
+    public synchronized long getHits() { return hits; }
+
+    /**
+     * Returns the number of lookups that didn't find an entry.
+     * @return number of misses
+     */
+    public synchronized long getMisses() { return misses; }
+
+    /**
+     * Removes least recently used entries until the cache is within its size cap.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            it.remove();
+            totalBytes -= eldest.getValue();
+            if (!fileOf(eldest.getKey()).delete()) {
+                log.warn("Unable to evict cache entry " + eldest.getKey());
+            }
+        }
+    }
+
+    private void remove(String key) {
+        Long size = entries.remove(key);
+        if (size != null) {
+            totalBytes -= size;
+            fileOf(key).delete();
+        }
+    }
+
+    private File fileOf(String key) {
+        return new File(folder, key + SUFFIX);
+    }
+
+    private static String keyOf(File f) {
+        String name = f.getName();
+        return name.substring(0, name.length() - SUFFIX.length());
+    }
+}
@@ -0,0 +1,503 @@
+/*
+ * com.emphysic.myriad.gristmill.demo.ResultJournal
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill.demo;
+
+import com.typesafe.config.Config;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * ResultJournal - append-only journal of the files (and volumes) sent for processing and the ROI received for them,
+ * so that a restarted client can rebuild its results and resubmit only the files it hadn't finished.
+ *
+ * The journal is a series of memory-mapped segment files (journal-00000001.seg, ...) in a folder.  Each record is
+ * written as its length, a CRC32 of its body and the body; a zero length marks the end of a segment.  When a record
+ * doesn't fit in the current segment a new one is started.  Replay stops at the first record whose checksum doesn't
+ * match, i.e. a record that was being written when the process died.
+ *
+ * How often written records are forced to disk is set by the SyncPolicy: after every record, at most once per
+ * interval, or never (left to the operating system).  On replay the recovered state is rewritten into a fresh
+ * segment and the old segments are deleted, so the journal only grows with the work that is still outstanding.
+ * Finished files are remembered for a retention period and dropped by the next replay after it has passed.
+ */
+@Slf4j
+public class ResultJournal {
+    /**
+     * When records are forced to disk
+     */
+    public enum SyncPolicy {
+        ALWAYS, INTERVAL, NEVER
+    }
+
+    /**
+     * A file was sent for processing
+     */
+    private static final byte SUBMITTED = 1;
+    /**
+     * An ROI was received for a file, journaled as a row of its ROIStore
+     */
+    private static final byte FOUND = 2;
+    /**
+     * A file's results were collected
+     */
+    private static final byte FINISHED = 3;
+    /**
+     * A file was cancelled
+     */
+    private static final byte CANCELLED = 4;
+    /**
+     * A volume (see VolumeResults) was sent for processing
+     */
+    private static final byte VOLUME = 5;
+
+    /**
+     * Size of a record's length and checksum
+     */
+    private static final int HEADER = 8;
+
+    private final File folder;
+    private final long segmentSize;
+    private final SyncPolicy policy;
+    /**
+     * Minimum time (ms) between syncs under SyncPolicy.INTERVAL
+     */
+    private final long syncInterval;
+    /**
+     * Time (ms) finished files are remembered for
+     */
+    private final long finishedRetention;
+
+    /**
+     * Files sent but not yet finished, keyed by ROIResults name
+     */
+    private final Map<String, Submission> pending = new LinkedHashMap<>();
+    /**
+     * Files that have been finished or cancelled and the time (ms) they finished
+     */
+    private final Map<String, Long> finished = new HashMap<>();
+
+    private int segment;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private long lastSync;
+    private boolean dirty;
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Creates a journal.  Call replay() before appending to it.
+     * @param folder folder holding the journal's segments, created if necessary
+     * @param segmentSize size of each segment in bytes
+     * @param policy when records are forced to disk
+     * @param syncInterval minimum time (ms) between syncs under SyncPolicy.INTERVAL
+     * @param finishedRetention time (ms) finished files are remembered for
+     */
+    public ResultJournal(File folder, long segmentSize, SyncPolicy policy, long syncInterval, long finishedRetention) {
+        this.folder = folder;
+        this.segmentSize = Math.max(4096, segmentSize);
+        this.policy = policy;
+        this.syncInterval = syncInterval;
+        this.finishedRetention = finishedRetention;
+    }
+
+    /**
+     * Creates a journal from the journal block of the Thresher configuration.
+     * @param config Thresher configuration
+     * @return new journal, or null if journaling is disabled or not configured
+     */
+    public static ResultJournal fromConfig(Config config) {
+        if (!config.hasPath("journal.enabled") || !config.getBoolean("journal.enabled")) {
+            return null;
+        }
+        Config journal = config.getConfig("journal");
+        String path = journal.hasPath("folder") ? journal.getString("folder") : "";
+        File folder = (path == null || path.isEmpty())
+                ? new File(System.getProperty("user.dir"), "journal") : new File(path);
+        return new ResultJournal(
+                folder,
+                journal.hasPath("segment-size") ? journal.getBytes("segment-size") : 64L * 1024 * 1024,
+                journal.hasPath("fsync") ? SyncPolicy.valueOf(journal.getString("fsync").toUpperCase())
+                        : SyncPolicy.INTERVAL,
+                journal.hasPath("fsync-interval")
+                        ? journal.getDuration("fsync-interval", TimeUnit.MILLISECONDS) : 1000L,
+                journal.hasPath("finished-retention")
+                        ? journal.getDuration("finished-retention", TimeUnit.MILLISECONDS) : TimeUnit.DAYS.toMillis(1));
+    }
+
+    /**
+     * Reads every segment in the journal, rebuilding the results of unfinished files, and compacts the journal into a
+     * new segment for appending.
+     * @return files that were sent but not finished, keyed by ROIResults name
+     * @throws IOException if the journal couldn't be read or a new segment couldn't be created
+     */
+    public synchronized Map<String, Submission> replay() throws IOException {
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("Unable to create journal folder " + folder);
+        }
+        File[] segments = segments();
+        long records = 0;
+        for (File f : segments) {
+            records += replay(f);
+            segment = Math.max(segment, segmentNumber(f));
+        }
+        long expiry = System.currentTimeMillis() - finishedRetention;
+        finished.values().removeIf((time) -> time < expiry);
+        log.info("Replayed " + records + " journal records: " + finished.size() + " files finished, "
+                + pending.size() + " unfinished");
+        compact(segments);
+        return new LinkedHashMap<>(pending);
+    }
+
+    /**
+     * Rewrites the recovered state into a new segment and deletes the segments it came from.
+     * @param segments replayed segments
+     * @throws IOException if the new segment couldn't be created
+     */
+    private void compact(File[] segments) throws IOException {
+        rotate(0);
+        finished.forEach((key, time) -> append(FINISHED, key, (out) -> out.writeLong(time)));
+        for (Submission submission : pending.values()) {
+            ROIResults results = submission.getResults();
+            writeSubmitted(results, submission.getPriority(), submission.getDeadline());
+            for (int row = 0; row < results.size(); row++) {
+                found(results.getName(), results.getStore(), row);
+            }
+        }
+        if (buffer != null) {
+            buffer.force();
+            dirty = false;
+        }
+        for (File f : segments) {
+            if (!f.delete()) {
+                log.warn("Unable to delete journal segment " + f);
+            }
+        }
+    }
+
+    /**
+     * Records a file or volume being sent for processing.  Any ROI previously recorded for it are kept.
+     * @param results the file's results, or the volume's VolumeResults
+     * @param priority priority the file was sent with
+     * @param deadline deadline the file was sent with
+     */
+    public synchronized void submitted(ROIResults results, int priority, long deadline) {
+        finished.remove(results.getName());
+        pending.put(results.getName(), new Submission(results, priority, deadline));
+        writeSubmitted(results, priority, deadline);
+    }
+
+    private void writeSubmitted(ROIResults results, int priority, long deadline) {
+        if (results instanceof VolumeResults) {
+            List<File> slices = ((VolumeResults) results).getSlices();
+            append(VOLUME, results.getName(), (out) -> {
+                out.writeInt(priority);
+                out.writeLong(deadline);
+                out.writeInt(slices.size());
+                for (File slice : slices) {
+                    out.writeUTF(slice.getAbsolutePath());
+                }
+            });
+            return;
+        }
+        append(SUBMITTED, results.getName(), (out) -> {
+            out.writeUTF(results.getContents().getAbsolutePath());
+            out.writeInt(priority);
+            out.writeLong(deadline);
+        });
+    }
+
+    /**
+     * Records an ROI received for a file.  Only the ROI's geometry and tags are journaled, not its window data.
+     * @param key ROIResults name of the file
+     * @param store the file's ROIStore
+     * @param row row of the ROI in the store
+     */
+    public synchronized void found(String key, ROIStore store, int row) {
+        append(FOUND, key, (out) -> store.writeRow(out, row));
+    }
+
+    /**
+     * Records a file's results being collected; the file won't be resubmitted.
+     * @param key ROIResults name of the file
+     */
+    public synchronized void finished(String key) {
+        long time = System.currentTimeMillis();
+        markFinished(key, time);
+        append(FINISHED, key, (out) -> out.writeLong(time));
+        sync(true);
+    }
+
+    /**
+     * Records a file being cancelled; the file won't be resubmitted.
+     * @param key ROIResults name of the file
+     */
+    public synchronized void cancelled(String key) {
+        long time = System.currentTimeMillis();
+        markFinished(key, time);
+        append(CANCELLED, key, (out) -> out.writeLong(time));
+    }
+
+    /**
+     * Determines whether a file has already finished.  Submitting the file again clears this.
+     * @param key ROIResults name of the file
+     * @return true if the file's results have been collected or it was cancelled within the retention period
+     */
+    public synchronized boolean isFinished(String key) {
+        Long time = finished.get(key);
+        return time != null && System.currentTimeMillis() - time < finishedRetention;
+    }
+
+    /**
+     * Forces any outstanding records to disk and closes the current segment.
+     */
+    public synchronized void close() {
+        sync(true);
+        closeSegment();
+    }
+
+    private void markFinished(String key, long time) {
+        pending.remove(key);
+        finished.put(key, time);
+    }
+
+    /**
+     * Writes a record to the current segment, starting a new segment if it doesn't fit.
+     * @param type record type
+     * @param key ROIResults name of the file the record is about
+     * @param body writes the rest of the record, may be null
+     */
+    private void append(byte type, String key, RecordWriter body) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(type);
+            out.writeUTF(key);
+            if (body != null) {
+                body.write(out);
+            }
+            out.flush();
+            byte[] record = bytes.toByteArray();
+            // Leave room for the zero length that ends the segment
+            if (buffer == null || buffer.remaining() < record.length + HEADER + 4) {
+                rotate(record.length + HEADER + 4);
+            }
+            crc.reset();
+            crc.update(record);
+            buffer.putInt(record.length);
+            buffer.putInt((int) crc.getValue());
+            buffer.put(record);
+            dirty = true;
+            sync(policy == SyncPolicy.ALWAYS);
+        } catch (IOException e) {
+            log.error("Unable to write journal record for " + key + ": " + e);
+        }
+    }
+
+    /**
+     * Forces written records to disk if the sync policy calls for it.
+     * @param now if true sync regardless of the interval (unless the policy is NEVER)
+     */
+    private void sync(boolean now) {
+        if (!dirty || buffer == null || policy == SyncPolicy.NEVER) {
+            return;
+        }
+        long time = System.currentTimeMillis();
+        if (now || time - lastSync >= syncInterval) {
+            buffer.force();
+            lastSync = time;
+            dirty = false;
+        }
+    }
+
+    /**
+     * Closes the current segment and starts a new one.
+     * @param minimum minimum size of the new segment in bytes
+     * @throws IOException if the segment couldn't be created
+     */
+    private void rotate(int minimum) throws IOException {
+        if (buffer != null) {
+            buffer.force();
+            dirty = false;
+        }
+        closeSegment();
+        segment++;
+        File f = new File(folder, String.format("journal-%08d.seg", segment));
+        channel = new RandomAccessFile(f, "rw").getChannel();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentSize, minimum));
+        log.debug("Started journal segment " + f);
+    }
+
+    private void closeSegment() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("Error closing journal segment: " + e);
+            }
+            channel = null;
+            buffer = null;
+        }
+    }
+
+    /**
+     * Replays a single segment.
+     * @param f segment file
+     * @return number of records read
+     * @throws IOException if the segment couldn't be read
+     */
+    private long replay(File f) throws IOException {
+        long records = 0;
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r"); FileChannel ch = raf.getChannel()) {
+            MappedByteBuffer in = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            while (in.remaining() >= HEADER) {
+                int length = in.getInt();
+                int checksum = in.getInt();
+                if (length <= 0 || length > in.remaining()) {
+                    break;
+                }
+                byte[] record = new byte[length];
+                in.get(record);
+                crc.reset();
+                crc.update(record);
+                if ((int) crc.getValue() != checksum) {
+                    log.warn("Torn record in journal segment " + f + ", ignoring the rest of the segment");
+                    break;
+                }
+                apply(record);
+                records++;
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Applies a journal record to the recovered state.
+     * @param record record body
+     * @throws IOException if the record couldn't be decoded
+     */
+    private void apply(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        byte type = in.readByte();
+        String key = in.readUTF();
+        switch (type) {
+            case SUBMITTED:
+                File file = new File(in.readUTF());
+                int priority = in.readInt();
+                long deadline = in.readLong();
+                Submission previous = pending.get(key);
+                ROIResults results = previous != null ? previous.getResults() : new ROIResults(file);
+                finished.remove(key);
+                pending.put(key, new Submission(results, priority, deadline));
+                break;
+            case VOLUME:
+                int volumePriority = in.readInt();
+                long volumeDeadline = in.readLong();
+                List<File> slices = new ArrayList<>();
+                for (int i = in.readInt(); i > 0; i--) {
+                    slices.add(new File(in.readUTF()));
+                }
+                Submission volume = pending.get(key);
+                finished.remove(key);
+                pending.put(key, new Submission(volume != null ? volume.getResults() : new VolumeResults(slices),
+                        volumePriority, volumeDeadline));
+                break;
+            case FOUND:
+                Submission found = pending.get(key);
+                if (found != null) {
+                    found.getResults().getStore().readRow(in);
+                }
+                break;
+            case FINISHED:
+            case CANCELLED:
+                markFinished(key, in.readLong());
+                break;
+            default:
+                throw new IOException("Unknown journal record type " + type);
+        }
+    }
+
+    /**
+     * Returns the journal's segments in the order they were written.
+     * @return segment files
+     */
+    private File[] segments() {
+        File[] segments = folder.listFiles((dir, name) -> name.startsWith("journal-") && name.endsWith(".seg"));
+        if (segments == null) {
+            return new File[0];
+        }
+        Arrays.sort(segments, (a, b) -> Integer.compare(segmentNumber(a), segmentNumber(b)));
+        return segments;
+    }
+
+    private static int segmentNumber(File f) {
+        String name = f.getName();
+        try {
+            return Integer.parseInt(name.substring("journal-".length(), name.length() - ".seg".length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Writes the type-specific part of a record
+     */
+    private interface RecordWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Submission - an unfinished file or volume recovered from the journal.
+     */
+    public static class Submission {
+        private final ROIResults results;
+        private final int priority;
+        private final long deadline;
+
+        public Submission(ROIResults results, int priority, long deadline) {
+            this.results = results;
+            this.priority = priority;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Returns the file's results as rebuilt from the journal
+         * @return results, VolumeResults for a volume
+         */
+        public ROIResults getResults() { return results; }
+
+        public int getPriority() { return priority; }
+
+        public long getDeadline() { return deadline; }
+    }
+}
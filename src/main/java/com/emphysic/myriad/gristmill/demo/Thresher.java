@@ -18,10 +18,33 @@
 package com.emphysic.myriad.gristmill.demo;
 
 import akka.actor.*;
+import akka.pattern.Patterns;
 import akka.util.Timeout;
 import com.emphysic.myriad.core.data.io.Dataset;
 import com.emphysic.myriad.core.data.util.FileSniffer;
+import com.emphysic.myriad.gristmill.FileDigest;
+import com.emphysic.myriad.gristmill.FloatDataset;
+import com.emphysic.myriad.gristmill.GristMill;
+import com.emphysic.myriad.gristmill.PipelineStage;
+import com.emphysic.myriad.gristmill.ScanGeometry;
+import com.emphysic.myriad.gristmill.ScanMask;
+import com.emphysic.myriad.gristmill.StageDeployment;
+import com.emphysic.myriad.gristmill.Volumes;
+import com.emphysic.myriad.gristmill.bulk.BulkClient;
+import com.emphysic.myriad.gristmill.messages.BulkDatasetMessage;
+import com.emphysic.myriad.gristmill.messages.BundleSwappedMessage;
+import com.emphysic.myriad.gristmill.messages.CancelMessage;
+import com.emphysic.myriad.gristmill.messages.CancelledMessage;
+import com.emphysic.myriad.gristmill.messages.MaskMessage;
+import com.emphysic.myriad.gristmill.messages.PipelineSignature;
+import com.emphysic.myriad.gristmill.messages.ReadinessMessage;
+import com.emphysic.myriad.gristmill.messages.ReadinessQuery;
+import com.emphysic.myriad.gristmill.messages.SignatureQuery;
+import com.emphysic.myriad.gristmill.messages.SwapBundleMessage;
+import com.emphysic.myriad.gristmill.scheduling.Cancellations;
+import com.emphysic.myriad.gristmill.scheduling.Scheduling;
 import com.emphysic.myriad.network.DataIngestorPool;
+import com.emphysic.myriad.network.messages.DatasetMessage;
 import com.emphysic.myriad.network.messages.FileMessage;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
@@ -29,12 +52,23 @@ import lombok.extern.slf4j.Slf4j;
 import scala.concurrent.Await;
 
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -48,17 +82,69 @@ public class Thresher {
     private Integer sinkHostPort = 9999;
     private String sinkSystem = "MyriadGristMill";
     private String sinkActor = "PyramidPool";
+    private String sinkController = "Controller";
 
     private String sourceHostName = "localhost";
     private Integer sourceHostPort = 9999;
     private String sourceSystem = "MyriadGristMill";
     private String sourceActor = "ReporterPool";
 
+    /**
+     * Name this client's files are submitted under, GristMill shares its capacity fairly between tenants
+     */
+    private String tenant;
+
     /**
      * List of ROI for each source file
      */
     private Map<String, ROIResults> results;
 
+    /**
+     * Journal of submitted files and received ROI, or null if not journaling
+     */
+    private ResultJournal journal;
+
+    /**
+     * If true files the journal records as finished are skipped rather than processed again
+     */
+    private final boolean skipFinished;
+
+    /**
+     * Unfinished files recovered from the journal
+     */
+    private Map<String, ResultJournal.Submission> recovered = Collections.emptyMap();
+
+    /**
+     * Cache of results for previously-processed data, or null if not caching
+     */
+    private ResultCache cache;
+
+    /**
+     * Signature of GristMill's current configuration, null if unknown (results aren't cached)
+     */
+    private String signature;
+
+    /**
+     * Cache key of each file sent through the pipeline, keyed by ROIResults name
+     */
+    private Map<String, String> cacheKeys = new HashMap<>();
+
+    /**
+     * Geometry of each scan GristMill puts a file through (see PipelineSignature.getScans), empty if unknown
+     */
+    private volatile List<ScanGeometry> scans = Collections.emptyList();
+
+    /**
+     * Current submission id (Scheduling.SUBMISSIONKEY) of each file sent through the pipeline, keyed by ROIResults
+     * name; cancellations apply to a submission so that submitting a cancelled file again isn't affected
+     */
+    private Map<String, String> submissions = new ConcurrentHashMap<>();
+
+    /**
+     * Submissions whose mask GristMill confirmed, forgotten when the submission is collected or cancelled
+     */
+    private Set<String> maskedSubmissions = ConcurrentHashMap.newKeySet();
+
     /**
      * Main Akka system
      */
@@ -73,15 +159,88 @@ public class Thresher {
      */
     private ActorRef ingestor;
 
+    /**
+     * Remote sink i.e. GristMill's scale space stage, which receives tiles directly
+     */
+    private ActorRef sink;
+
+    /**
+     * Datasets whose samples (8 bytes each) take more than this many bytes are split into tiles, 0 to disable tiling
+     */
+    private long tileLimit;
+    /**
+     * Configured width and height of each tile's core in points
+     */
+    private int configuredSize = 512;
+    /**
+     * Width and height of each tile's core in points, shrunk if a tile wouldn't fit in a frame
+     */
+    private int tileSize = 512;
+    /**
+     * Configured minimum width of the halo around each tile's core in points
+     */
+    private int configuredHalo;
+    /**
+     * Width of the halo around each tile's core in points, at least the footprint of GristMill's coarsest windows
+     */
+    private int tileHalo;
+    /**
+     * Tile origins are placed at multiples of this many points
+     */
+    private int tileAlignment = 1;
+    /**
+     * Parallel reader for large C-scan exports, or null to read every file with FileSniffer
+     */
+    private CScanReader csvReader;
+    /**
+     * Uploads large datasets over GristMill's bulk transfer channel, or null if the channel isn't used
+     */
+    private BulkClient bulkClient;
+    /**
+     * GristMill's endpoint for uploaded datasets
+     */
+    private ActorRef bulkEndpoint;
+    /**
+     * Datasets larger than this (bytes) are uploaded over the bulk transfer channel
+     */
+    private long bulkThreshold;
+    /**
+     * Folder in which to keep the complete ROI (including window data) of pending files, or null if they aren't kept
+     */
+    private File payloadFolder;
+    /**
+     * Size of a cell of each pending file's spatial index, 0 to index only when first queried
+     */
+    private int indexCellSize;
+    /**
+     * True to upload and render data in single precision
+     */
+    private final boolean singlePrecision;
+
     /**
      * Results receiver
      */
     private ActorRef receiver;
 
+    /**
+     * Remote source of results i.e. GristMill's ROI finder stage
+     */
+    private ActorRef source;
+
+    /**
+     * Remote GristMill control endpoint
+     */
+    private ActorRef controller;
+
     public Thresher(Config config) {
-        this.config = config;
-        system = ActorSystem.create("MyriadThresher", config);
-        results = new HashMap<>();
+        this.config = StageDeployment.configure(config, PipelineStage.pool("IngestorPool", "ingestor"));
+        system = ActorSystem.create("MyriadThresher", this.config);
+        results = new ConcurrentHashMap<>();
+        journal = ResultJournal.fromConfig(this.config);
+        skipFinished = this.config.hasPath("journal.resume") && this.config.getBoolean("journal.resume");
+        cache = ResultCache.fromConfig(this.config);
+        csvReader = CScanReader.fromConfig(this.config);
+        singlePrecision = FloatDataset.isSinglePrecision(this.config);
     }
 
     /**
@@ -90,28 +249,47 @@ public class Thresher {
      */
     public boolean init() {
         try {
+            configTenant();
             configSink();
             configSource();
+            configTiling();
+            configPayloads();
+            configIndex();
+            recover();
             log.info("Initializing ingestor");
             ingestor = system.actorOf(Props.create(DataIngestorPool.class, config.getInt("ingestor.number")),
                     "IngestorPool");
-            receiver = system.actorOf(Props.create(BaggerPool.class, config.getInt("receiver.number"), results),
+            receiver = system.actorOf(journal == null
+                            ? Props.create(BaggerPool.class, config.getInt("receiver.number"), results)
+                            : Props.create(BaggerPool.class, config.getInt("receiver.number"), results, journal),
                     "Receiver");
             Optional<ActorRef> sink = getActorRef(getSinkURL());
             if (sink.isPresent()) {
                 log.info("Found remote system sink, connecting...");
+                this.sink = sink.get();
                 ingestor.tell(sink.get(), system.guardian());
+                configBulk();
             } else {
                 log.error("Unable to find remote system sink " + getSinkURL());
                 return false;
             }
 
+            Optional<ActorRef> control = getActorRef(getControllerURL());
+            if (control.isPresent()) {
+                controller = control.get();
+            } else {
+                log.warn("Unable to find remote system controller " + getControllerURL());
+            }
+
             Optional<ActorRef> source = getActorRef(getSourceURL());
             if (source.isPresent()) {
                 log.info("Found remote system source, connecting...");
-                source.get().tell(receiver, system.guardian());
+                this.source = source.get();
+                this.source.tell(receiver, system.guardian());
+                refreshSignature();
             } else {
                 log.error("Unable to find remote system source " + getSourceURL());
+                fitTiles();
             }
         } catch (Exception e) {
             log.error("Encountered an error initializing the feeder", e);
@@ -120,6 +298,147 @@ public class Thresher {
         return true;
     }
 
+    /**
+     * Replays the journal (if any), restoring the results received so far for files that hadn't finished.
+     */
+    private void recover() {
+        if (journal == null) {
+            return;
+        }
+        try {
+            recovered = journal.replay();
+            recovered.forEach((key, submission) -> results.put(key, submission.getResults()));
+            if (!recovered.isEmpty()) {
+                log.info("Recovered " + recovered.size() + " unfinished files from the journal");
+            }
+        } catch (IOException e) {
+            log.error("Unable to replay the journal, continuing without it: " + e);
+            journal = null;
+            recovered = Collections.emptyMap();
+        }
+    }
+
+    /**
+     * Resubmits the unfinished files recovered from the journal.  ROI already received for a file are kept and
+     * aren't duplicated when the file's windows are processed again.
+     * @return keys of the resubmitted files
+     */
+    public Set<String> resume() {
+        Map<String, ResultJournal.Submission> resubmit = new LinkedHashMap<>(recovered);
+        recovered = Collections.emptyMap();
+        resubmit.forEach((key, submission) -> {
+            ROIResults result = submission.getResults();
+            String cacheKey;
+            if (result instanceof VolumeResults) {
+                log.info("Resuming volume " + ((VolumeResults) result).getSlices());
+                cacheKey = cacheKeyOf(((VolumeResults) result).getSlices());
+            } else {
+                log.info("Resuming " + result.getContents());
+                cacheKey = cacheKeyOf(result.getContents());
+            }
+            if (cacheKey != null) {
+                cacheKeys.put(key, cacheKey);
+            }
+            submit(result, newSubmission(key), null, submission.getPriority(), submission.getDeadline());
+        });
+        return resubmit.keySet();
+    }
+
+    /**
+     * Asks GristMill for the signature of its current configuration, which is part of the key of cached results, and
+     * for the scans it puts files through, which determine how many window results to expect for a file.
+     */
+    private void refreshSignature() {
+        if (source == null) {
+            return;
+        }
+        try {
+            Timeout t = new Timeout(5000, TimeUnit.MILLISECONDS);
+            scala.concurrent.Future<Object> reply = Patterns.ask(source, new SignatureQuery(), t);
+            PipelineSignature pipeline = (PipelineSignature) Await.result(reply, t.duration());
+            signature = pipeline.getSignature();
+            scans = pipeline.getScans();
+        } catch (Exception e) {
+            log.warn("Unable to retrieve GristMill's signature: " + e);
+            signature = null;
+            scans = Collections.emptyList();
+        }
+        if (scans.isEmpty()) {
+            log.warn("GristMill's scan parameters are unknown, files will be finished when results stop arriving");
+        }
+        if (signature == null && cache != null) {
+            log.warn("GristMill's configuration can't be identified, results won't be cached");
+        }
+        fitTiles();
+    }
+
+    /**
+     * Determines the cache key for a file.
+     * @param f data file
+     * @return cache key, or null if results aren't being cached
+     */
+    private String cacheKeyOf(File f) {
+        if (cache == null || signature == null) {
+            return null;
+        }
+        try {
+            return ResultCache.keyOf(f, signature);
+        } catch (IOException e) {
+            log.warn("Unable to read " + f + " for caching: " + e);
+        }
+        return null;
+    }
+
+    /**
+     * Determines the cache key for a volume.
+     * @param slices slices of the volume in order of depth
+     * @return cache key, or null if results aren't being cached
+     */
+    private String cacheKeyOf(List<File> slices) {
+        StringBuilder keys = new StringBuilder("volume");
+        for (File slice : slices) {
+            String key = cacheKeyOf(slice);
+            if (key == null) {
+                return null;
+            }
+            keys.append('|').append(key);
+        }
+        return FileDigest.of(keys.toString());
+    }
+
+    /**
+     * Determines whether a file can be skipped because the journal records it as finished, i.e. its results have
+     * already been collected.  Files are only skipped if journal.resume is set.
+     * @param f file
+     * @return true if the file has finished
+     */
+    public boolean isFinished(File f) {
+        return skipFinished && journal != null && journal.isFinished(new ROIResults(f).getName());
+    }
+
+    /**
+     * Determines whether a volume can be skipped because the journal records it as finished.
+     * @param slices slices of the volume in order of depth
+     * @return true if the volume has finished
+     */
+    public boolean isFinished(List<File> slices) {
+        return skipFinished && journal != null && journal.isFinished(new VolumeResults(slices).getName());
+    }
+
+    /**
+     * Configures the tenant name this client's files are submitted under.  Defaults to the client's Akka address.
+     */
+    private void configTenant() {
+        tenant = ((ExtendedActorSystem) system).provider().getDefaultAddress().hostPort();
+        if (config.hasPath("ingestor.tenant")) {
+            String name = config.getString("ingestor.tenant");
+            if (name != null && !name.isEmpty()) {
+                tenant = name;
+            }
+        }
+        log.info("Submitting files as tenant " + tenant);
+    }
+
     /**
      * Configures the data "sink," i.e. where we send the data for analysis.
      */
@@ -149,9 +468,177 @@ public class Thresher {
             sinkActor = config.getString("ingestor.sink.actor");
         }
         log.info("Setting sink Actor to " + sinkActor);
+        if (config.hasPath("ingestor.sink.controller")) {
+            sinkController = config.getString("ingestor.sink.controller");
+        }
         log.info("Files to be sent to " + getSinkURL());
     }
 
+    /**
+     * Configures tiling of datasets too large for a single message.  A tenth of the remoting frame size is left for
+     * the message's metadata and serialization.  The tiles are fitted to GristMill's scans once they are known (see
+     * fitTiles).
+     */
+    private void configTiling() {
+        if (!config.hasPath("ingestor.tiling.enabled") || !config.getBoolean("ingestor.tiling.enabled")) {
+            return;
+        }
+        long frame = config.hasPath("akka.remote.netty.tcp.maximum-frame-size")
+                ? config.getBytes("akka.remote.netty.tcp.maximum-frame-size") : 128000L;
+        tileLimit = frame - frame / 10;
+        if (config.hasPath("ingestor.tiling.size")) {
+            configuredSize = config.getInt("ingestor.tiling.size");
+        }
+        tileSize = configuredSize;
+        if (config.hasPath("ingestor.tiling.halo")) {
+            configuredHalo = config.getInt("ingestor.tiling.halo");
+        }
+        tileHalo = configuredHalo;
+    }
+
+    /**
+     * Fits the tiles to GristMill's scans and to the frame size.  A window of a tile's core must be evaluated whole by
+     * that tile, so the halo is raised to the footprint of a window of the coarsest pyramid level a tile is scanned at.
+     * Tile origins are aligned to the window grid of the coarsest level whose grid spacing fits in the halo (and so to
+     * the grids of every finer level), so that those levels' windows cover the same data as in an untiled scan; the
+     * few windows of coarser levels may be offset.  The core is shrunk if a tile wouldn't fit in a frame.
+     */
+    private void fitTiles() {
+        if (tileLimit <= 0) {
+            return;
+        }
+        List<ScanGeometry> geometries = scans;
+        tileSize = configuredSize;
+        tileHalo = configuredHalo;
+        tileAlignment = 1;
+        if (geometries.isEmpty()) {
+            log.warn("GristMill's scan parameters are unknown, tiling with a " + tileHalo + " point halo");
+        } else {
+            // The footprint grows with the logarithm of the tile's size, so the halo settles within a few rounds
+            for (int round = 0; round < 16; round++) {
+                int extent = tileSize + 2 * tileHalo;
+                int footprint = 0;
+                for (ScanGeometry scan : geometries) {
+                    footprint = Math.max(footprint, scan.footprint(extent, extent));
+                }
+                if (footprint <= tileHalo) {
+                    break;
+                }
+                tileHalo = footprint;
+            }
+            if (tileHalo > configuredHalo && configuredHalo > 0) {
+                log.warn("Raised ingestor.tiling.halo from " + configuredHalo + " to " + tileHalo
+                        + " points, the footprint of GristMill's coarsest windows");
+            }
+            for (ScanGeometry scan : geometries) {
+                tileAlignment = lcm(tileAlignment, scan.alignment(tileHalo));
+            }
+        }
+        int fits = (int) Math.sqrt(tileLimit / 8.0) - 2 * tileHalo - (tileAlignment - 1);
+        if (fits < 1) {
+            log.error("Tiles with a " + tileHalo + " point halo don't fit in a frame, tiling disabled: increase "
+                    + "akka.remote.netty.tcp.maximum-frame-size or enable ingestor.bulk");
+            tileLimit = 0;
+            return;
+        }
+        if (fits < tileSize) {
+            log.warn("Reduced ingestor.tiling.size from " + tileSize + " to " + fits + " points to fit a frame");
+            tileSize = fits;
+        }
+        log.info("Splitting datasets larger than " + tileLimit + " bytes into " + tileSize + "x" + tileSize
+                + " tiles with a " + tileHalo + " point halo, origins aligned to " + tileAlignment + " points");
+    }
+
+    /**
+     * Returns the least common multiple of two positive numbers.
+     * @param a first number
+     * @param b second number
+     * @return least common multiple
+     */
+    private static int lcm(int a, int b) {
+        int x = a;
+        int y = b;
+        while (y != 0) {
+            int t = x % y;
+            x = y;
+            y = t;
+        }
+        return a / x * b;
+    }
+
+    /**
+     * Configures keeping of window payloads.  Only the geometry and tags of each ROI are kept in memory; if enabled
+     * the complete ROI are also kept on disk until the file's results are collected.
+     */
+    private void configPayloads() {
+        if (!config.hasPath("receiver.payloads.enabled") || !config.getBoolean("receiver.payloads.enabled")) {
+            return;
+        }
+        String folder = config.hasPath("receiver.payloads.folder") ? config.getString("receiver.payloads.folder") : "";
+        payloadFolder = new File(folder.isEmpty() ? System.getProperty("java.io.tmpdir") : folder);
+        if (!payloadFolder.isDirectory() && !payloadFolder.mkdirs()) {
+            log.warn("Unable to create payload folder " + payloadFolder + ", window payloads won't be kept");
+            payloadFolder = null;
+            return;
+        }
+        log.info("Keeping window payloads in " + payloadFolder);
+    }
+
+    /**
+     * Configures the spatial index of pending files' ROI used by findWithin and findNearest.
+     */
+    private void configIndex() {
+        if (config.hasPath("receiver.index.enabled") && config.getBoolean("receiver.index.enabled")) {
+            indexCellSize = config.hasPath("receiver.index.cell-size")
+                    ? config.getInt("receiver.index.cell-size") : ROIIndex.DEFAULT_CELL_SIZE;
+            log.info("Indexing ROI as they arrive in cells of " + indexCellSize + " points");
+        }
+    }
+
+    /**
+     * Adds results to those pending, keeping their window payloads and indexing their ROI if configured.
+     * @param key name of the results
+     * @param newResult results
+     */
+    private void track(String key, ROIResults newResult) {
+        if (payloadFolder != null) {
+            try {
+                newResult.keepPayloads(payloadFolder);
+            } catch (IOException e) {
+                log.warn("Unable to keep window payloads of " + key + ": " + e);
+            }
+        }
+        if (indexCellSize > 0) {
+            newResult.indexBy(indexCellSize);
+        }
+        results.put(key, newResult);
+    }
+
+    /**
+     * Connects to GristMill's bulk transfer channel, if enabled.
+     * @throws Exception if an error occurred looking up the bulk endpoint
+     */
+    private void configBulk() throws Exception {
+        if (!config.hasPath("ingestor.bulk.enabled") || !config.getBoolean("ingestor.bulk.enabled")) {
+            return;
+        }
+        Optional<ActorRef> endpoint = getActorRef(getActorURL(sinkSystem, sinkHostName, sinkHostPort, GristMill.BULK));
+        if (!endpoint.isPresent()) {
+            log.warn("GristMill has no bulk transfer endpoint, large datasets will be sent through remoting");
+            return;
+        }
+        bulkEndpoint = endpoint.get();
+        bulkThreshold = config.hasPath("ingestor.bulk.min-size")
+                ? config.getBytes("ingestor.bulk.min-size") : 4L * 1024 * 1024;
+        bulkClient = new BulkClient(sinkHostName,
+                config.hasPath("ingestor.bulk.port") ? config.getInt("ingestor.bulk.port") : 9998,
+                config.hasPath("ingestor.bulk.chunk-size")
+                        ? config.getBytes("ingestor.bulk.chunk-size").intValue() : 1024 * 1024,
+                singlePrecision,
+                config.hasPath("ingestor.bulk.token") ? config.getString("ingestor.bulk.token") : null);
+        log.info("Uploading datasets larger than " + bulkThreshold + " bytes over the bulk transfer channel");
+    }
+
     /**
      * Configures the data "source," i.e. where we should look for Region Of Interest results
      */
@@ -192,6 +679,14 @@ public class Thresher {
         return getActorURL(sinkSystem, sinkHostName, sinkHostPort, sinkActor);
     }
 
+    /**
+     * Retrieves the URL of the GristMill controller
+     * @return Myriad URL
+     */
+    public String getControllerURL() {
+        return getActorURL(sinkSystem, sinkHostName, sinkHostPort, sinkController);
+    }
+
     /**
      * Retrieves the data source URL
      * @return Myriad URL
@@ -230,71 +725,661 @@ public class Thresher {
      * @param f name of file to ingest
      */
     public void ingest(File f) {
+        ingest(f, Scheduling.DEFAULT_PRIORITY, Scheduling.NO_DEADLINE);
+    }
+
+    /**
+     * Adds a file for processing.  Each stage of GristMill works on data from higher priority files first, and among
+     * files of equal priority on those with the earliest deadline.  If identical data has been processed before by
+     * an identically-configured GristMill the cached results are used instead.
+     * @param f name of file to ingest
+     * @param priority priority of the file, higher is more urgent
+     * @param deadline time (ms since the epoch) by which results are wanted, or Scheduling.NO_DEADLINE
+     * @return true if the file was sent through the pipeline, false if its results came from the cache
+     */
+    public boolean ingest(File f, int priority, long deadline) {
+        return ingest(f, priority, deadline, null, 0);
+    }
+
+    /**
+     * Adds a file for processing, scanning only the parts of it in a mask: windows outside the mask aren't evaluated,
+     * so a partial rescan costs in proportion to the area it covers.  The mask is registered with GristMill before the
+     * file is sent and applies to this submission only; if GristMill doesn't confirm it in time the whole file is
+     * scanned as a new submission.
+     * @param f name of file to ingest
+     * @param priority priority of the file, higher is more urgent
+     * @param deadline time (ms since the epoch) by which results are wanted, or Scheduling.NO_DEADLINE
+     * @param mask parts of the file to scan, or null to scan all of it
+     * @param timeout maximum time to wait (ms) for GristMill to confirm the mask
+     * @return true if the file was sent through the pipeline, false if its results came from the cache
+     */
+    public boolean ingest(File f, int priority, long deadline, ScanMask mask, long timeout) {
+        ROIResults newResult = new ROIResults(f);
+        String fullKey = cacheKeyOf(f);
+        String cacheKey = fullKey != null && mask != null ? FileDigest.of(fullKey + "|" + mask.getDigest()) : fullKey;
+        if (cacheKey != null) {
+            ROIStore cached = cache.get(cacheKey);
+            if (cached != null) {
+                log.info("Using cached results for " + f);
+                newResult.getStore().addAll(cached);
+                results.put(newResult.getName(), newResult);
+                return false;
+            }
+        }
+        String submission = newSubmission(newResult.getName());
+        if (mask != null && !registerMask(submission, mask, timeout)) {
+            // The mask may still land, so the file is scanned in full under a submission id it can't apply to and its
+            // results are those of the whole file
+            submission = newSubmission(newResult.getName());
+            mask = null;
+            cacheKey = fullKey;
+        }
+        if (cacheKey != null) {
+            cacheKeys.put(newResult.getName(), cacheKey);
+        }
+        submit(newResult, submission, mask, priority, deadline);
+        return true;
+    }
+
+    /**
+     * Asks GristMill to restrict scanning of a submission to a mask.  If GristMill doesn't confirm in time it is told
+     * to forget the mask, should it arrive late, and the submission id shouldn't be used.
+     * @param key submission id
+     * @param mask parts of the file to scan
+     * @param timeout maximum time to wait (ms) for GristMill to confirm
+     * @return true if GristMill confirmed the mask
+     */
+    private boolean registerMask(String key, ScanMask mask, long timeout) {
+        if (controller == null) {
+            log.warn("No remote system controller, " + key + " will be scanned in full");
+            return false;
+        }
+        try {
+            Timeout t = new Timeout(timeout, TimeUnit.MILLISECONDS);
+            scala.concurrent.Future<Object> reply = Patterns.ask(controller, new MaskMessage(key, mask), t);
+            log.info(Await.result(reply, t.duration()).toString());
+            maskedSubmissions.add(key);
+            return true;
+        } catch (Exception e) {
+            log.warn("No confirmation of mask of " + key + " after " + timeout + " ms, it will be scanned in full");
+            controller.tell(new MaskMessage(key, null), system.guardian());
+        }
+        return false;
+    }
+
+    /**
+     * Forgets a submission's mask, if GristMill confirmed one.
+     * @param submission submission id, may be null
+     */
+    private void unregisterMask(String submission) {
+        if (submission != null && maskedSubmissions.remove(submission) && controller != null) {
+            controller.tell(new MaskMessage(submission, null), system.guardian());
+        }
+    }
+
+    /**
+     * Sends a file or volume through the pipeline, collecting its ROI in the given results.
+     * @param newResult results for the file, or VolumeResults for a volume
+     * @param submission submission id (see newSubmission)
+     * @param mask parts of the file scanned, or null if it's scanned in full
+     * @param priority priority of the file
+     * @param deadline deadline of the file
+     */
+    private void submit(ROIResults newResult, String submission, ScanMask mask, int priority, long deadline) {
         if (ingestor != null) {
-            log.info("Sending " + f + " through pipeline");
-            ROIResults newResult = new ROIResults(f);
             String hashedName = newResult.getName();
-            results.put(hashedName, newResult);
-            ingestor.tell(new FileMessage(f, FileMessage.genMetadata(null, "source", hashedName)),
-                    system.guardian());
+            track(hashedName, newResult);
+            if (journal != null) {
+                journal.submitted(newResult, priority, deadline);
+            }
+            String metadata = genMetadata(hashedName, submission, priority, deadline);
+            if (newResult instanceof VolumeResults) {
+                newResult.setExpected(sendVolume((VolumeResults) newResult, metadata));
+            } else {
+                log.info("Sending " + newResult.getContents() + " through pipeline");
+                newResult.setExpected(send(newResult.getContents(), metadata, mask));
+            }
         } else {
             log.error("No ingestor configured - are you sure you called startup() ?");
         }
     }
 
+    /**
+     * Adds a volume for processing: a stack of C-scans of the same part at different depths, e.g. 140.csv, 155.csv,
+     * ... 210.csv.  The slices are submitted as a single job sharing one source key and submission, so scheduling
+     * and cancellation apply to the volume as a whole; GristMill's fork/join engine streams them through one job that
+     * reports an ROI found in the same window of consecutive slices once (see Volumes).  The volume's ROI are
+     * correlated across depth into through-thickness indications (see VolumeResults).  Like a file, a volume is
+     * journaled, and if identical slices have been processed before by an identically-configured GristMill the
+     * cached results are used instead.
+     * @param slices slices in order of depth
+     * @param priority priority of the volume, higher is more urgent
+     * @param deadline time (ms since the epoch) by which results are wanted, or Scheduling.NO_DEADLINE
+     * @return key of the volume's results
+     */
+    public String ingestVolume(List<File> slices, int priority, long deadline) {
+        if (slices.isEmpty()) {
+            throw new IllegalArgumentException("A volume needs at least one slice");
+        }
+        VolumeResults volume = new VolumeResults(slices);
+        String key = volume.getName();
+        String cacheKey = cacheKeyOf(slices);
+        if (cacheKey != null) {
+            ROIStore cached = cache.get(cacheKey);
+            if (cached != null) {
+                log.info("Using cached results for volume " + slices);
+                volume.getStore().addAll(cached);
+                results.put(key, volume);
+                return key;
+            }
+            cacheKeys.put(key, cacheKey);
+        }
+        submit(volume, newSubmission(key), null, priority, deadline);
+        return key;
+    }
+
+    /**
+     * Sends the slices of a volume to GristMill in order of depth, each tagged with its position in the volume, the
+     * number of slices and its scan index.
+     * @param volume results for the volume
+     * @param metadata metadata of the volume
+     * @return number of window results expected for the volume, or -1 if unknown
+     */
+    private long sendVolume(VolumeResults volume, String metadata) {
+        List<File> slices = volume.getSlices();
+        log.info("Sending volume of " + slices.size() + " slices through pipeline");
+        long expected = 0;
+        for (int i = 0; i < slices.size(); i++) {
+            String sliceMetadata = FileMessage.genMetadata(metadata, Volumes.SLICEKEY, String.valueOf(i));
+            sliceMetadata = FileMessage.genMetadata(sliceMetadata, Volumes.SLICESKEY, String.valueOf(slices.size()));
+            sliceMetadata = FileMessage.genMetadata(sliceMetadata, VolumeResults.INDEXKEY,
+                    String.valueOf(volume.getIndex(i)));
+            long windows = send(slices.get(i), sliceMetadata, null);
+            expected = expected < 0 || windows < 0 ? -1 : expected + windows;
+        }
+        return expected;
+    }
+
+    /**
+     * Sends a file to GristMill, as tiles if its samples are too large to send in one message.  If tiling is enabled
+     * every file is read here, as the size of its samples is only known once it has been read.
+     * @param f data file
+     * @param metadata metadata of the file
+     * @param mask scan mask of the file's submission, or null if it's scanned in full
+     * @return number of window results expected for the file, or -1 if unknown e.g. the file was read by the ingestor
+     */
+    private long send(File f, String metadata, ScanMask mask) {
+        boolean bulk = bulkClient != null && f.length() > bulkThreshold;
+        if (sink != null && (tileLimit > 0 || bulk || (csvReader != null && csvReader.accepts(f)))) {
+            try {
+                Dataset data = read(f);
+                List<Tile> tiles = null;
+                long bytes = (long) data.getWidth() * data.getHeight() * 8;
+                // Datasets uploaded over the bulk transfer channel aren't limited by the frame size
+                if (tileLimit > 0 && bytes > tileLimit && (bulkClient == null || bytes <= bulkThreshold)) {
+                    tiles = Tile.split(data.getWidth(), data.getHeight(), tileSize, tileHalo, tileAlignment);
+                    log.info("Sending " + f + " as " + tiles.size() + " tiles");
+                    for (Tile tile : tiles) {
+                        deliver(tile.extract(data), FileMessage.genMetadata(metadata, Tile.TILEKEY, tile.toString()));
+                    }
+                } else {
+                    deliver(data, metadata);
+                }
+                return expectedWindows(data.getWidth(), data.getHeight(), tiles, mask);
+            } catch (IOException e) {
+                log.warn("Unable to read " + f + ", sending it to the ingestor: " + e);
+            }
+        }
+        ingestor.tell(new FileMessage(f, metadata), system.guardian());
+        return -1;
+    }
+
+    /**
+     * Counts the window results GristMill will send for a dataset: one per window of each of its scans.
+     * @param width width of the dataset
+     * @param height height of the dataset
+     * @param tiles tiles the dataset was sent as, or null if it was sent whole
+     * @param mask scan mask of the dataset's submission, or null if it's scanned in full
+     * @return number of window results, or -1 if GristMill's scans are unknown
+     */
+    private long expectedWindows(int width, int height, List<Tile> tiles, ScanMask mask) {
+        List<ScanGeometry> geometries = scans;
+        if (geometries.isEmpty()) {
+            return -1;
+        }
+        long windows = 0;
+        for (ScanGeometry scan : geometries) {
+            if (tiles == null) {
+                windows += scan.windows(width, height, null, mask);
+            } else {
+                for (Tile tile : tiles) {
+                    windows += scan.windows(tile.getWidth(), tile.getHeight(), tile, mask);
+                }
+            }
+        }
+        return windows;
+    }
+
+    /**
+     * Sends a dataset to GristMill, uploading it over the bulk transfer channel if it's large.
+     * @param data dataset
+     * @param metadata metadata of the dataset
+     */
+    private void deliver(Dataset data, String metadata) {
+        if (bulkClient != null && (long) data.getWidth() * data.getHeight() * 8 > bulkThreshold) {
+            try {
+                String handle = bulkClient.upload(data);
+                bulkEndpoint.tell(new BulkDatasetMessage(handle, metadata), system.guardian());
+                return;
+            } catch (IOException e) {
+                log.warn("Bulk upload failed, sending through remoting instead: " + e);
+            }
+        }
+        sink.tell(new DatasetMessage(data, metadata), system.guardian());
+    }
+
+    /**
+     * Reads a data file, using the parallel C-scan reader for large text exports.
+     * @param f data file
+     * @return data
+     * @throws IOException if the file couldn't be read
+     */
+    private Dataset read(File f) throws IOException {
+        if (csvReader != null && csvReader.accepts(f)) {
+            try {
+                long start = System.currentTimeMillis();
+                Dataset data = csvReader.read(f);
+                log.info("Read " + f + " (" + data.getWidth() + "x" + data.getHeight() + ") in "
+                        + (System.currentTimeMillis() - start) + " ms");
+                return data;
+            } catch (IOException e) {
+                log.warn("Unable to read " + f + " as a C-scan export, trying FileSniffer: " + e);
+            }
+        }
+        return FileSniffer.read(f, true);
+    }
+
+    /**
+     * Starts a new submission of a file, replacing any earlier submission of it.
+     * @param key source key
+     * @return submission id
+     */
+    private String newSubmission(String key) {
+        String submission = UUID.randomUUID().toString();
+        unregisterMask(submissions.put(key, submission));
+        return submission;
+    }
+
+    /**
+     * Generates the metadata a file is submitted with.
+     * @param key source key
+     * @param submission submission id
+     * @param priority priority of the file
+     * @param deadline deadline of the file
+     * @return metadata
+     */
+    private String genMetadata(String key, String submission, int priority, long deadline) {
+        String metadata = Scheduling.genMetadata(
+                FileMessage.genMetadata(null, Scheduling.SOURCEKEY, key), priority, deadline);
+        metadata = FileMessage.genMetadata(metadata, Scheduling.SUBMISSIONKEY, submission);
+        return FileMessage.genMetadata(metadata, Scheduling.TENANTKEY, tenant);
+    }
+
+    /**
+     * Waits for GristMill to finish warming up.
+     * @param timeout maximum time to wait (ms)
+     * @return true if GristMill is ready, false if it isn't ready yet or no controller was found
+     */
+    public boolean awaitReady(long timeout) {
+        if (controller == null) {
+            return false;
+        }
+        try {
+            Timeout t = new Timeout(timeout, TimeUnit.MILLISECONDS);
+            scala.concurrent.Future<Object> reply = Patterns.ask(controller, new ReadinessQuery(true), t);
+            ReadinessMessage readiness = (ReadinessMessage) Await.result(reply, t.duration());
+            log.info("GristMill is " + readiness);
+            return readiness.isReady();
+        } catch (Exception e) {
+            log.warn("GristMill not ready after " + timeout + " ms");
+        }
+        return false;
+    }
+
+    /**
+     * Asks GristMill to switch to a new ROIBundle without interrupting processing.  Files already sent continue to
+     * be processed; each ROI records the version of the bundle that found it under the "bundle" metadata key.
+     * @param bundlePath path to the new ROIBundle on the GristMill host
+     * @param timeout maximum time to wait (ms) for the new bundle to be loaded and warmed up
+     * @return GristMill's reply
+     * @throws Exception if no reply was received in time
+     */
+    public BundleSwappedMessage swapBundle(String bundlePath, long timeout) throws Exception {
+        return swapBundle(null, bundlePath, timeout);
+    }
+
+    /**
+     * Asks GristMill to switch one of the models it runs (roi.models) to a new ROIBundle without interrupting
+     * processing.  The other models keep their bundles.
+     * @param model id of the model, or null if GristMill runs a single model
+     * @param bundlePath path to the new ROIBundle on the GristMill host
+     * @param timeout maximum time to wait (ms) for the new bundle to be loaded and warmed up
+     * @return GristMill's reply
+     * @throws Exception if no reply was received in time
+     */
+    public BundleSwappedMessage swapBundle(String model, String bundlePath, long timeout) throws Exception {
+        if (source == null) {
+            throw new IllegalStateException("No remote source configured - are you sure you called init() ?");
+        }
+        Timeout t = new Timeout(timeout, TimeUnit.MILLISECONDS);
+        scala.concurrent.Future<Object> reply = Patterns.ask(source, new SwapBundleMessage(model, bundlePath), t);
+        BundleSwappedMessage result = (BundleSwappedMessage) Await.result(reply, t.duration());
+        log.info(result.toString());
+        if (result.isSwapped()) {
+            refreshSignature();
+        }
+        return result;
+    }
+
+    /**
+     * Cancels a file sent for processing.  Files still waiting in this client's ingestor are dropped here; GristMill
+     * drops the file's queued and newly-arriving work in every stage and sends no further results for it.  Any
+     * results already received are discarded.  Only the current submission of the file is cancelled; it can be
+     * submitted again afterwards.
+     * @param key key of the file i.e. the name of its ROIResults
+     * @param timeout maximum time to wait (ms) for GristMill to confirm
+     * @return true if GristMill confirmed the cancellation
+     */
+    public boolean cancel(String key, long timeout) {
+        String submission = submissions.remove(key);
+        unregisterMask(submission);
+        String cancellationKey = submission != null ? submission : key;
+        Cancellations.cancel(cancellationKey);
+        ROIResults dropped = results.remove(key);
+        if (dropped != null) {
+            dropped.discardPayloads();
+        }
+        cacheKeys.remove(key);
+        if (journal != null) {
+            journal.cancelled(key);
+        }
+        if (controller == null) {
+            log.warn("No remote system controller, " + key + " only cancelled locally");
+            return false;
+        }
+        try {
+            Timeout t = new Timeout(timeout, TimeUnit.MILLISECONDS);
+            scala.concurrent.Future<Object> reply = Patterns.ask(controller, new CancelMessage(cancellationKey), t);
+            CancelledMessage cancelled = (CancelledMessage) Await.result(reply, t.duration());
+            log.info(cancelled.toString());
+            return true;
+        } catch (Exception e) {
+            log.warn("No confirmation of cancellation of " + key + " after " + timeout + " ms");
+        }
+        return false;
+    }
+
+    /**
+     * Cancels a file sent for processing.
+     * @param f file to cancel
+     * @param timeout maximum time to wait (ms) for GristMill to confirm
+     * @return true if GristMill confirmed the cancellation
+     */
+    public boolean cancel(File f, long timeout) {
+        return cancel(new ROIResults(f).getName(), timeout);
+    }
+
+    /**
+     * Returns the results received so far for a file without removing them, e.g. to follow its progress or to fetch
+     * the window payloads of its ROI (see ROIResults.getPayload) before they are collected.
+     * @param key name of the results
+     * @return results or null if key was not found
+     */
+    public ROIResults getPendingResults(String key) {
+        return results.get(key);
+    }
+
+    /**
+     * Finds the ROI received so far for a file whose bounding boxes overlap a rectangle of the original data, e.g. to
+     * show the findings in the part of a scan being viewed.
+     * @param key name of the results
+     * @param x x-coordinate of the rectangle's upper left corner
+     * @param y y-coordinate of the rectangle's upper left corner
+     * @param width width of the rectangle
+     * @param height height of the rectangle
+     * @param filter ROI to consider, e.g. ROIIndex.Filter.ANY
+     * @return matching ROI in the order they arrived, or null if key was not found
+     */
+    public ROIStore findWithin(String key, int x, int y, int width, int height, ROIIndex.Filter filter) {
+        ROIResults result = results.get(key);
+        return result == null ? null : result.select(result.within(x, y, width, height, filter));
+    }
+
+    /**
+     * Finds the ROI received so far for a file nearest a point of the original data.
+     * @param key name of the results
+     * @param x x-coordinate of the point
+     * @param y y-coordinate of the point
+     * @param count maximum number of ROI to return
+     * @param filter ROI to consider, e.g. ROIIndex.Filter.ANY
+     * @return up to count ROI, nearest first, or null if key was not found
+     */
+    public ROIStore findNearest(String key, int x, int y, int count, ROIIndex.Filter filter) {
+        ROIResults result = results.get(key);
+        return result == null ? null : result.select(result.nearest(x, y, count, filter));
+    }
+
     /**
      * Pops the ROI results for a given key
      * @param key name of results to return
      * @return list of ROIResults or null if key was not found
      */
     public Dataset getResults(String key) {
-        Dataset res = null;
+        ROIResults result = collect(key);
+        if (result == null) {
+            return null;
+        }
         try {
-            if (results.containsKey(key)) {
-                ROIResults result = results.remove(key);
-                if (result != null) {
-                    ROIResultGenerator resultGenerator = new ROIResultGenerator();
-                    res = resultGenerator.generate(FileSniffer.read(result.getContents(), true),
-                            result.getROI(),
-                            ROIResultGenerator.REPTYPE.ALL);
-                }
-            }
+            return render(result);
         } catch (IOException ioe) {
             log.error("Unable to retrieve results for key=" + key + " error was: " + ioe);
         }
-        return res;
+        return null;
+    }
+
+    /**
+     * Removes a file's results, recording it as finished.  The results are cached only if every window of the file is
+     * known to have been evaluated.
+     * @param key name of results to return
+     * @return results or null if key was not found
+     */
+    private ROIResults collect(String key) {
+        ROIResults result = results.remove(key);
+        if (result != null) {
+            unregisterMask(submissions.remove(key));
+            result.discardPayloads();
+            if (journal != null) {
+                journal.finished(key);
+            }
+            String cacheKey = cacheKeys.remove(key);
+            if (cacheKey != null && result.isComplete()) {
+                cache.put(cacheKey, result.getStore());
+            } else if (cacheKey != null) {
+                log.info("Not caching " + result.getContents() + ", " + result.getReceived() + " of "
+                        + (result.getExpected() >= 0 ? String.valueOf(result.getExpected()) : "an unknown number of")
+                        + " windows received");
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Draws a file's ROI on a copy of its data.
+     * @param result results for the file
+     * @return copy of the file's data with its ROI drawn
+     * @throws IOException if the file couldn't be read
+     */
+    private Dataset render(ROIResults result) throws IOException {
+        return render(result, EnumSet.of(ROIResultGenerator.REPTYPE.ALL)).get(ROIResultGenerator.REPTYPE.ALL);
+    }
+
+    /**
+     * Draws a file's ROI on copies of its data, one for each requested representation.
+     * @param result results for the file
+     * @param views representations to draw
+     * @return copy of the file's data with its ROI drawn, for each representation
+     * @throws IOException if the file couldn't be read
+     */
+    private Map<ROIResultGenerator.REPTYPE, Dataset> render(ROIResults result, Set<ROIResultGenerator.REPTYPE> views)
+            throws IOException {
+        ROIResultGenerator resultGenerator = new ROIResultGenerator();
+        return resultGenerator.generate(read(result.getContents()), drawnROI(result), views);
+    }
+
+    /**
+     * Draws a file's ROI on single precision copies of its data, one for each requested representation.
+     * @param result results for the file
+     * @param views representations to draw
+     * @return single precision copy of the file's data with its ROI drawn, for each representation
+     * @throws IOException if the file couldn't be read
+     */
+    private Map<ROIResultGenerator.REPTYPE, FloatDataset> renderSingle(ROIResults result,
+                                                                       Set<ROIResultGenerator.REPTYPE> views)
+            throws IOException {
+        return new ROIResultGenerator().generateSingle(read(result.getContents()), drawnROI(result), views);
+    }
+
+    /**
+     * Returns the ROI to draw for a file.  A volume's indications are drawn once each, on its first slice.
+     * @param result results for the file
+     * @return ROI to draw
+     */
+    private static ROIStore drawnROI(ROIResults result) {
+        return result instanceof VolumeResults ? ((VolumeResults) result).getIndicationStore() : result.getStore();
     }
 
     /**
-     * Writes all the results to disk.
+     * Writes all the results to disk.  Depending on output.format each file's ROI are written as a compact list (see
+     * ROIWriter) and/or drawn on a copy of the file's data.
      */
     public void getResults() {
-        for (String k : results.keySet()) {
-            Dataset res = getResults(k);
-            if (res != null) {
+        for (String k : new ArrayList<>(results.keySet())) {
+            writeResults(k);
+        }
+    }
+
+    /**
+     * Pops a file's results and writes them to disk as configured by the output block.
+     * @param k name of the results
+     * @return true if the results were written, false if the key was not found, the output block names an unknown
+     * format or view (the results are kept) or writing failed
+     */
+    public boolean writeResults(String k) {
+        ROIWriter writer = null;
+        String format = config.hasPath("output.format") ? config.getString("output.format") : "dataset";
+        Set<ROIResultGenerator.REPTYPE> views = EnumSet.noneOf(ROIResultGenerator.REPTYPE.class);
+        try {
+            if (!"dataset".equalsIgnoreCase(format)) {
+                writer = new ROIWriter(ROIWriter.FORMAT.valueOf(format.toUpperCase()));
+            }
+        } catch (IllegalArgumentException e) {
+            log.error("Unknown output.format '" + format + "', expected dataset or one of "
+                    + Arrays.toString(ROIWriter.FORMAT.values()) + " - results of " + k + " not written");
+            return false;
+        }
+        if (config.hasPath("output.views")) {
+            for (String view : config.getStringList("output.views")) {
                 try {
-                    String path = System.getProperty("user.dir");
-                    if (config.hasPath("output.folder")) {
-                        String pth = config.getString("output.folder");
-                        if (pth != null && !pth.isEmpty()) {
-                            path = pth;
-                        }
-                    }
-                    File outFolder = new File(path);
-                    File outFile = new File(outFolder, k + ".txt");
+                    views.add(ROIResultGenerator.REPTYPE.valueOf(view.toUpperCase()));
+                } catch (IllegalArgumentException e) {
+                    log.error("Unknown output.views entry '" + view + "', expected one of "
+                            + Arrays.toString(ROIResultGenerator.REPTYPE.values()) + " - results of " + k
+                            + " not written");
+                    return false;
+                }
+            }
+        }
+        if (views.isEmpty()) {
+            views.add(ROIResultGenerator.REPTYPE.ALL);
+        }
+        ROIResults result = collect(k);
+        if (result == null) {
+            return false;
+        }
+        String path = System.getProperty("user.dir");
+        if (config.hasPath("output.folder")) {
+            String pth = config.getString("output.folder");
+            if (pth != null && !pth.isEmpty()) {
+                path = pth;
+            }
+        }
+        File outFolder = new File(path);
+        boolean render = writer == null || (config.hasPath("output.render") && config.getBoolean("output.render"));
+        try {
+            if (writer != null) {
+                File outFile = new File(outFolder, k + writer.getExtension());
+                log.info("Writing ROI to " + outFile);
+                writer.write(result, outFile);
+            }
+            if (render) {
+                Map<ROIResultGenerator.REPTYPE, ?> rendered = singlePrecision && views.size() > 1
+                        ? renderSingle(result, views) : render(result, views);
+                Dataset res = null;
+                for (ROIResultGenerator.REPTYPE view : views) {
+                    // A single view keeps the original naming
+                    File outFile = new File(outFolder, views.size() == 1
+                            ? k + ".txt" : k + "." + view.name().toLowerCase() + ".txt");
                     log.info("Writing results to " + outFile);
+                    // Views drawn in single precision are widened one at a time as they are written, in decimal so
+                    // that values aren't written with the float's rounding error
+                    Object drawn = rendered.remove(view);
+                    res = drawn instanceof FloatDataset ? ((FloatDataset) drawn).toDecimalDataset() : (Dataset) drawn;
                     res.write(outFile);
-                } catch (IOException e) {
-                    log.error("Unable to write results, error was: " + e);
                 }
+                if (res != null && result instanceof VolumeResults) {
+                    writeIndications((VolumeResults) result, res.getWidth(), res.getHeight(),
+                            new File(outFolder, k + ".volume.csv"));
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            log.error("Unable to write results, error was: " + e);
+        }
+        return false;
+    }
+
+    /**
+     * Writes a volume's through-thickness indications as CSV.
+     * @param volume volume results
+     * @param width width of the volume's slices
+     * @param height height of the volume's slices
+     * @param outFile destination
+     * @throws IOException if the file couldn't be written
+     */
+    private void writeIndications(VolumeResults volume, int width, int height, File outFile) throws IOException {
+        ROIResultGenerator generator = new ROIResultGenerator();
+        try (PrintWriter out = new PrintWriter(new FileWriter(outFile))) {
+            out.println("lowX,lowY,highX,highY,firstIndex,lastIndex,slices");
+            for (VolumeResults.Indication indication : volume.getIndications()) {
+                ROIResultGenerator.Coords c = generator.new Coords(indication.getLowX(), indication.getLowY(),
+                        indication.getHighX(), indication.getHighY(), width, height);
+                out.println(c.lowX + "," + c.lowY + "," + c.highX + "," + c.highY + ","
+                        + indication.getFirstIndex() + "," + indication.getLastIndex() + "," + indication.getDepth());
             }
         }
+        log.info("Wrote volume indications to " + outFile);
     }
 
     /**
      * Shuts the Akka system down.
      */
     public void shutdown() {
+        if (bulkClient != null) {
+            bulkClient.close();
+        }
+        if (journal != null) {
+            journal.close();
+        }
         if (system != null) {
             system.shutdown();
         }
@@ -318,7 +1403,36 @@ public class Thresher {
     }
 
     /**
-     * Demo application
+     * Runs a manifest of files through GristMill and shuts down.  Unfinished files recovered from the journal are
+     * sent again as part of the batch rather than resumed separately.
+     * @param thresher initialized Thresher
+     * @param config Thresher configuration
+     * @param manifest path of a file listing the files, or a glob matching them
+     * @return exit code: 0 if every file finished, 2 if some failed, 1 if the batch couldn't be run
+     */
+    private static int runBatch(Thresher thresher, Config config, String manifest) {
+        int status = 1;
+        try {
+            List<File> files = BatchRunner.readManifest(manifest);
+            File progress = new File(config.hasPath("batch.progress") && !config.getString("batch.progress").isEmpty()
+                    ? config.getString("batch.progress")
+                    : new File(manifest).getName().replaceAll("[*?\\[\\]{}]", "_") + ".progress");
+            BatchRunner.Summary summary = BatchRunner.fromConfig(thresher, config).run(files, progress);
+            log.info("Batch complete: " + summary);
+            summary.getFailures().forEach((f, reason) -> log.warn("Failed: " + f + " (" + reason + ")"));
+            status = summary.getFailures().isEmpty() ? 0 : 2;
+        } catch (IOException e) {
+            log.error("Unable to run batch " + manifest + ": " + e);
+        } catch (InterruptedException e) {
+            log.warn("Batch interrupted, rerun to resume");
+        }
+        thresher.shutdown();
+        return status;
+    }
+
+    /**
+     * Demo application.  Usage: Thresher demo.conf file [file...], or Thresher demo.conf --batch manifest to run a
+     * manifest of files through GristMill with a bounded number in flight (see BatchRunner).
      * @param args
      * @throws Exception
      */
@@ -336,8 +1450,39 @@ public class Thresher {
         Thresher thresher = new Thresher(config);
         boolean ready = thresher.init();
         if (ready) {
-            for (int i=1; i<args.length; i++) {
-                thresher.ingest(args[i]);
+            long readyTimeout = config.hasPath("ingestor.sink.ready-timeout")
+                    ? config.getDuration("ingestor.sink.ready-timeout", TimeUnit.MILLISECONDS) : 0;
+            if (readyTimeout > 0 && !thresher.awaitReady(readyTimeout)) {
+                log.warn("Sending files to GristMill before it has finished warming up");
+            }
+            int priority = config.hasPath("ingestor.priority")
+                    ? config.getInt("ingestor.priority") : Scheduling.DEFAULT_PRIORITY;
+            long deadline = config.hasPath("ingestor.deadline")
+                    ? System.currentTimeMillis() + config.getDuration("ingestor.deadline", TimeUnit.MILLISECONDS)
+                    : Scheduling.NO_DEADLINE;
+            if (args.length > 2 && "--batch".equals(args[1])) {
+                System.exit(runBatch(thresher, config, args[2]));
+            }
+            Set<String> resumed = thresher.resume();
+            if (config.hasPath("ingestor.volume") && config.getBoolean("ingestor.volume") && args.length > 1) {
+                List<File> slices = new ArrayList<>();
+                for (int i=1; i<args.length; i++) {
+                    slices.add(new File(args[i]));
+                }
+                if (thresher.isFinished(slices)) {
+                    log.info("Skipping volume " + slices + ", already finished");
+                } else if (!resumed.contains(new VolumeResults(slices).getName())) {
+                    thresher.ingestVolume(slices, priority, deadline);
+                }
+            } else {
+                for (int i=1; i<args.length; i++) {
+                    File f = new File(args[i]);
+                    if (thresher.isFinished(f)) {
+                        log.info("Skipping " + f + ", already finished");
+                    } else if (!resumed.contains(new ROIResults(f).getName())) {
+                        thresher.ingest(f, priority, deadline);
+                    }
+                }
             }
         } else {
             log.error("Unable to construct pipeline, please check log files for further details.");
@@ -0,0 +1,158 @@
+/*
+ * com.emphysic.myriad.gristmill.demo.Tile
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill.demo;
+
+import com.emphysic.myriad.core.data.io.Dataset;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tile - a piece of a dataset too large to process in one message.  A tile is its core, a rectangle of the original
+ * data that no other tile shares, surrounded by a halo of neighbouring data so that windows straddling the core's
+ * edge are still evaluated whole.  ROI found in the halo belong to the neighbouring tile and are discarded when the
+ * results are stitched together.
+ *
+ * Each tile's pyramid and sliding windows start from its origin, so origins are aligned to the window grid of the
+ * untiled scan (see ScanGeometry.alignment): a window of a tile then covers the same data as the corresponding window
+ * of the whole dataset.
+ *
+ * Tiles travel in the metadata key "tile" as "ox(x)oy(y)cx(x)cy(y)cw(w)ch(h)": the tile's origin in the original data
+ * followed by its core's position and size.
+ */
+public class Tile {
+    /**
+     * Metadata key for a tile's position in the original data
+     */
+    public static final String TILEKEY = "tile";
+
+    private static final Pattern TILE = Pattern.compile("ox([0-9]+)oy([0-9]+)cx([0-9]+)cy([0-9]+)cw([0-9]+)ch([0-9]+)");
+
+    private final int originX;
+    private final int originY;
+    private final int width;
+    private final int height;
+    private final int coreX;
+    private final int coreY;
+    private final int coreWidth;
+    private final int coreHeight;
+
+    public Tile(int originX, int originY, int width, int height, int coreX, int coreY, int coreWidth, int coreHeight) {
+        this.originX = originX;
+        this.originY = originY;
+        this.width = width;
+        this.height = height;
+        this.coreX = coreX;
+        this.coreY = coreY;
+        this.coreWidth = coreWidth;
+        this.coreHeight = coreHeight;
+    }
+
+    /**
+     * Divides a dataset into tiles.
+     * @param width width of the dataset
+     * @param height height of the dataset
+     * @param size width and height of each tile's core
+     * @param halo minimum width of the halo around each core
+     * @param alignment tile origins are placed at multiples of this many points, widening the halo before and above
+     *                  the core by less than this
+     * @return tiles covering the dataset
+     */
+    public static List<Tile> split(int width, int height, int size, int halo, int alignment) {
+        List<Tile> tiles = new ArrayList<>();
+        int align = Math.max(1, alignment);
+        for (int y = 0; y < height; y += size) {
+            for (int x = 0; x < width; x += size) {
+                int ox = Math.max(0, Math.floorDiv(x - halo, align) * align);
+                int oy = Math.max(0, Math.floorDiv(y - halo, align) * align);
+                int cw = Math.min(size, width - x);
+                int ch = Math.min(size, height - y);
+                tiles.add(new Tile(ox, oy, Math.min(width, x + cw + halo) - ox, Math.min(height, y + ch + halo) - oy,
+                        x, y, cw, ch));
+            }
+        }
+        return tiles;
+    }
+
+    /**
+     * Reads a tile from message metadata.
+     * @param value value of the tile metadata key, may be null
+     * @return tile or null if the value isn't a tile
+     */
+    public static Tile parse(String value) {
+        if (value == null) {
+            return null;
+        }
+        Matcher m = TILE.matcher(value);
+        if (!m.matches()) {
+            return null;
+        }
+        int cx = Integer.parseInt(m.group(3));
+        int cy = Integer.parseInt(m.group(4));
+        return new Tile(Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)), 0, 0,
+                cx, cy, Integer.parseInt(m.group(5)), Integer.parseInt(m.group(6)));
+    }
+
+    /**
+     * Copies the tile out of the original data.
+     * @param input original data
+     * @return tile's data
+     */
+    public Dataset extract(Dataset input) {
+        double[] data = new double[width * height];
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                data[j * width + i] = input.get(originX + i, originY + j);
+            }
+        }
+        return new Dataset(data, width, height);
+    }
+
+    /**
+     * Determines whether a point in the original data lies in the tile's core.
+     * @param x x-coordinate in the original data
+     * @param y y-coordinate in the original data
+     * @return true if the point belongs to this tile
+     */
+    public boolean coreContains(int x, int y) {
+        return x >= coreX && x < coreX + coreWidth && y >= coreY && y < coreY + coreHeight;
+    }
+
+    public int getOriginX() { return originX; }
+
+    public int getOriginY() { return originY; }
+
+    /**
+     * Returns the width of the tile including its halo.
+     * @return width in points, 0 if the tile was read from metadata
+     */
+    public int getWidth() { return width; }
+
+    /**
+     * Returns the height of the tile including its halo.
+     * @return height in points, 0 if the tile was read from metadata
+     */
+    public int getHeight() { return height; }
+
+    @Override
+    public String toString() {
+        return "ox" + originX + "oy" + originY + "cx" + coreX + "cy" + coreY + "cw" + coreWidth + "ch" + coreHeight;
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * com.emphysic.myriad.gristmill.demo.VolumeResults
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill.demo;
+
+import com.emphysic.myriad.gristmill.Volumes;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * VolumeResults - ROI found in a volume, i.e. a stack of C-scans of the same part taken at different depths (indices)
+ * and submitted as a single job (see Volumes).  GristMill's fork/join engine reports an ROI found in the same window
+ * of consecutive slices once, with the number of slices it spans; the Actor pipeline processes each slice as a
+ * separate file and reports it in every slice.  Either way every slice has the same geometry, so an ROI's bounding
+ * box covers the same area of the part in every slice; ROI of the same model whose bounding boxes overlap in
+ * consecutive slices are reported as a single through-thickness Indication, even if they were found at different
+ * positions or pyramid levels.
+ */
+public class VolumeResults extends ROIResults {
+    /**
+     * Metadata key for a slice's scan index (depth)
+     */
+    public static final String INDEXKEY = "index";
+
+    /**
+     * Leading number of a filename e.g. 140 in 140.csv
+     */
+    private static final Pattern INDEX = Pattern.compile("^(\\d+)");
+
+    private final List<File> slices;
+    private final int[] indices;
+
+    /**
+     * Creates results for a volume.
+     * @param slices slices in order of depth
+     */
+    public VolumeResults(List<File> slices) {
+        super(slices.get(0), slices.stream().map(File::getAbsolutePath).collect(Collectors.joining("|")));
+        this.slices = new ArrayList<>(slices);
+        this.indices = indicesOf(slices);
+    }
+
+    /**
+     * Determines the scan index of each slice from its filename (e.g. 140.csv is index 140), using the slice's
+     * position in the volume if a name doesn't start with a number.
+     * @param slices slices in order of depth
+     * @return scan index of each slice
+     */
+    public static int[] indicesOf(List<File> slices) {
+        int[] indices = new int[slices.size()];
+        for (int i = 0; i < indices.length; i++) {
+            Matcher m = INDEX.matcher(slices.get(i).getName());
+            indices[i] = m.find() ? Integer.parseInt(m.group(1)) : i;
+        }
+        return indices;
+    }
+
+    public List<File> getSlices() { return Collections.unmodifiableList(slices); }
+
+    /**
+     * Returns the scan index of a slice.
+     * @param slice position of the slice in the volume
+     * @return scan index
+     */
+    public int getIndex(int slice) { return indices[slice]; }
+
+    /**
+     * Correlates the volume's ROI across depth: ROI of the same model whose bounding boxes overlap in consecutive
+     * slices, directly or through other ROI, become a single indication spanning those slices.  An ROI GristMill
+     * reported for several slices is found in each of them.
+     * @return through-thickness indications, in order of their shallowest slice
+     */
+    public List<Indication> getIndications() {
+        ROIStore store = getStore();
+        // Rows of the ROI starting in each slice, and of the ROI found in each slice
+        TreeMap<Integer, List<Integer>> starts = new TreeMap<>();
+        TreeMap<Integer, List<Integer>> slices = new TreeMap<>();
+        for (int row = 0; row < store.size(); row++) {
+            int first = store.getSlice(row);
+            if (first >= 0) {
+                starts.computeIfAbsent(first, (k) -> new ArrayList<>()).add(row);
+                for (int slice = first; slice < first + store.getDepth(row); slice++) {
+                    slices.computeIfAbsent(slice, (k) -> new ArrayList<>()).add(row);
+                }
+            }
+        }
+        // Union-find over the rows, joining overlapping ROI of consecutive slices
+        int[] parent = new int[store.size()];
+        for (int row = 0; row < parent.length; row++) {
+            parent[row] = row;
+        }
+        for (Map.Entry<Integer, List<Integer>> entry : slices.entrySet()) {
+            List<Integer> below = slices.get(entry.getKey() + 1);
+            if (below == null) {
+                continue;
+            }
+            int[] rows = below.stream().mapToInt(Integer::intValue).toArray();
+            ROIIndex index = new ROIIndex(store.select(rows), ROIIndex.DEFAULT_CELL_SIZE);
+            for (int row : entry.getValue()) {
+                int[] overlapping = index.within(store.getLowX(row), store.getLowY(row),
+                        store.getHighX(row) - store.getLowX(row), store.getHighY(row) - store.getLowY(row),
+                        ROIIndex.Filter.ANY);
+                for (int i : overlapping) {
+                    if (rows[i] != row && Objects.equals(store.getModel(row), store.getModel(rows[i]))) {
+                        parent[root(parent, row)] = root(parent, rows[i]);
+                    }
+                }
+            }
+        }
+        Map<Integer, Indication> indications = new LinkedHashMap<>();
+        starts.forEach((slice, rows) -> {
+            for (int row : rows) {
+                indications.computeIfAbsent(root(parent, row), (k) -> new Indication(row, slice))
+                        .add(store, row, slice);
+            }
+        });
+        return new ArrayList<>(indications.values());
+    }
+
+    private static int root(int[] parent, int row) {
+        while (parent[row] != row) {
+            parent[row] = parent[parent[row]];
+            row = parent[row];
+        }
+        return row;
+    }
+
+    /**
+     * Returns one ROI per indication, e.g. for drawing the indications on a single slice.
+     * @return store of the ROI found in the first slice of each indication
+     */
+    public ROIStore getIndicationStore() {
+        return getStore().select(getIndications().stream().mapToInt(Indication::getRow).toArray());
+    }
+
+    /**
+     * Indication - overlapping ROI found in one or more consecutive slices.
+     */
+    public class Indication {
+        private final int row;
+        private final int firstSlice;
+        private int lastSlice;
+        private final List<Integer> rows = new ArrayList<>();
+        private int lowX = Integer.MAX_VALUE;
+        private int lowY = Integer.MAX_VALUE;
+        private int highX = Integer.MIN_VALUE;
+        private int highY = Integer.MIN_VALUE;
+
+        Indication(int row, int slice) {
+            this.row = row;
+            this.firstSlice = slice;
+            this.lastSlice = slice;
+        }
+
+        /**
+         * Adds an ROI to the indication.
+         */
+        void add(ROIStore store, int row, int slice) {
+            rows.add(row);
+            lastSlice = Math.max(lastSlice, slice + store.getDepth(row) - 1);
+            lowX = Math.min(lowX, store.getLowX(row));
+            lowY = Math.min(lowY, store.getLowY(row));
+            highX = Math.max(highX, store.getHighX(row));
+            highY = Math.max(highY, store.getHighY(row));
+        }
+
+        /**
+         * Returns the row in the volume's ROIStore of the first ROI found in the first slice of the indication
+         * @return row
+         */
+        public int getRow() { return row; }
+
+        /**
+         * Returns the rows in the volume's ROIStore of every ROI of the indication
+         * @return rows in order of depth
+         */
+        public List<Integer> getRows() { return Collections.unmodifiableList(rows); }
+
+        /**
+         * Returns the x-coordinate of the upper left corner of the bounding box of the indication's ROI
+         * @return x-coordinate in the original data
+         */
+        public int getLowX() { return lowX; }
+
+        public int getLowY() { return lowY; }
+
+        /**
+         * Returns the x-coordinate just past the lower right corner of the bounding box of the indication's ROI
+         * @return exclusive x-coordinate in the original data
+         */
+        public int getHighX() { return highX; }
+
+        public int getHighY() { return highY; }
+
+        public int getFirstSlice() { return firstSlice; }
+
+        public int getLastSlice() { return lastSlice; }
+
+        /**
+         * Returns the scan index of the shallowest slice of the indication
+         * @return scan index
+         */
+        public int getFirstIndex() { return indices[firstSlice]; }
+
+        /**
+         * Returns the scan index of the deepest slice of the indication
+         * @return scan index
+         */
+        public int getLastIndex() { return indices[lastSlice]; }
+
+        /**
+         * Returns the number of slices the indication spans
+         * @return number of slices
+         */
+        public int getDepth() { return lastSlice - firstSlice + 1; }
+    }
+}
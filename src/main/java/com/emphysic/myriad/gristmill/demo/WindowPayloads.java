@@ -0,0 +1,114 @@
+/*
+ * com.emphysic.myriad.gristmill.demo.WindowPayloads
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill.demo;
+
+import com.emphysic.myriad.core.data.roi.ROI;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * WindowPayloads - the complete ROI (window data and metadata) of a file's results, kept on disk rather than on the
+ * heap and read back on demand.  Each ROI is serialized to the end of a temporary file; only its offset is kept in
+ * memory, indexed by the ROI's row in the ROIStore.
+ */
+@Slf4j
+public class WindowPayloads {
+    private final File file;
+    private final RandomAccessFile out;
+    /**
+     * Offset of each row's ROI in the file, -1 if the row has none
+     */
+    private long[] offsets = new long[16];
+
+    /**
+     * Creates an empty payload file.
+     * @param folder folder for the file, or null for the default temporary folder
+     * @throws IOException if the file couldn't be created
+     */
+    public WindowPayloads(File folder) throws IOException {
+        file = File.createTempFile("gristmill-payloads", ".bin", folder);
+        file.deleteOnExit();
+        out = new RandomAccessFile(file, "rw");
+        Arrays.fill(offsets, -1);
+    }
+
+    /**
+     * Stores the ROI of a row.
+     * @param row row of the ROI in its ROIStore
+     * @param roi region of interest
+     * @throws IOException if the ROI couldn't be written
+     */
+    public synchronized void put(int row, ROI roi) throws IOException {
+        if (row >= offsets.length) {
+            int old = offsets.length;
+            offsets = Arrays.copyOf(offsets, Math.max(row + 1, old * 2));
+            Arrays.fill(offsets, old, offsets.length, -1);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+            oos.writeObject(roi);
+        }
+        long offset = out.length();
+        out.seek(offset);
+        out.writeInt(bytes.size());
+        out.write(bytes.toByteArray());
+        offsets[row] = offset;
+    }
+
+    /**
+     * Reads the ROI of a row.
+     * @param row row of the ROI in its ROIStore
+     * @return ROI, or null if none was stored for the row
+     * @throws IOException if the ROI couldn't be read
+     */
+    public synchronized ROI get(int row) throws IOException {
+        if (row < 0 || row >= offsets.length || offsets[row] < 0) {
+            return null;
+        }
+        out.seek(offsets[row]);
+        byte[] bytes = new byte[out.readInt()];
+        out.readFully(bytes);
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return (ROI) ois.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unable to read ROI of row " + row, e);
+        }
+    }
+
+    /**
+     * Closes and deletes the payload file.
+     */
+    public synchronized void close() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            log.warn("Unable to close " + file + ": " + e);
+        }
+        if (!file.delete()) {
+            log.warn("Unable to delete " + file);
+        }
+    }
+}
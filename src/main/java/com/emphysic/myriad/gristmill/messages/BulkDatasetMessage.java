@@ -0,0 +1,47 @@
+/*
+ * com.emphysic.myriad.gristmill.messages.BulkDatasetMessage
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill.messages;
+
+import java.io.Serializable;
+
+/**
+ * BulkDatasetMessage - stands in for a DatasetMessage whose data were uploaded separately over GristMill's bulk
+ * transfer channel (see BulkClient).  Carries only the handle of the upload and the data's metadata, so large
+ * datasets don't pass through Akka remoting.
+ */
+public class BulkDatasetMessage implements Serializable {
+    /**
+     * Handle the data were uploaded under
+     */
+    private final String handle;
+    private final String metadata;
+
+    public BulkDatasetMessage(String handle, String metadata) {
+        this.handle = handle;
+        this.metadata = metadata;
+    }
+
+    public String getHandle() { return handle; }
+
+    public String getMetadata() { return metadata; }
+
+    @Override
+    public String toString() {
+        return "BulkDatasetMessage[" + handle + "]";
+    }
+}
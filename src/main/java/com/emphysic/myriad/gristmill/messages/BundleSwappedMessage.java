@@ -0,0 +1,55 @@
+/*
+ * com.emphysic.myriad.gristmill.messages.BundleSwappedMessage
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill.messages;
+
+import java.io.Serializable;
+
+/**
+ * BundleSwappedMessage - reply to a SwapBundleMessage.
+ */
+public class BundleSwappedMessage implements Serializable {
+    /**
+     * Version of the bundle now in use
+     */
+    private final String version;
+    /**
+     * True if the requested bundle was installed
+     */
+    private final boolean swapped;
+    /**
+     * Reason the swap failed, if it did
+     */
+    private final String reason;
+
+    public BundleSwappedMessage(String version, boolean swapped, String reason) {
+        this.version = version;
+        this.swapped = swapped;
+        this.reason = reason;
+    }
+
+    public String getVersion() { return version; }
+
+    public boolean isSwapped() { return swapped; }
+
+    public String getReason() { return reason; }
+
+    @Override
+    public String toString() {
+        return swapped ? "Bundle swapped to " + version : "Bundle swap failed, still using " + version + ": " + reason;
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * com.emphysic.myriad.gristmill.messages.CancelMessage
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill.messages;
+
+import java.io.Serializable;
+
+/**
+ * CancelMessage - asks the GristMill controller to stop processing a submission of a file.  The sender receives a
+ * CancelledMessage once the cancellation is in effect.
+ */
+public class CancelMessage implements Serializable {
+    /**
+     * Submission id the file was submitted with (Scheduling.SUBMISSIONKEY), or its source key if it had none
+     */
+    private final String source;
+
+    public CancelMessage(String source) {
+        this.source = source;
+    }
+
+    public String getSource() { return source; }
+
+    @Override
+    public String toString() {
+        return "CancelMessage[" + source + "]";
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * com.emphysic.myriad.gristmill.messages.MaskMessage
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill.messages;
+
+import com.emphysic.myriad.gristmill.ScanMask;
+
+import java.io.Serializable;
+
+/**
+ * MaskMessage - asks the GristMill controller to restrict scanning of a submission of a file to a ScanMask, or to
+ * forget the submission's mask once its results have been collected.  The sender receives a MaskedMessage once the
+ * mask is in effect, and should wait for it before sending the file's data.
+ */
+public class MaskMessage implements Serializable {
+    /**
+     * Submission id the file will be submitted with (Scheduling.SUBMISSIONKEY), or its source key if it has none
+     */
+    private final String source;
+    /**
+     * Mask, or null to forget the submission's mask
+     */
+    private final ScanMask mask;
+
+    public MaskMessage(String source, ScanMask mask) {
+        this.source = source;
+        this.mask = mask;
+    }
+
+    public String getSource() { return source; }
+
+    public ScanMask getMask() { return mask; }
+
+    @Override
+    public String toString() {
+        return "MaskMessage[" + source + ", " + mask + "]";
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * com.emphysic.myriad.gristmill.messages.PipelineSignature
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill.messages;
+
+import com.emphysic.myriad.gristmill.ScanGeometry;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * PipelineSignature - identifies the configuration that produces a pipeline's results: the content of the current
+ * ROIBundle and the scale space and sliding window parameters.  Two runs over identical data with the same signature
+ * produce the same ROI.
+ *
+ * The signature also carries the geometry of each scan a file goes through (one per model), from which clients know
+ * how many window results to expect for a file.
+ */
+public class PipelineSignature implements Serializable {
+    /**
+     * Signature, or null if the configuration can't be identified (e.g. a bundle that wasn't loaded from a file)
+     */
+    private final String signature;
+    /**
+     * Geometry of each scan a file goes through, empty if unknown
+     */
+    private final List<ScanGeometry> scans;
+
+    public PipelineSignature(String signature) {
+        this(signature, Collections.emptyList());
+    }
+
+    public PipelineSignature(String signature, List<ScanGeometry> scans) {
+        this.signature = signature;
+        this.scans = scans;
+    }
+
+    public String getSignature() { return signature; }
+
+    /**
+     * Returns the geometry of each scan a file goes through: a file produces a window result per window of each.
+     * @return scans, empty if the scale space parameters aren't known
+     */
+    public List<ScanGeometry> getScans() { return scans; }
+
+    /**
+     * Determines whether results produced under this signature can be reused.
+     * @return true if the signature identifies the pipeline's configuration
+     */
+    public boolean isKnown() { return signature != null; }
+
+    @Override
+    public String toString() {
+        return "PipelineSignature[" + signature + "]";
+    }
+}
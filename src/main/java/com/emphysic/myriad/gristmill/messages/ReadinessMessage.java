@@ -0,0 +1,58 @@
+/*
+ * com.emphysic.myriad.gristmill.messages.ReadinessMessage
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill.messages;
+
+import java.io.Serializable;
+
+/**
+ * ReadinessMessage - reports whether the GristMill pipeline is ready for work.
+ */
+public class ReadinessMessage implements Serializable {
+    /**
+     * Pipeline state
+     * WARMING_UP - synthetic data is being run through the pipeline to warm it up
+     *
+     * READY - the pipeline is ready for work
+     */
+    public enum STATE {
+        WARMING_UP,
+        READY
+    }
+
+    private final STATE state;
+    /**
+     * Throughput (windows per second) measured during the last warm-up round, 0 if none
+     */
+    private final double windowsPerSecond;
+
+    public ReadinessMessage(STATE state, double windowsPerSecond) {
+        this.state = state;
+        this.windowsPerSecond = windowsPerSecond;
+    }
+
+    public STATE getState() { return state; }
+
+    public boolean isReady() { return state == STATE.READY; }
+
+    public double getWindowsPerSecond() { return windowsPerSecond; }
+
+    @Override
+    public String toString() {
+        return state + String.format(" (%.1f windows/s)", windowsPerSecond);
+    }
+}
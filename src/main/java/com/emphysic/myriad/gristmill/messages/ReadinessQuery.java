@@ -0,0 +1,37 @@
+/*
+ * com.emphysic.myriad.gristmill.messages.ReadinessQuery
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill.messages;
+
+import java.io.Serializable;
+
+/**
+ * ReadinessQuery - asks the GristMill controller whether the pipeline is ready for work.  The controller replies with
+ * a ReadinessMessage, either immediately or (if wait is true) once the pipeline is ready.
+ */
+public class ReadinessQuery implements Serializable {
+    /**
+     * If true the reply is held until the pipeline is ready
+     */
+    private final boolean wait;
+
+    public ReadinessQuery(boolean wait) {
+        this.wait = wait;
+    }
+
+    public boolean isWait() { return wait; }
+}
@@ -0,0 +1,27 @@
+/*
+ * com.emphysic.myriad.gristmill.messages.SignatureQuery
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill.messages;
+
+import java.io.Serializable;
+
+/**
+ * SignatureQuery - asks the ROI finder stage for the signature of the pipeline's current configuration.  The stage
+ * replies with a PipelineSignature.
+ */
+public class SignatureQuery implements Serializable {
+}
@@ -0,0 +1,54 @@
+/*
+ * com.emphysic.myriad.gristmill.messages.SwapBundleMessage
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill.messages;
+
+import java.io.Serializable;
+
+/**
+ * SwapBundleMessage - asks the ROIFinderPool stage to load a new ROIBundle and switch to it once it has been warmed
+ * up.  The sender receives a BundleSwappedMessage when the swap completes or fails.  When GristMill runs several
+ * models the message names the model whose bundle is replaced.
+ */
+public class SwapBundleMessage implements Serializable {
+    /**
+     * Path to the ROIBundle on the GristMill host
+     */
+    private final String path;
+    /**
+     * Id of the model to swap, or null if GristMill runs a single model
+     */
+    private final String model;
+
+    public SwapBundleMessage(String path) {
+        this(null, path);
+    }
+
+    public SwapBundleMessage(String model, String path) {
+        this.model = model;
+        this.path = path;
+    }
+
+    public String getPath() { return path; }
+
+    public String getModel() { return model; }
+
+    @Override
+    public String toString() {
+        return "SwapBundleMessage[" + (model == null ? "" : model + ":") + path + "]";
+    }
+}
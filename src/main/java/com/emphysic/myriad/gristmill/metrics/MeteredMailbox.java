@@ -0,0 +1,221 @@
+/*
+ * com.emphysic.myriad.gristmill.metrics.MeteredMailbox
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill.metrics;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.dispatch.Envelope;
+import akka.dispatch.MailboxType;
+import akka.dispatch.MessageQueue;
+import akka.dispatch.ProducesMessageQueue;
+import akka.dispatch.UnboundedMessageQueueSemantics;
+import com.emphysic.myriad.gristmill.scheduling.FairShareQueue;
+import com.emphysic.myriad.gristmill.scheduling.QueuedMessage;
+import com.emphysic.myriad.gristmill.scheduling.Scheduling;
+import com.typesafe.config.Config;
+import scala.Option;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * MeteredMailbox - unbounded mailbox that reports its depth and the time messages spend waiting to the StageMetrics
+ * of the stage that owns it.  The stage is the top-level Actor the mailbox's owner lives under, e.g. a worker at
+ * /user/PyramidPool/router/$a reports to the PyramidPool stage.  Assigned to worker pools through
+ * akka.actor.deployment in the GristMill configuration.
+ *
+ * With "prioritize = on" in the mailbox's configuration, data messages are delivered in order of their file's
+ * priority (highest first) and then deadline (earliest first), otherwise in the order they arrived.  Other messages
+ * e.g. a PoisonPill are delivered after any queued data, so a worker being stopped finishes its queue first.
+ * Messages started after their file's deadline are counted as "deadline-misses".
+ *
+ * With "fair-share.enabled = on", each tenant (client) gets its own queue and the queues are served by weighted
+ * deficit round robin (see FairShareQueue), and the number of messages and total wait time of each tenant are
+ * counted as "tenant.(name).messages" and "tenant.(name).wait-ns" (reported in milliseconds as
+ * "tenant.(name).wait-ms", see StageMetrics.getCounters).  Tenant names such as the default host:port contain dots, so
+ * their weights must be quoted keys, e.g. "10.0.0.5:2552" = 2; each key is taken as a whole rather than as a path.
+ *
+ * Data from a cancelled source (see Cancellations) is dropped, whether it arrives after the cancellation or was
+ * already waiting in the queue, and counted as "cancelled".
+ *
+ * Message metadata is only read for the features that are on (see QueuedMessage); with neither prioritization nor
+ * fair sharing, messages are queued without parsing their metadata unless a cancellation is outstanding.
+ */
+public class MeteredMailbox implements MailboxType, ProducesMessageQueue<MeteredMailbox.MeteredMessageQueue> {
+    /**
+     * Counter of messages that were dequeued after their deadline had passed
+     */
+    public static final String DEADLINE_MISSES = "deadline-misses";
+    /**
+     * Counter of messages dropped because their source was cancelled
+     */
+    public static final String CANCELLED = "cancelled";
+
+    /**
+     * If true messages are ordered by priority and deadline
+     */
+    private final boolean prioritize;
+    /**
+     * If true tenants are served in weighted round robin
+     */
+    private final boolean fairShare;
+    /**
+     * Weight of each tenant listed in the configuration
+     */
+    private final Map<String, Double> weights = new HashMap<>();
+    /**
+     * Weight of tenants not listed in the configuration
+     */
+    private final double defaultWeight;
+
+    public MeteredMailbox(ActorSystem.Settings settings, Config config) {
+        prioritize = config.hasPath("prioritize") && config.getBoolean("prioritize");
+        fairShare = config.hasPath("fair-share.enabled") && config.getBoolean("fair-share.enabled");
+        defaultWeight = config.hasPath("fair-share.default-weight") ? config.getDouble("fair-share.default-weight") : 1;
+        if (config.hasPath("fair-share.weights")) {
+            Config tenantWeights = config.getConfig("fair-share.weights");
+            // Keys are read from the root object rather than as paths, so quoted names may contain dots
+            tenantWeights.root().forEach((tenant, weight) ->
+                    weights.put(tenant, ((Number) weight.unwrapped()).doubleValue()));
+        }
+    }
+
+    @Override
+    public MessageQueue create(Option<ActorRef> owner, Option<ActorSystem> system) {
+        Queue<QueuedMessage> queue;
+        if (fairShare) {
+            queue = new FairShareQueue(weights, defaultWeight, prioritize);
+        } else if (prioritize) {
+            queue = new PriorityBlockingQueue<>();
+        } else {
+            queue = new ConcurrentLinkedQueue<>();
+        }
+        return new MeteredMessageQueue(StageMetrics.forStage(stageOf(owner)), queue, prioritize, fairShare);
+    }
+
+    /**
+     * Determines the name of the pipeline stage an Actor belongs to.
+     * @param owner Actor
+     * @return name of the top-level user Actor the owner lives under, or "unknown"
+     */
+    public static String stageOf(Option<ActorRef> owner) {
+        if (owner.isDefined()) {
+            return stageOf(owner.get());
+        }
+        return "unknown";
+    }
+
+    /**
+     * Determines the name of the pipeline stage an Actor belongs to.
+     * @param actor Actor
+     * @return name of the top-level user Actor the Actor lives under, or "unknown"
+     */
+    public static String stageOf(ActorRef actor) {
+        // e.g. /user/PyramidPool/router/$a
+        String[] elements = actor.path().toStringWithoutAddress().split("/");
+        if (elements.length > 2 && "user".equals(elements[1])) {
+            return elements[2];
+        }
+        return "unknown";
+    }
+
+    /**
+     * MeteredMessageQueue - the message queue for a single Actor.
+     */
+    public static class MeteredMessageQueue implements MessageQueue, UnboundedMessageQueueSemantics {
+        private final Queue<QueuedMessage> queue;
+        private final StageMetrics metrics;
+        private final boolean prioritize;
+        private final boolean perTenant;
+        private final AtomicLong sequence = new AtomicLong();
+
+        /**
+         * Creates a message queue.
+         * @param metrics metrics of the stage the queue's Actor belongs to
+         * @param queue thread-safe queue holding the messages
+         * @param prioritize if true message priorities are read when messages are enqueued
+         * @param perTenant if true per-tenant statistics are kept
+         */
+        public MeteredMessageQueue(StageMetrics metrics, Queue<QueuedMessage> queue, boolean prioritize,
+                                   boolean perTenant) {
+            this.metrics = metrics;
+            this.queue = queue;
+            this.prioritize = prioritize;
+            this.perTenant = perTenant;
+            metrics.workerStarted();
+        }
+
+        @Override
+        public void enqueue(ActorRef receiver, Envelope handle) {
+            QueuedMessage queued = new QueuedMessage(handle, sequence.getAndIncrement(), prioritize, perTenant);
+            if (queued.isCancelled()) {
+                metrics.increment(CANCELLED);
+                return;
+            }
+            queue.offer(queued);
+            metrics.enqueued();
+        }
+
+        @Override
+        public Envelope dequeue() {
+            QueuedMessage queued;
+            // Skip anything that was cancelled while it waited
+            while ((queued = queue.poll()) != null && queued.isCancelled()) {
+                metrics.discarded();
+                metrics.increment(CANCELLED);
+            }
+            if (queued == null) {
+                return null;
+            }
+            long wait = System.nanoTime() - queued.enqueuedAt;
+            metrics.dequeued(wait);
+            if (queued.deadline != Scheduling.NO_DEADLINE && queued.deadline < System.currentTimeMillis()) {
+                metrics.increment(DEADLINE_MISSES);
+            }
+            if (perTenant && queued.data) {
+                metrics.increment("tenant." + queued.tenant + ".messages");
+                metrics.add("tenant." + queued.tenant + ".wait-ns", wait);
+            }
+            return queued.envelope;
+        }
+
+        @Override
+        public int numberOfMessages() {
+            return queue.size();
+        }
+
+        @Override
+        public boolean hasMessages() {
+            return !queue.isEmpty();
+        }
+
+        @Override
+        public void cleanUp(ActorRef owner, MessageQueue deadLetters) {
+            QueuedMessage queued;
+            while ((queued = queue.poll()) != null) {
+                metrics.discarded();
+                deadLetters.enqueue(owner, queued.envelope);
+            }
+            metrics.workerStopped();
+        }
+    }
+}
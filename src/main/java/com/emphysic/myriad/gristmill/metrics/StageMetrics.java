@@ -0,0 +1,277 @@
+/*
+ * com.emphysic.myriad.gristmill.metrics.StageMetrics
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill.metrics;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * StageMetrics - load statistics for a single stage of the processing pipeline, e.g. the PyramidPool.  Statistics
+ * are updated by the stage's worker mailboxes (see MeteredMailbox) and by the Autoscaler, and are published over JMX
+ * under com.emphysic.myriad.gristmill:type=Stage,name=(stage name).
+ */
+@Slf4j
+public class StageMetrics implements StageMetricsMXBean {
+    /**
+     * Metrics for each stage, keyed by stage name
+     */
+    private static final Map<String, StageMetrics> stages = new ConcurrentHashMap<>();
+
+    /**
+     * Smoothing factor for the exponentially-weighted mean wait time
+     */
+    private static final double ALPHA = 0.1;
+    /**
+     * Suffix of counters of nanoseconds
+     */
+    private static final String NANOS = "-ns";
+
+    private final String stage;
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong dequeued = new AtomicLong();
+    /**
+     * Bits of the (double) mean wait in nanoseconds
+     */
+    private final AtomicLong meanWait = new AtomicLong(Double.doubleToLongBits(0));
+    private final AtomicInteger workers = new AtomicInteger();
+    private final AtomicLong scaleUps = new AtomicLong();
+    private final AtomicLong scaleDowns = new AtomicLong();
+    /**
+     * Named event counters
+     */
+    private final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+
+    private StageMetrics(String stage) {
+        this.stage = stage;
+    }
+
+    /**
+     * Returns the metrics for a stage, creating and registering them if necessary.
+     * @param stage name of the stage
+     * @return stage's metrics
+     */
+    public static StageMetrics forStage(String stage) {
+        return stages.computeIfAbsent(stage, (name) -> {
+            StageMetrics metrics = new StageMetrics(name);
+            metrics.register();
+            return metrics;
+        });
+    }
+
+    /**
+     * Returns the metrics for every stage seen so far.
+     * @return map of stage name to metrics
+     */
+    public static Map<String, StageMetrics> all() {
+        return stages;
+    }
+
+    /**
+     * Publishes these metrics over JMX.
+     */
+    private void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName("com.emphysic.myriad.gristmill:type=Stage,name="
+                    + ObjectName.quote(stage));
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(this, objectName);
+            }
+        } catch (Exception e) {
+            log.warn("Unable to register JMX metrics for stage " + stage + ": " + e);
+        }
+    }
+
+    /**
+     * Records a message arriving in a worker mailbox.
+     */
+    public void enqueued() {
+        enqueued.incrementAndGet();
+        depth.incrementAndGet();
+    }
+
+    /**
+     * Records a message leaving a worker mailbox.
+     * @param waitNanos time the message spent in the mailbox
+     */
+    public void dequeued(long waitNanos) {
+        dequeued.incrementAndGet();
+        depth.decrementAndGet();
+        long prev;
+        long next;
+        do {
+            prev = meanWait.get();
+            double mean = Double.longBitsToDouble(prev);
+            next = Double.doubleToLongBits(mean + ALPHA * (waitNanos - mean));
+        } while (!meanWait.compareAndSet(prev, next));
+    }
+
+    /**
+     * Records a period in which the stage was idle (nothing queued or dequeued), decaying the mean wait towards 0 as
+     * if a message had gone straight through.  Without this the mean would keep the wait of the last busy period
+     * until the next message arrived.
+     */
+    public void idle() {
+        long prev;
+        long next;
+        do {
+            prev = meanWait.get();
+            double mean = Double.longBitsToDouble(prev);
+            next = Double.doubleToLongBits(mean - ALPHA * mean);
+        } while (!meanWait.compareAndSet(prev, next));
+    }
+
+    /**
+     * Records a message removed from a mailbox without being processed, e.g. when a worker is stopped.
+     */
+    public void discarded() {
+        depth.decrementAndGet();
+    }
+
+    /**
+     * Records a worker joining the stage.
+     */
+    public void workerStarted() {
+        workers.incrementAndGet();
+    }
+
+    /**
+     * Records a worker leaving the stage.
+     */
+    public void workerStopped() {
+        workers.decrementAndGet();
+    }
+
+    /**
+     * Records the autoscaler growing the stage.
+     */
+    public void scaledUp() {
+        scaleUps.incrementAndGet();
+    }
+
+    /**
+     * Records the autoscaler shrinking the stage.
+     */
+    public void scaledDown() {
+        scaleDowns.incrementAndGet();
+    }
+
+    /**
+     * Increments a named event counter.
+     * @param counter name of the counter
+     */
+    public void increment(String counter) {
+        add(counter, 1);
+    }
+
+    /**
+     * Adds to a named event counter.
+     * @param counter name of the counter
+     * @param amount amount to add
+     */
+    public void add(String counter, long amount) {
+        counters.computeIfAbsent(counter, (name) -> new AtomicLong()).addAndGet(amount);
+    }
+
+    /**
+     * Returns the current value of a named event counter.
+     * @param counter name of the counter
+     * @return count, 0 if the counter hasn't been used
+     */
+    public long count(String counter) {
+        AtomicLong value = counters.get(counter);
+        return value == null ? 0 : value.get();
+    }
+
+    @Override
+    public String getStage() {
+        return stage;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return Math.max(0, depth.get());
+    }
+
+    @Override
+    public long getEnqueued() {
+        return enqueued.get();
+    }
+
+    @Override
+    public long getDequeued() {
+        return dequeued.get();
+    }
+
+    @Override
+    public double getMeanWaitMillis() {
+        return Double.longBitsToDouble(meanWait.get()) / 1e6;
+    }
+
+    @Override
+    public int getWorkers() {
+        return workers.get();
+    }
+
+    @Override
+    public long getScaleUps() {
+        return scaleUps.get();
+    }
+
+    @Override
+    public long getScaleDowns() {
+        return scaleDowns.get();
+    }
+
+    /**
+     * Returns a snapshot of the named event counters.  Counters of nanoseconds (named "...-ns") are reported in
+     * milliseconds under the same name ending in "-ms"; they are accumulated in nanoseconds so that short intervals
+     * aren't truncated to 0.
+     * @return map of counter name to count
+     */
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> snapshot = new TreeMap<>();
+        counters.forEach((name, value) -> {
+            if (name.endsWith(NANOS)) {
+                snapshot.put(name.substring(0, name.length() - NANOS.length()) + "-ms", value.get() / 1000000);
+            } else {
+                snapshot.put(name, value.get());
+            }
+        });
+        return snapshot;
+    }
+
+    @Override
+    public String toString() {
+        return stage + "[workers=" + getWorkers()
+                + ", depth=" + getQueueDepth()
+                + ", meanWait=" + String.format("%.2f", getMeanWaitMillis()) + "ms"
+                + ", processed=" + getDequeued()
+                + (counters.isEmpty() ? "" : ", " + getCounters()) + "]";
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * com.emphysic.myriad.gristmill.metrics.StageMetricsMXBean
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill.metrics;
+
+import java.util.Map;
+
+/**
+ * StageMetricsMXBean - JMX view of a single processing stage's metrics.
+ */
+public interface StageMetricsMXBean {
+    /**
+     * Returns the name of the stage
+     * @return stage name e.g. PyramidPool
+     */
+    String getStage();
+
+    /**
+     * Returns the number of messages currently waiting in the stage's worker mailboxes
+     * @return total queue depth
+     */
+    int getQueueDepth();
+
+    /**
+     * Returns the total number of messages queued for the stage since startup
+     * @return number of messages enqueued
+     */
+    long getEnqueued();
+
+    /**
+     * Returns the total number of messages handed to the stage's workers since startup
+     * @return number of messages dequeued
+     */
+    long getDequeued();
+
+    /**
+     * Returns the smoothed time a message spends waiting in a worker mailbox
+     * @return mean wait in milliseconds
+     */
+    double getMeanWaitMillis();
+
+    /**
+     * Returns the number of live workers in the stage
+     * @return number of workers
+     */
+    int getWorkers();
+
+    /**
+     * Returns the number of times the autoscaler has grown the stage
+     * @return number of scale ups
+     */
+    long getScaleUps();
+
+    /**
+     * Returns the number of times the autoscaler has shrunk the stage
+     * @return number of scale downs
+     */
+    long getScaleDowns();
+
+    /**
+     * Returns the stage's event counters, e.g. the number of windows that missed their deadline
+     * @return counter name to count
+     */
+    Map<String, Long> getCounters();
+}
@@ -0,0 +1,239 @@
+/*
+ * com.emphysic.myriad.gristmill.scaling.Autoscaler
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill.scaling;
+
+import akka.actor.Cancellable;
+import akka.actor.UntypedActor;
+import akka.routing.AdjustPoolSize;
+import com.emphysic.myriad.gristmill.metrics.StageMetrics;
+import lombok.extern.slf4j.Slf4j;
+import scala.concurrent.duration.Duration;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Autoscaler - grows and shrinks the GristMill worker pools at runtime based on their queue depth and queue latency
+ * as reported by StageMetrics.  All pools share a single worker budget; idle pools give workers back and the most
+ * heavily loaded pool (the bottleneck) is grown first.
+ */
+@Slf4j
+public class Autoscaler extends UntypedActor {
+    /**
+     * Message sent to self to trigger an evaluation
+     */
+    private static final String TICK = "tick";
+    /**
+     * Pools below this fraction of their targets are considered idle
+     */
+    private static final double IDLE = 0.25;
+
+    /**
+     * Pools under management
+     */
+    private final List<Stage> stages;
+    /**
+     * Maximum number of workers across all pools
+     */
+    private final int budget;
+    /**
+     * Time (ms) between evaluations
+     */
+    private final long interval;
+    /**
+     * Scheduled evaluations
+     */
+    private Cancellable ticker;
+
+    public Autoscaler(List<ScalingPolicy> policies, int budget, long interval) {
+        this.stages = new ArrayList<>();
+        for (ScalingPolicy policy : policies) {
+            stages.add(new Stage(policy));
+        }
+        this.budget = budget;
+        this.interval = interval;
+    }
+
+    @Override
+    public void preStart() {
+        for (Stage stage : stages) {
+            ScalingPolicy policy = stage.policy;
+            int bounded = Math.max(policy.getMin(), Math.min(policy.getMax(), stage.size));
+            if (bounded != stage.size) {
+                resize(stage, bounded - stage.size, "configured size outside of autoscaling bounds");
+            }
+        }
+        log.info("Autoscaling " + stages.size() + " pools with a budget of " + budget + " workers");
+        ticker = getContext().system().scheduler().schedule(
+                Duration.create(interval, TimeUnit.MILLISECONDS),
+                Duration.create(interval, TimeUnit.MILLISECONDS),
+                getSelf(),
+                TICK,
+                getContext().dispatcher(),
+                getSelf()
+        );
+    }
+
+    @Override
+    public void postStop() {
+        if (ticker != null) {
+            ticker.cancel();
+        }
+    }
+
+    @Override
+    public void onReceive(Object message) throws Throwable {
+        if (TICK.equals(message)) {
+            evaluate();
+        } else {
+            unhandled(message);
+        }
+    }
+
+    /**
+     * Compares each pool's load against its targets and resizes as required.
+     */
+    private void evaluate() {
+        long now = System.currentTimeMillis();
+        for (Stage stage : stages) {
+            stage.pressure = pressure(stage);
+            log.debug(stage.metrics + " pressure=" + String.format("%.2f", stage.pressure));
+        }
+        // Give idle workers back first so they're available to the bottleneck
+        for (Stage stage : stages) {
+            if (stage.pressure < IDLE && stage.size > stage.policy.getMin()
+                    && now - stage.lastChange >= stage.policy.getDownCooldown()) {
+                resize(stage, -Math.min(stage.policy.getStep(), stage.size - stage.policy.getMin()), "idle");
+            }
+        }
+        List<Stage> byLoad = new ArrayList<>(stages);
+        byLoad.sort(Comparator.comparingDouble((Stage s) -> s.pressure).reversed());
+        for (Stage stage : byLoad) {
+            if (stage.pressure <= 1 || stage.size >= stage.policy.getMax()
+                    || now - stage.lastChange < stage.policy.getUpCooldown()) {
+                continue;
+            }
+            int wanted = Math.min(stage.policy.getStep(), stage.policy.getMax() - stage.size);
+            if (totalWorkers() + wanted > budget) {
+                donate(stage, now);
+            }
+            int grow = Math.min(wanted, budget - totalWorkers());
+            if (grow > 0) {
+                resize(stage, grow, String.format("pressure %.2f", stage.pressure));
+            } else {
+                log.debug("Worker budget exhausted, unable to grow " + stage.policy.getStage());
+            }
+        }
+    }
+
+    /**
+     * Takes a worker from the least loaded pool that isn't under pressure to make room for a busier pool.
+     * @param recipient pool that needs workers
+     * @param now current time (ms)
+     */
+    private void donate(Stage recipient, long now) {
+        Stage donor = null;
+        for (Stage stage : stages) {
+            if (stage != recipient && stage.pressure < 1 && stage.size > stage.policy.getMin()
+                    && now - stage.lastChange >= stage.policy.getDownCooldown()
+                    && (donor == null || stage.pressure < donor.pressure)) {
+                donor = stage;
+            }
+        }
+        if (donor != null) {
+            resize(donor, -1, "donating a worker to " + recipient.policy.getStage());
+        }
+    }
+
+    /**
+     * Calculates how loaded a pool is relative to its targets; values above 1 indicate the pool is falling behind.
+     * @param stage pool
+     * @return load relative to targets
+     */
+    private double pressure(Stage stage) {
+        ScalingPolicy policy = stage.policy;
+        double depth = stage.metrics.getQueueDepth() / (Math.max(1, stage.size) * policy.getTargetDepth());
+        long dequeued = stage.metrics.getDequeued();
+        boolean idle = stage.metrics.getQueueDepth() == 0 && dequeued == stage.lastDequeued;
+        stage.lastDequeued = dequeued;
+        if (idle) {
+            // The mean wait only moves when messages are dequeued; an idle stage's latency is 0
+            stage.metrics.idle();
+            return depth;
+        }
+        double latency = stage.metrics.getMeanWaitMillis() / policy.getTargetLatency();
+        return Math.max(depth, latency);
+    }
+
+    /**
+     * Adds or removes workers from a pool.
+     * @param stage pool to resize
+     * @param delta change in number of workers
+     * @param reason reason for the change, for logging
+     */
+    private void resize(Stage stage, int delta, String reason) {
+        if (delta == 0) {
+            return;
+        }
+        String name = stage.policy.getStage();
+        log.info("Resizing " + name + " from " + stage.size + " to " + (stage.size + delta) + " workers (" + reason + ")");
+        getContext().actorSelection(stage.policy.getTarget()).tell(new AdjustPoolSize(delta), getSelf());
+        stage.size += delta;
+        stage.lastChange = System.currentTimeMillis();
+        if (delta > 0) {
+            stage.metrics.scaledUp();
+        } else {
+            stage.metrics.scaledDown();
+        }
+    }
+
+    /**
+     * Returns the number of workers currently allocated across all pools
+     * @return total workers
+     */
+    private int totalWorkers() {
+        int total = 0;
+        for (Stage stage : stages) {
+            total += stage.size;
+        }
+        return total;
+    }
+
+    /**
+     * Scaling state of a single pool
+     */
+    private static class Stage {
+        final ScalingPolicy policy;
+        final StageMetrics metrics;
+        int size;
+        long lastChange;
+        double pressure;
+        /**
+         * Messages the pool had dequeued at the previous evaluation
+         */
+        long lastDequeued;
+
+        Stage(ScalingPolicy policy) {
+            this.policy = policy;
+            this.metrics = StageMetrics.forStage(policy.getStage());
+            this.size = policy.getInitial();
+        }
+    }
+}
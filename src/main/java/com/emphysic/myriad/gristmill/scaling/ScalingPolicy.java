@@ -0,0 +1,144 @@
+/*
+ * com.emphysic.myriad.gristmill.scaling.ScalingPolicy
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill.scaling;
+
+import com.emphysic.myriad.gristmill.PipelineStage;
+import com.typesafe.config.Config;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ScalingPolicy - autoscaling bounds and targets for a single worker pool.
+ */
+public class ScalingPolicy implements Serializable {
+    /**
+     * Name of the stage (top-level Actor) being scaled, e.g. PyramidPool
+     */
+    private final String stage;
+    /**
+     * Path of the Actor(s) that resize the stage's workers on receipt of an AdjustPoolSize
+     */
+    private final String target;
+    /**
+     * Number of workers the pool was started with
+     */
+    private final int initial;
+    /**
+     * Fewest workers the pool may shrink to
+     */
+    private final int min;
+    /**
+     * Most workers the pool may grow to
+     */
+    private final int max;
+    /**
+     * Number of workers to add or remove per decision
+     */
+    private final int step;
+    /**
+     * Target number of queued messages per worker
+     */
+    private final double targetDepth;
+    /**
+     * Target time (ms) a message should wait in a worker's mailbox
+     */
+    private final long targetLatency;
+    /**
+     * Minimum time (ms) between growing the pool
+     */
+    private final long upCooldown;
+    /**
+     * Minimum time (ms) between shrinking the pool
+     */
+    private final long downCooldown;
+
+    public ScalingPolicy(String stage, String target, int initial, int min, int max, int step, double targetDepth,
+                         long targetLatency, long upCooldown, long downCooldown) {
+        if (min < 1 || max < min) {
+            throw new IllegalArgumentException("Invalid worker bounds for " + stage + ": min=" + min + ", max=" + max);
+        }
+        this.stage = stage;
+        this.target = target;
+        this.initial = initial;
+        this.min = min;
+        this.max = max;
+        this.step = Math.max(1, step);
+        this.targetDepth = targetDepth;
+        this.targetLatency = targetLatency;
+        this.upCooldown = upCooldown;
+        this.downCooldown = downCooldown;
+    }
+
+    /**
+     * Reads a policy from the autoscale configuration.  Settings not specified for the stage are taken from the
+     * top-level autoscale block.
+     * @param config GristMill configuration
+     * @param pipelineStage stage to scale
+     * @return policy for the stage
+     */
+    public static ScalingPolicy fromConfig(Config config, PipelineStage pipelineStage) {
+        String key = pipelineStage.getKey();
+        int initial = config.getInt(key + ".number");
+        Config defaults = config.getConfig("autoscale");
+        Config stageConfig = defaults.hasPath(key) ? defaults.getConfig(key).withFallback(defaults) : defaults;
+        int min = stageConfig.hasPath("min") ? stageConfig.getInt("min") : 1;
+        int max = stageConfig.hasPath("max") ? stageConfig.getInt("max") : Math.max(initial, min);
+        return new ScalingPolicy(
+                pipelineStage.getName(),
+                pipelineStage.getScalingPath(),
+                initial,
+                min,
+                max,
+                stageConfig.hasPath("step") ? stageConfig.getInt("step") : 1,
+                stageConfig.hasPath("target-depth") ? stageConfig.getDouble("target-depth") : 4,
+                stageConfig.hasPath("target-latency")
+                        ? stageConfig.getDuration("target-latency", TimeUnit.MILLISECONDS) : 250,
+                stageConfig.hasPath("cooldown.up")
+                        ? stageConfig.getDuration("cooldown.up", TimeUnit.MILLISECONDS) : 2000,
+                stageConfig.hasPath("cooldown.down")
+                        ? stageConfig.getDuration("cooldown.down", TimeUnit.MILLISECONDS) : 10000
+        );
+    }
+
+    public String getStage() { return stage; }
+
+    public String getTarget() { return target; }
+
+    public int getInitial() { return initial; }
+
+    public int getMin() { return min; }
+
+    public int getMax() { return max; }
+
+    public int getStep() { return step; }
+
+    public double getTargetDepth() { return targetDepth; }
+
+    public long getTargetLatency() { return targetLatency; }
+
+    public long getUpCooldown() { return upCooldown; }
+
+    public long getDownCooldown() { return downCooldown; }
+
+    @Override
+    public String toString() {
+        return stage + "[min=" + min + ", max=" + max + ", step=" + step + ", targetDepth=" + targetDepth
+                + ", targetLatency=" + targetLatency + "ms]";
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * com.emphysic.myriad.gristmill.scheduling.Cancellations
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill.scheduling;
+
+import com.emphysic.myriad.network.messages.ImmutableMessage;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cancellations - submissions of files whose processing has been cancelled.  Every stage consults the registry:
+ * worker mailboxes drop queued and newly-arriving messages from cancelled submissions before a worker ever sees them,
+ * and the ROI finder stage drops their results.  Cancelled submissions are forgotten after a retention period.
+ *
+ * Messages are matched by their submission id (Scheduling.SUBMISSIONKEY), so a file that is submitted again after
+ * being cancelled is processed as usual; messages submitted without one are matched by their source.
+ */
+public final class Cancellations {
+    /**
+     * Cancelled submissions (or sources) and the time (ms) they were cancelled
+     */
+    private static final Map<String, Long> cancelled = new ConcurrentHashMap<>();
+    /**
+     * Time (ms) a cancellation is remembered
+     */
+    private static volatile long retention = 3600000;
+
+    private Cancellations() {
+    }
+
+    /**
+     * Cancels a submission.
+     * @param source submission id, or the source key of files submitted without one
+     */
+    public static void cancel(String source) {
+        long now = System.currentTimeMillis();
+        cancelled.values().removeIf((when) -> now - when > retention);
+        cancelled.put(source, now);
+    }
+
+    /**
+     * Determines whether any submission is cancelled, so that callers can skip reading submissions from metadata.
+     * @return true if a cancellation is outstanding
+     */
+    public static boolean anyCancelled() {
+        return !cancelled.isEmpty();
+    }
+
+    /**
+     * Determines whether a submission has been cancelled.
+     * @param source submission id or source key (see Scheduling.submissionKeyOf), may be null
+     * @return true if the submission has been cancelled
+     */
+    public static boolean isCancelled(String source) {
+        return source != null && !cancelled.isEmpty() && cancelled.containsKey(source);
+    }
+
+    /**
+     * Determines whether a message's submission has been cancelled.  Metadata is only parsed if a cancellation is
+     * outstanding.
+     * @param metadata message metadata, may be null
+     * @return true if the message's submission has been cancelled
+     */
+    public static boolean isCancelledMetadata(String metadata) {
+        if (metadata == null || cancelled.isEmpty()) {
+            return false;
+        }
+        return isCancelled(Scheduling.submissionKeyOf(ImmutableMessage.getMetadata(metadata)));
+    }
+
+    /**
+     * Sets how long cancellations are remembered.
+     * @param millis retention in milliseconds
+     */
+    public static void setRetention(long millis) {
+        retention = millis;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * com.emphysic.myriad.gristmill.scheduling.FairShareQueue
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill.scheduling;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+
+/**
+ * FairShareQueue - message queue that keeps a separate queue for each tenant (client) and serves them with deficit
+ * round robin, so that a tenant submitting a large batch can't starve the others.  Each tenant receives a share of
+ * the messages proportional to its weight.  Within a tenant messages are served in priority order (or arrival order
+ * if priorities are ignored).  Control messages are served once no data is waiting.
+ */
+public class FairShareQueue extends AbstractQueue<QueuedMessage> {
+    /**
+     * Relative share for each tenant
+     */
+    private final Map<String, Double> weights;
+    /**
+     * Share for tenants not listed in weights
+     */
+    private final double defaultWeight;
+    /**
+     * If true each tenant's messages are served in priority order
+     */
+    private final boolean prioritize;
+
+    /**
+     * Queues of tenants with waiting messages, in service order
+     */
+    private final Deque<TenantQueue> active = new ArrayDeque<>();
+    /**
+     * Every tenant's queue, keyed by tenant
+     */
+    private final Map<String, TenantQueue> tenants = new HashMap<>();
+    /**
+     * Control messages
+     */
+    private final Queue<QueuedMessage> control = new ArrayDeque<>();
+    private int size;
+
+    public FairShareQueue(Map<String, Double> weights, double defaultWeight, boolean prioritize) {
+        this.weights = weights;
+        this.defaultWeight = defaultWeight;
+        this.prioritize = prioritize;
+    }
+
+    @Override
+    public synchronized boolean offer(QueuedMessage message) {
+        if (!message.data) {
+            control.offer(message);
+        } else {
+            TenantQueue tenant = tenants.computeIfAbsent(message.tenant, (name) -> new TenantQueue(
+                    Math.max(1e-3, weights.getOrDefault(name, defaultWeight)), prioritize));
+            if (tenant.queue.isEmpty()) {
+                tenant.deficit = 0;
+                active.addLast(tenant);
+            }
+            tenant.queue.offer(message);
+        }
+        size++;
+        return true;
+    }
+
+    @Override
+    public synchronized QueuedMessage poll() {
+        if (size == 0) {
+            return null;
+        }
+        QueuedMessage message;
+        if (active.isEmpty()) {
+            message = control.poll();
+        } else {
+            TenantQueue tenant = active.peekFirst();
+            // Top up the tenant at the head until it can afford a message, sending it to the back of the line
+            // each time its turn ends
+            while (tenant.deficit < 1) {
+                tenant.deficit += tenant.weight;
+                if (tenant.deficit < 1) {
+                    active.addLast(active.removeFirst());
+                    tenant = active.peekFirst();
+                }
+            }
+            tenant.deficit -= 1;
+            message = tenant.queue.poll();
+            if (tenant.queue.isEmpty()) {
+                active.removeFirst();
+                tenant.deficit = 0;
+            } else if (tenant.deficit < 1) {
+                active.addLast(active.removeFirst());
+            }
+        }
+        size--;
+        return message;
+    }
+
+    @Override
+    public synchronized QueuedMessage peek() {
+        if (!active.isEmpty()) {
+            return active.peekFirst().queue.peek();
+        }
+        return control.peek();
+    }
+
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public synchronized Iterator<QueuedMessage> iterator() {
+        List<QueuedMessage> snapshot = new ArrayList<>(size);
+        for (TenantQueue tenant : active) {
+            snapshot.addAll(tenant.queue);
+        }
+        snapshot.addAll(control);
+        return snapshot.iterator();
+    }
+
+    /**
+     * Queue and service credit of a single tenant
+     */
+    private static final class TenantQueue {
+        final double weight;
+        final Queue<QueuedMessage> queue;
+        double deficit;
+
+        TenantQueue(double weight, boolean prioritize) {
+            this.weight = weight;
+            this.queue = prioritize ? new PriorityQueue<>() : new ArrayDeque<>();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * com.emphysic.myriad.gristmill.scheduling.QueuedMessage
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill.scheduling;
+
+import akka.dispatch.Envelope;
+import com.emphysic.myriad.network.messages.ImmutableMessage;
+
+import java.util.Map;
+
+/**
+ * QueuedMessage - a message waiting in a worker's mailbox, along with the scheduling information read from its
+ * metadata when it was enqueued.  Metadata is only parsed for the scheduling features that are enabled: a message's
+ * priority and deadline are read only if messages are prioritized and its tenant only if tenants share fairly, and
+ * with neither its metadata isn't parsed unless a cancellation is outstanding.
+ */
+public final class QueuedMessage implements Comparable<QueuedMessage> {
+    /**
+     * The message and its sender
+     */
+    public final Envelope envelope;
+    /**
+     * Time (System.nanoTime) the message was enqueued
+     */
+    public final long enqueuedAt;
+    /**
+     * Arrival order within the mailbox
+     */
+    public final long sequence;
+    /**
+     * True if the message carries data (i.e. has metadata), false for control messages such as PoisonPill
+     */
+    public final boolean data;
+    /**
+     * Metadata of the message, null for control messages
+     */
+    public final String metadata;
+    /**
+     * Priority of the message, DEFAULT_PRIORITY unless messages are prioritized
+     */
+    public final int priority;
+    /**
+     * Deadline of the message, NO_DEADLINE unless messages are prioritized
+     */
+    public final long deadline;
+    /**
+     * Tenant of the message, DEFAULT_TENANT unless tenants share fairly
+     */
+    public final String tenant;
+    /**
+     * Key the message is cancelled by (see Scheduling.submissionKeyOf), null if unknown or not yet read
+     */
+    private String cancellationKey;
+    /**
+     * True once the cancellation key has been read
+     */
+    private boolean keyRead;
+
+    /**
+     * Creates a queue entry.
+     * @param envelope message and sender
+     * @param sequence arrival order
+     * @param prioritize if false the message's priority and deadline aren't read
+     */
+    public QueuedMessage(Envelope envelope, long sequence, boolean prioritize) {
+        this(envelope, sequence, prioritize, false);
+    }
+
+    /**
+     * Creates a queue entry.
+     * @param envelope message and sender
+     * @param sequence arrival order
+     * @param prioritize if false the message's priority and deadline aren't read
+     * @param fairShare if false the message's tenant isn't read
+     */
+    public QueuedMessage(Envelope envelope, long sequence, boolean prioritize, boolean fairShare) {
+        this.envelope = envelope;
+        this.enqueuedAt = System.nanoTime();
+        this.sequence = sequence;
+        this.metadata = Scheduling.metadataOf(envelope.message());
+        this.data = metadata != null;
+        Map<String, String> md = data && (prioritize || fairShare) ? ImmutableMessage.getMetadata(metadata) : null;
+        this.priority = prioritize && md != null ? Scheduling.priorityOf(md) : Scheduling.DEFAULT_PRIORITY;
+        this.deadline = prioritize && md != null ? Scheduling.deadlineOf(md) : Scheduling.NO_DEADLINE;
+        this.tenant = fairShare && md != null ? Scheduling.tenantOf(md) : Scheduling.DEFAULT_TENANT;
+        if (md != null) {
+            // Free once the metadata has been parsed anyway
+            cancellationKey = Scheduling.submissionKeyOf(md);
+            keyRead = true;
+        }
+    }
+
+    /**
+     * Determines whether the message's submission has been cancelled.  The metadata is only parsed if a cancellation
+     * is outstanding, and then once.
+     * @return true if the message should be dropped
+     */
+    public boolean isCancelled() {
+        if (!data || !Cancellations.anyCancelled()) {
+            return false;
+        }
+        if (!keyRead) {
+            cancellationKey = Scheduling.submissionKeyOf(ImmutableMessage.getMetadata(metadata));
+            keyRead = true;
+        }
+        return Cancellations.isCancelled(cancellationKey);
+    }
+
+    /**
+     * Orders data before control messages, then by priority (highest first), deadline (earliest first) and arrival.
+     * @param other entry to compare to
+     * @return comparison
+     */
+    @Override
+    public int compareTo(QueuedMessage other) {
+        if (data != other.data) {
+            return data ? -1 : 1;
+        }
+        if (priority != other.priority) {
+            return Integer.compare(other.priority, priority);
+        }
+        if (deadline != other.deadline) {
+            return Long.compare(deadline, other.deadline);
+        }
+        return Long.compare(sequence, other.sequence);
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * com.emphysic.myriad.gristmill.scheduling.Scheduling
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill.scheduling;
+
+import com.emphysic.myriad.network.messages.DatasetMessage;
+import com.emphysic.myriad.network.messages.FileMessage;
+import com.emphysic.myriad.network.messages.ImmutableMessage;
+import com.emphysic.myriad.network.messages.ROIMessage;
+
+import java.util.Map;
+
+/**
+ * Scheduling - metadata keys and helpers for scheduling work.  A file's priority and deadline are set in its
+ * FileMessage metadata when it is submitted and are carried by every message derived from it.
+ */
+public final class Scheduling {
+    /**
+     * Metadata key for a file's priority; higher priorities are processed first.  Defaults to 0.
+     */
+    public static final String PRIORITYKEY = "priority";
+    /**
+     * Metadata key for a file's deadline, in milliseconds since the epoch.  Among files of equal priority those with
+     * earlier deadlines are processed first.
+     */
+    public static final String DEADLINEKEY = "deadline";
+    /**
+     * Metadata key for the source (original file) a message was derived from
+     */
+    public static final String SOURCEKEY = "source";
+    /**
+     * Metadata key for the submission a message was derived from, unique to each time a file is submitted so that
+     * cancelling one submission doesn't affect a later submission of the same file
+     */
+    public static final String SUBMISSIONKEY = "submission";
+    /**
+     * Metadata key for the client (tenant) that submitted a file, used to share capacity fairly between clients
+     */
+    public static final String TENANTKEY = "tenant";
+    /**
+     * Tenant of files that don't specify one
+     */
+    public static final String DEFAULT_TENANT = "default";
+    /**
+     * Priority of files that don't specify one
+     */
+    public static final int DEFAULT_PRIORITY = 0;
+    /**
+     * Deadline of files that don't specify one
+     */
+    public static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    private Scheduling() {
+    }
+
+    /**
+     * Adds a priority and deadline to message metadata.
+     * @param metadata original metadata
+     * @param priority priority, higher is more urgent
+     * @param deadline deadline in milliseconds since the epoch, or NO_DEADLINE
+     * @return metadata with scheduling information
+     */
+    public static String genMetadata(String metadata, int priority, long deadline) {
+        String md = ImmutableMessage.genMetadata(metadata, PRIORITYKEY, String.valueOf(priority));
+        if (deadline != NO_DEADLINE) {
+            md = ImmutableMessage.genMetadata(md, DEADLINEKEY, String.valueOf(deadline));
+        }
+        return md;
+    }
+
+    /**
+     * Returns the metadata of a Myriad data message.
+     * @param message message
+     * @return metadata, or null if the message doesn't carry any
+     */
+    public static String metadataOf(Object message) {
+        if (message instanceof DatasetMessage) {
+            return ((DatasetMessage) message).getMetadata();
+        } else if (message instanceof ROIMessage) {
+            return ((ROIMessage) message).getMetadata();
+        } else if (message instanceof FileMessage) {
+            return ((FileMessage) message).getMetadata();
+        }
+        return null;
+    }
+
+    /**
+     * Reads the priority from message metadata.
+     * @param metadata message metadata
+     * @return priority or DEFAULT_PRIORITY if not specified
+     */
+    public static int priorityOf(String metadata) {
+        if (metadata == null || !metadata.contains(PRIORITYKEY)) {
+            return DEFAULT_PRIORITY;
+        }
+        return priorityOf(ImmutableMessage.getMetadata(metadata));
+    }
+
+    /**
+     * Reads the priority from parsed message metadata.
+     * @param md message metadata
+     * @return priority or DEFAULT_PRIORITY if not specified
+     */
+    public static int priorityOf(Map<String, String> md) {
+        return parse(md, PRIORITYKEY, DEFAULT_PRIORITY).intValue();
+    }
+
+    /**
+     * Reads the deadline from message metadata.
+     * @param metadata message metadata
+     * @return deadline or NO_DEADLINE if not specified
+     */
+    public static long deadlineOf(String metadata) {
+        if (metadata == null || !metadata.contains(DEADLINEKEY)) {
+            return NO_DEADLINE;
+        }
+        return deadlineOf(ImmutableMessage.getMetadata(metadata));
+    }
+
+    /**
+     * Reads the deadline from parsed message metadata.
+     * @param md message metadata
+     * @return deadline or NO_DEADLINE if not specified
+     */
+    public static long deadlineOf(Map<String, String> md) {
+        return parse(md, DEADLINEKEY, NO_DEADLINE);
+    }
+
+    /**
+     * Reads the tenant from message metadata.
+     * @param metadata message metadata
+     * @return tenant or DEFAULT_TENANT if not specified
+     */
+    public static String tenantOf(String metadata) {
+        if (metadata == null || !metadata.contains(TENANTKEY)) {
+            return DEFAULT_TENANT;
+        }
+        return tenantOf(ImmutableMessage.getMetadata(metadata));
+    }
+
+    /**
+     * Reads the tenant from parsed message metadata.
+     * @param md message metadata
+     * @return tenant or DEFAULT_TENANT if not specified
+     */
+    public static String tenantOf(Map<String, String> md) {
+        String tenant = md.get(TENANTKEY);
+        return (tenant == null || tenant.isEmpty()) ? DEFAULT_TENANT : tenant;
+    }
+
+    /**
+     * Reads the key identifying the submission a message belongs to from parsed message metadata, by which it is
+     * cancelled (see Cancellations) and masked (see ScanMasks).
+     * @param md message metadata
+     * @return the message's submission, or its source if it was submitted without one, or null if neither is known
+     */
+    public static String submissionKeyOf(Map<String, String> md) {
+        String submission = md.get(SUBMISSIONKEY);
+        return submission != null ? submission : md.get(SOURCEKEY);
+    }
+
+    private static Long parse(Map<String, String> md, String key, long defaultValue) {
+        String value = md.get(key);
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                // fall through to the default
+            }
+        }
+        return defaultValue;
+    }
+}
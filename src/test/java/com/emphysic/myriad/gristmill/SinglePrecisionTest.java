@@ -0,0 +1,206 @@
+/*
+ * com.emphysic.myriad.gristmill.SinglePrecisionTest
+ *
+ * Copyright (c) 2017 Emphysic LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.emphysic.myriad.gristmill;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.actor.UntypedActor;
+import com.emphysic.myriad.core.data.io.Dataset;
+import com.emphysic.myriad.core.data.ops.GaussianPyramidOperation;
+import com.emphysic.myriad.core.data.roi.ROI;
+import com.emphysic.myriad.core.data.roi.ROIBundle;
+import com.emphysic.myriad.core.data.util.FileSniffer;
+import com.emphysic.myriad.gristmill.demo.ROIResultGenerator;
+import com.emphysic.myriad.gristmill.demo.ROIStore;
+import com.emphysic.myriad.network.messages.DatasetMessage;
+import com.emphysic.myriad.network.messages.ImmutableMessage;
+import com.emphysic.myriad.network.messages.ROIMessage;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * SinglePrecisionTest - scans the sample C-scans with the sample model on the fork/join engine, once as read and once
+ * rounded to single precision as a bulk upload is kept in single precision (dataset.precision), and checks that both
+ * find the same ROI; then checks that the ROI drawn on single precision copies (ROIResultGenerator.generateSingle)
+ * match those drawn in double precision.
+ */
+public class SinglePrecisionTest {
+    /**
+     * Pyramid, window and step settings of gristmill.conf
+     */
+    private static final int SCALE_FACTOR = 2;
+    private static final int WINDOW_SIZE = 1;
+    private static final int WINDOW = 15;
+    private static final int STEP = 15;
+    /**
+     * Longest wait for a scan's results, in seconds
+     */
+    private static final long TIMEOUT = 60;
+
+    private static final ScanGeometry GEOMETRY = new ScanGeometry(SCALE_FACTOR, WINDOW_SIZE, STEP, WINDOW, WINDOW);
+
+    private static ActorSystem system;
+    private static ActorRef engine;
+    private static BlockingQueue<ROIMessage> results;
+
+    @BeforeClass
+    public static void startEngine() throws Exception {
+        ROIBundle bundle = new ROIBundle();
+        bundle.load(new File("sample/models/sobel_pa.myr"));
+        system = ActorSystem.create("SinglePrecisionTest");
+        results = new LinkedBlockingQueue<>();
+        engine = system.actorOf(Props.create(ForkJoinEngine.class, bundle, "sobel_pa.myr", null, GEOMETRY,
+                new GaussianPyramidOperation(SCALE_FACTOR, WINDOW_SIZE), SCALE_FACTOR, WINDOW_SIZE, STEP, WINDOW,
+                WINDOW, 0, 1, true, 0));
+        engine.tell(system.actorOf(Props.create(Collector.class, results)), ActorRef.noSender());
+    }
+
+    @AfterClass
+    public static void stopEngine() {
+        if (system != null) {
+            system.shutdown();
+        }
+    }
+
+    @Test
+    public void findsTheSameROI() throws Exception {
+        for (File scan : sampleScans()) {
+            Dataset data = read(scan);
+            Dataset single = FloatDataset.of(data).toDataset();
+            assertEquals(scan.getName(), windowsOf(scan(data, scan.getName())),
+                    windowsOf(scan(single, scan.getName() + "/single")));
+        }
+    }
+
+    @Test
+    public void rendersTheSameROI() throws Exception {
+        Set<ROIResultGenerator.REPTYPE> views = EnumSet.allOf(ROIResultGenerator.REPTYPE.class);
+        for (File scan : sampleScans()) {
+            Dataset data = read(scan);
+            ROIStore store = new ROIStore();
+            for (ROI roi : scan(data, scan.getName() + "/render")) {
+                store.add(roi);
+            }
+            Map<ROIResultGenerator.REPTYPE, Dataset> doubles = new ROIResultGenerator().generate(data, store, views);
+            Map<ROIResultGenerator.REPTYPE, FloatDataset> singles =
+                    new ROIResultGenerator().generateSingle(data, store, views);
+            assertEquals(scan.getName(), doubles.keySet(), singles.keySet());
+            for (ROIResultGenerator.REPTYPE view : views) {
+                Dataset expected = doubles.get(view);
+                FloatDataset actual = singles.get(view);
+                assertEquals(scan.getName() + " " + view, expected.getWidth(), actual.getWidth());
+                assertEquals(scan.getName() + " " + view, expected.getHeight(), actual.getHeight());
+                for (int y = 0; y < expected.getHeight(); y++) {
+                    for (int x = 0; x < expected.getWidth(); x++) {
+                        float sample = (float) expected.get(x, y);
+                        assertEquals(scan.getName() + " " + view + " at " + x + "," + y, sample, actual.get(x, y),
+                                Math.ulp(sample));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Scans a dataset on the engine.
+     * @param data dataset
+     * @param source source name, unique to the scan
+     * @return ROI found
+     */
+    private static List<ROI> scan(Dataset data, String source) throws Exception {
+        String metadata = ImmutableMessage.genMetadata(null, "source", source);
+        engine.tell(new DatasetMessage(data, metadata), ActorRef.noSender());
+        long expected = GEOMETRY.windows(data.getWidth(), data.getHeight(), null, null);
+        List<ROI> found = new ArrayList<>();
+        for (long received = 0; received < expected; received++) {
+            ROIMessage result = results.poll(TIMEOUT, TimeUnit.SECONDS);
+            assertNotNull("Timed out after " + received + " of " + expected + " results for " + source, result);
+            assertEquals(source, ImmutableMessage.getMetadata(result.getMetadata()).get("source"));
+            if (result.getROI() != null) {
+                found.add(result.getROI());
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Returns the windows ROI were found in.
+     * @param found ROI
+     * @return pyramid level and position of each ROI's window
+     */
+    private static Set<String> windowsOf(List<ROI> found) {
+        Set<String> windows = new TreeSet<>();
+        for (ROI roi : found) {
+            Map<String, String> md = ImmutableMessage.getMetadata(roi.getMetadata());
+            windows.add(md.get("pyramid") + "/" + md.get("window"));
+        }
+        return windows;
+    }
+
+    private static List<File> sampleScans() {
+        File[] scans = new File("sample/test").listFiles((dir, name) -> name.endsWith(".csv"));
+        assertNotNull(scans);
+        assertTrue("No sample scans", scans.length > 0);
+        Arrays.sort(scans);
+        return Arrays.asList(scans);
+    }
+
+    private static Dataset read(File scan) throws Exception {
+        Dataset data = FileSniffer.read(scan, true);
+        assertNotNull("Unable to read " + scan, data);
+        return data;
+    }
+
+    /**
+     * Collector - queues the ROI results the engine sends.
+     */
+    public static class Collector extends UntypedActor {
+        private final BlockingQueue<ROIMessage> results;
+
+        public Collector(BlockingQueue<ROIMessage> results) {
+            this.results = results;
+        }
+
+        @Override
+        public void onReceive(Object message) throws Throwable {
+            if (message instanceof ROIMessage) {
+                results.add((ROIMessage) message);
+            } else {
+                unhandled(message);
+            }
+        }
+    }
+}